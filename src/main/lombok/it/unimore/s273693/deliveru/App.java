@@ -2,6 +2,8 @@ package it.unimore.s273693.deliveru;
 
 import it.unimore.s273693.deliveru.ui.controllers.EntryController;
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.control.Alert;
 import javafx.stage.Stage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -26,7 +28,21 @@ public class App extends Application {
         var capitalizedName = APP_NAME.substring(0, 1).toUpperCase(Locale.US) + APP_NAME.substring(1);
         LOGGER.info(capitalizedName + " starting, hold tight!");
         LOGGER.info("File paths: {}", AppContext.FILES);
+        // The data is loaded in background, the entry scene doesn't need it
         this.context = AppContext.load(primaryStage);
+        this.context.getReady().exceptionally(e -> {
+            Platform.runLater(() -> {
+                new Alert(Alert.AlertType.ERROR, "Cannot load the app data: " + e.getMessage()).showAndWait();
+                context.quit();
+            });
+            return null;
+        });
+        this.context.getReady().thenRun(() -> Platform.runLater(() -> {
+            var orphan = context.getDeliveries().getOrphanJournal();
+            if (orphan == null) return;
+            new Alert(Alert.AlertType.WARNING, "The deliveries were restored from an older save, the latest changes "
+                    + "could not be recovered (they were moved to " + orphan + ")").show();
+        }));
 
         var mounter = this.context.getUiMounter();
         mounter.mount(new EntryController(context));
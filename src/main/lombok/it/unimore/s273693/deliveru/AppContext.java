@@ -1,9 +1,13 @@
 package it.unimore.s273693.deliveru;
 
+import it.unimore.s273693.deliveru.db.Delivery;
+import it.unimore.s273693.deliveru.db.DeliveryState;
 import it.unimore.s273693.deliveru.db.DeliveryStore;
+import it.unimore.s273693.deliveru.db.DeliveryStoreListener;
 import it.unimore.s273693.deliveru.db.User;
 import it.unimore.s273693.deliveru.db.UserProvider;
 import it.unimore.s273693.deliveru.password.PasswordAuthenticator;
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
 import it.unimore.s273693.deliveru.ui.mount.MountableScene;
 import it.unimore.s273693.deliveru.ui.mount.UiMounter;
 import it.unimore.s273693.deliveru.workers.DeliveryWorker;
@@ -13,14 +17,17 @@ import javafx.beans.property.SimpleObjectProperty;
 import javafx.stage.Stage;
 import lombok.Getter;
 import lombok.NonNull;
+import lombok.Value;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.function.Consumer;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The App context holder.
@@ -31,6 +38,11 @@ import java.util.function.Consumer;
  *  accessibility and once the logic becomes too dense it should be composited along one of the other
  *  systems.
  * </p>
+ *
+ * <p>
+ *  The data is loaded in background (see {@link #load(Stage)}) so that the first scene can be shown right away,
+ *  until {@link #getReady()} completes the users and the deliveries are not available.
+ * </p>
  */
 public class AppContext {
     private static final Logger logger = LogManager.getLogger(AppContext.class);
@@ -40,20 +52,28 @@ public class AppContext {
     public static final AppFiles FILES = new AppFiles();
 
     /**
-     * The user storage.
+     * The user storage (null until the data is loaded).
      *
      * @return The User storage
      */
     @Getter
-    private final UserProvider users;
+    private UserProvider users;
 
     /**
-     * The delivery storage.
+     * The delivery storage (null until the data is loaded).
      *
      * @return The Delivery storage
      */
     @Getter
-    private final DeliveryStore deliveries;
+    private DeliveryStore deliveries;
+
+    /**
+     * Completed in the UI thread once the users, the deliveries and the settings are loaded.
+     *
+     * @return The future that completes when the data is ready
+     */
+    @Getter
+    private final CompletableFuture<AppContext> ready = new CompletableFuture<>();
 
     /**
      * The app JavaFX stage.
@@ -92,6 +112,21 @@ public class AppContext {
     @Getter
     private final DeliveryWorker deliveryWorker = new DeliveryWorker(this);
 
+    /**
+     * The background persistence service.
+     *
+     * @see PersistenceService
+     * @return The persistence service
+     */
+    @Getter
+    private final PersistenceService persistence;
+    private PersistenceService.Resource usersResource;
+    private PersistenceService.Resource deliveriesResource;
+    private PersistenceService.Resource settingsResource;
+    // Incremented when the whole deliveries snapshot must be rewritten even if the journal would be enough, reset
+    // by the persistence thread once it's saved unless another rewrite was requested in the meantime
+    private final AtomicInteger deliveriesRewrite = new AtomicInteger();
+
     /**
      * Current settings.
      *
@@ -99,6 +134,7 @@ public class AppContext {
      */
     @NonNull
     private SimpleObjectProperty<AppSettings> settingsProperty;
+    private long settingsVersion = 0;
 
     /**
      * The current logged in user, if null it's an administrator.
@@ -128,13 +164,62 @@ public class AppContext {
      * @param settings The app settings
      */
     public AppContext(UserProvider users, DeliveryStore deliveries, Stage appStage, AppSettings settings) {
-        this.users = users;
-        this.deliveries = deliveries;
+        this(appStage, settings);
+        this.install(users, deliveries);
+    }
+
+    private AppContext(Stage appStage, AppSettings settings) {
         this.appStage = appStage;
         this.settingsProperty = new SimpleObjectProperty<>();
+        this.persistence = new PersistenceService(Platform::runLater, Duration.ZERO, Duration.ZERO);
         this.setSettings(settings);
     }
 
+    /**
+     * Starts using the loaded data, saving it when it changes.
+     *
+     * @param users The users storage
+     * @param deliveries The deliveries storage
+     */
+    private void install(UserProvider users, DeliveryStore deliveries) {
+        this.users = users;
+        this.deliveries = deliveries;
+
+        this.usersResource = persistence.register("users", users::getVersion, this::snapshotUsers);
+        this.deliveriesResource = persistence.register("deliveries", deliveries::getVersion,
+                this::snapshotDeliveries);
+        this.settingsResource = persistence.register("settings", () -> settingsVersion, this::snapshotSettings);
+
+        users.addChangeListener(usersResource::markDirty);
+        deliveries.addListener(new DeliveryStoreListener() {
+            @Override
+            public void onAdded(Delivery delivery) {
+                deliveriesResource.markDirty();
+            }
+
+            @Override
+            public void onRemoved(Delivery delivery) {
+                deliveriesResource.markDirty();
+            }
+
+            @Override
+            public void onAddedAll(List<Delivery> deliveries) {
+                deliveriesResource.markDirty();
+            }
+
+            @Override
+            public void onRemovedAll(List<Delivery> deliveries) {
+                deliveriesResource.markDirty();
+            }
+
+            @Override
+            public void onStateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+                deliveriesResource.markDirty();
+            }
+        });
+        this.ready.complete(this);
+    }
+
 
     /**
      * Changes the current scene to the provided one.
@@ -168,6 +253,9 @@ public class AppContext {
      */
     public void setSettings(@NonNull AppSettings settings) {
         this.settingsProperty.setValue(settings);
+        this.settingsVersion++;
+        this.persistence.setDelays(Duration.ofMillis((long) (settings.autosaveQuietPeriod * 1000)),
+                Duration.ofMillis((long) (settings.autosaveMaxDelay * 1000)));
         // Set password storage strategy
         this.passwordAuthenticator.setDefaultStrategy(
                 this.passwordAuthenticator.getStrategies().get(settings.passwordStorageStrategy));
@@ -207,53 +295,106 @@ public class AppContext {
         this.deliveryWorker.stop();
     }
 
+    private PersistenceService.SaveAction snapshotUsers() {
+        // The users on disk could not be opened, don't overwrite them
+        if (users.isUnsaved()) return () -> { };
+        var backendSync = users.getBackendSync();
+        if (backendSync != null) return backendSync.snapshot(users.snapshot())::save;
+
+        var snapshot = users.snapshot();
+        return () -> AtomicFile.write(FILES.usersFile, out -> UserProvider.save(out, snapshot));
+    }
+
+    private PersistenceService.SaveAction snapshotSettings() {
+        var snapshot = getSettings();
+        return () -> AtomicFile.write(FILES.settingsFile, snapshot::save);
+    }
+
     /**
-     * Internal helper method to avoid code duplication, opens the file creating the
-     * necessary directories and creates an OutputStream tha then is provided to the
-     * Consumer.
+     * Takes a snapshot of the deliveries.
+     *
+     * <p>
+     * The changes are already in the journal so usually it's enough to sync it, the whole snapshot
+     * is only rewritten when the journal grew too much or is broken, or when there's no snapshot yet
+     * (ex. after the data has been imported from the legacy JSON file) or a rewrite was requested after loading.
+     * The journal is marked when the deliveries are copied, after the snapshot is written only the
+     * records that came before the mark are discarded.
+     * When the deliveries are stored in a segment the changes are already written in place and only need
+     * a sync (or a compaction, once in a while), when they're sharded only the changed shards are rewritten.
+     * When the store is lazy the deliveries that are not loaded are copied from the old snapshot as they are.
+     * When they're stored in a backend (ex. the SQL database) the queued changes are written in a single transaction
+     * and then flushed.
+     * Nothing is written if the store is only a placeholder for deliveries that could not be opened.
+     * </p>
      *
-     * @param name The name of the saved resource (used only for error logging)
-     * @param file The file where the resource will be saved
-     * @param action The action to do once the output is provided
+     * @return The action that saves the snapshot
      */
-    private void saveAny(@NonNull String name, @NonNull File file, @NonNull IOConsumer<OutputStream> action) {
-        file.getParentFile().mkdirs();
+    private PersistenceService.SaveAction snapshotDeliveries() {
+        // The deliveries on disk could not be opened, don't overwrite them
+        if (deliveries.isUnsaved()) return () -> { };
+        var backendSync = deliveries.getBackendSync();
+        if (backendSync != null) return backendSync.snapshot(deliveries.getDeliveries())::save;
+
+        var shards = deliveries.getShards();
+        if (shards != null) return shards.snapshot()::save;
+
+        var segment = deliveries.getSegment();
+        if (segment != null) {
+            if (!segment.shouldCompact()) return segment::sync;
+            segment.beginCompaction();
+            var snapshot = deliveries.copyDeliveries();
+            return () -> {
+                segment.compact(snapshot);
+                segment.sync();
+            };
+        }
 
-        try (OutputStream out = new FileOutputStream(file)) {
-            action.accept(out);
-        } catch (IOException e) {
-            logger.warn("Failed to save " + name, e);
+        var journal = deliveries.getJournal();
+        int rewrite = deliveriesRewrite.get();
+        if (journal != null && rewrite == 0 && AtomicFile.exists(FILES.deliveriesFile)
+                && !journal.shouldCompact(deliveries.size())) {
+            return journal::sync;
         }
+        var snapshot = deliveries.snapshot();
+        var mark = journal != null ? journal.mark() : null;
+        return () -> {
+            AtomicFile.write(FILES.deliveriesFile, snapshot::write);
+            snapshot.commit();
+            if (journal != null) journal.discardBefore(mark, snapshot.getGeneration());
+            deliveriesRewrite.compareAndSet(rewrite, 0);
+        };
     }
 
     /**
-     * Saves the users data.
+     * Saves the users data in background.
+     * Does nothing until the data is loaded (see {@link #getReady()}), there's nothing to save yet.
      */
     public void saveUsers() {
-        saveAny("users", FILES.usersFile, users::save);
+        if (usersResource != null) usersResource.saveNow();
     }
 
     /**
-     * Saves the deliveries data.
+     * Saves the deliveries data in background.
+     * Does nothing until the data is loaded (see {@link #getReady()}), there's nothing to save yet.
      */
     public void saveDeliveries() {
-        saveAny("deliveries", FILES.deliveriesFile, deliveries::save);
+        if (deliveriesResource != null) deliveriesResource.saveNow();
     }
 
     /**
-     * Saves the current settings.
+     * Saves the current settings in background.
+     * Does nothing until the data is loaded (see {@link #getReady()}), there's nothing to save yet.
      */
     public void saveSettings() {
-        saveAny("settings", FILES.settingsFile, getSettings()::save);
+        if (settingsResource != null) settingsResource.saveNow();
     }
 
     /**
-     * Saves everything (users, deliveries and settings) to the filesystem.
+     * Saves everything that changed (users, deliveries and settings) to the filesystem,
+     * waiting for the data to be written.
      */
     public void save() {
-        this.saveUsers();
-        this.saveDeliveries();
-        this.saveSettings();
+        this.persistence.flush();
     }
 
     /**
@@ -263,32 +404,85 @@ public class AppContext {
     public void quit() {
         this.logout();
         this.save();
+        this.persistence.shutdown();
+        if (this.deliveries != null) this.deliveries.close();
+        if (this.users != null) this.users.close();
         Platform.exit();
         LogManager.shutdown();
         System.exit(0);
     }
 
     /**
-     * Loads everything from the file system and then creates an instance of AppContext.
+     * Creates an instance of AppContext and loads everything from the file system in background.
+     *
+     * <p>
+     * The settings are loaded first, then the users and the deliveries are loaded concurrently (the settings
+     * contain the storage modes of both).
+     * The returned context can be used right away to show the GUI, the data is installed in the UI thread and
+     * then {@link #getReady()} is completed.
+     * </p>
      *
      * @param appStage The GUI stage
-     * @return A nwe instance of AppContext with the loaded data.
+     * @return A new instance of AppContext that is loading the data
      */
     public static AppContext load(Stage appStage) {
-        var users   = UserProvider.load(FILES.usersFile);
-        var deliveries  = DeliveryStore.load(FILES.deliveriesFile);
-        var settings = AppSettings.load(FILES.settingsFile);
+        var ctx = new AppContext(appStage, AppSettings.DEFAULT);
+
+        var loader = Executors.newFixedThreadPool(3, r -> {
+            var thread = new Thread(r, "loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var settings = CompletableFuture.supplyAsync(() -> AppSettings.load(FILES.settingsFile), loader);
+        var users = CompletableFuture.supplyAsync(
+                () -> UserStorage.load(FILES, settings.join().userStorage), loader);
+        var deliveries = CompletableFuture.supplyAsync(() -> loadDeliveries(settings.join()), loader);
+        loader.shutdown();
+
+        CompletableFuture.allOf(settings, users, deliveries).thenRunAsync(() -> {
+            ctx.setSettings(settings.join());
+            ctx.install(users.join(), deliveries.join().getStore());
+            if (deliveries.join().isRewrite() && !deliveries.join().getStore().isUnsaved()) {
+                ctx.deliveriesRewrite.incrementAndGet();
+                ctx.deliveriesResource.forceSave();
+            }
+            logger.info("Data loaded");
+        }, Platform::runLater).exceptionally(e -> {
+            logger.fatal("Cannot load the app data", e);
+            ctx.ready.completeExceptionally(e);
+            return null;
+        });
+        return ctx;
+    }
+
+    private static LoadedDeliveries loadDeliveries(AppSettings settings) {
+        boolean legacy = DeliveryStorage.isLegacy(FILES);
+        var deliveries = DeliveryStorage.load(FILES, settings.deliveryStorage, settings.compactDeliveries);
+        deliveries.setArchive(DeliveryStorage.openArchive(FILES));
+
+        int archived = 0;
+        if (settings.archiveAfterDays > 0 && deliveries.getArchive() != null) {
+            try {
+                archived = deliveries.archive(LocalDate.now().minusDays(settings.archiveAfterDays));
+            } catch (IOException e) {
+                logger.error("Error archiving the deliveries", e);
+            }
+        }
 
-        return new AppContext(users, deliveries, appStage, settings);
+        // Convert the legacy JSON db to the current format (or rewrite a file the lazy mode could not index),
+        // the archived deliveries must be removed from the saved data too and a snapshot older than the journal
+        // must be replaced
+        boolean rewrite = legacy || archived > 0 || deliveries.getOrphanJournal() != null
+                || (settings.deliveryStorage == StorageMode.LAZY && !deliveries.isLazy());
+        return new LoadedDeliveries(deliveries, rewrite);
     }
 
     /**
-     * Same as {@link Consumer} but also provides a {@code throws IOException} in the method signature.
-     *
-     * @param <T> The only parameter of the {@link IOConsumer#accept(T)} function
+     * The deliveries loaded in background.
      */
-    @FunctionalInterface
-    private interface IOConsumer<T> {
-        void accept(T p) throws IOException;
+    @Value
+    private static class LoadedDeliveries {
+        DeliveryStore store;
+        boolean rewrite;
     }
 }
@@ -32,6 +32,63 @@ public class AppFiles {
      */
     public final File deliveriesFile;
 
+    /**
+     * File where the deliveries were saved before the binary format, only read if {@link #deliveriesFile}
+     * is not present.
+     */
+    public final File legacyDeliveriesFile;
+
+    /**
+     * File where the changes made after the last deliveries snapshot are journaled.
+     *
+     * @see it.unimore.s273693.deliveru.db.DeliveryJournal
+     */
+    public final File deliveriesJournalFile;
+
+    /**
+     * File where the deliveries are stored when using the {@link StorageMode#SEGMENT} mode.
+     *
+     * @see it.unimore.s273693.deliveru.db.DeliverySegment
+     */
+    public final File deliveriesSegmentFile;
+
+    /**
+     * File where the strings of the deliveries segment are stored.
+     *
+     * @see it.unimore.s273693.deliveru.db.DeliverySegment
+     */
+    public final File deliveriesSegmentHeapFile;
+
+    /**
+     * Directory where the deliveries are stored when using the {@link StorageMode#SHARDED} mode.
+     *
+     * @see it.unimore.s273693.deliveru.db.DeliveryShards
+     */
+    public final File deliveriesShardsDirectory;
+
+    /**
+     * File where the old finalized deliveries are archived.
+     *
+     * @see it.unimore.s273693.deliveru.db.DeliveryArchive
+     */
+    public final File deliveriesArchiveFile;
+
+    /**
+     * File where the index of the deliveries archive is stored.
+     *
+     * @see it.unimore.s273693.deliveru.db.DeliveryArchive
+     */
+    public final File deliveriesArchiveIndexFile;
+
+    /**
+     * Embedded database where the deliveries are stored when using the {@link StorageMode#SQL} mode, and the users
+     * when using the {@link UserStorageMode#SQL} mode (the database engine adds its own extension).
+     *
+     * @see it.unimore.s273693.deliveru.db.SqlDeliveryBackend
+     * @see it.unimore.s273693.deliveru.db.SqlUserBackend
+     */
+    public final File databaseFile;
+
     /**
      * File where the settings will be saved.
      *
@@ -46,7 +103,16 @@ public class AppFiles {
     public AppFiles() {
         AppDirs dirs   = AppDirsFactory.getInstance();
         usersFile      = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "users.json");
-        deliveriesFile = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "deliveries.json");
+        deliveriesFile = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "deliveries.db");
+        legacyDeliveriesFile = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "deliveries.json");
+        deliveriesJournalFile = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "deliveries.journal");
+        deliveriesSegmentFile = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "deliveries.seg");
+        deliveriesSegmentHeapFile = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "deliveries.strings");
+        deliveriesShardsDirectory = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "deliveries.shards");
+        deliveriesArchiveFile = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "deliveries.archive");
+        deliveriesArchiveIndexFile = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR),
+                "deliveries.archive.idx");
+        databaseFile = new File(dirs.getUserDataDir(APP_NAME, null, APP_AUTHOR), "deliveru");
         settingsFile   = new File(dirs.getUserConfigDir(APP_NAME, null, APP_AUTHOR), "settings.json");
     }
 }
@@ -3,6 +3,7 @@ package it.unimore.s273693.deliveru;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
 import lombok.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -45,12 +46,46 @@ public class AppSettings {
      */
     public final double deliveryFailRate;
 
+    /**
+     * How the deliveries are stored (only applied on restart).
+     */
+    @NonNull
+    public final StorageMode deliveryStorage;
+
+    /**
+     * How the users are stored (only applied on restart).
+     */
+    @NonNull
+    public final UserStorageMode userStorage;
+
+    /**
+     * Seconds without changes after which the data is saved.
+     */
+    public final double autosaveQuietPeriod;
+
+    /**
+     * Maximum seconds a change can stay unsaved (even if other changes keep coming).
+     */
+    public final double autosaveMaxDelay;
+
+    /**
+     * Days after which the finalized deliveries are archived (0 disables the archiving, only applied on restart).
+     */
+    public final int archiveAfterDays;
+
+    /**
+     * If true the deliveries are kept in memory in a compact columnar form (only applied on restart, not
+     * supported by the {@link StorageMode#LAZY} mode).
+     */
+    public final boolean compactDeliveries;
+
     /**
      * Creates a new instance with the same values as the DEFAULT one.
      */
     public AppSettings() { // Why should you use this? Ask Jackson
         this(DEFAULT.passwordStorageStrategy, DEFAULT.deliveryEnabled, DEFAULT.deliveryIntensity,
-                DEFAULT.deliveryFailRate);
+                DEFAULT.deliveryFailRate, DEFAULT.deliveryStorage, DEFAULT.userStorage, DEFAULT.autosaveQuietPeriod,
+                DEFAULT.autosaveMaxDelay, DEFAULT.archiveAfterDays, DEFAULT.compactDeliveries);
     }
 
     // Load and save methods
@@ -86,14 +121,15 @@ public class AppSettings {
 
     /**
      * Loads an instance of AppSettings from the provided file.
-     * If the procedure fails or the file is not present the default instance will be returned
+     * The newest valid generation of the file is used (see {@link AtomicFile}),
+     * if the procedure fails or the file is not present the default instance will be returned
      *
      * @param file The file from which the settings will be loaded
      * @return The loaded settings or the default instance
      */
     public static AppSettings load(File file) {
         try {
-            return load(new FileInputStream(file));
+            return AtomicFile.read(file, in -> new ObjectMapper().readValue(in, AppSettings.class));
         } catch (FileNotFoundException e) {
             logger.info("Settings file not found");
         } catch (IOException e) {
@@ -30,7 +30,8 @@ public final class Constants {
     /**
      * Default settings, this object is immutable (that's why it's along the app constants).
      */
-    public static final AppSettings DEFAULT_SETTINGS = new AppSettings(2, true, 6, 0.2);
+    public static final AppSettings DEFAULT_SETTINGS = new AppSettings(2, true, 6, 0.2,
+            StorageMode.SNAPSHOT, UserStorageMode.JSON, 2, 30, 0, false);
 
     // You can't instantiate a singleton (without some reflective black magic of course)
     private Constants() {}
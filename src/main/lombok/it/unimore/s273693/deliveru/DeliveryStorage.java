@@ -0,0 +1,222 @@
+package it.unimore.s273693.deliveru;
+
+import it.unimore.s273693.deliveru.db.Delivery;
+import it.unimore.s273693.deliveru.db.DeliveryArchive;
+import it.unimore.s273693.deliveru.db.DeliverySegment;
+import it.unimore.s273693.deliveru.db.DeliveryShards;
+import it.unimore.s273693.deliveru.db.DeliveryStore;
+import it.unimore.s273693.deliveru.db.InvalidDbException;
+import it.unimore.s273693.deliveru.db.SqlDeliveryBackend;
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Opens the deliveries in the configured {@link StorageMode}, migrating them from the layout they're stored in.
+ *
+ * <p>
+ * The new layout is fully written before the old one is deleted, so an interrupted migration is simply
+ * repeated at the next startup. The old layout is deleted only if every delivery could be read from it, if
+ * anything cannot be read the migration is aborted and the old layout is kept.
+ * </p>
+ */
+final class DeliveryStorage {
+    private static final Logger logger = LogManager.getLogger(DeliveryStorage.class);
+
+    private DeliveryStorage() {}
+
+    /**
+     * Loads the deliveries in the provided storage mode, migrating them if they're stored in another one.
+     *
+     * @param files The app files
+     * @param mode The storage mode to use
+     * @param compact Whether the deliveries are kept in columns (see {@link DeliveryStore#isCompact()}), the lazy
+     *                mode ignores it
+     * @return The loaded deliveries
+     */
+    static DeliveryStore load(AppFiles files, StorageMode mode, boolean compact) {
+        var current = detect(files);
+        if (layoutOf(current) != layoutOf(mode)) {
+            try {
+                var old = read(files, current);
+                write(files, mode, old.getDeliveries());
+                logger.info("Migrated {} deliveries from {} to {}", old.getDeliveries().size(), current, mode);
+                delete(files, current);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error migrating the deliveries to {}, keeping the {} layout", mode, current, e);
+                mode = current;
+            }
+        }
+
+        if (compact && mode == StorageMode.LAZY) {
+            logger.warn("The lazy storage mode cannot keep the deliveries compact, ignoring the setting");
+            compact = false;
+        }
+        try {
+            return open(files, mode, compact);
+        } catch (IOException e) {
+            // Don't touch the files, the changes made in this session will not be saved
+            logger.error("Error opening the deliveries, using an unsaved empty db", e);
+            return DeliveryStore.createUnsaved();
+        }
+    }
+
+    /**
+     * Opens the archive of the old deliveries, it's shared by every storage mode.
+     *
+     * @param files The app files
+     * @return The archive, or null if it cannot be opened
+     */
+    static DeliveryArchive openArchive(AppFiles files) {
+        try {
+            return DeliveryArchive.open(files.deliveriesArchiveFile, files.deliveriesArchiveIndexFile);
+        } catch (IOException e) {
+            logger.error("Cannot open the deliveries archive, archiving is disabled", e);
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the deliveries still have to be imported from the legacy JSON file.
+     *
+     * @param files The app files
+     * @return true if only the legacy file is present
+     */
+    static boolean isLegacy(AppFiles files) {
+        return detect(files) == StorageMode.SNAPSHOT && !AtomicFile.exists(files.deliveriesFile)
+                && files.legacyDeliveriesFile.exists();
+    }
+
+    // LAZY reads the same files as SNAPSHOT, switching between the two requires no migration
+    private static StorageMode layoutOf(StorageMode mode) {
+        return mode == StorageMode.LAZY ? StorageMode.SNAPSHOT : mode;
+    }
+
+    private static StorageMode detect(AppFiles files) {
+        if (files.deliveriesSegmentFile.exists()) return StorageMode.SEGMENT;
+        if (DeliveryShards.exists(files.deliveriesShardsDirectory)) return StorageMode.SHARDED;
+        try {
+            if (SqlDeliveryBackend.exists(files.databaseFile)) return StorageMode.SQL;
+        } catch (IOException e) {
+            // Don't risk overwriting the database with another layout, opening it will fail too
+            logger.error("Cannot read the database, assuming it contains the deliveries", e);
+            return StorageMode.SQL;
+        }
+        return StorageMode.SNAPSHOT;
+    }
+
+    /**
+     * Reads all of the deliveries stored in the mode, unlike {@link #open(AppFiles, StorageMode, boolean)} it fails
+     * if any of them cannot be read, so that a migration never deletes the deliveries it didn't copy.
+     * The returned store doesn't record the following changes.
+     */
+    private static DeliveryStore read(AppFiles files, StorageMode mode) throws IOException {
+        switch (mode) {
+            case SHARDED:
+                var res = DeliveryStore.createEmpty();
+                try {
+                    res.addAll(DeliveryShards.readAll(files.deliveriesShardsDirectory));
+                } catch (IllegalArgumentException e) {
+                    // The same delivery in two shards, don't guess which copy is the right one
+                    throw new InvalidDbException("Invalid deliveries shards", e);
+                }
+                return res;
+            case SNAPSHOT:
+            case LAZY:
+                return DeliveryStore.read(snapshotFile(files), files.deliveriesJournalFile);
+            default:
+                var store = open(files, mode, false);
+                store.close();
+                return store;
+        }
+    }
+
+    // Import the old JSON db until the first binary snapshot is saved
+    private static File snapshotFile(AppFiles files) {
+        return AtomicFile.exists(files.deliveriesFile) || !files.legacyDeliveriesFile.exists()
+                ? files.deliveriesFile : files.legacyDeliveriesFile;
+    }
+
+    private static DeliveryStore open(AppFiles files, StorageMode mode, boolean compact) throws IOException {
+        switch (mode) {
+            case SEGMENT:
+                return DeliveryStore.openSegment(files.deliveriesSegmentFile, files.deliveriesSegmentHeapFile,
+                        compact);
+            case SHARDED:
+                return DeliveryStore.openShards(files.deliveriesShardsDirectory, compact);
+            case SQL:
+                var backend = SqlDeliveryBackend.open(files.databaseFile);
+                try {
+                    return DeliveryStore.openBackend(backend, compact);
+                } catch (IOException | RuntimeException e) {
+                    backend.close();
+                    throw e;
+                }
+            case SNAPSHOT:
+            case LAZY:
+            default:
+                return DeliveryStore.load(snapshotFile(files), files.deliveriesJournalFile, mode == StorageMode.LAZY,
+                        compact);
+        }
+    }
+
+    private static void write(AppFiles files, StorageMode mode, Collection<Delivery> deliveries)
+            throws IOException {
+        switch (mode) {
+            case SEGMENT:
+                DeliverySegment.write(files.deliveriesSegmentFile, files.deliveriesSegmentHeapFile, deliveries);
+                break;
+            case SHARDED:
+                DeliveryShards.write(files.deliveriesShardsDirectory, deliveries);
+                break;
+            case SQL:
+                try (var backend = SqlDeliveryBackend.open(files.databaseFile)) {
+                    backend.replaceAll(deliveries);
+                    backend.flush();
+                }
+                break;
+            case SNAPSHOT:
+            case LAZY:
+            default:
+                AtomicFile.write(files.deliveriesFile, out -> DeliveryStore.save(out, deliveries));
+                // The journal might contain changes from an older session
+                delete(files.deliveriesJournalFile);
+                break;
+        }
+    }
+
+    private static void delete(AppFiles files, StorageMode mode) {
+        switch (mode) {
+            case SEGMENT:
+                delete(files.deliveriesSegmentFile, files.deliveriesSegmentHeapFile);
+                break;
+            case SHARDED:
+                if (!DeliveryShards.delete(files.deliveriesShardsDirectory)) {
+                    logger.warn("Cannot delete {}", files.deliveriesShardsDirectory);
+                }
+                break;
+            case SQL:
+                try {
+                    SqlDeliveryBackend.drop(files.databaseFile);
+                } catch (IOException e) {
+                    logger.warn("Cannot drop the deliveries table", e);
+                }
+                break;
+            case SNAPSHOT:
+            case LAZY:
+            default:
+                delete(files.deliveriesFile, files.legacyDeliveriesFile, files.deliveriesJournalFile);
+                break;
+        }
+    }
+
+    private static void delete(File... toDelete) {
+        for (var file : toDelete) {
+            if (!AtomicFile.delete(file)) logger.warn("Cannot delete {}", file);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package it.unimore.s273693.deliveru;
+
+import lombok.NonNull;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Saves the app data in background.
+ *
+ * <p>
+ * Every saved resource (users, deliveries, settings) is registered with a version, that changes on every
+ * mutation, and a snapshot function.
+ * When a resource is marked dirty the save is delayed until no other change happens for the quiet period, but
+ * never more than the max delay after the first unsaved change, this way bursts of changes result in a single save.
+ * Marking a resource dirty only moves its deadline: the scheduled save is not replaced, when it fires too early it
+ * just waits for the rest of the delay, so a burst of changes doesn't create a task for each one.
+ * A resource whose version didn't change since the last successful save is never rewritten.
+ * </p>
+ *
+ * <p>
+ * The data is only mutated in the UI thread so the snapshot is taken there, it should be cheap (ex. a list copy)
+ * and it returns the action that does the actual writing, that runs in the background persistence thread.
+ * Saves are run one at a time, in the order they were requested.
+ * </p>
+ */
+public class PersistenceService {
+    private static final Logger logger = LogManager.getLogger(PersistenceService.class);
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(5);
+
+    private final Executor uiExecutor;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+        var thread = new Thread(r, "persistence");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Resource> resources = new ArrayList<>();
+
+    private volatile Duration quietPeriod;
+    private volatile Duration maxDelay;
+
+    /**
+     * Creates a new service.
+     *
+     * @param uiExecutor Runs the tasks in the thread where the data is mutated (ex. {@code Platform::runLater})
+     * @param quietPeriod How long to wait after the last change before saving
+     * @param maxDelay The maximum time a change can stay unsaved
+     */
+    public PersistenceService(@NonNull Executor uiExecutor, @NonNull Duration quietPeriod,
+                              @NonNull Duration maxDelay) {
+        this.uiExecutor = uiExecutor;
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.setDelays(quietPeriod, maxDelay);
+    }
+
+    /**
+     * Changes the save delays, the already scheduled saves are not affected.
+     *
+     * @param quietPeriod How long to wait after the last change before saving
+     * @param maxDelay The maximum time a change can stay unsaved
+     */
+    public void setDelays(@NonNull Duration quietPeriod, @NonNull Duration maxDelay) {
+        this.quietPeriod = quietPeriod;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Registers a resource.
+     *
+     * @param name The resource name (used for logging)
+     * @param version Returns the current version of the resource, called in the UI thread
+     * @param snapshot Takes a snapshot of the resource, called in the UI thread
+     * @return The registered resource
+     */
+    public Resource register(String name, LongSupplier version, Supplier<SaveAction> snapshot) {
+        var resource = new Resource(name, version, snapshot);
+        this.resources.add(resource);
+        return resource;
+    }
+
+    /**
+     * Synchronously saves every changed resource, waiting also for the saves already in progress.
+     * Call it from the UI thread.
+     */
+    public void flush() {
+        for (var resource : this.resources) {
+            resource.cancel();
+            resource.snapshotAndSave();
+        }
+        try {
+            executor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Failed to wait for the pending saves", e);
+        }
+    }
+
+    /**
+     * Stops the background thread, the pending saves are discarded (call {@link #flush()} first).
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * The action that writes a snapshot, ran in the persistence thread.
+     */
+    @FunctionalInterface
+    public interface SaveAction {
+        /**
+         * Writes the snapshot.
+         *
+         * @throws IOException when an error occurs while writing
+         */
+        void save() throws IOException;
+    }
+
+    /**
+     * A resource saved by the service.
+     */
+    public final class Resource {
+        private final String name;
+        private final LongSupplier version;
+        private final Supplier<SaveAction> snapshot;
+        // Only accessed from the UI thread
+        private long firstDirtyNanos = -1;
+        private long deadlineNanos;
+        private ScheduledFuture<?> scheduled;
+        // Written by the persistence thread
+        private volatile long savedVersion;
+
+        private Resource(String name, LongSupplier version, Supplier<SaveAction> snapshot) {
+            this.name = name;
+            this.version = version;
+            this.snapshot = snapshot;
+            this.savedVersion = version.getAsLong();
+            this.deadlineNanos = System.nanoTime();
+        }
+
+        /**
+         * Signals that the resource has been changed, it will be saved after the quiet period (or the max delay).
+         * Call it from the UI thread.
+         */
+        public void markDirty() {
+            long now = System.nanoTime();
+            if (firstDirtyNanos < 0) firstDirtyNanos = now;
+            deadlineNanos = Math.min(now + quietPeriod.toNanos(), firstDirtyNanos + maxDelay.toNanos());
+            long delay = Math.max(0, deadlineNanos - now);
+            // A later save is replaced, an earlier one will wait for the new deadline when it fires
+            if (scheduled == null || scheduled.getDelay(TimeUnit.NANOSECONDS) > delay) schedule(delay);
+        }
+
+        /**
+         * Saves the resource as soon as possible (without blocking).
+         * Call it from the UI thread.
+         */
+        public void saveNow() {
+            deadlineNanos = System.nanoTime();
+            schedule(0);
+        }
+
+        /**
+         * Saves the resource as soon as possible, even if it didn't change (ex. to convert it to a new format).
+         * Call it from the UI thread.
+         */
+        public void forceSave() {
+            savedVersion = -1;
+            saveNow();
+        }
+
+        private void schedule(long delayNanos) {
+            cancel();
+            scheduled = executor.schedule(() -> uiExecutor.execute(this::onDeadline),
+                    delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void onDeadline() {
+            scheduled = null;
+            long now = System.nanoTime();
+            if (deadlineNanos - now > 0) {
+                // Changed again after the save was scheduled
+                schedule(deadlineNanos - now);
+                return;
+            }
+            snapshotAndSave();
+        }
+
+        private void cancel() {
+            if (scheduled != null) scheduled.cancel(false);
+            scheduled = null;
+        }
+
+        private void snapshotAndSave() {
+            scheduled = null;
+            firstDirtyNanos = -1;
+            long current = version.getAsLong();
+            if (current == savedVersion) return;
+
+            var action = snapshot.get();
+            executor.execute(() -> {
+                try {
+                    action.save();
+                    savedVersion = current;
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to save {}, retrying later", name, e);
+                    uiExecutor.execute(() -> schedule(RETRY_DELAY.toNanos()));
+                }
+            });
+        }
+    }
+}
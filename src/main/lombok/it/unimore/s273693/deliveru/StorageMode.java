@@ -0,0 +1,45 @@
+package it.unimore.s273693.deliveru;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * How the deliveries are persisted on disk (the users have their own {@link UserStorageMode}).
+ * The mode is read at startup, when it changes the data is migrated from the previous layout.
+ */
+@RequiredArgsConstructor
+public enum StorageMode {
+    /**
+     * A binary snapshot rewritten once in a while plus the journal of the changes made after it.
+     */
+    SNAPSHOT("Snapshot + journal"),
+    /**
+     * The same files as {@link #SNAPSHOT}, but the deliveries of a sender are only read when they're needed.
+     */
+    LAZY("Snapshot, loaded on demand"),
+    /**
+     * A memory-mapped segment of fixed-size records updated in place.
+     */
+    SEGMENT("Memory-mapped segment"),
+    /**
+     * Files split by sender, only the changed ones are rewritten.
+     */
+    SHARDED("Per-sender shards"),
+    /**
+     * An embedded SQL database where every change only updates its row.
+     */
+    SQL("Embedded SQL database");
+
+    /**
+     * User-friendly name.
+     *
+     * @return Mode name
+     */
+    @Getter
+    private final String name;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
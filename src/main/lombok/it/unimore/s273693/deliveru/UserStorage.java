@@ -0,0 +1,100 @@
+package it.unimore.s273693.deliveru;
+
+import it.unimore.s273693.deliveru.db.JsonUserBackend;
+import it.unimore.s273693.deliveru.db.SqlUserBackend;
+import it.unimore.s273693.deliveru.db.StorageBackend;
+import it.unimore.s273693.deliveru.db.User;
+import it.unimore.s273693.deliveru.db.UserProvider;
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Opens the users in the backend of the configured {@link UserStorageMode}: the embedded database (shared with the
+ * {@link StorageMode#SQL} deliveries) or the JSON file.
+ *
+ * <p>
+ * As with {@link DeliveryStorage} the users are migrated when they're stored in the other backend, the new backend
+ * is fully written before the old one is deleted.
+ * </p>
+ */
+final class UserStorage {
+    private static final Logger logger = LogManager.getLogger(UserStorage.class);
+
+    private UserStorage() {}
+
+    /**
+     * Loads the users from the backend of the provided storage mode, migrating them if they're stored in the
+     * other one.
+     *
+     * @param files The app files
+     * @param mode The storage mode to use
+     * @return The loaded users
+     */
+    static UserProvider load(AppFiles files, UserStorageMode mode) {
+        boolean sql = mode == UserStorageMode.SQL;
+        try {
+            if (sql && AtomicFile.exists(files.usersFile)) {
+                migrate(() -> JsonUserBackend.open(files.usersFile), () -> SqlUserBackend.open(files.databaseFile));
+                if (!AtomicFile.delete(files.usersFile)) logger.warn("Cannot delete {}", files.usersFile);
+            } else if (!sql && SqlUserBackend.exists(files.databaseFile)) {
+                migrate(() -> SqlUserBackend.open(files.databaseFile), () -> JsonUserBackend.open(files.usersFile));
+                SqlUserBackend.drop(files.databaseFile);
+            }
+        } catch (IOException e) {
+            logger.error("Error migrating the users, keeping the old backend", e);
+            sql = !sql;
+        }
+
+        StorageBackend<UUID, User> backend = null;
+        try {
+            backend = sql ? SqlUserBackend.open(files.databaseFile) : JsonUserBackend.open(files.usersFile);
+            return UserProvider.open(backend);
+        } catch (IOException e) {
+            // Don't touch the backend, the changes made in this session will not be saved
+            logger.error("Error opening the users, using an unsaved empty db", e);
+            if (backend != null) close(backend);
+            return UserProvider.createUnsaved();
+        }
+    }
+
+    // The old backend is deleted only if this doesn't throw, so every read error must reach the caller
+    private static void migrate(Opener fromOpener, Opener toOpener) throws IOException {
+        var from = fromOpener.open();
+        StorageBackend<UUID, User> to;
+        try {
+            to = toOpener.open();
+        } catch (IOException | RuntimeException e) {
+            close(from);
+            throw e;
+        }
+        try {
+            List<User> users = new ArrayList<>();
+            from.loadAll(users::add);
+            to.replaceAll(users);
+            to.flush();
+            logger.info("Migrated {} users", users.size());
+        } finally {
+            close(from);
+            close(to);
+        }
+    }
+
+    private static void close(StorageBackend<UUID, User> backend) {
+        try {
+            backend.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close the users backend", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Opener {
+        StorageBackend<UUID, User> open() throws IOException;
+    }
+}
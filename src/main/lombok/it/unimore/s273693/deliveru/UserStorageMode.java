@@ -0,0 +1,34 @@
+package it.unimore.s273693.deliveru;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * How the users are persisted on disk, independently of the {@link StorageMode} of the deliveries.
+ * The mode is read at startup, when it changes the users are migrated from the previous backend.
+ */
+@RequiredArgsConstructor
+public enum UserStorageMode {
+    /**
+     * A JSON file rewritten on every save.
+     */
+    JSON("JSON file"),
+    /**
+     * The embedded SQL database (the same one of the {@link StorageMode#SQL} deliveries), where every change only
+     * updates its row.
+     */
+    SQL("Embedded SQL database");
+
+    /**
+     * User-friendly name.
+     *
+     * @return Mode name
+     */
+    @Getter
+    private final String name;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,164 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Forwards the changes of an in-memory store to its {@link StorageBackend}.
+ *
+ * <p>
+ * The changes are made in the UI thread, but writing them (even a single row) can block on the disk: they're only
+ * queued there and {@link #snapshot(Collection)} hands them to the persistence thread, that applies them in a single
+ * transaction right before making them durable.
+ * If the changes cannot be applied the whole content is written again at the next snapshot, so the backend never
+ * stays out of sync.
+ * Since the saves run one at a time and in order, the changes reach the backend in the order they were made.
+ * </p>
+ *
+ * @param <K> The type of the item key
+ * @param <T> The type of the item
+ */
+public class BackendSync<K, T> {
+    private static final Logger logger = LogManager.getLogger(BackendSync.class);
+
+    /**
+     * The backend where the changes are written.
+     *
+     * @return The backend
+     */
+    @Getter
+    private final StorageBackend<K, T> backend;
+    // Set when some changes could not be applied, the next snapshot rewrites the whole content
+    private final AtomicBoolean resync = new AtomicBoolean();
+    // The changes made since the last snapshot, only accessed from the thread that mutates the store
+    private List<Change> pending = new ArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param backend The backend where the changes will be written
+     */
+    public BackendSync(StorageBackend<K, T> backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * A change to forward to the backend.
+     */
+    @FunctionalInterface
+    protected interface Change {
+        /**
+         * Writes the change to the backend, it's called by the persistence thread inside a
+         * {@link StorageBackend#batch(StorageBackend.BatchAction)}.
+         *
+         * @throws IOException when the backend cannot be written
+         */
+        void apply() throws IOException;
+    }
+
+    /**
+     * Queues the change, it will be applied by the next snapshot.
+     * While the backend is out of sync the change is not queued, it will be part of the next rewrite.
+     * Call it from the thread that mutates the store.
+     *
+     * @param change The change to forward
+     */
+    protected void forward(Change change) {
+        if (resync.get()) return;
+        pending.add(change);
+    }
+
+    /**
+     * Copies an item in its current state, the changes are applied by the persistence thread so they must not
+     * read items that can still change.
+     * The items are returned as they are by default, override it if they're mutable.
+     *
+     * @param item The item to copy
+     * @return The item or a copy of it
+     */
+    protected T copy(T item) {
+        return item;
+    }
+
+    /**
+     * Forwards an insertion (or a replacement).
+     *
+     * @param item The changed item
+     */
+    public void upsert(T item) {
+        var copy = copy(item);
+        forward(() -> backend.upsert(copy));
+    }
+
+    /**
+     * Forwards a deletion.
+     *
+     * @param key The key of the deleted item
+     */
+    public void delete(K key) {
+        forward(() -> backend.delete(key));
+    }
+
+    /**
+     * Takes a snapshot, call it from the thread that mutates the store.
+     * The queued changes are moved in the snapshot, the items are only copied (see {@link #copy(Object)}) if the
+     * backend needs to be rewritten.
+     *
+     * @param items The current content of the store
+     * @return The snapshot, it can be saved from another thread
+     */
+    public Snapshot snapshot(Collection<? extends T> items) {
+        var changes = pending;
+        pending = new ArrayList<>();
+        if (resync.getAndSet(false)) {
+            var copies = new ArrayList<T>(items.size());
+            for (var item : items) copies.add(copy(item));
+            return new Snapshot(copies, List.of());
+        }
+        return new Snapshot(null, changes);
+    }
+
+    /**
+     * Changes to write and make durable, see {@link #snapshot(Collection)}.
+     */
+    public final class Snapshot {
+        private final List<T> items;
+        private final List<Change> changes;
+
+        private Snapshot(List<T> items, List<Change> changes) {
+            this.items = items;
+            this.changes = changes;
+        }
+
+        /**
+         * Rewrites the backend if some change failed (or applies the queued changes), then makes the changes
+         * durable.
+         *
+         * @throws IOException when an error occurs while writing (the backend will be rewritten at the next save)
+         */
+        public void save() throws IOException {
+            try {
+                if (items != null) {
+                    backend.replaceAll(items);
+                    logger.info("Rewrote {} items in the storage backend", items.size());
+                } else if (!changes.isEmpty()) {
+                    backend.batch(batch -> {
+                        for (var change : changes) change.apply();
+                    });
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("Cannot write the changes to the storage backend, it will be rewritten", e);
+                resync.set(true);
+                throw e;
+            }
+            backend.flush();
+        }
+    }
+}
@@ -0,0 +1,657 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.Value;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Compact binary format of the deliveries db (version 5).
+ *
+ * <p>
+ * The file starts with a header {@code [int magic][long version][long count]} and a dictionary of the
+ * destinations {@code [int length][int strings]{[int length + UTF-8 string]}...} (the first length is the size of
+ * the rest of the dictionary in bytes), followed by {@code count} records in the form {@code [int length][payload]},
+ * where the payload is encoded by {@link DeliveryCodec} with the destination replaced by its id in the dictionary.
+ * Every destination is written once, no matter how many deliveries share it.
+ * The length prefix makes it possible to skip a record without decoding it.
+ * </p>
+ *
+ * <p>
+ * The records are grouped by sender and followed by an index of the groups:
+ * {@code [long senders]{[sender: 2 longs][long offset][long length][long count][long oldest final day]
+ * [long count per state]...[long insured count][double weight in transit][int length + insured exposure]}...
+ * [long generation][long index offset][int magic]}.
+ * The oldest final day is the epoch day of the oldest delivery of the sender in a final state, so that the senders
+ * with something to archive are found without decoding their deliveries, the rest of the entry holds the
+ * aggregates of the sender (see {@link DeliveryStatistics}) so that a lazy store counts the deliveries it didn't
+ * load. The insured exposure is written like an insured value (see {@link DeliveryCodec#writeMoney}).
+ * Since the header contains the record count, a sequential read just ignores the index, while
+ * {@link #readIndex(FileChannel)} can find the deliveries of a sender without reading the whole file.
+ * The generation identifies the snapshot, so that the journal can tell which one its records apply to (see
+ * {@link #readGeneration(FileChannel)}).
+ * </p>
+ *
+ * <p>
+ * The index also makes it possible to split the file in chunks that are decoded in parallel, see
+ * {@link #readParallel(FileChannel, ForkJoinPool)}.
+ * </p>
+ *
+ * <p>
+ * Everything is read and written through NIO channels with a single reusable buffer, when the channel comes
+ * from a file stream the JDK hands out the underlying {@link java.nio.channels.FileChannel}.
+ * </p>
+ */
+final class BinaryDeliveryFile {
+    static final int MAGIC = 0x444c5642; // "DLVB"
+    static final long VERSION = 5;
+    static final int HEADER_SIZE = 4 + 8 + 8;
+    static final int TRAILER_MAGIC = 0x444c5647; // "DLVG"
+    private static final DeliveryState[] STATES = DeliveryState.values();
+    // The size of an index entry without the insured exposure, that takes at least 4 bytes
+    private static final int INDEX_ENTRY_SIZE = 16 + 8 + 8 + 8 + 8 + STATES.length * 8 + 8 + 8;
+    private static final int TRAILER_SIZE = 8 + 8 + 4;
+    private static final int BUFFER_SIZE = 1 << 18;
+    // Under this many records the parallel read is not worth it
+    static final long PARALLEL_THRESHOLD = 1 << 14;
+    private static final long MIN_CHUNK_RECORDS = 1 << 12;
+    private static final long MAX_CHUNK_BYTES = 1 << 26;
+
+    private BinaryDeliveryFile() {}
+
+    /**
+     * Writes the deliveries in the channel, grouped by sender and followed by the sender index.
+     *
+     * @param channel The destination channel
+     * @param deliveries The deliveries to write
+     * @throws IOException when an error occurs while writing
+     */
+    static void write(WritableByteChannel channel, Collection<? extends Delivery> deliveries) throws IOException {
+        var groups = new LinkedHashMap<UUID, List<Delivery>>();
+        var dictionary = new StringDictionary();
+        for (var delivery : deliveries) {
+            groups.computeIfAbsent(delivery.getSender(), x -> new ArrayList<>()).add(delivery);
+            dictionary.id(delivery.getDestination());
+        }
+
+        var writer = new GroupedWriter(channel, deliveries.size(), dictionary);
+        for (var group : groups.entrySet()) {
+            writer.writeGroup(group.getKey(), group.getValue());
+        }
+        writer.finish(0);
+    }
+
+    /**
+     * Reads the deliveries from the channel.
+     *
+     * @param channel The source channel
+     * @param prefix The bytes already consumed from the channel (they should at least contain the magic number)
+     * @param consumer Called with every decoded delivery
+     * @return The number of read deliveries
+     * @throws InvalidDbException when the data is corrupted, truncated or of another version
+     * @throws IOException when an error occurs while reading
+     */
+    static long read(ReadableByteChannel channel, ByteBuffer prefix, Consumer<Delivery> consumer)
+            throws IOException {
+        var buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buf.put(prefix);
+        buf.flip();
+
+        buf = ensure(channel, buf, HEADER_SIZE);
+        if (buf.getInt() != MAGIC) throw new InvalidDbException("Not a binary deliveries file");
+        checkVersion(buf.getLong());
+        long count = buf.getLong();
+
+        buf = ensure(channel, buf, 4);
+        int dictionaryLength = buf.getInt();
+        if (dictionaryLength < 4) throw new InvalidDbException("Corrupted deliveries file, invalid dictionary length");
+        buf = ensure(channel, buf, dictionaryLength);
+        var data = buf.slice();
+        data.limit(dictionaryLength);
+        buf.position(buf.position() + dictionaryLength);
+        var dictionary = decodeDictionary(data);
+
+        for (long i = 0; i < count; i++) {
+            buf = ensure(channel, buf, 4);
+            int length = buf.getInt();
+            if (length <= 0) throw new InvalidDbException("Corrupted deliveries file, invalid record length " + length);
+            buf = ensure(channel, buf, length);
+
+            var record = buf.slice();
+            record.limit(length);
+            buf.position(buf.position() + length);
+            try {
+                consumer.accept(DeliveryCodec.read(record, dictionary));
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new InvalidDbException("Corrupted deliveries file, invalid record " + i, e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the deliveries using the sender index to split the file in chunks that are decoded in parallel.
+     * A chunk is made of consecutive senders, so the deliveries are returned in file order.
+     *
+     * @param channel The file to read (only positional reads are used, the channel position is not changed)
+     * @param pool The pool that decodes the chunks
+     * @return The decoded deliveries, or null if the file is too small to be worth it
+     * @throws InvalidDbException when the data is corrupted, truncated or of another version
+     * @throws IOException when an error occurs while reading
+     */
+    static List<Delivery> readParallel(FileChannel channel, ForkJoinPool pool) throws IOException {
+        var index = readIndex(channel);
+        long total = index.values().stream().mapToLong(Region::getCount).sum();
+        if (total < PARALLEL_THRESHOLD) return null;
+        var dictionary = readDictionary(channel);
+
+        // Merge the regions in chunks, a few per worker so that an uneven chunk doesn't stall the others
+        long chunkRecords = Math.max(MIN_CHUNK_RECORDS, total / (pool.getParallelism() * 4L));
+        var chunks = new ArrayList<Region>();
+        Region current = null;
+        for (var region : index.values()) {
+            if (current != null && current.offset + current.length == region.offset
+                    && current.count < chunkRecords && current.length + region.length <= MAX_CHUNK_BYTES) {
+                // Only the position of a chunk is needed to read it
+                current = new Region(current.offset, current.length + region.length, current.count + region.count,
+                        Math.min(current.oldestFinalDay, region.oldestFinalDay), null);
+            } else {
+                if (current != null) chunks.add(current);
+                current = region;
+            }
+        }
+        if (current != null) chunks.add(current);
+
+        var tasks = new ArrayList<ForkJoinTask<List<Delivery>>>(chunks.size());
+        for (var chunk : chunks) {
+            tasks.add(pool.submit(() -> {
+                var res = new ArrayList<Delivery>((int) chunk.count);
+                decodeRegion(readRegion(channel, chunk), dictionary, res::add);
+                if (res.size() != chunk.count) throw new InvalidDbException("The index doesn't match the records");
+                return res;
+            }));
+        }
+
+        var res = new ArrayList<Delivery>((int) total);
+        try {
+            for (var task : tasks) {
+                res.addAll(task.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the deliveries");
+        } catch (ExecutionException e) {
+            tasks.forEach(x -> x.cancel(true));
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Error decoding the deliveries", e.getCause());
+        }
+        return res;
+    }
+
+    private static void checkVersion(long version) throws InvalidDbException {
+        if (version != VERSION) throw new InvalidDbException("Incompatible db version: " + version);
+    }
+
+    /**
+     * Reads the dictionary of the destinations at the start of the file.
+     *
+     * @param channel The file to read
+     * @return The dictionary
+     * @throws InvalidDbException when the header or the dictionary are corrupted or the version is not supported
+     * @throws IOException when an error occurs while reading
+     */
+    static StringDictionary readDictionary(FileChannel channel) throws IOException {
+        var header = readFully(channel, 0, HEADER_SIZE + 4);
+        if (header.getInt() != MAGIC) throw new InvalidDbException("Not a binary deliveries file");
+        checkVersion(header.getLong());
+        int length = header.getInt(HEADER_SIZE);
+        if (length < 4 || HEADER_SIZE + 4L + length > channel.size()) {
+            throw new InvalidDbException("Corrupted deliveries file, invalid dictionary length");
+        }
+        return decodeDictionary(readFully(channel, HEADER_SIZE + 4, length));
+    }
+
+    private static StringDictionary decodeDictionary(ByteBuffer data) throws InvalidDbException {
+        var res = new StringDictionary();
+        try {
+            int count = data.getInt();
+            if (count < 0) throw new InvalidDbException("Corrupted deliveries file, invalid dictionary size");
+            for (int id = 0; id < count; id++) {
+                var value = new String(DeliveryCodec.readBytes(data), StandardCharsets.UTF_8);
+                if (res.id(value) != id) throw new InvalidDbException("Corrupted deliveries file, repeated string");
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new InvalidDbException("Corrupted deliveries file, invalid dictionary", e);
+        }
+        if (data.hasRemaining()) throw new InvalidDbException("Corrupted deliveries file, invalid dictionary");
+        return res;
+    }
+
+    /**
+     * Ensures that at least n bytes are available in the buffer, reading from the channel if needed.
+     * The lengths come from the file, so they're not trusted: n is checked against the rest of the file (when the
+     * channel is a file) and the buffer grows only as the data is actually read, a corrupted length fails as a
+     * truncated file instead of allocating a huge buffer.
+     *
+     * @param channel The channel to read from
+     * @param buf The current buffer (in read mode)
+     * @param n The required bytes
+     * @return The buffer to use from now on (it might be a bigger one)
+     * @throws InvalidDbException when the channel ends before n bytes are available
+     * @throws IOException when an error occurs while reading
+     */
+    private static ByteBuffer ensure(ReadableByteChannel channel, ByteBuffer buf, int n) throws IOException {
+        if (buf.remaining() >= n) return buf;
+        if (channel instanceof FileChannel) {
+            var file = (FileChannel) channel;
+            if (n - buf.remaining() > file.size() - file.position()) {
+                throw new InvalidDbException("Truncated deliveries file");
+            }
+        }
+
+        buf.compact();
+        while (buf.position() < n) {
+            if (!buf.hasRemaining()) {
+                var bigger = ByteBuffer.allocateDirect((int) Math.min(n, 2L * buf.capacity()));
+                bigger.put(buf.flip());
+                buf = bigger;
+            }
+            if (channel.read(buf) < 0) throw new InvalidDbException("Truncated deliveries file");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Reads the sender index at the end of the file.
+     *
+     * @param channel The file to read
+     * @return The region of each sender
+     * @throws InvalidDbException when the header or the index are corrupted or the version is not supported
+     * @throws IOException when an error occurs while reading
+     */
+    static Map<UUID, Region> readIndex(FileChannel channel) throws IOException {
+        var header = readFully(channel, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) throw new InvalidDbException("Not a binary deliveries file");
+        checkVersion(header.getLong());
+        long count = header.getLong();
+
+        var trailer = readTrailer(channel);
+        long indexOffset = trailer.getLong(8);
+        long indexEnd = channel.size() - TRAILER_SIZE;
+        if (indexOffset < HEADER_SIZE || indexOffset > indexEnd - 8 || indexEnd - indexOffset > Integer.MAX_VALUE) {
+            throw new InvalidDbException("Invalid index offset " + indexOffset);
+        }
+
+        var index = readFully(channel, indexOffset, (int) (indexEnd - indexOffset));
+        long senders = index.getLong();
+        if (senders < 0 || senders > index.remaining() / (INDEX_ENTRY_SIZE + 4)) {
+            throw new InvalidDbException("Invalid index size " + senders);
+        }
+        var res = new LinkedHashMap<UUID, Region>((int) (senders / 0.75f) + 1);
+        long total = 0;
+        try {
+            for (long i = 0; i < senders; i++) {
+                var sender = DeliveryCodec.readUuid(index);
+                long offset = index.getLong();
+                long length = index.getLong();
+                long regionCount = index.getLong();
+                long oldestFinalDay = index.getLong();
+                var region = new Region(offset, length, regionCount, oldestFinalDay,
+                        readStatistics(index, regionCount));
+                if (region.offset < HEADER_SIZE || region.length < 0 || region.offset + region.length > indexOffset
+                        || region.count < 0) {
+                    throw new InvalidDbException("Invalid index entry for " + sender);
+                }
+                total += region.count;
+                res.put(sender, region);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new InvalidDbException("Corrupted deliveries file, invalid index", e);
+        }
+        if (index.hasRemaining()) throw new InvalidDbException("Corrupted deliveries file, invalid index");
+        if (total != count) throw new InvalidDbException("The index doesn't match the record count");
+        return res;
+    }
+
+    // The aggregates of an index entry, see DeliveryStatistics
+    private static DeliveryStatistics.Snapshot readStatistics(ByteBuffer index, long count)
+            throws InvalidDbException {
+        var states = new EnumMap<DeliveryState, Long>(DeliveryState.class);
+        long inStates = 0;
+        for (var state : STATES) {
+            long stateCount = index.getLong();
+            if (stateCount < 0) throw new InvalidDbException("Corrupted deliveries file, invalid state count");
+            states.put(state, stateCount);
+            inStates += stateCount;
+        }
+        long insured = index.getLong();
+        if (inStates != count || insured < 0 || insured > count) {
+            throw new InvalidDbException("Corrupted deliveries file, the aggregates don't match the record count");
+        }
+        var types = new EnumMap<DeliveryType, Long>(DeliveryType.class);
+        types.put(DeliveryType.STANDARD, count - insured);
+        types.put(DeliveryType.INSURED, insured);
+        double weightInTransit = index.getDouble();
+        var insuredExposure = DeliveryCodec.readMoney(index);
+        return new DeliveryStatistics.Snapshot(count, Collections.unmodifiableMap(states),
+                Collections.unmodifiableMap(types), weightInTransit, insuredExposure);
+    }
+
+    private static void writeStatistics(ByteBuffer buf, DeliveryStatistics.Snapshot statistics) {
+        for (var state : STATES) buf.putLong(statistics.getCount(state));
+        buf.putLong(statistics.getCount(DeliveryType.INSURED));
+        buf.putDouble(statistics.getWeightInTransit());
+        DeliveryCodec.writeMoney(buf, statistics.getInsuredExposure());
+    }
+
+    /**
+     * Reads the generation of the snapshot from the trailer at the end of the file.
+     *
+     * @param channel The file to read
+     * @return The generation, 0 if the file was written outside of a store
+     * @throws InvalidDbException when the trailer is missing
+     * @throws IOException when an error occurs while reading
+     */
+    static long readGeneration(FileChannel channel) throws IOException {
+        return readTrailer(channel).getLong(0);
+    }
+
+    // The trailer at the end of the file: [long generation][long index offset][int magic]
+    private static ByteBuffer readTrailer(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + 8 + TRAILER_SIZE) throw new InvalidDbException("Truncated deliveries file");
+        var trailer = readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+        if (trailer.getInt(TRAILER_SIZE - 4) != TRAILER_MAGIC) {
+            throw new InvalidDbException("Corrupted deliveries file, missing the sender index");
+        }
+        return trailer;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        var buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new InvalidDbException("Truncated deliveries file");
+            }
+        }
+        return buf.flip();
+    }
+
+    /**
+     * Reads the raw records of a region.
+     *
+     * @param channel The file to read
+     * @param region The region to read
+     * @return The records, in the form {@code [int length][payload]}
+     * @throws IOException when an error occurs while reading
+     */
+    static ByteBuffer readRegion(FileChannel channel, Region region) throws IOException {
+        if (region.length > Integer.MAX_VALUE) throw new InvalidDbException("Region too big: " + region.length);
+        return readFully(channel, region.offset, (int) region.length);
+    }
+
+    /**
+     * Decodes the records read with {@link #readRegion(FileChannel, Region)}.
+     *
+     * @param records The raw records
+     * @param dictionary The dictionary of the file (see {@link #readDictionary(FileChannel)})
+     * @param consumer Called with every decoded delivery
+     * @throws InvalidDbException when the records are corrupted
+     */
+    static void decodeRegion(ByteBuffer records, StringDictionary dictionary, Consumer<Delivery> consumer)
+            throws InvalidDbException {
+        while (records.hasRemaining()) {
+            var record = nextRecord(records);
+            try {
+                consumer.accept(DeliveryCodec.read(record, dictionary));
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new InvalidDbException("Corrupted deliveries file, invalid record", e);
+            }
+        }
+    }
+
+    /**
+     * Checks if the records read with {@link #readRegion(FileChannel, Region)} contain one of the deliveries,
+     * without decoding them.
+     *
+     * @param records The raw records
+     * @param codes The codes of the deliveries to search
+     * @return true only if a delivery is found
+     * @throws InvalidDbException when the records are corrupted
+     */
+    static boolean containsCode(ByteBuffer records, Set<UUID> codes) throws InvalidDbException {
+        while (records.hasRemaining()) {
+            var record = nextRecord(records);
+            if (record.remaining() < 17) throw new InvalidDbException("Corrupted deliveries file, invalid record");
+            if (codes.contains(new UUID(record.getLong(1), record.getLong(9)))) return true;
+        }
+        return false;
+    }
+
+    private static ByteBuffer nextRecord(ByteBuffer records) throws InvalidDbException {
+        if (records.remaining() < 4) throw new InvalidDbException("Corrupted deliveries file, truncated region");
+        int length = records.getInt();
+        if (length <= 0 || length > records.remaining()) {
+            throw new InvalidDbException("Corrupted deliveries file, invalid record length " + length);
+        }
+        var record = records.slice();
+        record.limit(length);
+        records.position(records.position() + length);
+        return record;
+    }
+
+    /**
+     * Contiguous records of a single sender.
+     */
+    @Value
+    static class Region {
+        /**
+         * Written when no delivery is in a final state, see {@link #oldestFinalDay}.
+         */
+        static final long NO_FINAL_DAY = Long.MAX_VALUE;
+
+        /**
+         * Offset of the first record in the file.
+         */
+        long offset;
+        /**
+         * Length of the region in bytes.
+         */
+        long length;
+        /**
+         * Number of records.
+         */
+        long count;
+        /**
+         * Epoch day of the oldest delivery in a final state, {@link #NO_FINAL_DAY} if there is none.
+         */
+        long oldestFinalDay;
+        /**
+         * The aggregates of the deliveries.
+         */
+        DeliveryStatistics.Snapshot statistics;
+    }
+
+    /**
+     * Writes a binary file one sender at a time, building the index at the end.
+     */
+    static final class GroupedWriter {
+        private final WritableByteChannel channel;
+        private ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long flushed = 0;
+        private long written = 0;
+        private final long count;
+        private final StringDictionary dictionary;
+        private final Map<UUID, Region> index = new LinkedHashMap<>();
+
+        /**
+         * Starts writing a file, the dictionary is written right away.
+         * It should contain the destinations of all the deliveries that will be written, the ones that are
+         * missing are written inline.
+         *
+         * @param channel The destination channel
+         * @param count The total number of deliveries that will be written
+         * @param dictionary The dictionary of the destinations, it must not change while writing
+         * @throws IOException when an error occurs while writing
+         */
+        GroupedWriter(WritableByteChannel channel, long count, StringDictionary dictionary) throws IOException {
+            this.channel = channel;
+            this.count = count;
+            this.dictionary = dictionary;
+            buf.putInt(MAGIC).putLong(VERSION).putLong(count);
+
+            var strings = new byte[dictionary.size()][];
+            long length = 4;
+            for (int id = 0; id < strings.length; id++) {
+                strings[id] = dictionary.get(id).getBytes(StandardCharsets.UTF_8);
+                length += 4 + strings[id].length;
+            }
+            if (length > Integer.MAX_VALUE) throw new IllegalArgumentException("Dictionary too big");
+            buf.putInt((int) length).putInt(strings.length);
+            for (var string : strings) {
+                if (buf.remaining() < 4 + string.length) {
+                    flush();
+                    if (buf.capacity() < 4 + string.length) buf = ByteBuffer.allocateDirect(4 + string.length);
+                }
+                DeliveryCodec.writeBytes(buf, string);
+            }
+        }
+
+        private long position() {
+            return flushed + buf.position();
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) flushed += channel.write(buf);
+            buf.clear();
+        }
+
+        private void writeRecord(Delivery delivery) throws IOException {
+            while (true) {
+                if (buf.remaining() < 4) flush();
+                int start = buf.position();
+                try {
+                    buf.position(start + 4);
+                    DeliveryCodec.write(buf, delivery, dictionary);
+                    buf.putInt(start, buf.position() - start - 4);
+                    return;
+                } catch (BufferOverflowException e) {
+                    buf.position(start);
+                    if (start > 0) {
+                        flush();
+                    } else {
+                        // The record is bigger than the whole buffer
+                        buf = ByteBuffer.allocateDirect(buf.capacity() * 2);
+                    }
+                }
+            }
+        }
+
+        private void addRegion(UUID sender, Region region) {
+            if (index.putIfAbsent(sender, region) != null) {
+                throw new IllegalArgumentException("Sender already written: " + sender);
+            }
+            written += region.count;
+        }
+
+        /**
+         * Writes all of the deliveries of a sender.
+         *
+         * @param sender The sender
+         * @param deliveries Its deliveries
+         * @throws IOException when an error occurs while writing
+         */
+        void writeGroup(UUID sender, Collection<? extends Delivery> deliveries) throws IOException {
+            long start = position();
+            long oldestFinalDay = Region.NO_FINAL_DAY;
+            for (var delivery : deliveries) {
+                writeRecord(delivery);
+                if (delivery.isInFinalState()) {
+                    oldestFinalDay = Math.min(oldestFinalDay, delivery.getDate().toEpochDay());
+                }
+            }
+            addRegion(sender, new Region(start, position() - start, deliveries.size(), oldestFinalDay,
+                    DeliveryStatistics.of(deliveries)));
+        }
+
+        /**
+         * Copies the region of a sender from another file, without decoding it.
+         * The destination ids of the other file must mean the same in this one: its dictionary must be a prefix of
+         * the one of this writer.
+         *
+         * @param sender The sender
+         * @param source The file that contains the region
+         * @param region The region to copy
+         * @throws IOException when an error occurs while reading or writing
+         */
+        void copyGroup(UUID sender, FileChannel source, Region region) throws IOException {
+            flush();
+            long start = position();
+            long copied = 0;
+            while (copied < region.length) {
+                long n = source.transferTo(region.offset + copied, region.length - copied, channel);
+                if (n <= 0) throw new InvalidDbException("Truncated deliveries file");
+                copied += n;
+            }
+            flushed += copied;
+            addRegion(sender, new Region(start, region.length, region.count, region.oldestFinalDay,
+                    region.statistics));
+        }
+
+        private void writeIndexEntry(UUID sender, Region region) throws IOException {
+            while (true) {
+                int start = buf.position();
+                try {
+                    DeliveryCodec.writeUuid(buf, sender);
+                    buf.putLong(region.offset).putLong(region.length).putLong(region.count)
+                            .putLong(region.oldestFinalDay);
+                    writeStatistics(buf, region.statistics);
+                    return;
+                } catch (BufferOverflowException e) {
+                    buf.position(start);
+                    if (start > 0) {
+                        flush();
+                    } else {
+                        // The exposure is bigger than the whole buffer
+                        buf = ByteBuffer.allocateDirect(buf.capacity() * 2);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes the index and flushes the channel.
+         *
+         * @param generation The generation of the snapshot (0 if the file is not a snapshot of a store)
+         * @return The written index
+         * @throws IOException when an error occurs while writing
+         */
+        Map<UUID, Region> finish(long generation) throws IOException {
+            if (written != count) throw new IllegalStateException("Wrote " + written + " deliveries, not " + count);
+            long indexOffset = position();
+            if (buf.remaining() < 8) flush();
+            buf.putLong(index.size());
+            for (var entry : index.entrySet()) {
+                writeIndexEntry(entry.getKey(), entry.getValue());
+            }
+            if (buf.remaining() < TRAILER_SIZE) flush();
+            buf.putLong(generation).putLong(indexOffset).putInt(TRAILER_MAGIC);
+            flush();
+            return index;
+        }
+    }
+}
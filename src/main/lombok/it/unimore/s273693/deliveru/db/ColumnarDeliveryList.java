@@ -0,0 +1,122 @@
+package it.unimore.s273693.deliveru.db;
+
+import javafx.collections.ObservableListBase;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The deliveries stored in {@link DeliveryColumns} as an observable list of views, in row order.
+ *
+ * <p>
+ * The list can only be changed by its {@link DeliveryStore}, the only exception is {@link #setAll(Collection)}
+ * with a permutation of its deliveries, that reorders the rows (this is how a TableView sorts its items).
+ * </p>
+ */
+final class ColumnarDeliveryList extends ObservableListBase<Delivery> {
+    private final DeliveryColumns columns;
+
+    ColumnarDeliveryList(DeliveryColumns columns) {
+        this.columns = columns;
+    }
+
+    @Override
+    public Delivery get(int index) {
+        return columns.view(index);
+    }
+
+    @Override
+    public int size() {
+        return columns.getSize();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Delivery && columns.find(((Delivery) o).getCode()) >= 0;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return o instanceof Delivery ? columns.find(((Delivery) o).getCode()) : -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    /**
+     * Notifies the rows appended by the store.
+     *
+     * @param from The first appended row
+     */
+    void fireAdded(int from) {
+        beginChange();
+        nextAdd(from, size());
+        endChange();
+    }
+
+    /**
+     * Notifies the removal of a row, the last row (if any) has been moved in its place.
+     *
+     * @param row The removed row
+     * @param removed The removed delivery
+     * @param moved The delivery that was in the last row, or null if the removed row was the last one
+     */
+    void fireRemoved(int row, Delivery removed, Delivery moved) {
+        beginChange();
+        if (moved == null) {
+            nextRemove(row, removed);
+        } else {
+            nextSet(row, removed);
+            nextRemove(size(), moved);
+        }
+        endChange();
+    }
+
+    /**
+     * Notifies the removal of several rows with a single change, the other rows kept their order.
+     *
+     * @param rows The removed rows (before the removal), in ascending order
+     * @param removed The removed deliveries, in the same order
+     */
+    void fireRemoved(int[] rows, List<Delivery> removed) {
+        beginChange();
+        for (int i = 0; i < removed.size(); i++) {
+            nextRemove(rows[i] - i, removed.get(i));
+        }
+        endChange();
+    }
+
+    /**
+     * Reorders the deliveries.
+     *
+     * @param col The same deliveries in the new order
+     * @return true
+     * @throws UnsupportedOperationException if the collection is not a permutation of the deliveries
+     */
+    @Override
+    public boolean setAll(Collection<? extends Delivery> col) {
+        int size = size();
+        var order = new int[size];
+        var seen = new boolean[size];
+        int index = 0;
+        for (var delivery : col) {
+            int row = index < size ? columns.find(delivery.getCode()) : -1;
+            if (row < 0 || seen[row]) throw new UnsupportedOperationException("The deliveries can only be reordered");
+            seen[row] = true;
+            order[index++] = row;
+        }
+        if (index != size) throw new UnsupportedOperationException("The deliveries can only be reordered");
+
+        columns.permute(order);
+        var permutation = new int[size];
+        for (int row = 0; row < size; row++) {
+            permutation[order[row]] = row;
+        }
+        beginChange();
+        nextPermutation(0, size, permutation);
+        endChange();
+        return true;
+    }
+}
@@ -5,15 +5,14 @@ import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import it.unimore.s273693.deliveru.serialize.LocalDateDeserializer;
 import it.unimore.s273693.deliveru.serialize.LocalDateSerializer;
-import javafx.beans.binding.Bindings;
-import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.ReadOnlyBooleanProperty;
-import javafx.beans.property.SimpleBooleanProperty;
-import javafx.beans.property.SimpleObjectProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.ToString;
-import lombok.experimental.Accessors;
 
 import java.time.LocalDate;
 import java.util.UUID;
@@ -22,10 +21,11 @@ import java.util.UUID;
  * The delivery data
  *
  * <p>This is mostly a data class, but there's also some logic,
- * The only property that can change is the state, and so it's wrapped in an
- * ObjectProperty (for better JavaFX interaction).
- * It's also checked in the {@link #setState(DeliveryState)} method to check if
- * the operation is permitted.
+ * The only property that can change is the state, it's checked in the {@link #setState(DeliveryState)}
+ * method to check if the operation is permitted.
+ * For better JavaFX interaction it's also exposed as a read-only property ({@link #stateProperty()}), the
+ * properties are only created when they're first requested (most deliveries are never shown in a table)
+ * and then kept in sync with the state.
  *
  * <p>When serialized in JSON the property "type" will be used to check what type
  * of Delivery should be used (to disambiguate from {@link InsuredDelivery})
@@ -67,7 +67,8 @@ public class Delivery {
      *
      * @return The destination
      */
-    private final String destination;
+    // Not final only to be replaced by an equal shared instance, see internDestination()
+    private String destination;
 
     /**
      * Weight in kilograms.
@@ -77,23 +78,39 @@ public class Delivery {
     private final double weight;
 
     /**
-     * State of the delivery (in a JavaFX Property).
-     *
-     * @return The state property
+     * State of the delivery.
+     */
+    @Getter(AccessLevel.NONE)
+    private DeliveryState state;
+
+    // Created on first access, see stateProperty() and isInFinalStateProperty()
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    private ReadOnlyObjectWrapper<DeliveryState> stateProperty;
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    private ReadOnlyBooleanWrapper isInFinalStateProperty;
+
+    /**
+     * The store that owns this delivery (null if not registered).
+     * Used to notify the store of any state transition.
      */
     @JsonIgnore
-    @Accessors(fluent = true)// stateProperty() (without get)
-    protected final ObjectProperty<DeliveryState> stateProperty;
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    DeliveryStore store;
 
     /**
-     * A read only property that indicates whether the delivery is in a final state.
-     *
-     * @see #isInFinalState()
-     * @return is in final state property
+     * Positions in the store lists (-1 if not in a list), see {@link IndexedDeliveryList}.
      */
     @JsonIgnore
-    @Accessors(fluent = true)// isInFinalStateProperty() (without get)
-    private final ReadOnlyBooleanProperty isInFinalStateProperty;
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    int storeIndex = -1;
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    int senderIndex = -1;
 
     /**
      * JSON Constructor (also accepts state).
@@ -119,11 +136,8 @@ public class Delivery {
         this.date = date;
         this.destination = destination;
         this.weight = weight;
-        this.stateProperty = new SimpleObjectProperty<>(DeliveryState.IN_PREPARATION);
+        this.state = DeliveryState.IN_PREPARATION;
         this.setState(state);
-        var isFinalStateProperty = new SimpleBooleanProperty();
-        isFinalStateProperty.bind(Bindings.createBooleanBinding(this::isInFinalState, this.stateProperty));
-        this.isInFinalStateProperty = isFinalStateProperty;
     }
 
     public Delivery(UUID code, UUID sender, LocalDate date, String dest, double weight) {
@@ -139,8 +153,7 @@ public class Delivery {
      */
     @JsonIgnore
     public boolean isInFinalState() {
-        var state = this.stateProperty.get();
-        return state == DeliveryState.RECEIVED || state == DeliveryState.FAILED;
+        return this.state == DeliveryState.RECEIVED || this.state == DeliveryState.FAILED;
     }
 
     /**
@@ -149,7 +162,34 @@ public class Delivery {
      * @return the current state
      */
     public DeliveryState getState() {
-        return this.stateProperty.get();
+        return this.state;
+    }
+
+    /**
+     * State of the delivery (in a JavaFX Property), created on first access.
+     *
+     * @return The state property
+     */
+    @JsonIgnore
+    public ReadOnlyObjectProperty<DeliveryState> stateProperty() {
+        if (this.stateProperty == null) {
+            this.stateProperty = new ReadOnlyObjectWrapper<>(this, "state", this.state);
+        }
+        return this.stateProperty.getReadOnlyProperty();
+    }
+
+    /**
+     * A read only property that indicates whether the delivery is in a final state, created on first access.
+     *
+     * @see #isInFinalState()
+     * @return is in final state property
+     */
+    @JsonIgnore
+    public ReadOnlyBooleanProperty isInFinalStateProperty() {
+        if (this.isInFinalStateProperty == null) {
+            this.isInFinalStateProperty = new ReadOnlyBooleanWrapper(this, "inFinalState", this.isInFinalState());
+        }
+        return this.isInFinalStateProperty.getReadOnlyProperty();
     }
 
     /**
@@ -169,7 +209,43 @@ public class Delivery {
         if (this.isInFinalState()) {
             throw new IllegalStateException("Cannot reassign a state to a finalized delivery");
         }
-        this.stateProperty.setValue(newState);
+        this.applyState(newState);
+    }
+
+    /**
+     * Changes the state without any check and notifies the owning store (if any).
+     *
+     * @param newState The new state
+     */
+    protected void applyState(DeliveryState newState) {
+        var oldState = this.state;
+        this.state = newState;
+        if (this.stateProperty != null) this.stateProperty.set(newState);
+        if (this.isInFinalStateProperty != null) this.isInFinalStateProperty.set(this.isInFinalState());
+        if (this.store != null && oldState != newState) {
+            this.store.onStateChanged(this, oldState, newState);
+        }
+    }
+
+    /**
+     * Replaces the destination with the equal instance kept by the dictionary, so that the deliveries with the
+     * same destination share it.
+     *
+     * @param dictionary The dictionary of the store
+     */
+    void internDestination(StringDictionary dictionary) {
+        this.destination = dictionary.intern(this.destination);
+    }
+
+    /**
+     * Copies the delivery in its current state, the copy is not registered in any store.
+     * Used to hand the deliveries to another thread (ex. a snapshot written in background) while they can still
+     * change.
+     *
+     * @return A detached copy of the delivery
+     */
+    Delivery copy() {
+        return new Delivery(code, sender, date, destination, weight, state);
     }
 
 
@@ -0,0 +1,399 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only, append-only archive of the deliveries that reached a final state and will never change again.
+ *
+ * <p>
+ * The archive file starts with a header {@code [int magic][long version]} followed by compressed blocks in the
+ * form {@code [int compressed length][int raw length][int count][int crc32][deflated records]}, where the records
+ * have the same {@code [int length][payload]} layout used by {@link BinaryDeliveryFile} (with the destinations
+ * inline, every block can be decoded on its own).
+ * The index file has the same kind of header followed by fixed-size entries
+ * {@code [code: 2 longs][sender: 2 longs][long block offset]}, one per archived delivery.
+ * </p>
+ *
+ * <p>
+ * Both files are only appended: the blocks are synced before their index entries are written, and while opening
+ * an incomplete block at the end of the archive is dropped together with the entries pointing to it, while the
+ * blocks that are missing from the index are indexed again.
+ * Only the index is kept in memory, the blocks are read and decompressed when a delivery is requested
+ * (the last read block is cached).
+ * </p>
+ *
+ * <p>
+ * The archived deliveries are not part of any {@link DeliveryStore}, so they cannot be changed or removed.
+ * </p>
+ */
+public class DeliveryArchive implements Closeable {
+    private static final Logger logger = LogManager.getLogger(DeliveryArchive.class);
+
+    private static final int MAGIC = 0x444c5641; // "DLVA"
+    private static final int INDEX_MAGIC = 0x444c5658; // "DLVX"
+    private static final long VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final int BLOCK_HEADER_SIZE = 4 + 4 + 4 + 4;
+    private static final int INDEX_ENTRY_SIZE = 16 + 16 + 8;
+    private static final int MAX_BLOCK_DELIVERIES = 512;
+    private static final int MAX_BLOCK_SIZE = 1 << 26;
+
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final Map<UUID, Long> blockByCode = new HashMap<>();
+    private final Map<UUID, SortedSet<Long>> blocksBySender = new HashMap<>();
+
+    private long cachedBlockOffset = -1;
+    private List<Delivery> cachedBlock;
+
+    private DeliveryArchive(FileChannel channel, FileChannel indexChannel) {
+        this.channel = channel;
+        this.indexChannel = indexChannel;
+    }
+
+    /**
+     * Opens the archive, creating it if it doesn't exist.
+     *
+     * @param file The archive file
+     * @param indexFile The index file
+     * @return The opened archive
+     * @throws InvalidDbException when the archive header is corrupted or the version is not supported
+     * @throws IOException when an error occurs while reading
+     */
+    public static DeliveryArchive open(File file, File indexFile) throws IOException {
+        file.getParentFile().mkdirs();
+        var channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileChannel indexChannel = null;
+        try {
+            indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            var res = new DeliveryArchive(channel, indexChannel);
+            res.recover();
+            return res;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (indexChannel != null) indexChannel.close();
+            throw e;
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, int magic) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_SIZE).putInt(magic).putLong(VERSION).flip();
+        channel.truncate(0);
+        while (header.hasRemaining()) channel.write(header, header.position());
+        channel.force(true);
+    }
+
+    private static boolean hasHeader(FileChannel channel, int magic) throws IOException {
+        if (channel.size() < HEADER_SIZE) return false;
+        var header = readFully(channel, 0, HEADER_SIZE);
+        return header.getInt() == magic && header.getLong() == VERSION;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        var buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) throw new InvalidDbException("Truncated archive");
+        }
+        return buf.flip();
+    }
+
+    /**
+     * Validates the blocks, drops the incomplete ones and rebuilds the missing part of the index.
+     */
+    private void recover() throws IOException {
+        if (channel.size() == 0) {
+            writeHeader(channel, MAGIC);
+        } else if (!hasHeader(channel, MAGIC)) {
+            throw new InvalidDbException("Not a deliveries archive or incompatible version");
+        }
+
+        // Scan the block headers, the content is only checked when it's read
+        var blocks = new LinkedHashMap<Long, Integer>();
+        long size = channel.size();
+        long offset = HEADER_SIZE;
+        while (offset + BLOCK_HEADER_SIZE <= size) {
+            var header = readFully(channel, offset, BLOCK_HEADER_SIZE);
+            int compressedLength = header.getInt();
+            header.getInt();
+            int count = header.getInt();
+            if (compressedLength < 0 || offset + BLOCK_HEADER_SIZE + compressedLength > size) break;
+            blocks.put(offset, count);
+            offset += BLOCK_HEADER_SIZE + compressedLength;
+        }
+        if (offset != size) {
+            logger.warn("Dropping {} bytes of incomplete archive blocks", size - offset);
+            channel.truncate(offset);
+        }
+
+        if (indexChannel.size() == 0 || !hasHeader(indexChannel, INDEX_MAGIC)) {
+            if (indexChannel.size() != 0) logger.warn("Invalid archive index, rebuilding it");
+            writeHeader(indexChannel, INDEX_MAGIC);
+        }
+        long entries = (indexChannel.size() - HEADER_SIZE) / INDEX_ENTRY_SIZE;
+        // The entries are written in block order, only the last indexed block can be partially indexed
+        long lastIndexed = -1;
+        long lastBlockStart = 0;
+        long validEntries = 0;
+        if (entries > 0) {
+            var index = readFully(indexChannel, HEADER_SIZE, Math.toIntExact(entries * INDEX_ENTRY_SIZE));
+            for (; validEntries < entries; validEntries++) {
+                var code = DeliveryCodec.readUuid(index);
+                var sender = DeliveryCodec.readUuid(index);
+                long block = index.getLong();
+                if (!blocks.containsKey(block) || block < lastIndexed) break;
+                if (block != lastIndexed) lastBlockStart = validEntries;
+                lastIndexed = block;
+                putIndex(code, sender, block);
+            }
+        }
+        long reindexFrom = lastIndexed + 1;
+        if (lastIndexed >= 0 && validEntries - lastBlockStart != blocks.get(lastIndexed)) {
+            // Index the last block again, its entries already in memory are simply overwritten
+            reindexFrom = lastIndexed;
+            validEntries = lastBlockStart;
+        }
+        long indexEnd = HEADER_SIZE + validEntries * INDEX_ENTRY_SIZE;
+        if (indexChannel.size() != indexEnd) {
+            logger.warn("Dropping {} bytes of invalid archive index entries", indexChannel.size() - indexEnd);
+            indexChannel.truncate(indexEnd);
+        }
+
+        // Index the blocks written just before a crash
+        var entryBuf = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        for (long block : blocks.keySet()) {
+            if (block < reindexFrom) continue;
+            logger.warn("Indexing archive block {} again", block);
+            for (var delivery : readBlock(block)) {
+                writeIndexEntry(entryBuf, delivery, block);
+            }
+        }
+        indexChannel.force(false);
+        logger.info("Opened the archive with {} deliveries", blockByCode.size());
+    }
+
+    private void putIndex(UUID code, UUID sender, long block) {
+        blockByCode.put(code, block);
+        blocksBySender.computeIfAbsent(sender, x -> new TreeSet<>()).add(block);
+    }
+
+    private void writeIndexEntry(ByteBuffer buf, Delivery delivery, long block) throws IOException {
+        buf.clear();
+        DeliveryCodec.writeUuid(buf, delivery.getCode());
+        DeliveryCodec.writeUuid(buf, delivery.getSender());
+        buf.putLong(block);
+        buf.flip();
+        long position = indexChannel.size();
+        while (buf.hasRemaining()) indexChannel.write(buf, position + buf.position());
+        putIndex(delivery.getCode(), delivery.getSender(), block);
+    }
+
+    /**
+     * Number of archived deliveries.
+     *
+     * @return The number of deliveries in the archive
+     */
+    public synchronized int size() {
+        return blockByCode.size();
+    }
+
+    /**
+     * Checks if a delivery is archived, without reading it.
+     *
+     * @param code The delivery code
+     * @return true only if the delivery is in the archive
+     */
+    public synchronized boolean contains(UUID code) {
+        return blockByCode.containsKey(code);
+    }
+
+    /**
+     * Appends the deliveries to the archive, the ones that are already archived are skipped.
+     * When this method returns the deliveries are synced to disk.
+     *
+     * @param deliveries The deliveries to archive, they should be in a final state
+     * @return The number of archived deliveries
+     * @throws IOException when an error occurs while writing (the deliveries might be partially archived)
+     */
+    public synchronized int append(Collection<? extends Delivery> deliveries) throws IOException {
+        var toArchive = new ArrayList<Delivery>(deliveries.size());
+        for (var delivery : deliveries) {
+            if (!blockByCode.containsKey(delivery.getCode())) toArchive.add(delivery);
+        }
+        if (toArchive.isEmpty()) return 0;
+
+        var blocks = new ArrayList<Long>();
+        for (int i = 0; i < toArchive.size(); i += MAX_BLOCK_DELIVERIES) {
+            blocks.add(writeBlock(toArchive.subList(i, Math.min(i + MAX_BLOCK_DELIVERIES, toArchive.size()))));
+        }
+        channel.force(false);
+
+        var entryBuf = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        for (int i = 0; i < toArchive.size(); i++) {
+            writeIndexEntry(entryBuf, toArchive.get(i), blocks.get(i / MAX_BLOCK_DELIVERIES));
+        }
+        indexChannel.force(false);
+        logger.info("Archived {} deliveries", toArchive.size());
+        return toArchive.size();
+    }
+
+    private long writeBlock(List<Delivery> deliveries) throws IOException {
+        var raw = encode(deliveries);
+        var compressed = new ByteArrayOutputStream(raw.remaining() / 2);
+        try (var out = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_COMPRESSION))) {
+            out.write(raw.array(), 0, raw.remaining());
+        }
+        var data = compressed.toByteArray();
+        var crc = new CRC32();
+        crc.update(data);
+
+        var buf = ByteBuffer.allocate(BLOCK_HEADER_SIZE + data.length)
+                .putInt(data.length)
+                .putInt(raw.remaining())
+                .putInt(deliveries.size())
+                .putInt((int) crc.getValue())
+                .put(data)
+                .flip();
+        long offset = channel.size();
+        while (buf.hasRemaining()) channel.write(buf, offset + buf.position());
+        return offset;
+    }
+
+    private static ByteBuffer encode(List<Delivery> deliveries) {
+        var buf = ByteBuffer.allocate(1 << 16);
+        for (var delivery : deliveries) {
+            while (true) {
+                int start = buf.position();
+                try {
+                    buf.putInt(0);
+                    DeliveryCodec.write(buf, delivery);
+                    buf.putInt(start, buf.position() - start - 4);
+                    break;
+                } catch (BufferOverflowException e) {
+                    if (buf.capacity() >= MAX_BLOCK_SIZE) throw new IllegalArgumentException("Archive block too big");
+                    var bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                    bigger.put(buf.flip().limit(start));
+                    buf = bigger;
+                }
+            }
+        }
+        return buf.flip();
+    }
+
+    private List<Delivery> readBlock(long offset) throws IOException {
+        if (offset == cachedBlockOffset) return cachedBlock;
+
+        var header = readFully(channel, offset, BLOCK_HEADER_SIZE);
+        int compressedLength = header.getInt();
+        int rawLength = header.getInt();
+        int count = header.getInt();
+        int checksum = header.getInt();
+        if (rawLength < 0 || rawLength > MAX_BLOCK_SIZE || count < 0) {
+            throw new InvalidDbException("Corrupted archive block at " + offset);
+        }
+        var data = readFully(channel, offset + BLOCK_HEADER_SIZE, compressedLength).array();
+        var crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != checksum) throw new InvalidDbException("Wrong archive block checksum at " + offset);
+
+        var raw = new byte[rawLength];
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            if (inflater.inflate(raw) != rawLength || !inflater.finished()) {
+                throw new InvalidDbException("Corrupted archive block at " + offset);
+            }
+        } catch (DataFormatException e) {
+            throw new InvalidDbException("Corrupted archive block at " + offset, e);
+        } finally {
+            inflater.end();
+        }
+
+        var res = new ArrayList<Delivery>(count);
+        BinaryDeliveryFile.decodeRegion(ByteBuffer.wrap(raw), null, res::add);
+        if (res.size() != count) throw new InvalidDbException("Wrong archive block size at " + offset);
+
+        cachedBlockOffset = offset;
+        cachedBlock = Collections.unmodifiableList(res);
+        return cachedBlock;
+    }
+
+    /**
+     * Reads an archived delivery.
+     *
+     * @param code The delivery code
+     * @return The delivery, if it's archived
+     * @throws IOException when the delivery cannot be read
+     */
+    public synchronized Optional<Delivery> get(UUID code) throws IOException {
+        var block = blockByCode.get(code);
+        if (block == null) return Optional.empty();
+        return readBlock(block).stream()
+                .filter(x -> x.getCode().equals(code))
+                .findAny();
+    }
+
+    /**
+     * Reads the archived deliveries of a sender, only the blocks that contain them are read.
+     *
+     * @param sender The sender
+     * @return Its archived deliveries
+     * @throws IOException when the deliveries cannot be read
+     */
+    public synchronized List<Delivery> getBySender(UUID sender) throws IOException {
+        var res = new ArrayList<Delivery>();
+        for (long block : blocksBySender.getOrDefault(sender, Collections.emptySortedSet())) {
+            for (var delivery : readBlock(block)) {
+                if (delivery.getSender().equals(sender)) res.add(delivery);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Searches the archived deliveries that match the filter.
+     * This reads the whole archive, prefer {@link #get(UUID)} and {@link #getBySender(UUID)} when possible.
+     *
+     * @param filter The filter
+     * @return The matching deliveries
+     * @throws IOException when the archive cannot be read
+     */
+    public synchronized List<Delivery> query(Predicate<? super Delivery> filter) throws IOException {
+        var res = new ArrayList<Delivery>();
+        var blocks = new TreeSet<>(blockByCode.values());
+        for (long block : blocks) {
+            for (var delivery : readBlock(block)) {
+                if (filter.test(delivery)) res.add(delivery);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        cachedBlock = null;
+        try {
+            channel.close();
+        } finally {
+            indexChannel.close();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * A {@link StorageBackend} for the deliveries, it can also update the state of a delivery without rewriting it.
+ *
+ * <p>
+ * The backend is only written: the {@link DeliveryStore} loads every delivery at startup and answers the queries
+ * from its in-memory indexes.
+ * </p>
+ */
+public interface DeliveryBackend extends StorageBackend<UUID, Delivery> {
+    /**
+     * Changes the state of a stored delivery.
+     *
+     * @param code The delivery code
+     * @param state The new state
+     * @throws IOException when the delivery cannot be updated
+     */
+    void updateState(UUID code, DeliveryState state) throws IOException;
+}
@@ -0,0 +1,69 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Keeps a {@link DeliveryBackend} in sync with the {@link DeliveryStore} it's registered to.
+ *
+ * <p>
+ * Every change is queued as it happens (a state transition only updates the state) and the queue is applied in a
+ * single transaction by the persistence thread, see {@link BackendSync}.
+ * The added deliveries are queued as copies, so the persistence thread never reads a delivery that is changing.
+ * </p>
+ */
+public class DeliveryBackendSync extends BackendSync<UUID, Delivery> implements DeliveryStoreListener {
+    private final DeliveryBackend backend;
+
+    /**
+     * Constructor.
+     *
+     * @param backend The backend where the changes will be written
+     */
+    public DeliveryBackendSync(DeliveryBackend backend) {
+        super(backend);
+        this.backend = backend;
+    }
+
+    @Override
+    public DeliveryBackend getBackend() {
+        return backend;
+    }
+
+    @Override
+    protected Delivery copy(Delivery delivery) {
+        return delivery.copy();
+    }
+
+    @Override
+    public void onAdded(Delivery delivery) {
+        upsert(delivery);
+    }
+
+    @Override
+    public void onRemoved(Delivery delivery) {
+        delete(delivery.getCode());
+    }
+
+    @Override
+    public void onAddedAll(List<Delivery> deliveries) {
+        var copies = new ArrayList<Delivery>(deliveries.size());
+        for (var delivery : deliveries) copies.add(copy(delivery));
+        forward(() -> {
+            for (var delivery : copies) backend.upsert(delivery);
+        });
+    }
+
+    @Override
+    public void onRemovedAll(List<Delivery> deliveries) {
+        forward(() -> {
+            for (var delivery : deliveries) backend.delete(delivery.getCode());
+        });
+    }
+
+    @Override
+    public void onStateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+        forward(() -> backend.updateState(delivery.getCode(), newState));
+    }
+}
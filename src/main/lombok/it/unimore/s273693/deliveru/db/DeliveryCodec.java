@@ -0,0 +1,187 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.UUID;
+
+/**
+ * Binary encoding of a single {@link Delivery}, shared by every binary file (db and journal).
+ *
+ * <p>
+ * Layout: {@code [byte type][code: 2 longs][sender: 2 longs][long epoch day][double weight][byte state]
+ * [int length + UTF-8 destination]} and, only for insured deliveries, {@code [int length + insured value]}
+ * where the insured value is the two's-complement representation of the cents (see {@link #writeMoney}).
+ * </p>
+ *
+ * <p>
+ * Inside a file with a {@link StringDictionary} the destination is written as {@code [int id]} instead, or as
+ * {@code [int -1][int length + UTF-8 destination]} if it's not in the dictionary.
+ * </p>
+ */
+final class DeliveryCodec {
+    static final byte TYPE_STANDARD = 0;
+    static final byte TYPE_INSURED = 1;
+
+    private static final DeliveryState[] STATES = DeliveryState.values();
+
+    private DeliveryCodec() {}
+
+    static void writeUuid(ByteBuffer buf, UUID id) {
+        buf.putLong(id.getMostSignificantBits());
+        buf.putLong(id.getLeastSignificantBits());
+    }
+
+    static UUID readUuid(ByteBuffer buf) {
+        return new UUID(buf.getLong(), buf.getLong());
+    }
+
+    static void writeState(ByteBuffer buf, DeliveryState state) {
+        buf.put((byte) state.ordinal());
+    }
+
+    static DeliveryState readState(ByteBuffer buf) {
+        int ordinal = buf.get();
+        if (ordinal < 0 || ordinal >= STATES.length) throw new IllegalArgumentException("Invalid state " + ordinal);
+        return STATES[ordinal];
+    }
+
+    static void writeBytes(ByteBuffer buf, byte[] data) {
+        buf.putInt(data.length);
+        buf.put(data);
+    }
+
+    static byte[] readBytes(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) throw new IllegalArgumentException("Invalid length " + length);
+        var data = new byte[length];
+        buf.get(data);
+        return data;
+    }
+
+    /**
+     * Writes the cents as {@code [int length + two's-complement bytes]}, the same bytes of
+     * {@link BigInteger#toByteArray()} but without converting the amounts that fit in a long.
+     *
+     * @param buf The destination buffer
+     * @param value The amount
+     */
+    static void writeMoney(ByteBuffer buf, Money value) {
+        if (!value.isLong()) {
+            writeBytes(buf, value.toBigInteger().toByteArray());
+            return;
+        }
+        long cents = value.getCents();
+        // The shortest representation that still has room for the sign bit
+        int length = (Long.SIZE - Long.numberOfLeadingZeros(cents < 0 ? ~cents : cents)) / Byte.SIZE + 1;
+        buf.putInt(length);
+        for (int i = length - 1; i >= 0; i--) buf.put((byte) (cents >>> (i * Byte.SIZE)));
+    }
+
+    /**
+     * Reads the cents written by {@link #writeMoney(ByteBuffer, Money)}.
+     *
+     * @param buf The source buffer
+     * @return The amount
+     * @throws IllegalArgumentException if the data is invalid
+     */
+    static Money readMoney(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) throw new IllegalArgumentException("Invalid length " + length);
+        if (length == 0 || length > Long.BYTES) {
+            var data = new byte[length];
+            buf.get(data);
+            return Money.ofCents(new BigInteger(data));
+        }
+        // The first byte is sign-extended
+        long cents = buf.get();
+        for (int i = 1; i < length; i++) cents = cents << Byte.SIZE | (buf.get() & 0xFF);
+        return Money.ofCents(cents);
+    }
+
+    /**
+     * Encodes the delivery at the current buffer position, with the destination inline.
+     *
+     * @param buf The destination buffer
+     * @param delivery The delivery to encode
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    static void write(ByteBuffer buf, Delivery delivery) {
+        write(buf, delivery, null);
+    }
+
+    /**
+     * Encodes the delivery at the current buffer position.
+     *
+     * @param buf The destination buffer
+     * @param delivery The delivery to encode
+     * @param dictionary The dictionary of the destinations, null to write them inline
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    static void write(ByteBuffer buf, Delivery delivery, StringDictionary dictionary) {
+        buf.put(delivery instanceof InsuredDelivery ? TYPE_INSURED : TYPE_STANDARD);
+        writeUuid(buf, delivery.getCode());
+        writeUuid(buf, delivery.getSender());
+        buf.putLong(delivery.getDate().toEpochDay());
+        buf.putDouble(delivery.getWeight());
+        writeState(buf, delivery.getState());
+        int destinationId = dictionary != null ? dictionary.find(delivery.getDestination()) : -1;
+        if (dictionary != null) buf.putInt(destinationId);
+        if (destinationId < 0) writeBytes(buf, delivery.getDestination().getBytes(StandardCharsets.UTF_8));
+        if (delivery instanceof InsuredDelivery) {
+            writeMoney(buf, ((InsuredDelivery) delivery).getInsuredValue());
+        }
+    }
+
+    /**
+     * Decodes a delivery from the current buffer position, with the destination inline.
+     *
+     * @param buf The source buffer
+     * @return The decoded delivery
+     * @throws IllegalArgumentException if the data is invalid
+     * @throws java.nio.BufferUnderflowException if the data is truncated
+     */
+    static Delivery read(ByteBuffer buf) {
+        return read(buf, null);
+    }
+
+    /**
+     * Decodes a delivery from the current buffer position.
+     *
+     * @param buf The source buffer
+     * @param dictionary The dictionary the destinations were written with, null if they're inline
+     * @return The decoded delivery
+     * @throws IllegalArgumentException if the data is invalid
+     * @throws java.nio.BufferUnderflowException if the data is truncated
+     */
+    static Delivery read(ByteBuffer buf, StringDictionary dictionary) {
+        byte type = buf.get();
+        var code = readUuid(buf);
+        var sender = readUuid(buf);
+        var date = LocalDate.ofEpochDay(buf.getLong());
+        var weight = buf.getDouble();
+        var state = readState(buf);
+        var destination = readDestination(buf, dictionary);
+
+        switch (type) {
+            case TYPE_STANDARD:
+                return new Delivery(code, sender, date, destination, weight, state);
+            case TYPE_INSURED:
+                var insuredValue = readMoney(buf);
+                return new InsuredDelivery(code, sender, date, destination, weight, insuredValue, state);
+            default:
+                throw new IllegalArgumentException("Unknown delivery type: " + type);
+        }
+    }
+
+    private static String readDestination(ByteBuffer buf, StringDictionary dictionary) {
+        int id = dictionary != null ? buf.getInt() : -1;
+        if (id < 0) {
+            if (id != -1) throw new IllegalArgumentException("Invalid destination id " + id);
+            return new String(readBytes(buf), StandardCharsets.UTF_8);
+        }
+        if (id >= dictionary.size()) throw new IllegalArgumentException("Invalid destination id " + id);
+        return dictionary.get(id);
+    }
+}
@@ -0,0 +1,680 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Columnar (struct of arrays) storage of the deliveries, used by the compact {@link DeliveryStore}
+ * (see {@link DeliveryStore#isCompact()}).
+ *
+ * <p>
+ * Every field is stored in a primitive array indexed by row: the UUIDs as pairs of longs, the date as epoch day,
+ * the state as ordinal and the destination as its id in the {@link StringDictionary} of the store (the same
+ * destination is stored only once).
+ * The insured value is stored as a long, the rare values that don't fit are kept aside as {@link Money}.
+ * The rows are found by code with an open addressing hash table, so a delivery takes a few tens of bytes instead
+ * of the hundreds used by a {@link Delivery} with its properties and map entries, and the scans over all of the
+ * deliveries only touch the columns they need.
+ * The rows are also indexed by state and by day, as buckets of row numbers: every row remembers its position in
+ * its buckets, so a row is added, removed, moved or changes state in constant time.
+ * </p>
+ *
+ * <p>
+ * The {@link Delivery} instances are only views created on demand by {@link #view(int)}: a view is reused as long
+ * as someone references it, so the state changes made through it can be written back to the columns
+ * ({@link #setState(int, DeliveryState)}).
+ * Only the rows with a live view have a (weak) reference, it's cleared once the view is collected.
+ * The rows are compact, removing a row moves the last one in its place.
+ * </p>
+ */
+final class DeliveryColumns {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final DeliveryState[] STATES = DeliveryState.values();
+    // Marks an insured value stored in bigInsured
+    private static final long BIG_VALUE = Long.MIN_VALUE;
+
+    private final DeliveryStore store;
+
+    /**
+     * Number of rows.
+     *
+     * @return The number of stored deliveries
+     */
+    @Getter
+    private int size;
+
+    private long[] codeHigh;
+    private long[] codeLow;
+    private long[] senderHigh;
+    private long[] senderLow;
+    private int[] day;
+    private int[] destination;
+    private double[] weight;
+    private byte[] state;
+    private byte[] type;
+    private long[] insured;
+    private ViewRef[] views;
+    private final ReferenceQueue<Delivery> collectedViews = new ReferenceQueue<>();
+    private final Map<UUID, Money> bigInsured = new HashMap<>();
+
+    private final StringDictionary strings;
+
+    // Code index: row + 1 of the delivery, 0 if the slot is empty (linear probing)
+    private int[] slots;
+
+    // State and day indexes, the position of every row in its buckets is kept in stateSlot and daySlot
+    // (null in a read-only copy)
+    private final RowBucket[] byState;
+    private final NavigableMap<Integer, RowBucket> byDay;
+    private int[] stateSlot;
+    private int[] daySlot;
+
+    DeliveryColumns(DeliveryStore store, StringDictionary strings, int capacity) {
+        this.store = store;
+        this.strings = strings;
+        capacity = Math.max(capacity, INITIAL_CAPACITY);
+        codeHigh = new long[capacity];
+        codeLow = new long[capacity];
+        senderHigh = new long[capacity];
+        senderLow = new long[capacity];
+        day = new int[capacity];
+        destination = new int[capacity];
+        weight = new double[capacity];
+        state = new byte[capacity];
+        type = new byte[capacity];
+        insured = new long[capacity];
+        views = new ViewRef[capacity];
+        slots = new int[Integer.highestOneBit(capacity) * 4];
+        byState = new RowBucket[STATES.length];
+        for (int i = 0; i < byState.length; i++) byState[i] = new RowBucket();
+        byDay = new TreeMap<>();
+        stateSlot = new int[capacity];
+        daySlot = new int[capacity];
+    }
+
+    // Read-only copy, see copy()
+    private DeliveryColumns(DeliveryColumns other) {
+        this.store = null;
+        this.size = other.size;
+        codeHigh = Arrays.copyOf(other.codeHigh, size);
+        codeLow = Arrays.copyOf(other.codeLow, size);
+        senderHigh = Arrays.copyOf(other.senderHigh, size);
+        senderLow = Arrays.copyOf(other.senderLow, size);
+        day = Arrays.copyOf(other.day, size);
+        destination = Arrays.copyOf(other.destination, size);
+        weight = Arrays.copyOf(other.weight, size);
+        state = Arrays.copyOf(other.state, size);
+        type = Arrays.copyOf(other.type, size);
+        insured = Arrays.copyOf(other.insured, size);
+        bigInsured.putAll(other.bigInsured);
+        strings = other.strings.copy();
+        byState = null;
+        byDay = null;
+    }
+
+    /**
+     * Copies the columns, the copy is read-only: it can only be decoded (ex. with {@link #forEachSender}),
+     * and it can be read from another thread.
+     *
+     * @return The copy
+     */
+    DeliveryColumns copy() {
+        return new DeliveryColumns(this);
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = codeHigh.length;
+        if (minCapacity <= capacity) return;
+        capacity = Math.max(minCapacity, capacity + (capacity >> 1));
+        codeHigh = Arrays.copyOf(codeHigh, capacity);
+        codeLow = Arrays.copyOf(codeLow, capacity);
+        senderHigh = Arrays.copyOf(senderHigh, capacity);
+        senderLow = Arrays.copyOf(senderLow, capacity);
+        day = Arrays.copyOf(day, capacity);
+        destination = Arrays.copyOf(destination, capacity);
+        weight = Arrays.copyOf(weight, capacity);
+        state = Arrays.copyOf(state, capacity);
+        type = Arrays.copyOf(type, capacity);
+        insured = Arrays.copyOf(insured, capacity);
+        views = Arrays.copyOf(views, capacity);
+        stateSlot = Arrays.copyOf(stateSlot, capacity);
+        daySlot = Arrays.copyOf(daySlot, capacity);
+    }
+
+    // Index
+
+    private static int hash(long high, long low) {
+        long h = (high ^ low) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slotOf(long high, long low) {
+        int mask = slots.length - 1;
+        int slot = hash(high, low) & mask;
+        while (slots[slot] != 0) {
+            int row = slots[slot] - 1;
+            if (codeHigh[row] == high && codeLow[row] == low) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int row = 0; row < size; row++) {
+            slots[slotOf(codeHigh[row], codeLow[row])] = row + 1;
+        }
+    }
+
+    private void deleteSlot(int slot) {
+        // Backward shift deletion, the following entries of the cluster are moved to fill the hole
+        int mask = slots.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (slots[next] != 0) {
+            int row = slots[next] - 1;
+            int home = hash(codeHigh[row], codeLow[row]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = 0;
+    }
+
+    /**
+     * Finds the row of the delivery.
+     *
+     * @param code The delivery code
+     * @return The row, or -1 if the delivery is not stored
+     */
+    int find(UUID code) {
+        int entry = slots[slotOf(code.getMostSignificantBits(), code.getLeastSignificantBits())];
+        return entry - 1;
+    }
+
+    // Mutations
+
+    /**
+     * Appends the delivery.
+     *
+     * @param delivery The delivery to add
+     * @param keepView If true the delivery becomes the view of its row, otherwise it's only copied
+     * @return The row of the delivery, or -1 if a delivery with the same code is already stored
+     */
+    int add(Delivery delivery, boolean keepView) {
+        clearCollectedViews();
+        var code = delivery.getCode();
+        int slot = slotOf(code.getMostSignificantBits(), code.getLeastSignificantBits());
+        if (slots[slot] != 0) return -1;
+
+        grow(size + 1);
+        int row = size++;
+        codeHigh[row] = code.getMostSignificantBits();
+        codeLow[row] = code.getLeastSignificantBits();
+        senderHigh[row] = delivery.getSender().getMostSignificantBits();
+        senderLow[row] = delivery.getSender().getLeastSignificantBits();
+        day[row] = Math.toIntExact(delivery.getDate().toEpochDay());
+        destination[row] = strings.id(delivery.getDestination());
+        weight[row] = delivery.getWeight();
+        state[row] = (byte) delivery.getState().ordinal();
+        if (delivery instanceof InsuredDelivery) {
+            type[row] = DeliveryCodec.TYPE_INSURED;
+            var value = ((InsuredDelivery) delivery).getInsuredValue();
+            if (value.isLong() && value.getCents() != BIG_VALUE) {
+                insured[row] = value.getCents();
+            } else {
+                insured[row] = BIG_VALUE;
+                bigInsured.put(code, value);
+            }
+        } else {
+            type[row] = DeliveryCodec.TYPE_STANDARD;
+            insured[row] = 0;
+        }
+        views[row] = keepView ? new ViewRef(delivery) : null;
+
+        slots[slot] = row + 1;
+        if (size * 2 > slots.length) rehash(slots.length * 2);
+        indexRow(row);
+        return row;
+    }
+
+    private void move(int from, int to) {
+        codeHigh[to] = codeHigh[from];
+        codeLow[to] = codeLow[from];
+        senderHigh[to] = senderHigh[from];
+        senderLow[to] = senderLow[from];
+        day[to] = day[from];
+        destination[to] = destination[from];
+        weight[to] = weight[from];
+        state[to] = state[from];
+        type[to] = type[from];
+        insured[to] = insured[from];
+        views[to] = views[from];
+    }
+
+    /**
+     * Removes the row, the last row is moved in its place.
+     *
+     * @param row The row to remove
+     */
+    void remove(int row) {
+        deleteSlot(slotOf(codeHigh[row], codeLow[row]));
+        if (insured[row] == BIG_VALUE && type[row] == DeliveryCodec.TYPE_INSURED) bigInsured.remove(code(row));
+        unindexRow(row);
+
+        int last = --size;
+        if (row != last) {
+            move(last, row);
+            slots[slotOf(codeHigh[row], codeLow[row])] = row + 1;
+            // The last row is renamed in its buckets
+            byState[state[row]].rows[stateSlot[last]] = row;
+            stateSlot[row] = stateSlot[last];
+            byDay.get(day[row]).rows[daySlot[last]] = row;
+            daySlot[row] = daySlot[last];
+        }
+        views[last] = null;
+    }
+
+    /**
+     * Removes the rows keeping the order of the others, the rows are shifted once and the code index is rebuilt.
+     *
+     * @param rows The rows to remove, in ascending order and without duplicates
+     * @param count The number of rows to remove
+     */
+    void removeAll(int[] rows, int count) {
+        if (count == 0) return;
+        int write = rows[0];
+        int next = 0;
+        for (int row = rows[0]; row < size; row++) {
+            if (next < count && rows[next] == row) {
+                if (insured[row] == BIG_VALUE && type[row] == DeliveryCodec.TYPE_INSURED) bigInsured.remove(code(row));
+                next++;
+            } else {
+                move(row, write++);
+            }
+        }
+        Arrays.fill(views, write, size, null);
+        size = write;
+        rehash(slots.length);
+        reindex();
+    }
+
+    /**
+     * Reorders the rows.
+     *
+     * @param order The old row of every new row (a permutation of the rows)
+     */
+    void permute(int[] order) {
+        if (order.length != size) throw new IllegalArgumentException("Not a permutation of the rows");
+        codeHigh = reorder(codeHigh, order);
+        codeLow = reorder(codeLow, order);
+        senderHigh = reorder(senderHigh, order);
+        senderLow = reorder(senderLow, order);
+        day = reorder(day, order);
+        destination = reorder(destination, order);
+        weight = reorder(weight, order);
+        state = reorder(state, order);
+        type = reorder(type, order);
+        insured = reorder(insured, order);
+        var newViews = new ViewRef[views.length];
+        for (int row = 0; row < order.length; row++) newViews[row] = views[order[row]];
+        views = newViews;
+        rehash(slots.length);
+        reindex();
+    }
+
+    private static long[] reorder(long[] column, int[] order) {
+        var res = new long[column.length];
+        for (int row = 0; row < order.length; row++) res[row] = column[order[row]];
+        return res;
+    }
+
+    private static int[] reorder(int[] column, int[] order) {
+        var res = new int[column.length];
+        for (int row = 0; row < order.length; row++) res[row] = column[order[row]];
+        return res;
+    }
+
+    private static double[] reorder(double[] column, int[] order) {
+        var res = new double[column.length];
+        for (int row = 0; row < order.length; row++) res[row] = column[order[row]];
+        return res;
+    }
+
+    private static byte[] reorder(byte[] column, int[] order) {
+        var res = new byte[column.length];
+        for (int row = 0; row < order.length; row++) res[row] = column[order[row]];
+        return res;
+    }
+
+    /**
+     * Changes the state of the row (the view is not updated).
+     *
+     * @param row The row
+     * @param newState The new state
+     */
+    void setState(int row, DeliveryState newState) {
+        byState[state[row]].remove(row, stateSlot);
+        state[row] = (byte) newState.ordinal();
+        byState[state[row]].add(row, stateSlot);
+    }
+
+    // Row indexes
+
+    private void indexRow(int row) {
+        byState[state[row]].add(row, stateSlot);
+        byDay.computeIfAbsent(day[row], x -> new RowBucket()).add(row, daySlot);
+    }
+
+    private void unindexRow(int row) {
+        byState[state[row]].remove(row, stateSlot);
+        var bucket = byDay.get(day[row]);
+        bucket.remove(row, daySlot);
+        if (bucket.size == 0) byDay.remove(day[row]);
+    }
+
+    // Rebuilds the indexes after the rows have been shifted or reordered
+    private void reindex() {
+        for (var bucket : byState) bucket.size = 0;
+        byDay.clear();
+        for (int row = 0; row < size; row++) indexRow(row);
+    }
+
+    /**
+     * Counts the rows in the state, in constant time.
+     *
+     * @param state The state
+     * @return The number of rows in that state
+     */
+    int countInState(DeliveryState state) {
+        return byState[state.ordinal()].size;
+    }
+
+    /**
+     * The rows in the state, in no particular order.
+     *
+     * @param state The state
+     * @return A copy of the rows in that state
+     */
+    int[] rowsInState(DeliveryState state) {
+        var bucket = byState[state.ordinal()];
+        return Arrays.copyOf(bucket.rows, bucket.size);
+    }
+
+    /**
+     * Counts the rows dated in a range of days, in time proportional to the number of distinct days in the range.
+     *
+     * @param first The first epoch day (inclusive)
+     * @param last The last epoch day (exclusive)
+     * @return The number of rows in the range
+     */
+    int countInDays(long first, long last) {
+        int res = 0;
+        for (var bucket : daysBetween(first, last).values()) res += bucket.size;
+        return res;
+    }
+
+    /**
+     * The rows dated in a range of days, sorted by day.
+     *
+     * @param first The first epoch day (inclusive)
+     * @param last The last epoch day (exclusive)
+     * @return A copy of the rows in the range
+     */
+    int[] rowsInDays(long first, long last) {
+        var days = daysBetween(first, last).values();
+        int count = 0;
+        for (var bucket : days) count += bucket.size;
+        var res = new int[count];
+        int next = 0;
+        for (var bucket : days) {
+            System.arraycopy(bucket.rows, 0, res, next, bucket.size);
+            next += bucket.size;
+        }
+        return res;
+    }
+
+    private NavigableMap<Integer, RowBucket> daysBetween(long first, long last) {
+        // The stored days are ints, clamp the unbounded ranges
+        int from = (int) Math.max(first, Integer.MIN_VALUE);
+        int to = (int) Math.min(last, Integer.MAX_VALUE);
+        return from < to ? byDay.subMap(from, true, to, false) : Collections.emptyNavigableMap();
+    }
+
+    // Accessors
+
+    UUID code(int row) {
+        return new UUID(codeHigh[row], codeLow[row]);
+    }
+
+    boolean isSender(int row, UUID sender) {
+        return senderHigh[row] == sender.getMostSignificantBits() && senderLow[row] == sender.getLeastSignificantBits();
+    }
+
+    long epochDay(int row) {
+        return day[row];
+    }
+
+    DeliveryState state(int row) {
+        return STATES[state[row]];
+    }
+
+    double weight(int row) {
+        return weight[row];
+    }
+
+    boolean isInsured(int row) {
+        return type[row] == DeliveryCodec.TYPE_INSURED;
+    }
+
+    int destinationId(int row) {
+        return destination[row];
+    }
+
+    String destination(int row) {
+        return strings.get(destination[row]);
+    }
+
+    /**
+     * The dictionary of the destinations (of a copy, it's the copy of the dictionary of the store).
+     *
+     * @return The dictionary
+     */
+    StringDictionary getStrings() {
+        return strings;
+    }
+
+    /**
+     * Drops the destinations no row uses anymore from the dictionary (see {@link StringDictionary#retain}),
+     * renumbering the destination column.
+     *
+     * @return The number of dropped destinations
+     */
+    int dropUnusedStrings() {
+        var used = new boolean[strings.size()];
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            if (!used[destination[row]]) {
+                used[destination[row]] = true;
+                count++;
+            }
+        }
+        if (count == used.length) return 0;
+        var remap = strings.retain(used);
+        for (int row = 0; row < size; row++) destination[row] = remap[destination[row]];
+        return used.length - count;
+    }
+
+    /**
+     * Tests every distinct destination once.
+     *
+     * @param predicate The test
+     * @return The result of the test for every destination id, see {@link #destinationId(int)}
+     */
+    boolean[] testDestinations(Predicate<String> predicate) {
+        var res = new boolean[strings.size()];
+        for (int id = 0; id < res.length; id++) {
+            res[id] = predicate.test(strings.get(id));
+        }
+        return res;
+    }
+
+    /**
+     * Checks if the delivery is in a final state without creating its view, see {@link Delivery#isInFinalState()}
+     * and {@link InsuredDelivery#isInFinalState()}.
+     *
+     * @param row The row
+     * @return true if the delivery state is final
+     */
+    boolean isInFinalState(int row) {
+        var current = state(row);
+        if (type[row] == DeliveryCodec.TYPE_INSURED) {
+            return current == DeliveryState.RECEIVED || current == DeliveryState.REFUND_PAID;
+        }
+        return current == DeliveryState.RECEIVED || current == DeliveryState.FAILED;
+    }
+
+    /**
+     * Returns the delivery stored in the row, reusing its view if it's still referenced.
+     *
+     * @param row The row
+     * @return The delivery
+     */
+    Delivery view(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        var ref = views[row];
+        var view = ref != null ? ref.get() : null;
+        if (view != null) return view;
+
+        view = decode(row);
+        view.store = store;
+        clearCollectedViews();
+        views[row] = new ViewRef(view);
+        return view;
+    }
+
+    private Delivery decode(int row) {
+        var code = code(row);
+        var sender = new UUID(senderHigh[row], senderLow[row]);
+        var date = LocalDate.ofEpochDay(day[row]);
+        var dest = strings.get(destination[row]);
+        if (type[row] == DeliveryCodec.TYPE_INSURED) {
+            var value = insured[row] == BIG_VALUE ? bigInsured.get(code) : Money.ofCents(insured[row]);
+            return new InsuredDelivery(code, sender, date, dest, weight[row], value, state(row));
+        }
+        return new Delivery(code, sender, date, dest, weight[row], state(row));
+    }
+
+    /**
+     * Decodes the deliveries one sender at a time, the decoded instances are not views (use it on a
+     * {@link #copy()}).
+     *
+     * @param consumer Called with every sender and its deliveries
+     * @throws IOException if thrown by the consumer
+     */
+    void forEachSender(GroupConsumer consumer) throws IOException {
+        // Counting sort of the rows by sender group, in order of first appearance
+        var groups = new HashMap<UUID, Integer>();
+        var groupOf = new int[size];
+        var counts = new ArrayList<Integer>();
+        for (int row = 0; row < size; row++) {
+            var sender = new UUID(senderHigh[row], senderLow[row]);
+            int group = groups.computeIfAbsent(sender, x -> groups.size());
+            if (group == counts.size()) counts.add(0);
+            counts.set(group, counts.get(group) + 1);
+            groupOf[row] = group;
+        }
+        var start = new int[counts.size() + 1];
+        for (int group = 0; group < counts.size(); group++) {
+            start[group + 1] = start[group] + counts.get(group);
+        }
+        var rows = new int[size];
+        var next = Arrays.copyOf(start, counts.size());
+        for (int row = 0; row < size; row++) {
+            rows[next[groupOf[row]]++] = row;
+        }
+
+        for (int group = 0; group < counts.size(); group++) {
+            var deliveries = new ArrayList<Delivery>(counts.get(group));
+            for (int i = start[group]; i < start[group + 1]; i++) {
+                deliveries.add(decode(rows[i]));
+            }
+            consumer.accept(deliveries.get(0).getSender(), deliveries);
+        }
+    }
+
+    /**
+     * Receives the deliveries of a sender, see {@link #forEachSender(GroupConsumer)}.
+     */
+    @FunctionalInterface
+    interface GroupConsumer {
+        /**
+         * Receives a sender group.
+         *
+         * @param sender The sender
+         * @param deliveries Its deliveries
+         * @throws IOException when the group cannot be consumed
+         */
+        void accept(UUID sender, List<Delivery> deliveries) throws IOException;
+    }
+
+    private void clearCollectedViews() {
+        ViewRef ref;
+        while ((ref = (ViewRef) collectedViews.poll()) != null) {
+            int row = slots[slotOf(ref.codeHigh, ref.codeLow)] - 1;
+            if (row >= 0 && views[row] == ref) views[row] = null;
+        }
+    }
+
+    /**
+     * The rows of a state or of a day, unordered: a row is removed by moving the last one in its place.
+     */
+    private static final class RowBucket {
+        private int[] rows = new int[8];
+        private int size;
+
+        // The position of every row in its bucket is kept in slotOf
+        private void add(int row, int[] slotOf) {
+            if (size == rows.length) rows = Arrays.copyOf(rows, size * 2);
+            slotOf[row] = size;
+            rows[size++] = row;
+        }
+
+        private void remove(int row, int[] slotOf) {
+            int slot = slotOf[row];
+            int moved = rows[--size];
+            rows[slot] = moved;
+            slotOf[moved] = slot;
+        }
+    }
+
+    /**
+     * Weak reference to a view, it remembers the code so that its row can be found (the rows move).
+     */
+    private final class ViewRef extends WeakReference<Delivery> {
+        private final long codeHigh;
+        private final long codeLow;
+
+        private ViewRef(Delivery view) {
+            super(view, collectedViews);
+            this.codeHigh = view.getCode().getMostSignificantBits();
+            this.codeLow = view.getCode().getLeastSignificantBits();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.Value;
+
+import java.util.UUID;
+
+/**
+ * A change of a {@link DeliveryStore}, published by {@link DeliveryStore#events()}.
+ *
+ * <p>
+ * The event only holds immutable data (the deliveries are bound to the JavaFX thread), use
+ * {@link DeliveryStore#getById(UUID)} from the JavaFX thread to access the delivery itself.
+ * </p>
+ */
+@Value
+public class DeliveryEvent {
+    /**
+     * The kind of change.
+     */
+    public enum Type {
+        /**
+         * The delivery has been added, only the new state is set.
+         */
+        ADDED,
+        /**
+         * The delivery has been removed, only the old state is set.
+         */
+        REMOVED,
+        /**
+         * The state of the delivery changed, both the states are set.
+         */
+        STATE_CHANGED
+    }
+
+    /**
+     * The position of the event in the stream, it's incremented by one for every change of the store.
+     */
+    long sequence;
+    /**
+     * The kind of change.
+     */
+    Type type;
+    /**
+     * The code of the changed delivery.
+     */
+    UUID code;
+    /**
+     * The sender of the changed delivery.
+     */
+    UUID sender;
+    /**
+     * The state before the change (null if the delivery has been added).
+     */
+    DeliveryState oldState;
+    /**
+     * The state after the change (null if the delivery has been removed).
+     */
+    DeliveryState newState;
+}
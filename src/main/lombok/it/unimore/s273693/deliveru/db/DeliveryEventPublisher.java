@@ -0,0 +1,138 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ * Publishes the changes of a {@link DeliveryStore} as a stream of {@link DeliveryEvent} batches.
+ *
+ * <p>
+ * The store thread only appends the events to a pending batch, a single background thread hands the batches to a
+ * {@link SubmissionPublisher}. When a subscriber is slow its buffer fills up and the background thread waits, so
+ * the events keep accumulating in the pending batch: the mutations are never blocked, the subscribers receive
+ * fewer bigger batches and the events are never dropped.
+ * The events are numbered when they happen (see {@link DeliveryEvent#getSequence()}) and delivered in order.
+ * </p>
+ *
+ * <p>
+ * No event is built while there are no subscribers (the sequence is incremented anyway).
+ * The store thread never calls the {@link SubmissionPublisher} while publishing, some of its methods wait for a
+ * running submission.
+ * </p>
+ */
+final class DeliveryEventPublisher implements DeliveryStoreListener, Flow.Publisher<List<DeliveryEvent>> {
+    private static final Logger logger = LogManager.getLogger(DeliveryEventPublisher.class);
+    // Batches buffered for each subscriber before the publisher waits for it
+    private static final int BUFFER_CAPACITY = 64;
+
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "delivery-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final SubmissionPublisher<List<DeliveryEvent>> publisher =
+            new SubmissionPublisher<>(ForkJoinPool.commonPool(), BUFFER_CAPACITY);
+
+    // The following fields are guarded by this
+    private long sequence;
+    // Events not handed to the publisher yet
+    private List<DeliveryEvent> pending = new ArrayList<>();
+    // A submission of the pending events is queued (the events added meanwhile will be part of it)
+    private boolean scheduled;
+    // There could be subscribers, the publisher is only checked by the flusher (the check waits for a submission)
+    private boolean subscribed;
+    private boolean closed;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super List<DeliveryEvent>> subscriber) {
+        publisher.subscribe(subscriber);
+        synchronized (this) {
+            subscribed = true;
+        }
+    }
+
+    @Override
+    public void onAdded(Delivery delivery) {
+        publish(DeliveryEvent.Type.ADDED, delivery, null, delivery.getState());
+        flush();
+    }
+
+    @Override
+    public void onRemoved(Delivery delivery) {
+        publish(DeliveryEvent.Type.REMOVED, delivery, delivery.getState(), null);
+        flush();
+    }
+
+    @Override
+    public void onAddedAll(List<Delivery> deliveries) {
+        for (var delivery : deliveries) publish(DeliveryEvent.Type.ADDED, delivery, null, delivery.getState());
+        flush();
+    }
+
+    @Override
+    public void onRemovedAll(List<Delivery> deliveries) {
+        for (var delivery : deliveries) publish(DeliveryEvent.Type.REMOVED, delivery, delivery.getState(), null);
+        flush();
+    }
+
+    @Override
+    public void onStateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+        publish(DeliveryEvent.Type.STATE_CHANGED, delivery, oldState, newState);
+        flush();
+    }
+
+    private synchronized void publish(DeliveryEvent.Type type, Delivery delivery, DeliveryState oldState,
+                                      DeliveryState newState) {
+        sequence++;
+        if (!subscribed) return;
+        pending.add(new DeliveryEvent(sequence, type, delivery.getCode(), delivery.getSender(), oldState, newState));
+    }
+
+    // Schedules the submission of the pending batch, unless one is already waiting to be submitted
+    private synchronized void flush() {
+        if (pending.isEmpty() || scheduled || closed) return;
+        scheduled = true;
+        flusher.execute(this::submitPending);
+    }
+
+    private void submitPending() {
+        List<DeliveryEvent> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            scheduled = false;
+        }
+        if (batch.isEmpty()) return;
+        try {
+            // Waits while a subscriber buffer is full
+            publisher.submit(Collections.unmodifiableList(batch));
+        } catch (IllegalStateException e) {
+            logger.debug("Event publisher closed, dropping {} events", batch.size());
+        }
+        synchronized (this) {
+            if (!publisher.hasSubscribers()) subscribed = false;
+        }
+    }
+
+    /**
+     * Completes the subscriptions after the pending events are delivered.
+     */
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        flusher.execute(() -> {
+            submitPending();
+            publisher.close();
+        });
+        flusher.shutdown();
+    }
+}
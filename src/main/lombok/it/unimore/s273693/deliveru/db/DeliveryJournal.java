@@ -0,0 +1,551 @@
+package it.unimore.s273693.deliveru.db;
+
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the mutations applied to a {@link DeliveryStore}.
+ *
+ * <p>
+ * Every addition, removal and state transition is appended to the file as a checksummed record, this way
+ * the changes reach the disk with O(1) work and the (expensive) snapshot only needs to be rewritten once in a while.
+ * The journal is opened with {@link #open(File, DeliveryStore)}, that also replays it on top of the last snapshot
+ * reading one record at a time.
+ * </p>
+ *
+ * <p>
+ * The file starts with a header {@code [int magic][int version][long generation]} followed by records in the form
+ * {@code [int length][byte type][payload][int crc32]}, the length covers the type and the payload and the
+ * CRC32 is computed on the same bytes.
+ * A truncated record or one with a wrong checksum marks the end of the valid journal and everything after it
+ * is discarded, this is what happens when the program crashes in the middle of a write.
+ * The generation is the one of the snapshot the records apply to (see {@link DeliveryStore.Snapshot}), so that the
+ * journal is not replayed on an older snapshot (ex. the previous generation of the file, used when the last one
+ * is corrupted): it would miss the changes trimmed from the journal when the newer snapshot was saved.
+ * </p>
+ *
+ * <p>
+ * The replay is idempotent: if the program crashes after the snapshot is saved but before the journal is reset
+ * the deliveries are not added twice and the state transitions are only applied if the delivery is still in
+ * the recorded previous state.
+ * The records also contain the sender of the delivery, so that a lazy store only needs to load the deliveries
+ * of the senders that appear in the journal.
+ * </p>
+ *
+ * <p>
+ * The records are only encoded in memory by the thread that mutates the store, {@link #sync()} (called by the
+ * persistence thread) writes them to the file and forces them to the storage device: the changes made after the
+ * last save are lost on a crash, as with every other storage mode.
+ * </p>
+ */
+public class DeliveryJournal implements DeliveryStoreListener, Closeable {
+    private static final Logger logger = LogManager.getLogger(DeliveryJournal.class);
+
+    private static final int MAGIC = 0x444c564a; // "DLVJ"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 12;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    // Under this size the replay is so cheap that rewriting the whole snapshot is not worth it
+    private static final long MIN_COMPACTION_RECORDS = 1024;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 4;
+    private static final byte RECORD_STATE = 5;
+
+    private final File file;
+    private FileChannel channel;
+    // The records appended since the last write, it grows as needed and shrinks back once written
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    // Incremented every time the journal is cleared, so that a concurrent discardBefore can notice it
+    private long clears = 0;
+
+    /**
+     * The generation of the snapshot the records apply to (0 if unknown).
+     *
+     * @return The snapshot generation
+     */
+    @Getter
+    private long generation;
+
+    /**
+     * Number of records written after the last reset.
+     *
+     * @return The record count
+     */
+    @Getter
+    private long recordCount;
+
+    /**
+     * True if a write failed, in that case the journal cannot be trusted anymore and a snapshot is required.
+     *
+     * @return true if the journal is broken
+     */
+    @Getter
+    private boolean broken = false;
+
+    private DeliveryJournal(File file, FileChannel channel, long generation, long recordCount) {
+        this.file = file;
+        this.channel = channel;
+        this.generation = generation;
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * Opens (or creates) the journal file and replays its records on the provided store.
+     * The torn tail left by a crash, if any, is truncated.
+     * The generation is not checked, use {@link #readGeneration(File)} before opening it.
+     *
+     * @param file The journal file
+     * @param store The store on which the records will be replayed
+     * @return The opened journal, ready to be registered as a listener
+     * @throws IOException when an error occurs while reading or writing the file
+     */
+    public static DeliveryJournal open(File file, DeliveryStore store) throws IOException {
+        file.getParentFile().mkdirs();
+        var channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            var reader = new RecordReader(channel);
+            if (!reader.fill(0, HEADER_SIZE) || !readHeader(reader.buf)) {
+                if (size > 0) logger.error("Invalid journal header, discarding {} bytes", size);
+                long generation = store.getSnapshotGeneration();
+                writeHeader(channel, generation);
+                return new DeliveryJournal(file, channel, generation, 0);
+            }
+            long generation = reader.buf.getLong(HEADER_SIZE - 8);
+
+            long count = replay(reader, store);
+            if (reader.end < size) {
+                logger.warn("Truncating {} bytes of corrupted journal tail", size - reader.end);
+                channel.truncate(reader.end);
+            }
+            channel.position(reader.end);
+            logger.info("Replayed {} journal records", count);
+            return new DeliveryJournal(file, channel, generation, count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the generation of the snapshot the records of the journal apply to, without replaying it.
+     *
+     * @param file The journal file
+     * @return The generation, 0 if the journal is missing or invalid
+     * @throws IOException when an error occurs while reading
+     */
+    static long readGeneration(File file) throws IOException {
+        if (!file.exists()) return 0;
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading
+            }
+            header.flip();
+            return readHeader(header) ? header.getLong(HEADER_SIZE - 8) : 0;
+        }
+    }
+
+    // Checks the header, leaving the buffer position after it, returns false if it's invalid
+    private static boolean readHeader(ByteBuffer data) {
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.getInt() != VERSION) return false;
+        data.getLong();
+        return true;
+    }
+
+    private static void writeHeader(FileChannel channel, long generation) throws IOException {
+        channel.truncate(0);
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+        while (header.hasRemaining()) channel.write(header, header.position());
+        channel.position(HEADER_SIZE);
+        channel.force(false);
+    }
+
+    /**
+     * Replays every valid record after the header, leaving the reader end right after the last one.
+     *
+     * @param reader Reads the journal file
+     * @param store The store to apply the records to
+     * @return The number of valid records
+     * @throws IOException when an error occurs while reading
+     */
+    private static long replay(RecordReader reader, DeliveryStore store) throws IOException {
+        var crc = new CRC32();
+        long count = 0;
+
+        for (long position = HEADER_SIZE; reader.fill(position, 4); position = reader.end) {
+            int length = reader.buf.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || !reader.fill(position, 4 + length + 4)) break;
+
+            var record = reader.buf.slice();
+            record.position(4).limit(4 + length);
+            record = record.slice();
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != reader.buf.getInt(reader.buf.position() + 4 + length)) break;
+
+            try {
+                apply(record, store);
+            } catch (IllegalArgumentException | IllegalStateException | BufferUnderflowException
+                    | IndexOutOfBoundsException e) {
+                logger.warn("Skipping journal record at {}", position, e);
+            }
+            reader.end = position + 4 + length + 4;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the journal file in chunks, the buffer only grows to fit the biggest record.
+     */
+    private static final class RecordReader {
+        private final FileChannel channel;
+        // Holds the file content starting at bufStart, positioned at the last requested position
+        private ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE).limit(0);
+        private long bufStart = 0;
+        // The end of the last valid record
+        private long end = HEADER_SIZE;
+
+        private RecordReader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Makes the n bytes at the file position available in the buffer, starting at its position.
+         *
+         * @return false if the file ends before
+         */
+        private boolean fill(long position, int n) throws IOException {
+            if (position < bufStart) throw new IllegalArgumentException("Cannot read backwards");
+            if (position + n > bufStart + buf.limit()) {
+                buf.position((int) Math.min(position - bufStart, buf.limit()));
+                buf.compact();
+                bufStart = position;
+                if (buf.capacity() < n) {
+                    var bigger = ByteBuffer.allocate(Math.max(n, 2 * buf.capacity()));
+                    bigger.put(buf.flip());
+                    buf = bigger;
+                }
+                while (buf.position() < n && channel.read(buf, bufStart + buf.position()) >= 0) {
+                    // Keep reading
+                }
+                buf.flip();
+                if (buf.limit() < n) return false;
+            }
+            buf.position((int) (position - bufStart));
+            return true;
+        }
+    }
+
+    private static void apply(ByteBuffer record, DeliveryStore store) {
+        byte type = record.get();
+        switch (type) {
+            case RECORD_ADD: {
+                var delivery = DeliveryCodec.read(record);
+                store.materialize(delivery.getSender());
+                if (store.getLoaded(delivery.getCode()) == null) store.add(delivery);
+                break;
+            }
+            case RECORD_REMOVE: {
+                var code = DeliveryCodec.readUuid(record);
+                store.materialize(DeliveryCodec.readUuid(record));
+                var delivery = store.getLoaded(code);
+                if (delivery != null) store.remove(delivery);
+                break;
+            }
+            case RECORD_STATE: {
+                var code = DeliveryCodec.readUuid(record);
+                store.materialize(DeliveryCodec.readUuid(record));
+                applyState(store.getLoaded(code), record);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown journal record type: " + type);
+        }
+    }
+
+    private static void applyState(Delivery delivery, ByteBuffer record) {
+        var oldState = DeliveryCodec.readState(record);
+        var newState = DeliveryCodec.readState(record);
+        if (delivery != null && delivery.getState() == oldState) delivery.setState(newState);
+    }
+
+    /**
+     * Encodes a record at the end of the pending buffer, it's written to the file by the next {@link #sync()}.
+     *
+     * @param type The record type
+     * @param payload Writes the payload in the buffer
+     */
+    private synchronized void append(byte type, Consumer<ByteBuffer> payload) {
+        if (broken) return;
+
+        int start = pending.position();
+        while (true) {
+            try {
+                pending.position(start + 4);
+                pending.put(type);
+                payload.accept(pending);
+                int length = pending.position() - start - 4;
+                if (length > MAX_RECORD_SIZE) throw new IllegalArgumentException("Record too big: " + length);
+                pending.putInt(start, length);
+                crc.reset();
+                crc.update(pending.array(), start + 4, length);
+                pending.putInt((int) crc.getValue());
+                recordCount++;
+                return;
+            } catch (BufferOverflowException e) {
+                var bigger = ByteBuffer.allocate(pending.capacity() * 2);
+                bigger.put(pending.array(), 0, start);
+                pending = bigger;
+            } catch (IllegalArgumentException e) {
+                pending.position(start);
+                logger.error("Failed to append to the deliveries journal, a full save is required", e);
+                broken = true;
+                return;
+            }
+        }
+    }
+
+    // Writes the pending records to the file, a failed write leaves a torn tail so a full save is required
+    private void writePending() throws IOException {
+        if (pending.position() == 0) return;
+        pending.flip();
+        try {
+            while (pending.hasRemaining()) channel.write(pending);
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        } finally {
+            discardPending();
+        }
+    }
+
+    private void discardPending() {
+        if (pending.capacity() > INITIAL_BUFFER_SIZE) {
+            pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        } else {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Returns true when the snapshot should be rewritten (and the journal reset).
+     * This happens when the journal is broken or when it grew too much compared to the store.
+     *
+     * @param storeSize The number of deliveries in the store
+     * @return true if a new snapshot should be saved
+     */
+    public synchronized boolean shouldCompact(long storeSize) {
+        return broken || recordCount > Math.max(MIN_COMPACTION_RECORDS, storeSize / 2);
+    }
+
+    /**
+     * Marks the current end of the journal, call it when the deliveries for a new snapshot are collected.
+     * If the journal is broken it's cleared right away, so that the changes made while the snapshot is being
+     * written are recorded again.
+     *
+     * @return The current end of the journal
+     * @see #discardBefore(Mark, long)
+     */
+    public synchronized Mark mark() {
+        try {
+            if (broken) {
+                discardPending();
+                channel.truncate(HEADER_SIZE);
+                channel.position(HEADER_SIZE);
+                recordCount = 0;
+                broken = false;
+                clears++;
+            }
+            // The pending records will be written right after the ones already in the file
+            return new Mark(channel.position() + pending.position(), recordCount);
+        } catch (IOException e) {
+            logger.error("Failed to mark the deliveries journal", e);
+            broken = true;
+            return null;
+        }
+    }
+
+    /**
+     * Drops the records written before the mark, call it only after the snapshot collected at the mark has been
+     * successfully saved.
+     * The records written after the mark are kept (the replay is idempotent, so they can overlap the snapshot).
+     *
+     * <p>
+     * The kept records are copied in a new journal that is synced and then renamed over the old one, so a crash
+     * leaves either the old journal or the new one: rewriting the file in place could leave the new records
+     * followed by older ones that would be replayed after them.
+     * The copy and the syncs are done without holding the journal lock, so the records can be appended (from the
+     * UI thread) in the meantime: only the records appended during the copy are written under the lock.
+     * </p>
+     *
+     * @param mark The value returned by {@link #mark()}
+     * @param generation The generation of the saved snapshot
+     * @throws IOException when an error occurs while writing
+     */
+    public void discardBefore(Mark mark, long generation) throws IOException {
+        if (mark == null) return;
+        FileChannel source;
+        long end;
+        long clearsAtStart;
+        synchronized (this) {
+            writePending();
+            source = channel;
+            end = channel.position();
+            clearsAtStart = clears;
+            if (mark.position < HEADER_SIZE || mark.position > end) {
+                throw new IllegalArgumentException("Invalid journal mark " + mark.position);
+            }
+        }
+
+        var tmp = new File(file.getPath() + ".tmp");
+        var target = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            writeHeader(target, generation);
+            copy(source, mark.position, end, target);
+            target.force(false);
+            synchronized (this) {
+                if (channel != source || clears != clearsAtStart) {
+                    // Already cleared (or replaced), the records before the mark are gone anyway
+                    target.close();
+                    Files.delete(tmp.toPath());
+                    return;
+                }
+                writePending();
+                copy(source, end, channel.position(), target);
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                channel = target;
+                this.generation = generation;
+                recordCount -= mark.recordCount;
+            }
+        } catch (IOException | RuntimeException e) {
+            target.close();
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        source.close();
+        AtomicFile.syncDirectory(file.getParentFile());
+        sync();
+    }
+
+    // Appends the bytes of the source between the two positions to the target
+    private static void copy(FileChannel source, long from, long to, FileChannel target) throws IOException {
+        while (from < to) {
+            from += source.transferTo(from, to - from, target);
+        }
+    }
+
+    /**
+     * Writes the pending records and forces them to the storage device, call it from the persistence thread.
+     * The lock is not held while syncing, so the records can still be appended in the meantime.
+     *
+     * @throws IOException when an error occurs while writing or syncing
+     */
+    public void sync() throws IOException {
+        FileChannel synced;
+        synchronized (this) {
+            writePending();
+            synced = channel;
+        }
+        while (true) {
+            try {
+                synced.force(false);
+            } catch (ClosedChannelException e) {
+                // Only expected if the journal was replaced in the meantime, in that case the new one is synced
+                synchronized (this) {
+                    if (channel == synced) throw e;
+                }
+            }
+            synchronized (this) {
+                if (channel == synced) return;
+                synced = channel;
+            }
+        }
+    }
+
+    /**
+     * Clears the journal, call it only after a new snapshot has been successfully saved.
+     *
+     * @throws IOException when an error occurs while writing
+     */
+    public synchronized void reset() throws IOException {
+        discardPending();
+        writeHeader(channel, generation);
+        recordCount = 0;
+        broken = false;
+        clears++;
+    }
+
+    /**
+     * Writes the pending records (without syncing them) and closes the file.
+     *
+     * @throws IOException when an error occurs while writing
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (!broken) writePending();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Position in the journal, see {@link #mark()}.
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    public static final class Mark {
+        private final long position;
+        private final long recordCount;
+    }
+
+    @Override
+    public void onAdded(Delivery delivery) {
+        append(RECORD_ADD, buf -> DeliveryCodec.write(buf, delivery));
+    }
+
+    @Override
+    public void onRemoved(Delivery delivery) {
+        append(RECORD_REMOVE, buf -> {
+            DeliveryCodec.writeUuid(buf, delivery.getCode());
+            DeliveryCodec.writeUuid(buf, delivery.getSender());
+        });
+    }
+
+    @Override
+    public void onStateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+        append(RECORD_STATE, buf -> {
+            DeliveryCodec.writeUuid(buf, delivery.getCode());
+            DeliveryCodec.writeUuid(buf, delivery.getSender());
+            DeliveryCodec.writeState(buf, oldState);
+            DeliveryCodec.writeState(buf, newState);
+        });
+    }
+}
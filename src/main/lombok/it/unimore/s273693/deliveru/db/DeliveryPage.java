@@ -0,0 +1,30 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * A page of the results of a {@link DeliveryQuery}, see {@link DeliveryStore#find(DeliveryQuery)}.
+ */
+@Value
+public class DeliveryPage {
+    /**
+     * The deliveries of the page, sorted by the query sort key.
+     */
+    List<Delivery> deliveries;
+    /**
+     * The position after the last delivery of the page, null if there are no other pages.
+     * Use it with {@link DeliveryQuery#continueAfter(DeliveryQuery.Cursor)} to get the next page.
+     */
+    DeliveryQuery.Cursor next;
+
+    /**
+     * Checks if there are other pages after this one.
+     *
+     * @return true if there's a next page
+     */
+    public boolean hasNext() {
+        return next != null;
+    }
+}
@@ -0,0 +1,385 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A query over the deliveries of a {@link DeliveryStore}, executed by {@link DeliveryStore#stream(DeliveryQuery)}
+ * and {@link DeliveryStore#find(DeliveryQuery)}.
+ *
+ * <p>
+ * A query is immutable and it's created with {@link #builder()}, every filter is optional and the filters are
+ * combined: a delivery matches only if it passes all of them. The store uses the most selective of its indexes
+ * (see {@link DeliveryQueryPlanner}) and checks the other filters on the candidates.
+ * </p>
+ *
+ * <p>
+ * The pages are sorted by a {@link Sort} key (the ties are broken by code, so the order is total) and continue from
+ * a {@link Cursor}, the last position of the previous page: the deliveries added or removed in the meantime don't
+ * shift the following pages.
+ * </p>
+ */
+@Getter
+public final class DeliveryQuery {
+    /**
+     * The order of the results, the ties are broken by code.
+     */
+    public enum Sort {
+        /**
+         * No order, the matches are returned in the order of the used index (pages are not supported).
+         */
+        NONE,
+        /**
+         * By code.
+         */
+        CODE,
+        /**
+         * By date, oldest first.
+         */
+        DATE,
+        /**
+         * By weight, lightest first.
+         */
+        WEIGHT;
+
+        // The primary key of the delivery (the code is the secondary one)
+        double key(Delivery delivery) {
+            switch (this) {
+                case DATE:
+                    return delivery.getDate().toEpochDay();
+                case WEIGHT:
+                    return delivery.getWeight();
+                default:
+                    return 0;
+            }
+        }
+
+        Comparator<Delivery> comparator() {
+            return Comparator.<Delivery>comparingDouble(this::key).thenComparing(Delivery::getCode);
+        }
+    }
+
+    /**
+     * The position after the last delivery of a page, see {@link DeliveryPage#getNext()}.
+     */
+    @Value
+    public static class Cursor {
+        /**
+         * The sort of the query that produced the cursor.
+         */
+        Sort sort;
+        /**
+         * The sort key of the last delivery.
+         */
+        double key;
+        /**
+         * The code of the last delivery.
+         */
+        UUID code;
+
+        static Cursor after(Sort sort, Delivery delivery) {
+            return new Cursor(sort, sort.key(delivery), delivery.getCode());
+        }
+
+        boolean isBefore(Delivery delivery) {
+            int cmp = Double.compare(key, sort.key(delivery));
+            return cmp < 0 || (cmp == 0 && code.compareTo(delivery.getCode()) < 0);
+        }
+    }
+
+    /**
+     * Only the deliveries of this sender (null for any).
+     *
+     * @return The sender or null
+     */
+    private final UUID sender;
+    /**
+     * Only the deliveries in one of these states (all of them if the query doesn't filter by state).
+     *
+     * @return The accepted states
+     */
+    private final Set<DeliveryState> states;
+    /**
+     * Only insured deliveries if true, only standard ones if false (null for any).
+     *
+     * @return The accepted type or null
+     */
+    private final Boolean insured;
+    /**
+     * Only the deliveries dated from this day, inclusive (null for no lower bound).
+     *
+     * @return The first day or null
+     */
+    private final LocalDate from;
+    /**
+     * Only the deliveries dated before this day, exclusive (null for no upper bound).
+     *
+     * @return The last day or null
+     */
+    private final LocalDate to;
+    /**
+     * Only the deliveries whose destination starts with this prefix, case-sensitive (null for any).
+     *
+     * @return The prefix or null
+     */
+    private final String destinationPrefix;
+    /**
+     * Minimum weight, inclusive.
+     *
+     * @return The minimum weight
+     */
+    private final double minWeight;
+    /**
+     * Maximum weight, inclusive.
+     *
+     * @return The maximum weight
+     */
+    private final double maxWeight;
+    /**
+     * The order of the results.
+     *
+     * @return The sort key
+     */
+    private final Sort sort;
+    /**
+     * Maximum number of results (of deliveries in a page).
+     *
+     * @return The limit
+     */
+    private final int limit;
+    /**
+     * Only the deliveries after this position (null to start from the first one).
+     *
+     * @return The cursor or null
+     */
+    private final Cursor after;
+
+    @Getter(AccessLevel.NONE)
+    private final boolean allStates;
+
+    private DeliveryQuery(Builder builder) {
+        this.sender = builder.sender;
+        this.allStates = builder.states.size() == DeliveryState.values().length;
+        this.states = Collections.unmodifiableSet(EnumSet.copyOf(builder.states));
+        this.insured = builder.insured;
+        this.from = builder.from;
+        this.to = builder.to;
+        this.destinationPrefix = builder.destinationPrefix;
+        this.minWeight = builder.minWeight;
+        this.maxWeight = builder.maxWeight;
+        this.sort = builder.sort;
+        this.limit = builder.limit;
+        this.after = builder.after;
+    }
+
+    /**
+     * Starts a query that matches every delivery.
+     *
+     * @return The builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Starts a query that continues this one from the provided cursor (usually {@link DeliveryPage#getNext()}).
+     *
+     * @param cursor The position after the last delivery of the previous page
+     * @return The query of the next page
+     */
+    public DeliveryQuery continueAfter(@NonNull Cursor cursor) {
+        var builder = new Builder();
+        builder.sender = sender;
+        builder.states = EnumSet.copyOf(states);
+        builder.insured = insured;
+        builder.from = from;
+        builder.to = to;
+        builder.destinationPrefix = destinationPrefix;
+        builder.minWeight = minWeight;
+        builder.maxWeight = maxWeight;
+        builder.sort = sort;
+        builder.limit = limit;
+        return builder.after(cursor).build();
+    }
+
+    boolean filtersStates() {
+        return !allStates;
+    }
+
+    /**
+     * Checks every filter (and the cursor) on the delivery.
+     *
+     * @param delivery The delivery to check
+     * @return true if the delivery matches
+     */
+    public boolean matches(Delivery delivery) {
+        if (sender != null && !sender.equals(delivery.getSender())) return false;
+        if (!allStates && !states.contains(delivery.getState())) return false;
+        if (insured != null && insured != (delivery instanceof InsuredDelivery)) return false;
+        if (from != null && delivery.getDate().isBefore(from)) return false;
+        if (to != null && !delivery.getDate().isBefore(to)) return false;
+        if (destinationPrefix != null && !delivery.getDestination().startsWith(destinationPrefix)) return false;
+        if (delivery.getWeight() < minWeight || delivery.getWeight() > maxWeight) return false;
+        return after == null || after.isBefore(delivery);
+    }
+
+    /**
+     * Builds a {@link DeliveryQuery}, every method returns the builder itself.
+     */
+    public static final class Builder {
+        private UUID sender;
+        private EnumSet<DeliveryState> states = EnumSet.allOf(DeliveryState.class);
+        private Boolean insured;
+        private LocalDate from;
+        private LocalDate to;
+        private String destinationPrefix;
+        private double minWeight = Double.NEGATIVE_INFINITY;
+        private double maxWeight = Double.POSITIVE_INFINITY;
+        private Sort sort = Sort.NONE;
+        private int limit = Integer.MAX_VALUE;
+        private Cursor after;
+
+        private Builder() {}
+
+        /**
+         * Only the deliveries of the sender.
+         *
+         * @param sender The sender
+         * @return The builder
+         */
+        public Builder sender(@NonNull UUID sender) {
+            this.sender = sender;
+            return this;
+        }
+
+        /**
+         * Only the deliveries in one of the states.
+         *
+         * @param states The accepted states, at least one
+         * @return The builder
+         */
+        public Builder states(@NonNull Collection<DeliveryState> states) {
+            if (states.isEmpty()) throw new IllegalArgumentException("At least one state is required");
+            this.states = EnumSet.copyOf(states);
+            return this;
+        }
+
+        /**
+         * Only the deliveries in one of the states.
+         *
+         * @param first An accepted state
+         * @param others The other accepted states
+         * @return The builder
+         */
+        public Builder states(@NonNull DeliveryState first, DeliveryState... others) {
+            this.states = EnumSet.of(first, others);
+            return this;
+        }
+
+        /**
+         * Only the insured (or only the standard) deliveries.
+         *
+         * @param insured true for the insured deliveries, false for the standard ones
+         * @return The builder
+         */
+        public Builder insured(boolean insured) {
+            this.insured = insured;
+            return this;
+        }
+
+        /**
+         * Only the deliveries dated in the range.
+         *
+         * @param from The first day (inclusive), null for no lower bound
+         * @param to The last day (exclusive), null for no upper bound
+         * @return The builder
+         */
+        public Builder dated(LocalDate from, LocalDate to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        /**
+         * Only the deliveries whose destination starts with the prefix (case-sensitive).
+         *
+         * @param prefix The destination prefix
+         * @return The builder
+         */
+        public Builder destinationPrefix(@NonNull String prefix) {
+            this.destinationPrefix = prefix;
+            return this;
+        }
+
+        /**
+         * Only the deliveries whose weight is in the range.
+         *
+         * @param min The minimum weight (inclusive)
+         * @param max The maximum weight (inclusive)
+         * @return The builder
+         */
+        public Builder weight(double min, double max) {
+            if (min > max) throw new IllegalArgumentException("Invalid weight range " + min + " - " + max);
+            this.minWeight = min;
+            this.maxWeight = max;
+            return this;
+        }
+
+        /**
+         * Sorts the results.
+         *
+         * @param sort The sort key
+         * @return The builder
+         */
+        public Builder sort(@NonNull Sort sort) {
+            this.sort = sort;
+            return this;
+        }
+
+        /**
+         * Limits the number of results, the size of the pages.
+         *
+         * @param limit The maximum number of results, at least one
+         * @return The builder
+         */
+        public Builder limit(int limit) {
+            if (limit <= 0) throw new IllegalArgumentException("Invalid limit " + limit);
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * Starts after the cursor, the query must use the same sort of the one that produced it.
+         *
+         * @param cursor The cursor
+         * @return The builder
+         */
+        public Builder after(@NonNull Cursor cursor) {
+            this.after = cursor;
+            return this;
+        }
+
+        /**
+         * Creates the query.
+         *
+         * @return The query
+         * @throws IllegalArgumentException if the cursor was produced with another sort
+         */
+        public DeliveryQuery build() {
+            if (after != null && after.getSort() != sort) {
+                throw new IllegalArgumentException("The cursor was produced by a query sorted by " + after.getSort());
+            }
+            return new DeliveryQuery(this);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Executes the {@link DeliveryQuery}s on the indexes of a {@link DeliveryStore}.
+ *
+ * <p>
+ * Every index that can answer a filter of the query (the sender lists, the state sets and the date tree) is a
+ * candidate source, the one with the fewest deliveries is used and the other filters are checked on its
+ * deliveries one at a time, so nothing is copied until the results are collected.
+ * The size of a source is known without reading it (for the date tree it's the sum of the sizes of the days).
+ * A compact store has the requested sender lists and the state and day indexes of its columns (as rows), the
+ * filters are checked on the columns of the candidate rows and a view is only created for the matching rows.
+ * </p>
+ *
+ * <p>
+ * A planner reads the live indexes: use it (and consume its streams) from the thread that mutates the store, and
+ * don't keep it across mutations.
+ * </p>
+ */
+final class DeliveryQueryPlanner {
+    private static final Logger logger = LogManager.getLogger(DeliveryQueryPlanner.class);
+
+    private final List<Delivery> deliveries;
+    private final Map<UUID, ? extends List<Delivery>> bySender;
+    private final Map<DeliveryState, Set<Delivery>> byState;
+    private final NavigableMap<LocalDate, Set<Delivery>> byDate;
+    private final DeliveryColumns columns;
+
+    DeliveryQueryPlanner(List<Delivery> deliveries, Map<UUID, ? extends List<Delivery>> bySender,
+                         Map<DeliveryState, Set<Delivery>> byState, NavigableMap<LocalDate, Set<Delivery>> byDate,
+                         DeliveryColumns columns) {
+        this.deliveries = deliveries;
+        this.bySender = bySender;
+        this.byState = byState;
+        this.byDate = byDate;
+        this.columns = columns;
+    }
+
+    // A source of candidates with its size
+    private static final class Source {
+        private final String name;
+        private final long size;
+        private final Supplier<Stream<Delivery>> candidates;
+
+        private Source(String name, long size, Supplier<Stream<Delivery>> candidates) {
+            this.name = name;
+            this.size = size;
+            this.candidates = candidates;
+        }
+    }
+
+    private Source choose(DeliveryQuery query) {
+        var best = columns != null ? columnScan(query) : new Source("scan", deliveries.size(), deliveries::stream);
+
+        if (query.getSender() != null) {
+            var senderDeliveries = bySender.get(query.getSender());
+            // A compact store only has the lists that have been requested
+            if (senderDeliveries != null || columns == null) {
+                List<Delivery> list = senderDeliveries != null ? senderDeliveries : List.of();
+                best = smallest(best, new Source("sender", list.size(), list::stream));
+            }
+        }
+        if (columns != null) return best;
+
+        if (query.filtersStates()) {
+            long size = 0;
+            for (var state : query.getStates()) size += byState.get(state).size();
+            best = smallest(best, new Source("state", size,
+                    () -> query.getStates().stream().flatMap(state -> byState.get(state).stream())));
+        }
+        if (query.getFrom() != null || query.getTo() != null) {
+            var days = daysOf(query.getFrom(), query.getTo());
+            long size = 0;
+            for (var day : days) size += day.size();
+            best = smallest(best, new Source("date", size, () -> days.stream().flatMap(Set::stream)));
+        }
+        return best;
+    }
+
+    private static Source smallest(Source a, Source b) {
+        return b.size < a.size ? b : a;
+    }
+
+    private Collection<Set<Delivery>> daysOf(LocalDate from, LocalDate to) {
+        if (from != null && to != null) {
+            return from.isBefore(to) ? byDate.subMap(from, true, to, false).values() : List.of();
+        }
+        return from != null ? byDate.tailMap(from, true).values() : byDate.headMap(to, false).values();
+    }
+
+    private Source columnScan(DeliveryQuery query) {
+        var filter = rowFilter(query);
+        var best = columnSource("columns", columns.getSize(), () -> IntStream.range(0, columns.getSize()), filter);
+        if (query.filtersStates()) {
+            long size = 0;
+            for (var state : query.getStates()) size += columns.countInState(state);
+            best = smallest(best, columnSource("state", size, () -> query.getStates().stream()
+                    .flatMapToInt(state -> IntStream.of(columns.rowsInState(state))), filter));
+        }
+        if (query.getFrom() != null || query.getTo() != null) {
+            long first = query.getFrom() != null ? query.getFrom().toEpochDay() : Long.MIN_VALUE;
+            long last = query.getTo() != null ? query.getTo().toEpochDay() : Long.MAX_VALUE;
+            best = smallest(best, columnSource("date", columns.countInDays(first, last),
+                    () -> IntStream.of(columns.rowsInDays(first, last)), filter));
+        }
+        return best;
+    }
+
+    private Source columnSource(String name, long size, Supplier<IntStream> rows, IntPredicate filter) {
+        return new Source(name, size, () -> rows.get().filter(filter).mapToObj(columns::view));
+    }
+
+    // Checks the filters of the query on the columns, without creating the views
+    private IntPredicate rowFilter(DeliveryQuery query) {
+        var sender = query.getSender();
+        var states = new boolean[DeliveryState.values().length];
+        for (var state : query.getStates()) states[state.ordinal()] = true;
+        long first = query.getFrom() != null ? query.getFrom().toEpochDay() : Long.MIN_VALUE;
+        long last = query.getTo() != null ? query.getTo().toEpochDay() : Long.MAX_VALUE;
+        var prefix = query.getDestinationPrefix();
+        var destinations = prefix != null ? columns.testDestinations(x -> x.startsWith(prefix)) : null;
+        var insured = query.getInsured();
+
+        return row -> (sender == null || columns.isSender(row, sender))
+                && states[columns.state(row).ordinal()]
+                && (insured == null || columns.isInsured(row) == insured)
+                && columns.epochDay(row) >= first && columns.epochDay(row) < last
+                && (destinations == null || destinations[columns.destinationId(row)])
+                && columns.weight(row) >= query.getMinWeight() && columns.weight(row) <= query.getMaxWeight();
+    }
+
+    /**
+     * Streams the deliveries matching the query.
+     * If the query is sorted the matches are sorted (only the first ones are kept if it's limited), otherwise they
+     * are streamed lazily in the order of the chosen index.
+     *
+     * @param query The query to execute
+     * @return The matching deliveries
+     */
+    Stream<Delivery> stream(DeliveryQuery query) {
+        var matches = matches(query);
+        if (query.getSort() == DeliveryQuery.Sort.NONE) return matches.limit(query.getLimit());
+        if (query.getLimit() == Integer.MAX_VALUE) return matches.sorted(query.getSort().comparator());
+        return first(matches, query, query.getLimit()).stream();
+    }
+
+    /**
+     * Finds a page of the deliveries matching the query.
+     *
+     * @param query The query to execute, it must be sorted
+     * @return The page
+     * @throws IllegalArgumentException if the query is not sorted
+     */
+    DeliveryPage find(DeliveryQuery query) {
+        if (query.getSort() == DeliveryQuery.Sort.NONE) throw new IllegalArgumentException("Pages need a sort key");
+        int limit = query.getLimit();
+        List<Delivery> page;
+        if (limit == Integer.MAX_VALUE) {
+            page = new ArrayList<>();
+            matches(query).sorted(query.getSort().comparator()).forEachOrdered(page::add);
+            return new DeliveryPage(Collections.unmodifiableList(page), null);
+        }
+        // One more delivery tells if there's a next page
+        page = first(matches(query), query, limit + 1);
+        if (page.size() <= limit) return new DeliveryPage(Collections.unmodifiableList(page), null);
+        page.remove(limit);
+        var next = DeliveryQuery.Cursor.after(query.getSort(), page.get(limit - 1));
+        return new DeliveryPage(Collections.unmodifiableList(page), next);
+    }
+
+    private Stream<Delivery> matches(DeliveryQuery query) {
+        var source = choose(query);
+        logger.debug("Querying the {} index ({} candidates)", source.name, source.size);
+        return source.candidates.get().filter(query::matches);
+    }
+
+    // The first count matches in sort order, keeping at most count of them in memory
+    private static List<Delivery> first(Stream<Delivery> matches, DeliveryQuery query, int count) {
+        var order = query.getSort().comparator();
+        var heap = new PriorityQueue<Delivery>(order.reversed());
+        matches.forEach(delivery -> {
+            if (heap.size() < count) {
+                heap.add(delivery);
+            } else if (order.compare(delivery, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(delivery);
+            }
+        });
+        var res = new ArrayList<>(heap);
+        res.sort(order);
+        return res;
+    }
+}
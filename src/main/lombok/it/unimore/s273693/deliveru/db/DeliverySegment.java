@@ -0,0 +1,555 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Memory-mapped segment file that stores the deliveries as fixed-size records.
+ *
+ * <p>
+ * Every record is {@link #RECORD_SIZE} bytes long and lives at {@code HEADER_SIZE + slot * RECORD_SIZE}, it holds
+ * all of the fixed-size fields of the delivery while the destinations (that have a variable length) are appended
+ * to a side string heap file.
+ * The segment is registered as a {@link DeliveryStoreListener}: a state change is a single byte written in the
+ * mapping, an addition writes one record (reusing the slots freed by the removals) and a removal only clears
+ * the record flag, so the file never needs to be rewritten.
+ * The heap is append-only, the space used by removed deliveries is only reclaimed by {@link #compact(Collection)}.
+ * </p>
+ *
+ * <p>
+ * Record layout (offsets in bytes): code (0), sender (16), epoch day as int (32), state ordinal (36), type (37),
+ * flags (38), weight (40), insured value in cents (48), heap offset (56), destination length (64) and
+ * insured value length (68).
+ * Insured values that do not fit in a long are written as decimal text in the heap, right after the destination.
+ * </p>
+ *
+ * <p>
+ * The segment header and the heap header (its first {@link #HEAP_HEADER_SIZE} bytes) hold the same generation id,
+ * picked every time the files are rewritten: the two files are replaced with two renames, so a segment is only
+ * opened with the heap written together with it. If the program crashed between the two renames the new segment
+ * is still aside and the swap is completed on open.
+ * </p>
+ *
+ * <p>
+ * The whole segment is mapped in a single {@link MappedByteBuffer} so it can hold up to ~29 million records.
+ * Writes to the mapping reach the OS immediately, {@link #sync()} forces them to the storage device.
+ * </p>
+ */
+public class DeliverySegment implements DeliveryStoreListener, Closeable {
+    private static final Logger logger = LogManager.getLogger(DeliverySegment.class);
+
+    private static final int MAGIC = 0x444c5653; // "DLVS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_COUNT_OFFSET = 16;
+    private static final int GENERATION_OFFSET = 24;
+    private static final int HEAP_MAGIC = 0x444c5648; // "DLVH"
+    private static final int HEAP_HEADER_SIZE = 16;
+    private static final int HEAP_GENERATION_OFFSET = 8;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Size of each record.
+     */
+    public static final int RECORD_SIZE = 72;
+
+    private static final int CODE_OFFSET = 0;
+    private static final int SENDER_OFFSET = 16;
+    private static final int DATE_OFFSET = 32;
+    private static final int STATE_OFFSET = 36;
+    private static final int TYPE_OFFSET = 37;
+    private static final int FLAGS_OFFSET = 38;
+    private static final int WEIGHT_OFFSET = 40;
+    private static final int VALUE_OFFSET = 48;
+    private static final int HEAP_OFFSET = 56;
+    private static final int DESTINATION_LENGTH_OFFSET = 64;
+    private static final int VALUE_LENGTH_OFFSET = 68;
+
+    private static final byte FLAG_LIVE = 1;
+    private static final long VALUE_IN_HEAP = -1;
+    // Compact the heap only when most of it is garbage
+    private static final long MIN_COMPACTION_GARBAGE = 1 << 20;
+
+    private static final DeliveryState[] STATES = DeliveryState.values();
+
+    private final File file;
+    private final File heapFile;
+    private FileChannel channel;
+    private FileChannel heapChannel;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int slotCount;
+    private long heapSize;
+    private long heapGarbage;
+    private long generation;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private final Map<UUID, Integer> slots = new HashMap<>();
+    // Changes made during a compaction (null if no compaction is running)
+    private List<Runnable> pending;
+
+    /**
+     * True if a write failed, in that case the segment must be rewritten with {@link #compact(Collection)}.
+     *
+     * @return true if the segment is broken
+     */
+    @Getter
+    private boolean broken = false;
+
+    private DeliverySegment(File file, File heapFile) {
+        this.file = file;
+        this.heapFile = heapFile;
+    }
+
+    /**
+     * Opens an existing segment (or creates an empty one) adding all of its deliveries to the store.
+     * Once opened the segment should be registered as a listener of the store.
+     *
+     * @param file The segment file
+     * @param heapFile The string heap file
+     * @param store The store where the deliveries will be added
+     * @return The opened segment
+     * @throws IOException when an error occurs while reading or the segment is corrupted
+     */
+    public static DeliverySegment open(File file, File heapFile, DeliveryStore store) throws IOException {
+        file.getParentFile().mkdirs();
+        var segment = new DeliverySegment(file, heapFile);
+        try {
+            recover(file, heapFile);
+            segment.openChannels();
+            segment.load(store);
+        } catch (IOException | RuntimeException e) {
+            segment.close();
+            throw e;
+        }
+        return segment;
+    }
+
+    /**
+     * Writes a new segment with the provided deliveries, replacing the existing one (if any).
+     * The files are first written aside and then atomically moved, so a crash never leaves a partial segment.
+     *
+     * @param file The segment file
+     * @param heapFile The string heap file
+     * @param deliveries The deliveries to write
+     * @throws IOException when an error occurs while writing
+     */
+    public static void write(File file, File heapFile, Collection<? extends Delivery> deliveries) throws IOException {
+        writeAside(file, heapFile, deliveries);
+        moveAside(file, heapFile);
+    }
+
+    private static File asideFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static void writeAside(File file, File heapFile, Collection<? extends Delivery> deliveries)
+            throws IOException {
+        file.getParentFile().mkdirs();
+        var segment = new DeliverySegment(asideFile(file), asideFile(heapFile));
+        try {
+            segment.openChannels();
+            segment.channel.truncate(0);
+            segment.heapChannel.truncate(0);
+            segment.capacity = Math.max(INITIAL_CAPACITY, deliveries.size());
+            segment.remap();
+            segment.writeHeaders();
+            for (var delivery : deliveries) {
+                segment.writeRecord(segment.allocateSlot(), delivery);
+            }
+            segment.sync();
+        } finally {
+            segment.close();
+        }
+    }
+
+    // The heap first: once it's moved the swap is committed, recover() completes it after a crash
+    private static void moveAside(File file, File heapFile) throws IOException {
+        Files.move(asideFile(heapFile).toPath(), heapFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(asideFile(file).toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Completes the swap interrupted by a crash between the two renames of {@link #moveAside(File, File)}: the
+     * segment written aside is moved in place if the heap is the one written with it, otherwise what's left
+     * aside is an incomplete rewrite and it's deleted.
+     */
+    private static void recover(File file, File heapFile) throws IOException {
+        var aside = asideFile(file);
+        if (!aside.exists()) return;
+        long asideGeneration = readGeneration(aside.toPath(), MAGIC, GENERATION_OFFSET);
+        if (asideGeneration != 0 && asideGeneration == readGeneration(heapFile.toPath(), HEAP_MAGIC,
+                HEAP_GENERATION_OFFSET)) {
+            logger.warn("Completing the interrupted segment swap");
+            Files.move(aside.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        Files.deleteIfExists(aside.toPath());
+        Files.deleteIfExists(asideFile(heapFile).toPath());
+    }
+
+    // The generation in the header of the file, 0 if it's missing or it has no (valid) header
+    private static long readGeneration(Path path, int magic, int offset) throws IOException {
+        if (!Files.exists(path)) return 0;
+        try (var in = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(offset + Long.BYTES);
+            while (header.hasRemaining() && in.read(header) >= 0) {
+                // Keep reading
+            }
+            if (header.hasRemaining() || header.getInt(0) != magic) return 0;
+            if (magic == MAGIC && header.getInt(4) != VERSION) return 0;
+            return header.getLong(offset);
+        }
+    }
+
+    private void openChannels() throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.heapChannel = FileChannel.open(heapFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Stamps a new generation in both files, the heap must be empty
+    private void writeHeaders() throws IOException {
+        do {
+            generation = ThreadLocalRandom.current().nextLong();
+        } while (generation == 0);
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, RECORD_SIZE);
+        map.putLong(SLOT_COUNT_OFFSET, slotCount);
+        map.putLong(GENERATION_OFFSET, generation);
+
+        heapChannel.truncate(0);
+        var header = ByteBuffer.allocate(HEAP_HEADER_SIZE);
+        header.putInt(HEAP_MAGIC).putInt(VERSION).putLong(generation).flip();
+        while (header.hasRemaining()) heapChannel.write(header, header.position());
+        heapSize = HEAP_HEADER_SIZE;
+    }
+
+    private void remap() throws IOException {
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        if (size > Integer.MAX_VALUE) throw new IOException("Segment full");
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void load(DeliveryStore store) throws IOException {
+        this.heapSize = heapChannel.size();
+        long size = channel.size();
+        if (size == 0) {
+            // Nothing can point in the heap of a missing segment
+            this.capacity = INITIAL_CAPACITY;
+            remap();
+            writeHeaders();
+            return;
+        }
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) throw new IOException("Invalid segment size " + size);
+
+        this.capacity = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+        remap();
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Invalid segment header");
+        }
+        this.generation = map.getLong(GENERATION_OFFSET);
+        long heapGeneration = readGeneration(heapFile.toPath(), HEAP_MAGIC, HEAP_GENERATION_OFFSET);
+        if (generation == 0 || heapGeneration != generation) {
+            throw new IOException("The segment heap was not written with the segment");
+        }
+        long count = map.getLong(SLOT_COUNT_OFFSET);
+        if (count < 0 || count > capacity) throw new IOException("Invalid segment slot count " + count);
+        this.slotCount = (int) count;
+
+        var heap = heapChannel.map(FileChannel.MapMode.READ_ONLY, 0, heapSize);
+        var loaded = new ArrayList<Delivery>(slotCount);
+        for (int slot = 0; slot < slotCount; slot++) {
+            int base = offset(slot);
+            if (map.get(base + FLAGS_OFFSET) != FLAG_LIVE) {
+                freeSlots.add(slot);
+                continue;
+            }
+            var delivery = readRecord(base, heap);
+            if (slots.put(delivery.getCode(), slot) != null) {
+                throw new IOException("Duplicated delivery " + delivery.getCode() + " in the segment");
+            }
+            loaded.add(delivery);
+        }
+        store.addAllLoaded(loaded);
+        logger.info("Mapped {} deliveries ({} free slots)", slots.size(), freeSlots.size());
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private Delivery readRecord(int base, ByteBuffer heap) throws IOException {
+        var code = new UUID(map.getLong(base + CODE_OFFSET), map.getLong(base + CODE_OFFSET + 8));
+        var sender = new UUID(map.getLong(base + SENDER_OFFSET), map.getLong(base + SENDER_OFFSET + 8));
+        var date = LocalDate.ofEpochDay(map.getInt(base + DATE_OFFSET));
+        int stateOrdinal = map.get(base + STATE_OFFSET);
+        if (stateOrdinal < 0 || stateOrdinal >= STATES.length) throw new IOException("Invalid state in " + code);
+        var state = STATES[stateOrdinal];
+        var weight = map.getDouble(base + WEIGHT_OFFSET);
+
+        long heapOffset = map.getLong(base + HEAP_OFFSET);
+        int destinationLength = map.getInt(base + DESTINATION_LENGTH_OFFSET);
+        int valueLength = map.getInt(base + VALUE_LENGTH_OFFSET);
+        if (heapOffset < HEAP_HEADER_SIZE || destinationLength < 0 || valueLength < 0
+                || heapOffset + destinationLength + valueLength > heapSize) {
+            throw new IOException("Invalid heap reference in " + code);
+        }
+        var destination = readHeapString(heap, (int) heapOffset, destinationLength);
+
+        switch (map.get(base + TYPE_OFFSET)) {
+            case DeliveryCodec.TYPE_STANDARD:
+                return new Delivery(code, sender, date, destination, weight, state);
+            case DeliveryCodec.TYPE_INSURED:
+                long cents = map.getLong(base + VALUE_OFFSET);
+                var value = cents == VALUE_IN_HEAP
+                        ? Money.ofCents(new BigInteger(readHeapString(heap, (int) heapOffset + destinationLength,
+                                valueLength)))
+                        : Money.ofCents(cents);
+                return new InsuredDelivery(code, sender, date, destination, weight, value, state);
+            default:
+                throw new IOException("Invalid type in " + code);
+        }
+    }
+
+    private static String readHeapString(ByteBuffer heap, int offset, int length) {
+        var data = new byte[length];
+        heap.duplicate().position(offset).get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private int allocateSlot() throws IOException {
+        var free = freeSlots.poll();
+        if (free != null) return free;
+
+        if (slotCount == capacity) {
+            capacity = (int) Math.min(capacity * 2L, (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE);
+            if (slotCount == capacity) throw new IOException("Segment full");
+            remap();
+        }
+        int slot = slotCount++;
+        map.putLong(SLOT_COUNT_OFFSET, slotCount);
+        return slot;
+    }
+
+    private long appendHeap(byte[] destination, byte[] value) throws IOException {
+        long offset = heapSize;
+        var data = ByteBuffer.allocate(destination.length + value.length);
+        data.put(destination).put(value).flip();
+        while (data.hasRemaining()) {
+            heapChannel.write(data, offset + data.position());
+        }
+        heapSize += destination.length + value.length;
+        return offset;
+    }
+
+    private void writeRecord(int slot, Delivery delivery) throws IOException {
+        var destination = delivery.getDestination().getBytes(StandardCharsets.UTF_8);
+        var value = new byte[0];
+        long cents = 0;
+        if (delivery instanceof InsuredDelivery) {
+            var insuredValue = ((InsuredDelivery) delivery).getInsuredValue();
+            if (insuredValue.isLong() && insuredValue.getCents() != VALUE_IN_HEAP) {
+                cents = insuredValue.getCents();
+            } else {
+                cents = VALUE_IN_HEAP;
+                value = insuredValue.toString().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        long heapOffset = appendHeap(destination, value);
+
+        int base = offset(slot);
+        map.putLong(base + CODE_OFFSET, delivery.getCode().getMostSignificantBits());
+        map.putLong(base + CODE_OFFSET + 8, delivery.getCode().getLeastSignificantBits());
+        map.putLong(base + SENDER_OFFSET, delivery.getSender().getMostSignificantBits());
+        map.putLong(base + SENDER_OFFSET + 8, delivery.getSender().getLeastSignificantBits());
+        map.putInt(base + DATE_OFFSET, Math.toIntExact(delivery.getDate().toEpochDay()));
+        map.put(base + STATE_OFFSET, (byte) delivery.getState().ordinal());
+        map.put(base + TYPE_OFFSET, delivery instanceof InsuredDelivery
+                ? DeliveryCodec.TYPE_INSURED : DeliveryCodec.TYPE_STANDARD);
+        map.putDouble(base + WEIGHT_OFFSET, delivery.getWeight());
+        map.putLong(base + VALUE_OFFSET, cents);
+        map.putLong(base + HEAP_OFFSET, heapOffset);
+        map.putInt(base + DESTINATION_LENGTH_OFFSET, destination.length);
+        map.putInt(base + VALUE_LENGTH_OFFSET, value.length);
+        // Written last, a crash before this leaves the slot free
+        map.put(base + FLAGS_OFFSET, FLAG_LIVE);
+        slots.put(delivery.getCode(), slot);
+    }
+
+    @Override
+    public synchronized void onAdded(Delivery delivery) {
+        if (pending != null) {
+            // Applied later by the persistence thread, the delivery might have changed in the meantime
+            var copy = delivery.copy();
+            pending.add(() -> addRecord(copy));
+        }
+        addRecord(delivery);
+    }
+
+    @Override
+    public synchronized void onRemoved(Delivery delivery) {
+        if (pending != null) pending.add(() -> removeRecord(delivery));
+        removeRecord(delivery);
+    }
+
+    @Override
+    public synchronized void onStateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+        if (pending != null) pending.add(() -> writeState(delivery, newState));
+        writeState(delivery, newState);
+    }
+
+    private void addRecord(Delivery delivery) {
+        if (broken) return;
+        try {
+            writeRecord(allocateSlot(), delivery);
+        } catch (IOException | ArithmeticException e) {
+            logger.error("Failed to write {} in the segment, it will be rewritten", delivery.getCode(), e);
+            broken = true;
+        }
+    }
+
+    private void removeRecord(Delivery delivery) {
+        var slot = slots.remove(delivery.getCode());
+        if (slot == null) return;
+        int base = offset(slot);
+        map.put(base + FLAGS_OFFSET, (byte) 0);
+        heapGarbage += map.getInt(base + DESTINATION_LENGTH_OFFSET) + map.getInt(base + VALUE_LENGTH_OFFSET);
+        freeSlots.push(slot);
+    }
+
+    private void writeState(Delivery delivery, DeliveryState state) {
+        var slot = slots.get(delivery.getCode());
+        if (slot == null) return;
+        map.put(offset(slot) + STATE_OFFSET, (byte) state.ordinal());
+    }
+
+    /**
+     * Returns true when the segment should be rewritten, that is when it's broken or most of the heap is garbage.
+     *
+     * @return true if {@link #compact(Collection)} should be called
+     */
+    public synchronized boolean shouldCompact() {
+        return broken || (heapGarbage > MIN_COMPACTION_GARBAGE && heapGarbage > heapSize / 2);
+    }
+
+    /**
+     * Starts recording the changes, call it right when the deliveries for {@link #compact(Collection)} are
+     * collected: the changes made while the new segment is being written are applied to it before the swap.
+     */
+    public synchronized void beginCompaction() {
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * Rewrites the segment with the provided deliveries (that should be the whole content of the store),
+     * removing the free slots and the heap garbage.
+     * The new files are written without holding the segment lock, so the store can be changed in the meantime
+     * (if {@link #beginCompaction()} was called those changes are not lost).
+     *
+     * @param deliveries The deliveries that the segment should contain
+     * @throws IOException when an error occurs while writing
+     */
+    public void compact(Collection<? extends Delivery> deliveries) throws IOException {
+        try {
+            writeAside(file, heapFile, deliveries);
+        } catch (IOException e) {
+            synchronized (this) {
+                this.pending = null;
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            var changes = this.pending;
+            this.pending = null;
+            try {
+                close();
+                moveAside(file, heapFile);
+                openChannels();
+                this.heapSize = heapChannel.size();
+                this.capacity = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+                remap();
+                this.generation = map.getLong(GENERATION_OFFSET);
+            } catch (IOException e) {
+                // The changes were also applied to the old segment but it might not be usable anymore
+                this.broken = true;
+                throw e;
+            }
+            this.heapGarbage = 0;
+            this.slotCount = (int) map.getLong(SLOT_COUNT_OFFSET);
+            this.freeSlots.clear();
+            this.slots.clear();
+            int slot = 0;
+            for (var delivery : deliveries) {
+                slots.put(delivery.getCode(), slot++);
+            }
+            this.broken = false;
+            if (changes != null) changes.forEach(Runnable::run);
+            logger.info("Compacted segment ({} deliveries, {} later changes)", slotCount,
+                    changes == null ? 0 : changes.size());
+        }
+    }
+
+    /**
+     * Forces every change to the storage device.
+     * The lock is not held while syncing, so the store can still be changed in the meantime: if the mapping or the
+     * files are replaced (by a remap or a compaction) the new ones are synced too.
+     *
+     * @throws IOException when an error occurs while syncing
+     */
+    public void sync() throws IOException {
+        MappedByteBuffer syncedMap;
+        FileChannel syncedHeap;
+        synchronized (this) {
+            syncedMap = map;
+            syncedHeap = heapChannel;
+        }
+        while (true) {
+            try {
+                syncedMap.force();
+                syncedHeap.force(false);
+            } catch (ClosedChannelException e) {
+                synchronized (this) {
+                    if (heapChannel == syncedHeap) throw e;
+                }
+            }
+            synchronized (this) {
+                if (map == syncedMap && heapChannel == syncedHeap) return;
+                syncedMap = map;
+                syncedHeap = heapChannel;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (channel != null) channel.close();
+        } finally {
+            if (heapChannel != null) heapChannel.close();
+        }
+    }
+}
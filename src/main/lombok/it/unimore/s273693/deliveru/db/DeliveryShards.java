@@ -0,0 +1,254 @@
+package it.unimore.s273693.deliveru.db;
+
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Sharded layout of the deliveries db: the deliveries are split by sender in {@link #SHARD_COUNT} files.
+ *
+ * <p>
+ * The shard of a delivery only depends on the hash of its sender, so all of the deliveries of a user are in the
+ * same file and a change only dirties the shard of its sender.
+ * Each shard is a binary deliveries file (see {@link BinaryDeliveryFile}) replaced with {@link AtomicFile}.
+ * All of the shards are read when the store is opened, the store holds every delivery (only the single file
+ * layout can load them on demand, see {@link DeliveryStore#load(File, File, boolean)}).
+ * A shard that cannot be read is never rewritten: the file on disk is the only copy of its deliveries, so the
+ * changes made to the senders of that shard are not saved.
+ * </p>
+ *
+ * <p>
+ * Registered as a {@link DeliveryStoreListener}, it keeps track of the shards changed since the last save, only those
+ * are rewritten by {@link #snapshot()} so the save cost depends on the active senders, not on the whole history.
+ * Note that the changes are not journaled, they reach the disk only when the shard is saved.
+ * </p>
+ */
+public class DeliveryShards implements DeliveryStoreListener {
+    private static final Logger logger = LogManager.getLogger(DeliveryShards.class);
+
+    /**
+     * Number of shards, changing it requires the data to be migrated.
+     */
+    public static final int SHARD_COUNT = 64;
+
+    private final File directory;
+    private final DeliveryStore store;
+    private final BitSet dirty = new BitSet(SHARD_COUNT);
+    // The shards that could not be read when opened, they're left on disk as they are
+    private final BitSet unreadable = new BitSet(SHARD_COUNT);
+
+    private DeliveryShards(File directory, DeliveryStore store) {
+        this.directory = directory;
+        this.store = store;
+    }
+
+    /**
+     * Computes the shard in which the deliveries of the sender are stored.
+     *
+     * @param sender The sender UUID
+     * @return The shard index
+     */
+    public static int shardOf(UUID sender) {
+        return Math.floorMod(sender.hashCode(), SHARD_COUNT);
+    }
+
+    private static File shardFile(File directory, int shard) {
+        return new File(directory, String.format("shard-%02x.db", shard));
+    }
+
+    /**
+     * Checks if the directory contains any shard.
+     *
+     * @param directory The shards directory
+     * @return true only if at least one shard is present
+     */
+    public static boolean exists(File directory) {
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            if (AtomicFile.exists(shardFile(directory, i))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deletes every shard and the directory itself.
+     *
+     * @param directory The shards directory
+     * @return true only if nothing is left
+     */
+    public static boolean delete(File directory) {
+        boolean deleted = true;
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            deleted &= AtomicFile.delete(shardFile(directory, i));
+        }
+        return deleted && (!directory.exists() || directory.delete());
+    }
+
+    private static void readShard(File directory, int shard, Consumer<Delivery> consumer) throws IOException {
+        var file = shardFile(directory, shard);
+        var deliveries = new ArrayList<Delivery>();
+        try {
+            AtomicFile.read(file, in -> {
+                deliveries.clear();
+                return BinaryDeliveryFile.read(Channels.newChannel(in), ByteBuffer.allocate(0), deliveries::add);
+            });
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        deliveries.forEach(consumer);
+    }
+
+    /**
+     * Reads all of the shards adding their deliveries to the store.
+     * A shard that cannot be read is skipped (the error is logged) and it will never be overwritten.
+     *
+     * @param directory The shards directory
+     * @param store The store in which the deliveries will be added
+     * @return The shards, ready to be registered as a listener
+     */
+    static DeliveryShards open(File directory, DeliveryStore store) {
+        var res = new DeliveryShards(directory, store);
+        var loaded = new ArrayList<Delivery>();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            try {
+                readShard(directory, i, loaded::add);
+            } catch (IOException e) {
+                logger.error("Cannot read deliveries shard {}, skipping it (its changes will not be saved)", i, e);
+                res.unreadable.set(i);
+            }
+        }
+        store.addAllLoaded(loaded);
+        return res;
+    }
+
+    /**
+     * Reads all of the shards, failing if any of them cannot be read.
+     *
+     * @param directory The shards directory
+     * @return The deliveries of every shard
+     * @throws IOException when a shard cannot be read
+     */
+    public static List<Delivery> readAll(File directory) throws IOException {
+        var res = new ArrayList<Delivery>();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            readShard(directory, i, res::add);
+        }
+        return res;
+    }
+
+    /**
+     * Writes the deliveries in a new sharded layout, overwriting all of the shards.
+     *
+     * @param directory The shards directory
+     * @param deliveries The deliveries to write
+     * @throws IOException when an error occurs while writing
+     */
+    public static void write(File directory, Collection<? extends Delivery> deliveries) throws IOException {
+        var shards = new ArrayList<List<Delivery>>(SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (var delivery : deliveries) {
+            shards.get(shardOf(delivery.getSender())).add(delivery);
+        }
+        directory.mkdirs();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            writeShard(directory, i, shards.get(i));
+        }
+    }
+
+    private static void writeShard(File directory, int shard, Collection<Delivery> deliveries) throws IOException {
+        AtomicFile.write(shardFile(directory, shard),
+                out -> BinaryDeliveryFile.write(Channels.newChannel(out), deliveries));
+    }
+
+    private synchronized void markDirty(int shard) {
+        dirty.set(shard);
+    }
+
+    @Override
+    public void onAdded(Delivery delivery) {
+        markDirty(shardOf(delivery.getSender()));
+    }
+
+    @Override
+    public void onRemoved(Delivery delivery) {
+        markDirty(shardOf(delivery.getSender()));
+    }
+
+    @Override
+    public void onStateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+        markDirty(shardOf(delivery.getSender()));
+    }
+
+    /**
+     * Copies the content of the shards changed since the last snapshot, call it from the thread that mutates
+     * the store.
+     * The store is iterated once, putting a copy of every delivery of a changed shard in its bucket.
+     * The shards that could not be read are left out, writing them would drop the deliveries that are only on disk.
+     * The returned snapshot can then be saved from another thread.
+     *
+     * @return The snapshot of the changed shards
+     */
+    public Snapshot snapshot() {
+        BitSet changed;
+        synchronized (this) {
+            changed = (BitSet) dirty.clone();
+            dirty.clear();
+        }
+        if (changed.intersects(unreadable)) {
+            var skipped = (BitSet) changed.clone();
+            skipped.and(unreadable);
+            logger.warn("Not saving the changes of the unreadable deliveries shards {}", skipped);
+            changed.andNot(unreadable);
+        }
+
+        var contents = new TreeMap<Integer, List<Delivery>>();
+        for (int shard = changed.nextSetBit(0); shard >= 0; shard = changed.nextSetBit(shard + 1)) {
+            contents.put(shard, new ArrayList<>());
+        }
+        if (contents.isEmpty()) return new Snapshot(contents);
+        for (var delivery : store.getDeliveries()) {
+            var bucket = contents.get(shardOf(delivery.getSender()));
+            if (bucket != null) bucket.add(delivery.copy());
+        }
+        return new Snapshot(contents);
+    }
+
+    /**
+     * Content of the changed shards, see {@link #snapshot()}.
+     */
+    public final class Snapshot {
+        private final SortedMap<Integer, List<Delivery>> contents;
+
+        private Snapshot(SortedMap<Integer, List<Delivery>> contents) {
+            this.contents = contents;
+        }
+
+        /**
+         * Writes the changed shards, if the writing fails the shards that were not written are marked as changed
+         * again.
+         *
+         * @throws IOException when an error occurs while writing
+         */
+        public void save() throws IOException {
+            directory.mkdirs();
+            for (var entry : contents.entrySet()) {
+                try {
+                    writeShard(directory, entry.getKey(), entry.getValue());
+                } catch (IOException | RuntimeException e) {
+                    contents.tailMap(entry.getKey()).keySet().forEach(DeliveryShards.this::markDirty);
+                    throw e;
+                }
+            }
+            logger.info("Saved {} deliveries shards", contents.size());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.Value;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Aggregates over the deliveries of a {@link DeliveryStore}, kept up to date by the store on every mutation, both
+ * for the whole store and for every sender.
+ *
+ * <p>
+ * Every addition, removal and state transition changes a few counters (constant work, no delivery is ever scanned)
+ * and the aggregates are read as immutable {@link Snapshot}s, so dashboards and monitors can poll them as often as
+ * they like. The store changes them from the JavaFX thread while other threads could read them, every method is
+ * synchronized.
+ * </p>
+ *
+ * <p>
+ * If the store is lazy the deliveries still on disk are counted too: the sender index of the file keeps the
+ * aggregates of every sender (see {@link BinaryDeliveryFile}), they're added when the index is opened and taken
+ * back when the deliveries of the sender are loaded and counted one by one (see {@link LazyDeliveryIndex}).
+ * </p>
+ */
+public final class DeliveryStatistics {
+    private static final DeliveryState[] STATES = DeliveryState.values();
+    private static final DeliveryType[] TYPES = DeliveryType.values();
+
+    private final Aggregate total = new Aggregate();
+    private final Map<UUID, Aggregate> bySender = new HashMap<>();
+
+    /**
+     * An immutable copy of the aggregates of a set of deliveries.
+     */
+    @Value
+    public static class Snapshot {
+        /**
+         * Number of deliveries.
+         */
+        long count;
+        /**
+         * Number of deliveries in every state (the states without deliveries are included).
+         */
+        Map<DeliveryState, Long> countByState;
+        /**
+         * Number of deliveries of every type (the types without deliveries are included).
+         */
+        Map<DeliveryType, Long> countByType;
+        /**
+         * Sum of the weights of the deliveries in transit.
+         */
+        double weightInTransit;
+        /**
+         * Sum of the insured values of the insured deliveries that can still change state (see
+         * {@link TransitionableDeliveries#accepts(DeliveryState)}): the ones that could still fail and the refunds
+         * still to be paid.
+         */
+        Money insuredExposure;
+
+        /**
+         * The number of deliveries in the state.
+         *
+         * @param state The state
+         * @return The number of deliveries
+         */
+        public long getCount(DeliveryState state) {
+            return countByState.get(state);
+        }
+
+        /**
+         * The number of deliveries of the type.
+         *
+         * @param type The type
+         * @return The number of deliveries
+         */
+        public long getCount(DeliveryType type) {
+            return countByType.get(type);
+        }
+    }
+
+    // The mutable counters behind a snapshot
+    private static final class Aggregate {
+        private long count;
+        private final long[] countByState = new long[STATES.length];
+        private final long[] countByType = new long[TYPES.length];
+        private double weightInTransit;
+        private final Money.Accumulator insuredExposure = new Money.Accumulator();
+
+        private void add(Delivery delivery, DeliveryState state, int sign) {
+            countByState[state.ordinal()] += sign;
+            if (state == DeliveryState.IN_TRANSIT) {
+                // Summing and subtracting doubles leaves some rounding error, it's dropped when no delivery is left
+                weightInTransit += sign * delivery.getWeight();
+                if (countByState[state.ordinal()] == 0) weightInTransit = 0;
+            }
+            if (delivery instanceof InsuredDelivery && TransitionableDeliveries.accepts(state)) {
+                var value = ((InsuredDelivery) delivery).getInsuredValue();
+                if (sign > 0) {
+                    insuredExposure.add(value);
+                } else {
+                    insuredExposure.subtract(value);
+                }
+            }
+        }
+
+        // Adds (or subtracts) the aggregates of a group of deliveries
+        private void add(Snapshot group, int sign) {
+            count += sign * group.count;
+            for (var state : STATES) countByState[state.ordinal()] += sign * group.getCount(state);
+            for (var type : TYPES) countByType[type.ordinal()] += sign * group.getCount(type);
+            weightInTransit += sign * group.weightInTransit;
+            if (countByState[DeliveryState.IN_TRANSIT.ordinal()] == 0) weightInTransit = 0;
+            if (sign > 0) {
+                insuredExposure.add(group.insuredExposure);
+            } else {
+                insuredExposure.subtract(group.insuredExposure);
+            }
+        }
+
+        private Snapshot snapshot() {
+            var states = new EnumMap<DeliveryState, Long>(DeliveryState.class);
+            for (var state : STATES) states.put(state, countByState[state.ordinal()]);
+            var types = new EnumMap<DeliveryType, Long>(DeliveryType.class);
+            for (var type : TYPES) types.put(type, countByType[type.ordinal()]);
+            return new Snapshot(count, Collections.unmodifiableMap(states), Collections.unmodifiableMap(types),
+                    weightInTransit, insuredExposure.get());
+        }
+    }
+
+    /**
+     * The aggregates of all the deliveries.
+     *
+     * @return The current aggregates
+     */
+    public synchronized Snapshot snapshot() {
+        return total.snapshot();
+    }
+
+    /**
+     * The aggregates of the deliveries of a sender.
+     *
+     * @param sender The sender
+     * @return The current aggregates (all zeroes if the sender has no deliveries)
+     */
+    public synchronized Snapshot snapshot(UUID sender) {
+        var aggregate = bySender.get(sender);
+        return (aggregate != null ? aggregate : new Aggregate()).snapshot();
+    }
+
+    /**
+     * Aggregates a group of deliveries, ex. the ones of a sender written in a file.
+     *
+     * @param deliveries The deliveries
+     * @return Their aggregates
+     */
+    static Snapshot of(Collection<? extends Delivery> deliveries) {
+        var res = new Aggregate();
+        for (var delivery : deliveries) count(res, delivery, 1);
+        return res.snapshot();
+    }
+
+    /**
+     * Counts the deliveries of a sender that are still on disk.
+     *
+     * @param sender The sender
+     * @param group The aggregates of its deliveries
+     */
+    synchronized void addedUnloaded(UUID sender, Snapshot group) {
+        total.add(group, 1);
+        bySender.computeIfAbsent(sender, x -> new Aggregate()).add(group, 1);
+    }
+
+    /**
+     * Stops counting the deliveries of a sender that were on disk, they're counted one by one once loaded.
+     *
+     * @param sender The sender
+     * @param group The aggregates passed to {@link #addedUnloaded(UUID, Snapshot)}
+     */
+    synchronized void removedUnloaded(UUID sender, Snapshot group) {
+        total.add(group, -1);
+        var aggregate = bySender.get(sender);
+        if (aggregate == null) return;
+        aggregate.add(group, -1);
+        if (aggregate.count == 0) bySender.remove(sender);
+    }
+
+    /**
+     * Counts a registered delivery.
+     *
+     * @param delivery The delivery
+     */
+    synchronized void added(Delivery delivery) {
+        count(total, delivery, 1);
+        count(bySender.computeIfAbsent(delivery.getSender(), x -> new Aggregate()), delivery, 1);
+    }
+
+    /**
+     * Stops counting a removed delivery.
+     *
+     * @param delivery The delivery, in the state it had when it was removed
+     */
+    synchronized void removed(Delivery delivery) {
+        count(total, delivery, -1);
+        var aggregate = bySender.get(delivery.getSender());
+        if (aggregate == null) return;
+        count(aggregate, delivery, -1);
+        if (aggregate.count == 0) bySender.remove(delivery.getSender());
+    }
+
+    /**
+     * Moves a delivery from its old state to the new one.
+     *
+     * @param delivery The delivery
+     * @param oldState The previous state
+     * @param newState The current state
+     */
+    synchronized void stateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+        total.add(delivery, oldState, -1);
+        total.add(delivery, newState, 1);
+        var aggregate = bySender.get(delivery.getSender());
+        if (aggregate == null) return;
+        aggregate.add(delivery, oldState, -1);
+        aggregate.add(delivery, newState, 1);
+    }
+
+    private static void count(Aggregate aggregate, Delivery delivery, int sign) {
+        aggregate.count += sign;
+        aggregate.countByType[DeliveryType.of(delivery).ordinal()] += sign;
+        aggregate.add(delivery, delivery.getState(), sign);
+    }
+}
@@ -3,32 +3,243 @@ package it.unimore.s273693.deliveru.db;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import javafx.collections.FXCollections;
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
+import it.unimore.s273693.deliveru.serialize.JsonDbStream;
 import javafx.collections.ObservableList;
+import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 /**
  * Stores all of the deliveries.
- * Supports queries by UUID and by author, is also in charge of loading and saving the data.
+ * Supports queries by UUID, by author, by state and by date, is also in charge of loading and saving the data.
+ * The other queries are built with {@link DeliveryQuery} and run on the most selective index.
+ *
+ * <p>
+ * The deliveries are saved in a compact binary format (see {@link BinaryDeliveryFile}), the old JSON format
+ * is still recognized while loading and can be produced with {@link #exportJson(OutputStream)}.
+ * </p>
+ *
+ * <p>
+ * Every mutation (additions, removals and state changes) is forwarded to the registered
+ * {@link DeliveryStoreListener}s, this is how the {@link DeliveryJournal}, the {@link DeliverySegment} and the
+ * {@link DeliveryShards} keep track of the changes.
+ * Batches ({@link #addAll(Collection)} and {@link #removeAll(Collection)}) are validated before any change and are
+ * notified once, both to the listeners and to the observable lists.
+ * The same changes are also published as a {@link Flow.Publisher} of events, see {@link #events()}.
+ * </p>
+ *
+ * <p>
+ * A store can also be lazy (see {@link #load(File, File, boolean)}): only the sender index of the file is read at
+ * startup and the deliveries of a sender are loaded the first time they're needed ({@link #getByAuthor(UUID)},
+ * {@link #getById(UUID)}, {@link #add(Delivery)} and the queries, see {@link #find(DeliveryQuery)}, do it
+ * automatically).
+ * In this case {@link #getDeliveries()} only contains the loaded deliveries, the others can be loaded
+ * a bit at a time with {@link #loadPage(int)}.
+ * </p>
+ *
+ * <p>
+ * A store can also be compact (chosen when it's created, ex. {@link #load(File, File, boolean, boolean)}): the
+ * deliveries are kept in columns (see {@link DeliveryColumns}) using several times less memory, and the deliveries
+ * handed out by the store are views created on demand.
+ * A lazy store cannot be compact.
+ * </p>
+ *
+ * <p>
+ * The deliveries that reached a final state long ago can be moved to a {@link DeliveryArchive} with
+ * {@link #archive(LocalDate)}, they are removed from the store but {@link #getById(UUID)} still finds them
+ * (as read-only copies).
+ * </p>
  */
 public class DeliveryStore {
     private static final Logger logger = LogManager.getLogger(DeliveryStore.class);
+    private static final long JSON_DB_VERSION = 1;
+    private static final int MIN_DESTINATIONS_LIMIT = 1024;
 
     /**
-     * Observable list containing all of the registered deliveries.
+     * Observable list containing all of the registered deliveries (only the loaded ones if the store is lazy).
      * To filter by author use {@link DeliveryStore#getByAuthor(UUID)}.
      *
      * @return All registered deliveries
      */
     @Getter
-    private final ObservableList<Delivery> deliveries = FXCollections.observableArrayList();
-    private final Map<UUID, Delivery> deliveriesById = new HashMap<>();
-    private final Map<UUID, ObservableList<Delivery>> deliveriesBySender = new HashMap<>();
+    private final ObservableList<Delivery> deliveries;
+    private Map<UUID, Delivery> deliveriesById = new HashMap<>();
+    private Map<UUID, IndexedDeliveryList> deliveriesBySender = new HashMap<>();
+    private final Map<DeliveryState, Set<Delivery>> deliveriesByState = createStateIndex();
+    private final NavigableMap<LocalDate, Set<Delivery>> deliveriesByDate = new TreeMap<>();
+
+    /**
+     * The deliveries whose state can still change on their own (only the loaded ones if the store is lazy),
+     * it can be sampled from any thread.
+     *
+     * @return The transitionable deliveries
+     */
+    @Getter
+    private final TransitionableDeliveries transitionable = new TransitionableDeliveries();
+    /**
+     * The aggregates of the deliveries, globally and per sender (including the ones not loaded yet), they can be
+     * read from any thread.
+     *
+     * @return The delivery statistics
+     */
+    @Getter
+    private final DeliveryStatistics statistics = new DeliveryStatistics();
+    /**
+     * The dictionary of the destinations: the deliveries with the same destination share the same string (the
+     * compact storage keeps its ids), its hit ratio tells how many copies have been dropped.
+     * Read it from the thread that mutates the store.
+     *
+     * @return The destination dictionary
+     */
+    @Getter
+    private final StringDictionary destinations = new StringDictionary();
+    // The destinations are rebuilt by the next full copy once the dictionary grows past this size
+    private int destinationsLimit = MIN_DESTINATIONS_LIMIT;
+    private final List<DeliveryStoreListener> listeners = new ArrayList<>();
+    // Created by the first call to events()
+    private DeliveryEventPublisher events;
+    // Created by the first call to searchDestination()
+    private TrigramIndex<UUID> destinationIndex;
+
+    /**
+     * The journal where the changes are recorded (null if the store is not journaled).
+     *
+     * @return The journal or null
+     */
+    @Getter
+    private DeliveryJournal journal;
+
+    /**
+     * The memory-mapped segment where the deliveries are stored (null if the store is not backed by a segment).
+     *
+     * @return The segment or null
+     */
+    @Getter
+    private DeliverySegment segment;
+
+    /**
+     * The shards where the deliveries are stored (null if the store is not sharded).
+     *
+     * @return The shards or null
+     */
+    @Getter
+    private DeliveryShards shards;
+
+    /**
+     * Forwards the changes to the storage backend (null if the store is not backed by a {@link DeliveryBackend}).
+     *
+     * @return The backend sync or null
+     */
+    @Getter
+    private DeliveryBackendSync backendSync;
+
+    // The deliveries still on disk (null if the store is not lazy)
+    private LazyDeliveryIndex lazy;
+
+    // The columns where the deliveries are stored (null if the store is not compact), deliveries is their view
+    private final DeliveryColumns columns;
+
+    /**
+     * The archive of the old finalized deliveries (null if there's no archive).
+     *
+     * @param archive The archive, it will be closed with the store
+     * @return The archive or null
+     */
+    @Getter
+    @Setter
+    private DeliveryArchive archive;
+
+    /**
+     * Incremented on every mutation, used to know if the store changed since it was last saved.
+     *
+     * @return The current version
+     */
+    @Getter
+    private long version;
+
+    /**
+     * The generation of the snapshot the store was read from, or of the last one taken (see {@link Snapshot}).
+     *
+     * @return The snapshot generation, 0 if unknown
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private long snapshotGeneration;
+
+    /**
+     * The journal set aside while loading because it continues a newer snapshot than the one that could be read
+     * (null if nothing was set aside): the changes recorded in it are missing from the store.
+     *
+     * @return The set aside journal or null
+     */
+    @Getter
+    private File orphanJournal;
+
+    /**
+     * True if the store replaces deliveries that could not be opened (see {@link #createUnsaved()}): saving it
+     * would overwrite them, so it must never be saved.
+     *
+     * @return true if the store must not be saved
+     */
+    @Getter
+    private boolean unsaved;
+
+    private DeliveryStore(boolean compact) {
+        if (compact) {
+            this.columns = new DeliveryColumns(this, this.destinations, 0);
+            this.deliveries = new ColumnarDeliveryList(this.columns);
+        } else {
+            this.columns = null;
+            this.deliveries = new IndexedDeliveryList(IndexedDeliveryList.Slot.STORE);
+        }
+    }
+
+    /**
+     * Registers a listener that will be notified of every mutation.
+     *
+     * @param listener The listener to register
+     */
+    public void addListener(DeliveryStoreListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a previously registered listener.
+     *
+     * @param listener The listener to unregister
+     */
+    public void removeListener(DeliveryStoreListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * The stream of the changes of the store (additions, removals and state changes), published in batches from a
+     * background thread with back-pressure (see {@link DeliveryEventPublisher}), so a consumer doesn't need a
+     * listener on every delivery.
+     * The events are numbered from the first call, the changes made before a subscription are not published to it.
+     *
+     * @return The publisher of the change events
+     */
+    public Flow.Publisher<List<DeliveryEvent>> events() {
+        if (this.events == null) {
+            this.events = new DeliveryEventPublisher();
+            this.addListener(this.events);
+        }
+        return this.events;
+    }
 
     /**
      * Adds a delivery.
@@ -37,12 +248,25 @@ public class DeliveryStore {
      * @param delivery The delivery to add
      */
     public void add(Delivery delivery) {
-        var previous = this.deliveriesById.putIfAbsent(delivery.getCode(), delivery);
-        if (previous != null) throw new IllegalArgumentException("Delivery with the same UUID already registered");
-        this.deliveries.add(delivery);
-        this.deliveriesBySender.computeIfAbsent(delivery.getSender(), (id) -> FXCollections.observableList(new ArrayList<>()))
-                .add(delivery);
+        this.materialize(delivery.getSender());
+        if (this.columns != null) {
+            this.addToColumns(delivery);
+        } else {
+            var previous = this.deliveriesById.putIfAbsent(delivery.getCode(), delivery);
+            if (previous != null) {
+                throw new IllegalArgumentException("Delivery with the same UUID already registered");
+            }
+            delivery.store = this;
+            this.deliveries.add(delivery);
+            this.deliveriesBySender
+                    .computeIfAbsent(delivery.getSender(), DeliveryStore::newSenderList)
+                    .add(delivery);
+            this.index(delivery);
+        }
+        this.track(delivery);
         logger.info("Registered {}", delivery.getCode());
+        this.version++;
+        for (var listener : this.listeners) listener.onAdded(delivery);
     }
 
     /**
@@ -53,20 +277,216 @@ public class DeliveryStore {
      */
     public void remove(Delivery delivery) {
         if (!delivery.isInFinalState()) throw new IllegalArgumentException("Cannot remove delivery with non-final state");
-        if (deliveriesById.remove(delivery.getCode()) == null) return;
-        deliveries.remove(delivery);
-        var senderDeliveries = deliveriesBySender.get(delivery.getSender());
-        senderDeliveries.remove(delivery);
+        Delivery registered;
+        if (this.columns != null) {
+            registered = this.removeFromColumns(delivery.getCode());
+            if (registered == null) return;
+        } else {
+            registered = deliveriesById.remove(delivery.getCode());
+            if (registered == null) return;
+            ((IndexedDeliveryList) deliveries).removeUnordered(registered);
+            deliveriesBySender.get(registered.getSender()).removeUnordered(registered);
+            this.unindex(registered);
+        }
+        // The caller's instance might be a stale copy, the registered one has the tracked state and destination
+        this.untrack(registered);
+        registered.store = null;
+        delivery.store = null;
+        this.version++;
+        for (var listener : this.listeners) listener.onRemoved(registered);
+    }
+
+    /**
+     * Adds several deliveries, the observable lists are changed (and notified) once per batch.
+     * The whole batch is checked first: if a delivery has the same UUID of a registered one (or of another one in
+     * the batch) an error is thrown and none of them is added.
+     *
+     * @param toAdd The deliveries to add
+     */
+    public void addAll(Collection<? extends Delivery> toAdd) {
+        var codes = new HashSet<UUID>();
+        for (var delivery : toAdd) {
+            if (!codes.add(delivery.getCode()) || this.getLoaded(delivery.getCode()) != null) {
+                throw new IllegalArgumentException("Delivery with the same UUID already registered");
+            }
+        }
+        // The senders still on disk are checked without decoding them, they're only loaded once the batch is valid
+        if (this.lazy != null && this.lazy.containsAny(toAdd)) {
+            throw new IllegalArgumentException("Delivery with the same UUID already registered");
+        }
+        if (toAdd.isEmpty()) return;
+        for (var delivery : toAdd) this.materialize(delivery.getSender());
+        var batch = List.<Delivery>copyOf(toAdd);
+        this.insertAll(batch);
+        logger.info("Registered {} deliveries", batch.size());
+        this.version++;
+        for (var listener : this.listeners) listener.onAddedAll(batch);
+    }
+
+    /**
+     * Removes several deliveries, the observable lists are changed (and notified) once per batch and the order of
+     * the remaining deliveries is kept.
+     * The whole batch is checked first: if a delivery is not in a final state an error is thrown and none of them
+     * is removed. The deliveries that are not registered are ignored.
+     *
+     * @param toRemove The deliveries to remove
+     * @return The number of removed deliveries
+     */
+    public int removeAll(Collection<? extends Delivery> toRemove) {
+        for (var delivery : toRemove) {
+            if (!delivery.isInFinalState()) {
+                throw new IllegalArgumentException("Cannot remove delivery with non-final state");
+            }
+        }
+        var removed = new ArrayList<Delivery>(toRemove.size());
+        if (this.columns != null) {
+            var rows = new int[toRemove.size()];
+            int count = 0;
+            for (var delivery : toRemove) {
+                int row = this.columns.find(delivery.getCode());
+                if (row >= 0) rows[count++] = row;
+                delivery.store = null;
+            }
+            rows = Arrays.stream(rows, 0, count).sorted().distinct().toArray();
+            for (int row : rows) removed.add(this.columns.view(row));
+            this.columns.removeAll(rows, rows.length);
+            ((ColumnarDeliveryList) this.deliveries).fireRemoved(rows, removed);
+        } else {
+            for (var delivery : toRemove) {
+                var registered = this.deliveriesById.remove(delivery.getCode());
+                delivery.store = null;
+                if (registered == null) continue;
+                this.unindex(registered);
+                removed.add(registered);
+            }
+            this.deliveries.removeAll(removed);
+        }
+        if (removed.isEmpty()) return 0;
+
+        var bySender = new HashMap<UUID, List<Delivery>>();
+        for (var delivery : removed) {
+            delivery.store = null;
+            this.untrack(delivery);
+            bySender.computeIfAbsent(delivery.getSender(), x -> new ArrayList<>()).add(delivery);
+        }
+        bySender.forEach((sender, deliveries) -> {
+            var senderDeliveries = this.deliveriesBySender.get(sender);
+            if (senderDeliveries != null) senderDeliveries.removeAll(deliveries);
+        });
+        logger.info("Removed {} deliveries", removed.size());
+        this.version++;
+        var batch = Collections.unmodifiableList(removed);
+        for (var listener : this.listeners) listener.onRemovedAll(batch);
+        return removed.size();
+    }
+
+    // Registers deliveries without duplicates, every observable list is changed once
+    private void insertAll(List<Delivery> batch) {
+        var bySender = new LinkedHashMap<UUID, List<Delivery>>();
+        for (var delivery : batch) {
+            bySender.computeIfAbsent(delivery.getSender(), x -> new ArrayList<>()).add(delivery);
+            this.track(delivery);
+        }
+        if (this.columns != null) {
+            int from = this.columns.getSize();
+            for (var delivery : batch) {
+                this.columns.add(delivery, true);
+                delivery.store = this;
+            }
+            ((ColumnarDeliveryList) this.deliveries).fireAdded(from);
+            bySender.forEach((sender, deliveries) -> {
+                var senderDeliveries = this.deliveriesBySender.get(sender);
+                if (senderDeliveries != null) senderDeliveries.addAll(deliveries);
+            });
+            return;
+        }
+        for (var delivery : batch) {
+            this.deliveriesById.put(delivery.getCode(), delivery);
+            delivery.store = this;
+            this.index(delivery);
+        }
+        this.deliveries.addAll(batch);
+        bySender.forEach((sender, deliveries) -> this.deliveriesBySender
+                .computeIfAbsent(sender, DeliveryStore::newSenderList)
+                .addAll(deliveries));
+    }
+
+    // Updates the structures that follow every registered delivery, whatever the storage
+    private void track(Delivery delivery) {
+        // The compact storage interns the destinations on its own
+        if (this.columns == null) delivery.internDestination(this.destinations);
+        this.transitionable.update(delivery.getCode(), delivery.getState());
+        this.statistics.added(delivery);
+        if (this.destinationIndex != null) this.destinationIndex.add(delivery.getCode(), delivery.getDestination());
+    }
+
+    private void untrack(Delivery delivery) {
+        this.transitionable.remove(delivery.getCode());
+        this.statistics.removed(delivery);
+        if (this.destinationIndex != null) {
+            this.destinationIndex.remove(delivery.getCode(), delivery.getDestination());
+        }
+    }
+
+    /**
+     * Called by a registered delivery when its state changes.
+     *
+     * @param delivery The changed delivery
+     * @param oldState The previous state
+     * @param newState The current state
+     */
+    void onStateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+        if (this.columns != null) {
+            int row = this.columns.find(delivery.getCode());
+            if (row >= 0) this.columns.setState(row, newState);
+        } else {
+            this.deliveriesByState.get(oldState).remove(delivery);
+            this.deliveriesByState.get(newState).add(delivery);
+        }
+        this.transitionable.update(delivery.getCode(), newState);
+        this.statistics.stateChanged(delivery, oldState, newState);
+        this.version++;
+        for (var listener : this.listeners) listener.onStateChanged(delivery, oldState, newState);
     }
 
     /**
      * Queries the delivery by its UUID.
+     * If it's not found between the current deliveries the archive is searched too.
      *
      * @param code The UUID of the delivery to search
      * @return the delivery (or an empty optional)
      */
     public Optional<Delivery> getById(UUID code) {
-        return Optional.ofNullable(this.deliveriesById.get(code));
+        var delivery = this.getLoaded(code);
+        if (delivery == null && this.lazy != null && this.lazy.getUnloadedCount() > 0) {
+            var sender = this.lazy.findSender(code);
+            if (sender != null) {
+                this.materialize(sender);
+                delivery = this.deliveriesById.get(code);
+            }
+        }
+        if (delivery == null && this.archive != null && this.archive.contains(code)) {
+            try {
+                return this.archive.get(code);
+            } catch (IOException e) {
+                logger.error("Cannot read archived delivery {}", code, e);
+            }
+        }
+        return Optional.ofNullable(delivery);
+    }
+
+    /**
+     * Queries a delivery between the ones already loaded.
+     *
+     * @param code The UUID of the delivery to search
+     * @return the delivery or null
+     */
+    Delivery getLoaded(UUID code) {
+        if (this.columns != null) {
+            int row = this.columns.find(code);
+            return row >= 0 ? this.columns.view(row) : null;
+        }
+        return this.deliveriesById.get(code);
     }
 
     /**
@@ -76,58 +496,565 @@ public class DeliveryStore {
      * @return All of his deliveries
      */
     public ObservableList<Delivery> getByAuthor(UUID user) {
-        return this.deliveriesBySender.computeIfAbsent(user, (id) -> FXCollections.observableList(new ArrayList<>()));
+        this.materialize(user);
+        var res = this.deliveriesBySender.get(user);
+        if (res == null) {
+            res = newSenderList(user);
+            if (this.columns != null) {
+                // Only the lists that have been requested are kept
+                for (int row = 0; row < this.columns.getSize(); row++) {
+                    if (this.columns.isSender(row, user)) res.add(this.columns.view(row));
+                }
+            }
+            this.deliveriesBySender.put(user, res);
+        }
+        return res;
+    }
+
+    /**
+     * Queries the deliveries in the provided state, in time proportional to the result size.
+     * If the store is lazy only the loaded deliveries are considered.
+     *
+     * @param state The state to search for
+     * @return A copy of the deliveries in that state
+     */
+    public List<Delivery> getByState(DeliveryState state) {
+        if (this.columns != null) return this.views(this.columns.rowsInState(state));
+        return new ArrayList<>(this.deliveriesByState.get(state));
+    }
+
+    /**
+     * Counts the deliveries in the provided state (only the loaded ones if the store is lazy).
+     *
+     * @param state The state to search for
+     * @return The number of deliveries in that state
+     */
+    public int countByState(DeliveryState state) {
+        if (this.columns != null) return this.columns.countInState(state);
+        return this.deliveriesByState.get(state).size();
+    }
+
+    /**
+     * Queries the deliveries dated in a range of days, in time proportional to the result size.
+     * If the store is lazy only the loaded deliveries are considered.
+     *
+     * @param from The first day (inclusive)
+     * @param to The last day (exclusive)
+     * @return A copy of the deliveries in the range, sorted by date
+     */
+    public List<Delivery> getByDate(LocalDate from, LocalDate to) {
+        if (this.columns != null) return this.views(this.columns.rowsInDays(from.toEpochDay(), to.toEpochDay()));
+        var res = new ArrayList<Delivery>();
+        if (!from.isBefore(to)) return res;
+        for (var day : this.deliveriesByDate.subMap(from, true, to, false).values()) {
+            res.addAll(day);
+        }
+        return res;
+    }
+
+    /**
+     * Streams the deliveries matching the query, using the most selective index (see {@link DeliveryQueryPlanner}).
+     * If the query is not sorted the matches are found lazily, while the stream is consumed.
+     * If the store is lazy the deliveries that could match are loaded first (see {@link #materialize(DeliveryQuery)}).
+     * Consume the stream before changing the store.
+     *
+     * @param query The query to execute
+     * @return The matching deliveries
+     */
+    public Stream<Delivery> stream(DeliveryQuery query) {
+        this.materialize(query);
+        return this.planner().stream(query);
+    }
+
+    /**
+     * Finds a page of the deliveries matching the query, only the deliveries of the page are kept in memory.
+     * The next page is found with {@link DeliveryQuery#continueAfter(DeliveryQuery.Cursor)}.
+     * If the store is lazy the deliveries that could match are loaded first (see {@link #materialize(DeliveryQuery)}).
+     *
+     * @param query The query to execute, it must be sorted
+     * @return The page
+     * @throws IllegalArgumentException if the query is not sorted
+     */
+    public DeliveryPage find(DeliveryQuery query) {
+        this.materialize(query);
+        return this.planner().find(query);
     }
 
     /**
-     * Serializes the instance into a JSON-serioalizable class.
+     * Searches the deliveries whose destination contains the query or looks like it (ignoring the case), from the
+     * best match (see {@link TrigramIndex}).
+     * The first search indexes the destinations of all the deliveries, the index is then kept up to date.
+     * If the store is lazy only the loaded deliveries are considered.
      *
-     * @return A serializable instance with the same deliveries
+     * @param query The text to search
+     * @param limit The maximum number of deliveries to return
+     * @return The matching deliveries
      */
-    private SerializedDb serialize() {
-        var db = new SerializedDb();
-        db.deliveries = this.deliveries;
-        db.version = 1;
+    public List<TrigramIndex.Match<Delivery>> searchDestination(String query, int limit) {
+        if (this.destinationIndex == null) this.destinationIndex = this.indexDestinations();
+        var res = new ArrayList<TrigramIndex.Match<Delivery>>();
+        for (var match : this.destinationIndex.search(query, limit)) {
+            var delivery = this.getLoaded(match.getKey());
+            if (delivery == null) continue;
+            res.add(new TrigramIndex.Match<>(delivery, match.getText(), match.getSimilarity(), match.isSubstring()));
+        }
+        return res;
+    }
+
+    // The views of the rows of a compact store
+    private List<Delivery> views(int[] rows) {
+        var res = new ArrayList<Delivery>(rows.length);
+        for (int row : rows) res.add(this.columns.view(row));
+        return res;
+    }
+
+    private TrigramIndex<UUID> indexDestinations() {
+        var index = new TrigramIndex<UUID>();
+        if (this.columns != null) {
+            for (int row = 0; row < this.columns.getSize(); row++) {
+                index.add(this.columns.code(row), this.columns.destination(row));
+            }
+        } else {
+            for (var delivery : this.deliveries) index.add(delivery.getCode(), delivery.getDestination());
+        }
+        logger.info("Indexed {} destinations", index.getTextCount());
+        return index;
+    }
 
-        return db;
+    private DeliveryQueryPlanner planner() {
+        return new DeliveryQueryPlanner(this.deliveries, this.deliveriesBySender, this.deliveriesByState,
+                this.deliveriesByDate, this.columns);
+    }
+
+    private static IndexedDeliveryList newSenderList(UUID sender) {
+        return new IndexedDeliveryList(IndexedDeliveryList.Slot.SENDER);
+    }
+
+    private static Map<DeliveryState, Set<Delivery>> createStateIndex() {
+        var res = new EnumMap<DeliveryState, Set<Delivery>>(DeliveryState.class);
+        for (var state : DeliveryState.values()) {
+            res.put(state, new HashSet<>());
+        }
+        return res;
+    }
+
+    private void index(Delivery delivery) {
+        this.deliveriesByState.get(delivery.getState()).add(delivery);
+        this.deliveriesByDate.computeIfAbsent(delivery.getDate(), x -> new HashSet<>()).add(delivery);
+    }
+
+    private void unindex(Delivery delivery) {
+        this.deliveriesByState.get(delivery.getState()).remove(delivery);
+        var day = this.deliveriesByDate.get(delivery.getDate());
+        if (day != null && day.remove(delivery) && day.isEmpty()) this.deliveriesByDate.remove(delivery.getDate());
     }
 
     /**
-     * Clears this instance's data and deserializes the data.
+     * Moves the deliveries in a final state dated before the provided day to the archive.
+     * The deliveries are synced to the archive before they're removed from the store, if the program crashes in
+     * between they're only removed on the next call.
+     * If the store is lazy only the senders with something to archive are loaded, they're found with the index of
+     * the file (see {@link LazyDeliveryIndex#takeArchivable}) without reading the other ones.
      *
-     * @param db The serialized data
+     * @param before The deliveries dated before this day are archived
+     * @return The number of archived deliveries
+     * @throws IOException when the deliveries cannot be written to the archive (none of them is removed)
      */
-    private void deserialize(SerializedDb db) {
-        this.deliveries.clear();
-        this.deliveriesById.clear();
-        this.deliveriesBySender.clear();
+    public int archive(LocalDate before) throws IOException {
+        if (this.archive == null) throw new IllegalStateException("The store has no archive");
+        var toArchive = new ArrayList<Delivery>();
+        if (this.columns != null) {
+            for (int row : this.columns.rowsInDays(Long.MIN_VALUE, before.toEpochDay())) {
+                if (this.columns.isInFinalState(row)) toArchive.add(this.columns.view(row));
+            }
+        } else {
+            if (this.lazy != null) {
+                this.lazy.takeArchivable(before.toEpochDay()).forEach(this::insertLoaded);
+            }
+            for (var delivery : this.deliveries) {
+                if (isArchivable(delivery, before)) toArchive.add(delivery);
+            }
+        }
+        if (toArchive.isEmpty()) return 0;
+
+        this.archive.append(toArchive);
+        return this.removeAll(toArchive);
+    }
+
+    private static boolean isArchivable(Delivery delivery, LocalDate before) {
+        return delivery.isInFinalState() && delivery.getDate().isBefore(before);
+    }
+
+    /**
+     * The number of deliveries, including the ones not loaded yet.
+     *
+     * @return The number of deliveries
+     */
+    public long size() {
+        if (this.columns != null) return this.columns.getSize();
+        return this.deliveriesById.size() + (this.lazy != null ? this.lazy.getUnloadedCount() : 0);
+    }
+
+    /**
+     * Checks if the store loads the deliveries on demand.
+     *
+     * @return true if the store is lazy
+     */
+    public boolean isLazy() {
+        return this.lazy != null;
+    }
+
+    /**
+     * Checks if the deliveries are stored in columns (see {@link DeliveryColumns}), it's chosen when the store is
+     * created.
+     *
+     * @return true if the store is compact
+     */
+    public boolean isCompact() {
+        return this.columns != null;
+    }
 
-        if (db.version != 1) {
-            logger.error("Failed to load deliveries, incompatible db version: {}", db.version);
+    private void addToColumns(Delivery delivery) {
+        int row = this.columns.add(delivery, true);
+        if (row < 0) throw new IllegalArgumentException("Delivery with the same UUID already registered");
+        delivery.store = this;
+        ((ColumnarDeliveryList) this.deliveries).fireAdded(row);
+        var senderDeliveries = this.deliveriesBySender.get(delivery.getSender());
+        if (senderDeliveries != null) senderDeliveries.add(delivery);
+    }
+
+    private Delivery removeFromColumns(UUID code) {
+        int row = this.columns.find(code);
+        if (row < 0) return null;
+        var removed = this.columns.view(row);
+        int last = this.columns.getSize() - 1;
+        var moved = row != last ? this.columns.view(last) : null;
+        this.columns.remove(row);
+        ((ColumnarDeliveryList) this.deliveries).fireRemoved(row, removed, moved);
+        removed.store = null;
+        var senderDeliveries = this.deliveriesBySender.get(removed.getSender());
+        if (senderDeliveries != null) senderDeliveries.removeUnordered(removed);
+        return removed;
+    }
+
+    /**
+     * Loads the deliveries of the sender if the store is lazy and they're still on disk.
+     * The loaded deliveries are not notified to the store listeners (they're not new).
+     *
+     * @param sender The sender
+     */
+    void materialize(UUID sender) {
+        if (this.lazy == null || this.lazy.isLoaded(sender)) return;
+        this.lazy.take(sender).forEach(this::insertLoaded);
+    }
+
+    /**
+     * Loads the deliveries still on disk that could match the query, so that it doesn't miss any: the ones of the
+     * queried sender or, if the query has no sender, the ones of every sender with a delivery in the queried states
+     * (found with the aggregates in the index of the file, see {@link LazyDeliveryIndex#takeInStates}).
+     * A query without a sender can load most of the file, use {@link #loadPage(int)} first to keep the UI
+     * responsive. The deliveries that cannot be read are still missing from the results.
+     *
+     * @param query The query
+     */
+    void materialize(DeliveryQuery query) {
+        if (this.lazy == null) return;
+        if (query.getSender() != null) {
+            this.materialize(query.getSender());
             return;
         }
+        this.lazy.takeInStates(query.getStates()).forEach(this::insertLoaded);
+    }
 
-        for (var delivery : db.deliveries) {
-            try {
-                this.add(delivery);
-            } catch (IllegalArgumentException e) {
-                logger.error("Error adding delivery {}, is the db corrupted?", delivery.getCode(), e);
+    /**
+     * Loads some of the deliveries still on disk, call it repeatedly (ex. once per frame) to load them all
+     * without blocking the UI.
+     *
+     * @param maxDeliveries The maximum number of deliveries to load (a sender is never split)
+     * @return true if there are other deliveries to load (the ones that cannot be read are not counted)
+     */
+    public boolean loadPage(int maxDeliveries) {
+        if (this.lazy == null) return false;
+        this.lazy.takePage(maxDeliveries).forEach(this::insertLoaded);
+        return this.lazy.hasReadable();
+    }
+
+    private void insertLoaded(Delivery delivery) {
+        if (this.deliveriesById.putIfAbsent(delivery.getCode(), delivery) != null) {
+            logger.error("Duplicated delivery {}, is the db corrupted?", delivery.getCode());
+            return;
+        }
+        delivery.store = this;
+        this.deliveries.add(delivery);
+        this.deliveriesBySender
+                .computeIfAbsent(delivery.getSender(), DeliveryStore::newSenderList)
+                .add(delivery);
+        this.index(delivery);
+        this.track(delivery);
+    }
+
+    /**
+     * Adds the deliveries read from the db with a single update of the observable lists, logging the ones that
+     * cannot be added.
+     * Loading into an empty store takes a faster path (see {@link #bulkLoad(Collection)}).
+     *
+     * @param loaded The loaded deliveries
+     */
+    void addAllLoaded(Collection<? extends Delivery> loaded) {
+        if (this.columns == null && this.deliveriesById.isEmpty()) {
+            this.bulkLoad(loaded);
+            this.logDestinations();
+            return;
+        }
+        var codes = new HashSet<UUID>();
+        var batch = new ArrayList<Delivery>(loaded.size());
+        for (var delivery : loaded) {
+            if (!codes.add(delivery.getCode()) || this.getLoaded(delivery.getCode()) != null) {
+                logger.error("Error adding delivery {}, is the db corrupted?", delivery.getCode());
+                continue;
             }
+            batch.add(delivery);
         }
+        if (batch.isEmpty()) return;
+        this.insertAll(batch);
+        this.version++;
+        var added = Collections.unmodifiableList(batch);
+        for (var listener : this.listeners) listener.onAddedAll(added);
+        this.logDestinations();
+    }
 
-        logger.info("Loaded {} deliveries", db.deliveries.size());
+    private void logDestinations() {
+        logger.info("{} distinct destinations, dictionary hit ratio {}%", this.destinations.size(),
+                Math.round(this.destinations.getHitRatio() * 1000) / 10.0);
+    }
+
+    // Loads the deliveries in an empty store: the maps are sized once from the record count, the duplicates are
+    // found in the same pass that groups the deliveries and every list is filled with a single setAll
+    private void bulkLoad(Collection<? extends Delivery> loaded) {
+        var byId = new HashMap<UUID, Delivery>(capacityFor(loaded.size()));
+        var batch = new ArrayList<Delivery>(loaded.size());
+        var bySender = new HashMap<UUID, List<Delivery>>();
+        var byState = new EnumMap<DeliveryState, List<Delivery>>(DeliveryState.class);
+        var byDate = new HashMap<LocalDate, List<Delivery>>();
+        for (var delivery : loaded) {
+            if (byId.putIfAbsent(delivery.getCode(), delivery) != null) {
+                logger.error("Error adding delivery {}, is the db corrupted?", delivery.getCode());
+                continue;
+            }
+            delivery.store = this;
+            batch.add(delivery);
+            bySender.computeIfAbsent(delivery.getSender(), x -> new ArrayList<>()).add(delivery);
+            byState.computeIfAbsent(delivery.getState(), x -> new ArrayList<>()).add(delivery);
+            byDate.computeIfAbsent(delivery.getDate(), x -> new ArrayList<>()).add(delivery);
+            this.track(delivery);
+        }
+        if (batch.isEmpty()) return;
+
+        this.deliveriesById = byId;
+        // The lists are kept, someone could already be observing them
+        this.deliveries.setAll(batch);
+        if (this.deliveriesBySender.isEmpty()) this.deliveriesBySender = new HashMap<>(capacityFor(bySender.size()));
+        bySender.forEach((sender, deliveries) -> this.deliveriesBySender
+                .computeIfAbsent(sender, DeliveryStore::newSenderList)
+                .setAll(deliveries));
+        byState.forEach((state, deliveries) -> this.deliveriesByState.put(state, new HashSet<>(deliveries)));
+        byDate.forEach((day, deliveries) -> this.deliveriesByDate.put(day, new HashSet<>(deliveries)));
+
+        this.version++;
+        var added = Collections.unmodifiableList(batch);
+        for (var listener : this.listeners) listener.onAddedAll(added);
+    }
+
+    private static int capacityFor(int size) {
+        return (int) (size / 0.75f) + 1;
     }
 
     /**
-     * Saves the deliveries into the stream provided as parameter.
+     * Saves the deliveries into the stream provided as parameter (in the binary format).
      *
      * @param out The output stream in which the data will be saved
      * @throws IOException when an error occurs while writing
      */
     public void save(OutputStream out) throws IOException {
-        var mapper = new ObjectMapper();
-        mapper.writeValue(out, this.serialize());
-        logger.info("Saved {} deliveries", this.deliveries.size());
+        snapshot().write(out);
+    }
+
+    /**
+     * Copies the current deliveries (see {@link #copyDeliveries()}), the copy can then be written from another
+     * thread.
+     * Call it from the thread that mutates the store.
+     *
+     * @return The snapshot of the store
+     */
+    public Snapshot snapshot() {
+        long generation = ++this.snapshotGeneration;
+        if (this.columns != null) {
+            this.dropUnusedDestinations();
+            return new Snapshot(generation, this.columns.copy());
+        }
+        var unloaded = this.lazy != null ? this.lazy.unloadedRegions() : Map.<UUID, BinaryDeliveryFile.Region>of();
+        return new Snapshot(generation, copyDeliveries(), unloaded);
+    }
+
+    /**
+     * Copies the loaded deliveries in their current state, the copies are not registered in the store so they
+     * can be read from another thread while the store keeps changing.
+     * Call it from the thread that mutates the store.
+     *
+     * @return The detached copies
+     */
+    public List<Delivery> copyDeliveries() {
+        this.dropUnusedDestinations();
+        var res = new ArrayList<Delivery>(this.deliveries.size());
+        for (var delivery : this.deliveries) res.add(delivery.copy());
+        return res;
+    }
+
+    // The dictionary keeps the destinations of the removed deliveries, the full copies (that already go through
+    // every delivery) drop them once it doubled since the last time, so the work is amortized
+    private void dropUnusedDestinations() {
+        if (this.destinations.size() < this.destinationsLimit) return;
+        int dropped;
+        if (this.columns != null) {
+            dropped = this.columns.dropUnusedStrings();
+        } else {
+            var used = new boolean[this.destinations.size()];
+            for (var delivery : this.deliveries) {
+                int id = this.destinations.find(delivery.getDestination());
+                if (id >= 0) used[id] = true;
+            }
+            int before = this.destinations.size();
+            this.destinations.retain(used);
+            dropped = before - this.destinations.size();
+        }
+        this.destinationsLimit = Math.max(MIN_DESTINATIONS_LIMIT, this.destinations.size() * 2);
+        if (dropped > 0) logger.info("Dropped {} unused destinations", dropped);
+    }
+
+    /**
+     * A copy of the store content, see {@link #snapshot()}.
+     * The deliveries that are still on disk are copied from the old file without decoding them, the ones of a
+     * compact store are copied as columns and decoded one sender at a time while writing.
+     * The regions copied from the old file need its dictionary, so while some senders are still on disk the
+     * dictionary of the file is carried forward and keeps the destinations of the removed deliveries: it's
+     * rebuilt from the deliveries by the first snapshot taken once every sender has been loaded.
+     * Every snapshot has a new generation, greater than the ones of the previous snapshots, that is written in the
+     * file: once the snapshot is saved the journal should be trimmed with its generation (see
+     * {@link DeliveryJournal#discardBefore(DeliveryJournal.Mark, long)}).
+     */
+    public final class Snapshot {
+        /**
+         * The generation of the snapshot.
+         *
+         * @return The snapshot generation
+         */
+        @Getter
+        private final long generation;
+        private final List<Delivery> loaded;
+        private final Map<UUID, BinaryDeliveryFile.Region> unloaded;
+        private final DeliveryColumns compact;
+        private Map<UUID, BinaryDeliveryFile.Region> index;
+        private StringDictionary dictionary;
+
+        private Snapshot(long generation, List<Delivery> loaded, Map<UUID, BinaryDeliveryFile.Region> unloaded) {
+            this.generation = generation;
+            this.loaded = loaded;
+            this.unloaded = unloaded;
+            this.compact = null;
+        }
+
+        private Snapshot(long generation, DeliveryColumns compact) {
+            this.generation = generation;
+            this.loaded = List.of();
+            this.unloaded = Map.of();
+            this.compact = compact;
+        }
+
+        /**
+         * Writes the snapshot in the binary format.
+         *
+         * @param out The output stream in which the data will be saved
+         * @throws IOException when an error occurs while writing
+         */
+        public void write(OutputStream out) throws IOException {
+            if (compact != null) {
+                var writer = new BinaryDeliveryFile.GroupedWriter(Channels.newChannel(out), compact.getSize(),
+                        compact.getStrings());
+                compact.forEachSender(writer::writeGroup);
+                this.index = writer.finish(generation);
+                logger.info("Saved {} deliveries", compact.getSize());
+                return;
+            }
+            if (lazy != null && lazy.hasUnreadable()) {
+                // The file is the only copy of those deliveries, the changes are still recorded in the journal
+                throw new IOException("Some deliveries on disk cannot be read, not overwriting the file");
+            }
+            var groups = new LinkedHashMap<UUID, List<Delivery>>();
+            for (var delivery : loaded) {
+                groups.computeIfAbsent(delivery.getSender(), x -> new ArrayList<>()).add(delivery);
+            }
+            long count = loaded.size()
+                    + unloaded.values().stream().mapToLong(BinaryDeliveryFile.Region::getCount).sum();
+
+            // The destinations still on disk keep their ids, see LazyDeliveryIndex#copyTo
+            this.dictionary = !unloaded.isEmpty() ? lazy.newDictionary() : new StringDictionary();
+            for (var delivery : loaded) this.dictionary.id(delivery.getDestination());
+            var writer = new BinaryDeliveryFile.GroupedWriter(Channels.newChannel(out), count, this.dictionary);
+            for (var group : groups.entrySet()) {
+                writer.writeGroup(group.getKey(), group.getValue());
+            }
+            if (!unloaded.isEmpty()) lazy.copyTo(writer, unloaded);
+            this.index = writer.finish(generation);
+            logger.info("Saved {} deliveries", count);
+        }
+
+        /**
+         * Call it after the snapshot has been written over the file the store was loaded from,
+         * the deliveries still on disk will be read from the new file.
+         *
+         * @throws IOException when the new file cannot be opened
+         */
+        public void commit() throws IOException {
+            if (lazy != null && index != null) lazy.reopen(index, dictionary);
+        }
+    }
+
+    /**
+     * Saves the provided deliveries (usually a copy of the store content) in the binary format.
+     * The collection is only read, so this can run in another thread as long as it's not shared with the store.
+     *
+     * @param out The output stream in which the data will be saved
+     * @param deliveries The deliveries to save
+     * @throws IOException when an error occurs while writing
+     */
+    public static void save(OutputStream out, Collection<? extends Delivery> deliveries) throws IOException {
+        BinaryDeliveryFile.write(Channels.newChannel(out), deliveries);
+        logger.info("Saved {} deliveries", deliveries.size());
+    }
+
+    /**
+     * Exports the deliveries into the stream provided as parameter (in the JSON format).
+     * The deliveries are streamed one at a time, without any intermediate copy.
+     *
+     * @param out The output stream in which the data will be exported
+     * @throws IOException when an error occurs while writing
+     */
+    public void exportJson(OutputStream out) throws IOException {
+        JsonDbStream.write(new ObjectMapper(), out, Delivery.class, JSON_DB_VERSION, "deliveries", this.deliveries);
+        logger.info("Exported {} deliveries", this.deliveries.size());
+    }
+
+    /**
+     * Exports the deliveries matching the query in the JSON format, they're written while they're found.
+     *
+     * @param out The output stream in which the data will be exported
+     * @param query The query that selects the deliveries
+     * @throws IOException when an error occurs while writing
+     */
+    public void exportJson(OutputStream out, DeliveryQuery query) throws IOException {
+        Iterable<Delivery> matches = () -> this.stream(query).iterator();
+        JsonDbStream.write(new ObjectMapper(), out, Delivery.class, JSON_DB_VERSION, "deliveries", matches);
+        logger.info("Exported the deliveries matching the query");
     }
 
     /**
@@ -136,57 +1063,362 @@ public class DeliveryStore {
      * @return an empty {@link DeliveryStore}
      */
     public static DeliveryStore createEmpty() {
-        return new DeliveryStore();
+        return createEmpty(false);
     }
 
     /**
-     * Creates a new instance of {@link DeliveryStore} with the data loaded from the provided {@link InputStream}.
-     * If the read data is invalid an empty {@link DeliveryStore} will be returned
+     * Creates a new {@link DeliveryStore} with no delivery.
+     *
+     * @param compact Whether the deliveries are stored in columns (see {@link #isCompact()})
+     * @return an empty {@link DeliveryStore}
+     */
+    public static DeliveryStore createEmpty(boolean compact) {
+        return new DeliveryStore(compact);
+    }
+
+    /**
+     * Creates an empty {@link DeliveryStore} used in place of deliveries that could not be opened, the changes
+     * made to it are never saved so that the stored deliveries are not overwritten (see {@link #isUnsaved()}).
+     *
+     * @return an empty unsaved {@link DeliveryStore}
+     */
+    public static DeliveryStore createUnsaved() {
+        var res = new DeliveryStore(false);
+        res.unsaved = true;
+        return res;
+    }
+
+    /**
+     * Creates a new instance of {@link DeliveryStore} with the data read from the provided {@link InputStream}.
+     * Both the binary and the JSON formats are accepted (the format is recognized from the first bytes).
+     * Big binary files read from a {@link FileInputStream} are decoded in parallel on the common
+     * {@link ForkJoinPool}.
      *
      * @param in The stream from which the data will be read
      * @return A new instance of {@link DeliveryStore} with the loaded data
+     * @throws InvalidDbException When the data is corrupted or of an incompatible version
      * @throws IOException When an error occurs while reading the file
      */
-    public static DeliveryStore load(InputStream in) throws IOException {
-        var res = createEmpty();
-        if (in == null) return res;
+    public static DeliveryStore read(InputStream in) throws IOException {
+        return read(in, false);
+    }
 
-        var mapper = new ObjectMapper();
-        SerializedDb db;
+    /**
+     * Creates a new instance of {@link DeliveryStore} with the data read from the provided {@link InputStream},
+     * see {@link #read(InputStream)}.
+     *
+     * @param in The stream from which the data will be read
+     * @param compact Whether the deliveries are stored in columns (see {@link #isCompact()})
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     * @throws InvalidDbException When the data is corrupted or of an incompatible version
+     * @throws IOException When an error occurs while reading the file
+     */
+    public static DeliveryStore read(InputStream in, boolean compact) throws IOException {
+        var res = createEmpty(compact);
+
+        var channel = Channels.newChannel(in);
+        var magic = ByteBuffer.allocate(4);
+        while (magic.hasRemaining() && channel.read(magic) >= 0) {
+            // Keep reading
+        }
+        magic.flip();
+
+        if (magic.remaining() == 4 && magic.getInt(0) == BinaryDeliveryFile.MAGIC) {
+            if (in instanceof FileInputStream) {
+                var fileChannel = ((FileInputStream) in).getChannel();
+                res.snapshotGeneration = BinaryDeliveryFile.readGeneration(fileChannel);
+                var loaded = BinaryDeliveryFile.readParallel(fileChannel, ForkJoinPool.commonPool());
+                if (loaded != null) {
+                    res.addAllLoaded(loaded);
+                    logger.info("Loaded {} deliveries in parallel", res.deliveries.size());
+                    return res;
+                }
+            }
+            var loaded = new ArrayList<Delivery>();
+            BinaryDeliveryFile.read(channel, magic, loaded::add);
+            res.addAllLoaded(loaded);
+            logger.info("Loaded {} deliveries", res.deliveries.size());
+            return res;
+        }
+
+        // Not binary, put back the read bytes and parse it as JSON
+        var prefix = new ByteArrayInputStream(magic.array(), 0, magic.remaining());
+        var loaded = new ArrayList<Delivery>();
+        long version;
         try {
-            db = mapper.readValue(in, SerializedDb.class);
+            version = JsonDbStream.read(new ObjectMapper(), new SequenceInputStream(prefix, in), Delivery.class,
+                    "deliveries", v -> v == JSON_DB_VERSION, loaded::add);
         } catch (JsonParseException | JsonMappingException e) {
-            logger.error("Failed to parse JSON", e);
-            return res;
+            throw new InvalidDbException("Failed to parse JSON", e);
         }
+        if (version != JSON_DB_VERSION) throw new InvalidDbException("Incompatible db version: " + version);
+        res.addAllLoaded(loaded);
 
-        res.deserialize(db);
+        logger.info("Loaded {} deliveries", res.deliveries.size());
         return res;
     }
 
+    /**
+     * Creates a new instance of {@link DeliveryStore} with the data loaded from the provided {@link InputStream}.
+     * Both the binary and the JSON formats are accepted (the format is recognized from the first bytes).
+     * If the read data is invalid an empty {@link DeliveryStore} will be returned
+     *
+     * @param in The stream from which the data will be read
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     * @throws IOException When an error occurs while reading the file
+     */
+    public static DeliveryStore load(InputStream in) throws IOException {
+        if (in == null) return createEmpty();
+
+        try {
+            return read(in);
+        } catch (InvalidDbException e) {
+            logger.error("Failed to load deliveries", e);
+            return createEmpty();
+        }
+    }
+
     /**
      * Creates a new instance of {@link DeliveryStore} with the data loaded from the provided file.
-     * If the read data is invalid or the file does not exist an empty {@link DeliveryStore} will be returned
+     * The newest valid generation of the file is used (see {@link AtomicFile}), if none is valid or the file
+     * does not exist an empty {@link DeliveryStore} will be returned
      *
      * @param file The file from which the data will be read
      * @return A new instance of {@link DeliveryStore} with the loaded data
      */
     public static DeliveryStore load(File file) {
+        return load(file, false);
+    }
+
+    /**
+     * Creates a new instance of {@link DeliveryStore} with the data loaded from the provided file, see
+     * {@link #load(File)}.
+     *
+     * @param file The file from which the data will be read
+     * @param compact Whether the deliveries are stored in columns (see {@link #isCompact()})
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     */
+    public static DeliveryStore load(File file, boolean compact) {
         try {
-            return load(new FileInputStream(file));
+            return AtomicFile.read(file, in -> read(in, compact));
         } catch (FileNotFoundException e) {
             logger.info("Deliveries file not found");
         } catch (IOException e) {
             logger.error("Error reading deliveries file, using empty db", e);
         }
-        return createEmpty();
+        return createEmpty(compact);
+    }
+
+    /**
+     * Loads the snapshot from the provided file and replays the journal on top of it.
+     * The journal is then kept open and every following change is appended to it.
+     * If the journal cannot be opened the store works as if it wasn't journaled.
+     *
+     * @param file The snapshot file
+     * @param journalFile The journal file
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     */
+    public static DeliveryStore load(File file, File journalFile) {
+        return load(file, journalFile, false);
+    }
+
+    /**
+     * Loads the snapshot from the provided file and replays the journal on top of it.
+     * If lazy is true and the file is binary only its sender index is read, the deliveries will be loaded
+     * when needed (the deliveries of the senders in the journal are loaded right away).
+     *
+     * <p>
+     * If the journal continues a newer snapshot than the one that was read (ex. the last generation of the file is
+     * corrupted, see {@link AtomicFile#read}) the changes trimmed from it are lost: it's not replayed but set aside
+     * (see {@link #getOrphanJournal()}) and the store starts a new one.
+     * </p>
+     *
+     * @param file The snapshot file
+     * @param journalFile The journal file
+     * @param lazy Whether the deliveries should be loaded on demand
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     */
+    public static DeliveryStore load(File file, File journalFile, boolean lazy) {
+        return load(file, journalFile, lazy, false);
     }
 
     /**
-     * Helper class that will be serialized into the OutputStream.
+     * Loads the snapshot from the provided file and replays the journal on top of it, see
+     * {@link #load(File, File, boolean)}.
+     *
+     * @param file The snapshot file
+     * @param journalFile The journal file
+     * @param lazy Whether the deliveries should be loaded on demand
+     * @param compact Whether the deliveries are stored in columns (see {@link #isCompact()})
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     * @throws IllegalArgumentException if the store is both lazy and compact
      */
-    private static class SerializedDb {
-        public long version;
-        public List<Delivery> deliveries;
+    public static DeliveryStore load(File file, File journalFile, boolean lazy, boolean compact) {
+        if (lazy && compact) throw new IllegalArgumentException("A lazy store cannot be compact");
+        DeliveryStore res = null;
+        if (lazy && file.exists()) {
+            try {
+                var store = createEmpty();
+                var index = LazyDeliveryIndex.open(file, store.statistics);
+                store.lazy = index;
+                store.snapshotGeneration = index.getGeneration();
+                res = store;
+                logger.info("Indexed {} deliveries", index.getUnloadedCount());
+            } catch (IOException e) {
+                logger.error("Cannot read the deliveries index, loading everything", e);
+            }
+        }
+        if (res == null) res = load(file, compact);
+
+        long journalGeneration = 0;
+        try {
+            journalGeneration = DeliveryJournal.readGeneration(journalFile);
+            if (journalGeneration > res.snapshotGeneration) {
+                var orphan = new File(journalFile.getPath() + "." + journalGeneration + ".orphan");
+                Files.move(journalFile.toPath(), orphan.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                res.orphanJournal = orphan;
+                logger.error("The deliveries journal continues snapshot {} but snapshot {} was read, the changes "
+                        + "made since then are missing, the journal was moved to {}", journalGeneration,
+                        res.snapshotGeneration, orphan);
+            }
+            res.journal = DeliveryJournal.open(journalFile, res);
+            res.addListener(res.journal);
+        } catch (IOException e) {
+            logger.error("Cannot open the deliveries journal, changes will only be saved in snapshots", e);
+        }
+        // The next snapshots must be newer than the one the journal continued
+        res.snapshotGeneration = Math.max(res.snapshotGeneration, journalGeneration);
+        return res;
+    }
+
+    /**
+     * Reads the snapshot from the provided file and replays the journal on top of it, failing instead of
+     * falling back to an empty store: use it when the files are going to be deleted (ex. by a migration).
+     * The journal is closed after the replay, the following changes are not recorded.
+     *
+     * @param file The snapshot file (a missing one is read as an empty snapshot)
+     * @param journalFile The journal file
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     * @throws IOException when the snapshot or the journal cannot be read, or the journal continues a newer snapshot
+     */
+    public static DeliveryStore read(File file, File journalFile) throws IOException {
+        var res = AtomicFile.exists(file) ? AtomicFile.read(file, DeliveryStore::read) : createEmpty();
+        if (DeliveryJournal.readGeneration(journalFile) > res.snapshotGeneration) {
+            throw new InvalidDbException("The deliveries journal continues a newer snapshot than the one read");
+        }
+        DeliveryJournal.open(journalFile, res).close();
+        return res;
+    }
+
+    /**
+     * Creates a new instance of {@link DeliveryStore} backed by the memory-mapped segment, every following change
+     * is written in place in the segment.
+     *
+     * @param file The segment file
+     * @param heapFile The segment string heap file
+     * @param compact Whether the deliveries are stored in columns (see {@link #isCompact()})
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     * @throws IOException when the segment cannot be opened or is corrupted
+     */
+    public static DeliveryStore openSegment(File file, File heapFile, boolean compact) throws IOException {
+        var res = createEmpty(compact);
+        res.segment = DeliverySegment.open(file, heapFile, res);
+        res.addListener(res.segment);
+        return res;
+    }
+
+    /**
+     * Creates a new instance of {@link DeliveryStore} with the data loaded from the sharded layout, the shards
+     * keep track of the following changes.
+     *
+     * @param directory The shards directory
+     * @param compact Whether the deliveries are stored in columns (see {@link #isCompact()})
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     */
+    public static DeliveryStore openShards(File directory, boolean compact) {
+        var res = createEmpty(compact);
+        res.shards = DeliveryShards.open(directory, res);
+        res.addListener(res.shards);
+        logger.info("Loaded {} deliveries from the shards", res.deliveries.size());
+        return res;
+    }
+
+    /**
+     * Creates a new instance of {@link DeliveryStore} with the deliveries stored in the backend, every following
+     * change is queued and written to the backend by the next save (see {@link DeliveryBackendSync}).
+     *
+     * @param backend The backend to read from (it will be closed with the store)
+     * @param compact Whether the deliveries are stored in columns (see {@link #isCompact()})
+     * @return A new instance of {@link DeliveryStore} with the loaded data
+     * @throws IOException when the deliveries cannot be read from the backend
+     */
+    public static DeliveryStore openBackend(DeliveryBackend backend, boolean compact) throws IOException {
+        var res = createEmpty(compact);
+        var loaded = new ArrayList<Delivery>();
+        backend.loadAll(loaded::add);
+        res.addAllLoaded(loaded);
+        res.backendSync = new DeliveryBackendSync(backend);
+        res.addListener(res.backendSync);
+        logger.info("Loaded {} deliveries from the storage backend", res.deliveries.size());
+        return res;
+    }
+
+    /**
+     * Closes the journal, the segment, the shards and the backend (if any), the following changes will not be recorded.
+     * If the store is lazy the deliveries that are still on disk cannot be loaded anymore, the same goes for the
+     * archived ones. The subscriptions to {@link #events()} are completed.
+     */
+    public void close() {
+        if (this.events != null) {
+            this.removeListener(this.events);
+            this.events.close();
+            this.events = null;
+        }
+        if (this.archive != null) {
+            try {
+                this.archive.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the deliveries archive", e);
+            }
+            this.archive = null;
+        }
+        if (this.lazy != null) {
+            try {
+                this.lazy.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the deliveries file", e);
+            }
+        }
+        if (this.shards != null) {
+            this.removeListener(this.shards);
+            this.shards = null;
+        }
+        if (this.backendSync != null) {
+            this.removeListener(this.backendSync);
+            try {
+                this.backendSync.getBackend().close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the deliveries backend", e);
+            }
+            this.backendSync = null;
+        }
+        if (this.journal != null) {
+            this.removeListener(this.journal);
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the deliveries journal", e);
+            }
+            this.journal = null;
+        }
+        if (this.segment != null) {
+            this.removeListener(this.segment);
+            try {
+                this.segment.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the deliveries segment", e);
+            }
+            this.segment = null;
+        }
     }
 }
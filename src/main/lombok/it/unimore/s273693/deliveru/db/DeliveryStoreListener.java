@@ -0,0 +1,61 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.util.List;
+
+/**
+ * Receives every mutation applied to a {@link DeliveryStore}.
+ *
+ * <p>
+ * Unlike the JavaFX listeners this is registered once on the store and not on every delivery,
+ * it's used by the components that need to mirror the store content (like the persistence layer).
+ * Every method is called in the thread that made the change (usually the JavaFX one) after the
+ * change has been applied.
+ * </p>
+ */
+public interface DeliveryStoreListener {
+    /**
+     * Called after a delivery has been added to the store.
+     *
+     * @param delivery The added delivery
+     */
+    default void onAdded(Delivery delivery) {
+    }
+
+    /**
+     * Called after a delivery has been removed from the store.
+     *
+     * @param delivery The removed delivery
+     */
+    default void onRemoved(Delivery delivery) {
+    }
+
+    /**
+     * Called after several deliveries have been added to the store at once (see {@link DeliveryStore#addAll}).
+     * By default {@link #onAdded(Delivery)} is called for each one.
+     *
+     * @param deliveries The added deliveries
+     */
+    default void onAddedAll(List<Delivery> deliveries) {
+        deliveries.forEach(this::onAdded);
+    }
+
+    /**
+     * Called after several deliveries have been removed from the store at once (see {@link DeliveryStore#removeAll}).
+     * By default {@link #onRemoved(Delivery)} is called for each one.
+     *
+     * @param deliveries The removed deliveries
+     */
+    default void onRemovedAll(List<Delivery> deliveries) {
+        deliveries.forEach(this::onRemoved);
+    }
+
+    /**
+     * Called after the state of a registered delivery changed.
+     *
+     * @param delivery The changed delivery
+     * @param oldState The previous state
+     * @param newState The current state
+     */
+    default void onStateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+    }
+}
@@ -4,5 +4,15 @@ package it.unimore.s273693.deliveru.db;
  * The type of the delivery.
  */
 public enum DeliveryType {
-    STANDARD, INSURED
+    STANDARD, INSURED;
+
+    /**
+     * Finds the type of a delivery.
+     *
+     * @param delivery The delivery
+     * @return INSURED for an {@link InsuredDelivery}, STANDARD otherwise
+     */
+    public static DeliveryType of(Delivery delivery) {
+        return delivery instanceof InsuredDelivery ? INSURED : STANDARD;
+    }
 }
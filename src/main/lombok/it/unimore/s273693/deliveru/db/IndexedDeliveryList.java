@@ -0,0 +1,228 @@
+package it.unimore.s273693.deliveru.db;
+
+import javafx.collections.ModifiableObservableListBase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Observable list of deliveries that knows the position of each of its deliveries.
+ *
+ * <p>
+ * The position is stored in the delivery itself (every delivery has one slot for the list of all the deliveries
+ * and one for the list of its sender), so {@link #contains(Object)} and {@link #indexOf(Object)} take constant
+ * time and {@link #removeUnordered(Delivery)} removes a delivery in constant time by moving the last one in its
+ * place. {@link #addAll(Collection)} and {@link #removeAll(Collection)} change the list in a single pass and fire
+ * a single change, the other mutations work as in any list (the positions of the following deliveries are updated).
+ * A delivery can only be in one list per slot, and only once.
+ * </p>
+ */
+final class IndexedDeliveryList extends ModifiableObservableListBase<Delivery> {
+    /**
+     * Which position of the delivery is used by the list.
+     */
+    enum Slot {
+        /**
+         * The list of all of the deliveries of a store.
+         */
+        STORE,
+        /**
+         * The list of the deliveries of a sender.
+         */
+        SENDER;
+
+        int get(Delivery delivery) {
+            return this == STORE ? delivery.storeIndex : delivery.senderIndex;
+        }
+
+        void set(Delivery delivery, int index) {
+            if (this == STORE) {
+                delivery.storeIndex = index;
+            } else {
+                delivery.senderIndex = index;
+            }
+        }
+    }
+
+    private final Slot slot;
+    private final ArrayList<Delivery> backing = new ArrayList<>();
+
+    IndexedDeliveryList(Slot slot) {
+        this.slot = slot;
+    }
+
+    @Override
+    public Delivery get(int index) {
+        return backing.get(index);
+    }
+
+    @Override
+    public int size() {
+        return backing.size();
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Delivery)) return -1;
+        int index = slot.get((Delivery) o);
+        return index >= 0 && index < backing.size() && backing.get(index) == o ? index : -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    private void renumber(int from) {
+        for (int i = from; i < backing.size(); i++) {
+            slot.set(backing.get(i), i);
+        }
+    }
+
+    @Override
+    protected void doAdd(int index, Delivery element) {
+        if (slot.get(element) >= 0) throw new IllegalArgumentException("The delivery is already in a list");
+        backing.add(index, element);
+        if (index == backing.size() - 1) {
+            slot.set(element, index);
+        } else {
+            renumber(index);
+        }
+    }
+
+    @Override
+    protected Delivery doSet(int index, Delivery element) {
+        if (slot.get(element) >= 0 && indexOf(element) != index) {
+            throw new IllegalArgumentException("The delivery is already in a list");
+        }
+        var old = backing.set(index, element);
+        slot.set(old, -1);
+        slot.set(element, index);
+        return old;
+    }
+
+    @Override
+    protected Delivery doRemove(int index) {
+        var old = backing.remove(index);
+        slot.set(old, -1);
+        renumber(index);
+        return old;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) return;
+        // Shift the following deliveries once, not once per removed delivery
+        var range = backing.subList(fromIndex, toIndex);
+        List<Delivery> removed = new ArrayList<>(range);
+        range.clear();
+        removed.forEach(x -> slot.set(x, -1));
+        renumber(fromIndex);
+        beginChange();
+        nextRemove(fromIndex, removed);
+        endChange();
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, size());
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Delivery> c) {
+        if (c.isEmpty()) return false;
+        int from = backing.size();
+        backing.ensureCapacity(from + c.size());
+        try {
+            for (var delivery : c) {
+                if (slot.get(delivery) >= 0) throw new IllegalArgumentException("The delivery is already in a list");
+                slot.set(delivery, backing.size());
+                backing.add(delivery);
+            }
+        } finally {
+            if (backing.size() > from) {
+                beginChange();
+                nextAdd(from, backing.size());
+                endChange();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the deliveries keeping the order of the others: the list is compacted in a single pass and a single
+     * change is fired.
+     *
+     * @param c The deliveries to remove
+     * @return true if at least one delivery was removed
+     */
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        var rows = new int[c.size()];
+        int count = 0;
+        for (var o : c) {
+            int index = indexOf(o);
+            if (index < 0) continue;
+            rows[count++] = index;
+            // Duplicates in the collection are not found again
+            slot.set((Delivery) o, -1);
+        }
+        if (count == 0) return false;
+        Arrays.sort(rows, 0, count);
+
+        List<Delivery> removed = new ArrayList<>(count);
+        int write = rows[0];
+        int next = 0;
+        for (int read = rows[0]; read < backing.size(); read++) {
+            var delivery = backing.get(read);
+            if (next < count && rows[next] == read) {
+                removed.add(delivery);
+                next++;
+            } else {
+                backing.set(write, delivery);
+                slot.set(delivery, write++);
+            }
+        }
+        backing.subList(write, backing.size()).clear();
+
+        beginChange();
+        for (int i = 0; i < count; i++) {
+            // Every index is relative to the list without the previous deliveries
+            nextRemove(rows[i] - i, removed.get(i));
+        }
+        endChange();
+        return true;
+    }
+
+    /**
+     * Removes the delivery in constant time, the last delivery is moved in its place.
+     *
+     * @param delivery The delivery to remove
+     * @return true only if the delivery was in the list
+     */
+    boolean removeUnordered(Delivery delivery) {
+        int index = indexOf(delivery);
+        if (index < 0) return false;
+        int last = backing.size() - 1;
+        var moved = backing.remove(last);
+        slot.set(delivery, -1);
+        beginChange();
+        if (index == last) {
+            nextRemove(index, delivery);
+        } else {
+            backing.set(index, moved);
+            slot.set(moved, index);
+            nextSet(index, delivery);
+            nextRemove(last, moved);
+        }
+        endChange();
+        return true;
+    }
+}
@@ -3,10 +3,13 @@ package it.unimore.s273693.deliveru.db;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import it.unimore.s273693.deliveru.serialize.MoneyDeserializer;
+import it.unimore.s273693.deliveru.serialize.MoneySerializer;
 import lombok.Getter;
 import lombok.ToString;
 
-import java.math.BigInteger;
 import java.time.LocalDate;
 import java.util.UUID;
 
@@ -21,7 +24,9 @@ public class InsuredDelivery extends Delivery {
      * @return insured value
      */
     @Getter
-    private final BigInteger insuredValue;
+    @JsonDeserialize(using = MoneyDeserializer.class)
+    @JsonSerialize(using = MoneySerializer.class)
+    private final Money insuredValue;
 
     /**
      * The JSON constructor (also accepts the state).
@@ -41,7 +46,7 @@ public class InsuredDelivery extends Delivery {
             @JsonProperty("date") LocalDate date,
             @JsonProperty("destination") String destination,
             @JsonProperty("weight") double weight,
-            @JsonProperty("insuredValue") BigInteger insuredValue,
+            @JsonProperty("insuredValue") Money insuredValue,
             @JsonProperty("state") DeliveryState state) {
         super(code, sender, date, destination, weight, state);
         if (insuredValue.signum() < 0) {
@@ -60,7 +65,7 @@ public class InsuredDelivery extends Delivery {
      * @param weight The weight in kilograms
      * @param insuredValue The insured value
      */
-    public InsuredDelivery(UUID code, UUID sender, LocalDate date, String destination, double weight, BigInteger insuredValue) {
+    public InsuredDelivery(UUID code, UUID sender, LocalDate date, String destination, double weight, Money insuredValue) {
         this(code, sender, date, destination, weight, insuredValue, DeliveryState.IN_PREPARATION);
     }
 
@@ -73,7 +78,7 @@ public class InsuredDelivery extends Delivery {
             throw new IllegalStateException("Cannot reassign a state to a finalized delivery");
         }
         // Removed insurance check
-        this.stateProperty.setValue(newState);
+        this.applyState(newState);
     }
 
     /**
@@ -82,9 +87,18 @@ public class InsuredDelivery extends Delivery {
     @Override
     @JsonIgnore
     public boolean isInFinalState() {
-        var state = this.stateProperty.get();
+        var state = this.getState();
         if (state == DeliveryState.FAILED) return false;
         if (state == DeliveryState.REFUND_PAID) return true;
         return super.isInFinalState();
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    InsuredDelivery copy() {
+        return new InsuredDelivery(getCode(), getSender(), getDate(), getDestination(), getWeight(), insuredValue,
+                getState());
+    }
 }
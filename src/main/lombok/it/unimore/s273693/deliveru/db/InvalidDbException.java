@@ -0,0 +1,16 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the data being loaded is corrupted or in an unsupported format.
+ */
+public class InvalidDbException extends IOException {
+    public InvalidDbException(String message) {
+        super(message);
+    }
+
+    public InvalidDbException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,125 @@
+package it.unimore.s273693.deliveru.db;
+
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Stores the users in a JSON file (see {@link UserProvider#save(java.io.OutputStream, Collection)}).
+ *
+ * <p>
+ * A JSON file cannot be updated in place, so the changes are kept in memory and the whole file is rewritten
+ * (with {@link AtomicFile}) by {@link #flush()}, only if something changed.
+ * </p>
+ */
+public class JsonUserBackend implements StorageBackend<UUID, User> {
+    private final File file;
+    private final Map<UUID, User> users = new LinkedHashMap<>();
+    private boolean dirty;
+
+    private JsonUserBackend(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the users file, if it's missing the backend starts empty.
+     * Unlike {@link UserProvider#load(File)} a file that cannot be read is an error, so that the users are never
+     * replaced by an empty list (ex. when they're migrated to another backend).
+     *
+     * @param file The users file
+     * @return The opened backend
+     * @throws IOException when no generation of the file can be read
+     */
+    public static JsonUserBackend open(File file) throws IOException {
+        var res = new JsonUserBackend(file);
+        if (!AtomicFile.exists(file)) return res;
+        for (var user : AtomicFile.read(file, UserProvider::read).snapshot()) {
+            res.users.put(user.getId(), user);
+        }
+        return res;
+    }
+
+    @Override
+    public void loadAll(Consumer<? super User> consumer) {
+        copy().forEach(consumer);
+    }
+
+    @Override
+    public synchronized void upsert(User user) {
+        users.put(user.getId(), user);
+        dirty = true;
+    }
+
+    @Override
+    public synchronized void delete(UUID id) {
+        if (users.remove(id) != null) dirty = true;
+    }
+
+    @Override
+    public synchronized void replaceAll(Collection<? extends User> items) {
+        users.clear();
+        for (var user : items) {
+            users.put(user.getId(), user);
+        }
+        dirty = true;
+    }
+
+    @Override
+    public synchronized void batch(BatchAction<UUID, User> action) throws IOException {
+        // Nothing is written before the flush, so it's enough to restore the previous content on failure
+        var previous = new LinkedHashMap<>(users);
+        boolean wasDirty = dirty;
+        try {
+            action.run(new Batch<>() {
+                @Override
+                public void upsert(User item) {
+                    JsonUserBackend.this.upsert(item);
+                }
+
+                @Override
+                public void delete(UUID key) {
+                    JsonUserBackend.this.delete(key);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            users.clear();
+            users.putAll(previous);
+            dirty = wasDirty;
+            throw e;
+        }
+    }
+
+    private synchronized List<User> copy() {
+        return new ArrayList<>(users.values());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        List<User> snapshot;
+        synchronized (this) {
+            if (!dirty) return;
+            snapshot = copy();
+            dirty = false;
+        }
+        try {
+            AtomicFile.write(file, out -> UserProvider.save(out, snapshot));
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
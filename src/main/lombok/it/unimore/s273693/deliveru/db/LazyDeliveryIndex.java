@@ -0,0 +1,326 @@
+package it.unimore.s273693.deliveru.db;
+
+import it.unimore.s273693.deliveru.db.BinaryDeliveryFile.Region;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Index of the deliveries that are still on disk, used by the lazy {@link DeliveryStore}.
+ *
+ * <p>
+ * Only the sender index at the end of the binary file is read at startup (see {@link BinaryDeliveryFile}),
+ * the deliveries of a sender are decoded when they're first needed and then removed from the index (together with
+ * the dictionary of the destinations, needed to decode them).
+ * The file stays open so that it can still be read after a new snapshot has been renamed over it, once the
+ * snapshot is saved the index is moved to the new file with {@link #reopen(Map, StringDictionary)}.
+ * The deliveries still on disk are counted in the {@link DeliveryStatistics} of the store with the aggregates saved
+ * in the index, a sender is taken out of them when its deliveries are decoded (the store counts them one by one).
+ * </p>
+ *
+ * <p>
+ * A sender whose deliveries cannot be read stays in the index, so they're not lost: reading them is retried the
+ * next time they're needed and the store refuses to write a snapshot until it succeeds (see
+ * {@link #hasUnreadable()}), the file on disk keeps them in the meantime.
+ * </p>
+ */
+final class LazyDeliveryIndex implements Closeable {
+    private static final Logger logger = LogManager.getLogger(LazyDeliveryIndex.class);
+
+    private final File file;
+    private FileChannel channel;
+    private StringDictionary dictionary;
+    private final Map<UUID, Region> unloaded;
+    private long unloadedCount;
+    // The generation of the opened file
+    private final long generation;
+    // Senders still in the index whose deliveries could not be read
+    private final Set<UUID> unreadable = new HashSet<>();
+    private final DeliveryStatistics statistics;
+
+    private LazyDeliveryIndex(File file, FileChannel channel, StringDictionary dictionary,
+                              Map<UUID, Region> unloaded, long generation, DeliveryStatistics statistics) {
+        this.file = file;
+        this.generation = generation;
+        this.channel = channel;
+        this.dictionary = dictionary;
+        this.unloaded = unloaded;
+        this.unloadedCount = unloaded.values().stream().mapToLong(Region::getCount).sum();
+        this.statistics = statistics;
+        unloaded.forEach((sender, region) -> statistics.addedUnloaded(sender, region.getStatistics()));
+    }
+
+    /**
+     * Opens the index of the file.
+     *
+     * @param file The binary deliveries file
+     * @param statistics The statistics of the store, the deliveries in the file are counted right away
+     * @return The index
+     * @throws IOException when an error occurs while reading or the file is corrupted
+     */
+    static LazyDeliveryIndex open(File file, DeliveryStatistics statistics) throws IOException {
+        var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            var index = BinaryDeliveryFile.readIndex(channel);
+            return new LazyDeliveryIndex(file, channel, BinaryDeliveryFile.readDictionary(channel), index,
+                    BinaryDeliveryFile.readGeneration(channel), statistics);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The generation of the file the index was opened from (see {@link BinaryDeliveryFile#readGeneration}).
+     *
+     * @return The snapshot generation
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Number of deliveries still on disk.
+     *
+     * @return The number of deliveries not loaded yet
+     */
+    synchronized long getUnloadedCount() {
+        return unloadedCount;
+    }
+
+    synchronized boolean isLoaded(UUID sender) {
+        return !unloaded.containsKey(sender);
+    }
+
+    /**
+     * Checks if the deliveries of some senders could not be read, they're still on disk and a snapshot would
+     * lose them.
+     *
+     * @return true if some senders are unreadable
+     */
+    synchronized boolean hasUnreadable() {
+        return !unreadable.isEmpty();
+    }
+
+    /**
+     * Checks if {@link #takePage(int)} would decode something (the unreadable senders are skipped).
+     *
+     * @return true if some readable senders are still on disk
+     */
+    synchronized boolean hasReadable() {
+        return unloaded.size() > unreadable.size();
+    }
+
+    /**
+     * Decodes the deliveries of the sender, removing it from the index.
+     * If the deliveries cannot be read the error is logged and the sender stays in the index as unreadable.
+     *
+     * @param sender The sender
+     * @return Its deliveries (empty if they're already loaded or cannot be read)
+     */
+    synchronized List<Delivery> take(UUID sender) {
+        var region = unloaded.get(sender);
+        if (region == null) return List.of();
+
+        var res = decode(sender, region);
+        if (res == null) return List.of();
+        unloaded.remove(sender);
+        unreadable.remove(sender);
+        unloadedCount -= region.getCount();
+        statistics.removedUnloaded(sender, region.getStatistics());
+        return res;
+    }
+
+    // The deliveries of the region, null if they cannot be read (the sender is marked as unreadable)
+    private List<Delivery> decode(UUID sender, Region region) {
+        var res = new ArrayList<Delivery>((int) region.getCount());
+        try {
+            BinaryDeliveryFile.decodeRegion(BinaryDeliveryFile.readRegion(channel, region), dictionary, res::add);
+        } catch (IOException e) {
+            if (unreadable.add(sender)) {
+                logger.error("Cannot read the deliveries of {}, keeping them on disk", sender, e);
+            }
+            return null;
+        }
+        return res;
+    }
+
+    /**
+     * Decodes the deliveries of the senders that have a delivery in a final state dated before the day, removing
+     * them from the index.
+     * The senders are picked by the oldest final day recorded in the index, the other ones are not read at all.
+     *
+     * @param before The epoch day before which the final deliveries are archived
+     * @return The deliveries of the taken senders
+     */
+    synchronized List<Delivery> takeArchivable(long before) {
+        var senders = new ArrayList<UUID>();
+        for (var entry : unloaded.entrySet()) {
+            if (entry.getValue().getOldestFinalDay() < before) senders.add(entry.getKey());
+        }
+        var res = new ArrayList<Delivery>();
+        for (var sender : senders) {
+            res.addAll(take(sender));
+        }
+        return res;
+    }
+
+    /**
+     * Decodes the deliveries of the senders that have a delivery in one of the states, removing them from the index.
+     * The senders are picked by the aggregates recorded in the index, the other ones are not read at all.
+     *
+     * @param states The states
+     * @return The deliveries of the taken senders
+     */
+    synchronized List<Delivery> takeInStates(Set<DeliveryState> states) {
+        var senders = new ArrayList<UUID>();
+        for (var entry : unloaded.entrySet()) {
+            var statistics = entry.getValue().getStatistics();
+            if (states.stream().anyMatch(state -> statistics.getCount(state) > 0)) senders.add(entry.getKey());
+        }
+        var res = new ArrayList<Delivery>();
+        for (var sender : senders) {
+            res.addAll(take(sender));
+        }
+        return res;
+    }
+
+    /**
+     * Decodes the deliveries of the next readable senders, removing them from the index.
+     *
+     * @param maxDeliveries Stop after this many deliveries (at least a sender is always decoded)
+     * @return The decoded deliveries
+     */
+    synchronized List<Delivery> takePage(int maxDeliveries) {
+        var senders = new ArrayList<UUID>();
+        long count = 0;
+        for (var entry : unloaded.entrySet()) {
+            if (count >= maxDeliveries) break;
+            if (unreadable.contains(entry.getKey())) continue;
+            senders.add(entry.getKey());
+            count += entry.getValue().getCount();
+        }
+        var res = new ArrayList<Delivery>();
+        for (var sender : senders) {
+            res.addAll(take(sender));
+        }
+        return res;
+    }
+
+    /**
+     * Searches the sender of a delivery that is still on disk.
+     * This scans all of the remaining records (without decoding them), avoid it when the sender is known.
+     *
+     * @param code The delivery code
+     * @return The sender, or null if the delivery is not found
+     */
+    synchronized UUID findSender(UUID code) {
+        for (var entry : unloaded.entrySet()) {
+            try {
+                var records = BinaryDeliveryFile.readRegion(channel, entry.getValue());
+                if (BinaryDeliveryFile.containsCode(records, Set.of(code))) {
+                    return entry.getKey();
+                }
+            } catch (IOException e) {
+                logger.error("Cannot read the deliveries of {}", entry.getKey(), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if some of the deliveries are still on disk, without decoding them or removing anything from the index:
+     * only the regions of their senders are read (once per sender).
+     * A region that cannot be read is logged and skipped.
+     *
+     * @param deliveries The deliveries to search
+     * @return true if one of them is found
+     */
+    synchronized boolean containsAny(Collection<? extends Delivery> deliveries) {
+        var codesBySender = new HashMap<UUID, Set<UUID>>();
+        for (var delivery : deliveries) {
+            if (unloaded.containsKey(delivery.getSender())) {
+                codesBySender.computeIfAbsent(delivery.getSender(), x -> new HashSet<>()).add(delivery.getCode());
+            }
+        }
+        for (var entry : codesBySender.entrySet()) {
+            try {
+                var records = BinaryDeliveryFile.readRegion(channel, unloaded.get(entry.getKey()));
+                if (BinaryDeliveryFile.containsCode(records, entry.getValue())) return true;
+            } catch (IOException e) {
+                logger.error("Cannot read the deliveries of {}", entry.getKey(), e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the regions still on disk, see {@link #copyTo(BinaryDeliveryFile.GroupedWriter, Map)}.
+     *
+     * @return The unloaded regions
+     */
+    synchronized Map<UUID, Region> unloadedRegions() {
+        return new LinkedHashMap<>(unloaded);
+    }
+
+    /**
+     * Creates the dictionary of a new file that will contain the regions still on disk: the destinations of the
+     * current file keep their ids, so the regions can be copied without decoding them.
+     *
+     * @return A new dictionary
+     */
+    synchronized StringDictionary newDictionary() {
+        return dictionary.copy();
+    }
+
+    /**
+     * Copies the regions in a new file without decoding them, it doesn't lock the index so it can run in another
+     * thread while the deliveries are being loaded.
+     *
+     * @param writer The new file, created with a dictionary returned by {@link #newDictionary()}
+     * @param regions The regions returned by {@link #unloadedRegions()}
+     * @throws IOException when an error occurs while copying
+     */
+    void copyTo(BinaryDeliveryFile.GroupedWriter writer, Map<UUID, Region> regions) throws IOException {
+        FileChannel source;
+        synchronized (this) {
+            source = this.channel;
+        }
+        for (var entry : regions.entrySet()) {
+            writer.copyGroup(entry.getKey(), source, entry.getValue());
+        }
+    }
+
+    /**
+     * Moves the index to the new content of the file.
+     *
+     * @param index The index of the new file
+     * @param newDictionary The dictionary of the new file
+     * @throws IOException when the new file cannot be opened
+     */
+    synchronized void reopen(Map<UUID, Region> index, StringDictionary newDictionary) throws IOException {
+        var newChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        for (var entry : unloaded.entrySet()) {
+            var region = index.get(entry.getKey());
+            if (region == null) {
+                newChannel.close();
+                throw new IllegalStateException("Sender " + entry.getKey() + " missing from the new file");
+            }
+            entry.setValue(region);
+        }
+        channel.close();
+        channel = newChannel;
+        dictionary = newDictionary;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,217 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.math.BigInteger;
+
+/**
+ * An immutable amount of money in cents.
+ *
+ * <p>
+ * Almost every amount fits in a {@code long}, so it's kept as primitive cents and the arithmetic is done on longs,
+ * a {@link BigInteger} is only used when the value (or the result of an operation) overflows. The representation
+ * is normalized: a value that fits in a long is never kept as a {@link BigInteger}, so two equal amounts are always
+ * represented in the same way.
+ * Sums over many amounts should use an {@link Accumulator}, that doesn't allocate while the sum fits in a long.
+ * </p>
+ */
+public final class Money implements Comparable<Money> {
+    /**
+     * No money.
+     */
+    public static final Money ZERO = new Money(0, null);
+
+    private static final BigInteger MIN_LONG = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger MAX_LONG = BigInteger.valueOf(Long.MAX_VALUE);
+
+    // Valid only if big is null
+    private final long cents;
+    // Only used if the value doesn't fit in a long
+    private final BigInteger big;
+
+    private Money(long cents, BigInteger big) {
+        this.cents = cents;
+        this.big = big;
+    }
+
+    /**
+     * The amount with the given cents.
+     *
+     * @param cents The cents
+     * @return The amount
+     */
+    public static Money ofCents(long cents) {
+        return cents == 0 ? ZERO : new Money(cents, null);
+    }
+
+    /**
+     * The amount with the given cents.
+     *
+     * @param cents The cents
+     * @return The amount
+     */
+    public static Money ofCents(BigInteger cents) {
+        if (cents.compareTo(MIN_LONG) >= 0 && cents.compareTo(MAX_LONG) <= 0) return ofCents(cents.longValue());
+        return new Money(0, cents);
+    }
+
+    /**
+     * Checks if the cents fit in a long (so {@link #getCents()} can be used).
+     *
+     * @return true if the cents fit in a long
+     */
+    public boolean isLong() {
+        return big == null;
+    }
+
+    /**
+     * The cents as a long.
+     *
+     * @return The cents
+     * @throws ArithmeticException if the cents don't fit in a long (see {@link #isLong()})
+     */
+    public long getCents() {
+        if (big != null) throw new ArithmeticException("Money out of long range");
+        return cents;
+    }
+
+    /**
+     * The cents as a {@link BigInteger} (allocated if the cents fit in a long).
+     *
+     * @return The cents
+     */
+    public BigInteger toBigInteger() {
+        return big != null ? big : BigInteger.valueOf(cents);
+    }
+
+    /**
+     * The sign of the amount.
+     *
+     * @return -1, 0 or 1 if the amount is negative, zero or positive
+     */
+    public int signum() {
+        return big != null ? big.signum() : Long.signum(cents);
+    }
+
+    /**
+     * Adds two amounts.
+     *
+     * @param other The amount to add
+     * @return The sum
+     */
+    public Money add(Money other) {
+        if (big == null && other.big == null) {
+            long res = cents + other.cents;
+            // Overflow only if both operands have a different sign than the result
+            if (((cents ^ res) & (other.cents ^ res)) >= 0) return ofCents(res);
+        }
+        return ofCents(toBigInteger().add(other.toBigInteger()));
+    }
+
+    /**
+     * Subtracts an amount from this one.
+     *
+     * @param other The amount to subtract
+     * @return The difference
+     */
+    public Money subtract(Money other) {
+        if (big == null && other.big == null) {
+            long res = cents - other.cents;
+            // Overflow only if the operands have different signs and the result hasn't the sign of this one
+            if (((cents ^ other.cents) & (cents ^ res)) >= 0) return ofCents(res);
+        }
+        return ofCents(toBigInteger().subtract(other.toBigInteger()));
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        if (big == null && other.big == null) return Long.compare(cents, other.cents);
+        return toBigInteger().compareTo(other.toBigInteger());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == this) return true;
+        if (!(other instanceof Money)) return false;
+        var o = (Money) other;
+        return big == null ? o.big == null && cents == o.cents : big.equals(o.big);
+    }
+
+    @Override
+    public int hashCode() {
+        return big != null ? big.hashCode() : Long.hashCode(cents);
+    }
+
+    /**
+     * The cents in decimal.
+     *
+     * @return The cents as a string
+     */
+    @Override
+    public String toString() {
+        return big != null ? big.toString() : Long.toString(cents);
+    }
+
+    /**
+     * A mutable sum of amounts, it doesn't allocate while the sum fits in a long.
+     *
+     * <p>
+     * It's not synchronized.
+     * </p>
+     */
+    public static final class Accumulator {
+        private long cents;
+        // Non null once the sum overflowed a long
+        private BigInteger big;
+
+        /**
+         * Adds an amount to the sum.
+         *
+         * @param value The amount
+         */
+        public void add(Money value) {
+            if (big == null && value.big == null) {
+                long res = cents + value.cents;
+                if (((cents ^ res) & (value.cents ^ res)) >= 0) {
+                    cents = res;
+                    return;
+                }
+            }
+            setBig(sum().add(value.toBigInteger()));
+        }
+
+        /**
+         * Subtracts an amount from the sum.
+         *
+         * @param value The amount
+         */
+        public void subtract(Money value) {
+            if (big == null && value.big == null) {
+                long res = cents - value.cents;
+                if (((cents ^ value.cents) & (cents ^ res)) >= 0) {
+                    cents = res;
+                    return;
+                }
+            }
+            setBig(sum().subtract(value.toBigInteger()));
+        }
+
+        /**
+         * The current sum.
+         *
+         * @return The sum
+         */
+        public Money get() {
+            return big != null ? new Money(0, big) : ofCents(cents);
+        }
+
+        private BigInteger sum() {
+            return big != null ? big : BigInteger.valueOf(cents);
+        }
+
+        // Goes back to the long cents as soon as the sum fits again
+        private void setBig(BigInteger value) {
+            var money = ofCents(value);
+            cents = money.cents;
+            big = money.big;
+        }
+    }
+}
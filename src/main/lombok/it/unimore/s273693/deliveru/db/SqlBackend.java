@@ -0,0 +1,172 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * Common code of the backends stored in the embedded H2 database (a single file, no server).
+ *
+ * <p>
+ * Every backend opens its own connection to the same database file and works on its own table.
+ * The connection is in auto-commit mode, so every change is a transaction of its own unless it's made inside
+ * {@link #batch(BatchAction)}.
+ * All of the methods are synchronized on the backend, the connection is never used by two threads at once.
+ * The changes and the checkpoint of {@link #flush()} are made by the persistence thread (see {@link BackendSync}),
+ * so holding the lock while writing never blocks the UI.
+ * </p>
+ *
+ * @param <K> The type of the item key
+ * @param <T> The type of the item
+ */
+abstract class SqlBackend<K, T> implements StorageBackend<K, T> {
+    private static final Logger logger = LogManager.getLogger(SqlBackend.class);
+
+    protected final Connection connection;
+
+    /**
+     * Opens the database (creating it if needed) and the backend table.
+     *
+     * @param database The database file (without the {@code .mv.db} extension added by H2)
+     * @param schema The statements that create the table and its indexes if they don't exist
+     * @throws IOException when the database cannot be opened
+     */
+    protected SqlBackend(File database, String... schema) throws IOException {
+        database.getAbsoluteFile().getParentFile().mkdirs();
+        this.connection = connect(database, true);
+        try (var statement = connection.createStatement()) {
+            for (var sql : schema) {
+                statement.execute(sql);
+            }
+        } catch (SQLException e) {
+            close();
+            throw new IOException("Cannot create the database schema", e);
+        }
+    }
+
+    /**
+     * The file where H2 stores the database.
+     *
+     * @param database The database file (as passed to the constructor)
+     * @return The actual file
+     */
+    static File storeFile(File database) {
+        return new File(database.getPath() + ".mv.db");
+    }
+
+    static Connection connect(File database, boolean create) throws IOException {
+        var url = "jdbc:h2:" + database.getAbsolutePath() + (create ? "" : ";IFEXISTS=TRUE");
+        try {
+            return DriverManager.getConnection(url);
+        } catch (SQLException e) {
+            throw new IOException("Cannot open the database " + database, e);
+        }
+    }
+
+    /**
+     * Checks if the database contains the table, without creating anything.
+     *
+     * @param database The database file
+     * @param table The table name
+     * @return true only if the table exists
+     * @throws IOException when the database cannot be read
+     */
+    static boolean tableExists(File database, String table) throws IOException {
+        if (!storeFile(database).exists()) return false;
+        try (var connection = connect(database, false);
+             var tables = connection.getMetaData().getTables(null, "PUBLIC", table.toUpperCase(), null)) {
+            return tables.next();
+        } catch (SQLException e) {
+            throw new IOException("Cannot read the database " + database, e);
+        }
+    }
+
+    /**
+     * Drops the table (if the database exists), the other tables are not touched.
+     *
+     * @param database The database file
+     * @param table The table name
+     * @throws IOException when the table cannot be dropped
+     */
+    static void dropTable(File database, String table) throws IOException {
+        if (!storeFile(database).exists()) return;
+        try (var connection = connect(database, false); var statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + table);
+        } catch (SQLException e) {
+            throw new IOException("Cannot drop the table " + table, e);
+        }
+    }
+
+    /**
+     * Deletes every row of the backend table.
+     *
+     * @throws SQLException when the rows cannot be deleted
+     */
+    protected abstract void deleteAll() throws SQLException;
+
+    @Override
+    public synchronized void replaceAll(Collection<? extends T> items) throws IOException {
+        batch(batch -> {
+            try {
+                deleteAll();
+            } catch (SQLException e) {
+                throw new IOException("Cannot clear the table", e);
+            }
+            for (var item : items) {
+                batch.upsert(item);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void batch(BatchAction<K, T> action) throws IOException {
+        try {
+            connection.setAutoCommit(false);
+            try {
+                action.run(new Batch<>() {
+                    @Override
+                    public void upsert(T item) throws IOException {
+                        SqlBackend.this.upsert(item);
+                    }
+
+                    @Override
+                    public void delete(K key) throws IOException {
+                        SqlBackend.this.delete(key);
+                    }
+                });
+                connection.commit();
+            } catch (IOException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Database transaction failed", e);
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        try (var statement = connection.createStatement()) {
+            statement.execute("CHECKPOINT SYNC");
+        } catch (SQLException e) {
+            throw new IOException("Cannot sync the database", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.warn("Cannot close the database connection", e);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Stores the deliveries in the {@code deliveries} table of the embedded database, one row per delivery.
+ *
+ * <p>
+ * The table is only keyed by code: the deliveries are read once at startup and then only written.
+ * A state transition only updates the state column of its row.
+ * </p>
+ */
+public class SqlDeliveryBackend extends SqlBackend<UUID, Delivery> implements DeliveryBackend {
+    private static final String TABLE = "deliveries";
+    private static final String COLUMNS = "code, sender, date, destination, weight, state, insured_value";
+    private static final DeliveryState[] STATES = DeliveryState.values();
+
+    private final PreparedStatement upsertStmt;
+    private final PreparedStatement deleteStmt;
+    private final PreparedStatement updateStateStmt;
+
+    private SqlDeliveryBackend(File database) throws IOException {
+        super(database,
+                "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                        + "code UUID PRIMARY KEY, "
+                        + "sender UUID NOT NULL, "
+                        + "date DATE NOT NULL, "
+                        + "destination VARCHAR NOT NULL, "
+                        + "weight DOUBLE PRECISION NOT NULL, "
+                        + "state TINYINT NOT NULL, "
+                        + "insured_value NUMERIC(100000, 0))");
+        try {
+            upsertStmt = connection.prepareStatement(
+                    "MERGE INTO " + TABLE + " (" + COLUMNS + ") KEY(code) VALUES (?, ?, ?, ?, ?, ?, ?)");
+            deleteStmt = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE code = ?");
+            updateStateStmt = connection.prepareStatement("UPDATE " + TABLE + " SET state = ? WHERE code = ?");
+        } catch (SQLException e) {
+            close();
+            throw new IOException("Cannot prepare the deliveries statements", e);
+        }
+    }
+
+    /**
+     * Opens the deliveries table, creating the database and the table if needed.
+     *
+     * @param database The database file (without the extension added by H2)
+     * @return The opened backend
+     * @throws IOException when the database cannot be opened
+     */
+    public static SqlDeliveryBackend open(File database) throws IOException {
+        return new SqlDeliveryBackend(database);
+    }
+
+    /**
+     * Checks if the database contains the deliveries table.
+     *
+     * @param database The database file
+     * @return true only if the table exists
+     * @throws IOException when the database cannot be read
+     */
+    public static boolean exists(File database) throws IOException {
+        return tableExists(database, TABLE);
+    }
+
+    /**
+     * Drops the deliveries table, the other tables of the database are kept.
+     *
+     * @param database The database file
+     * @throws IOException when the table cannot be dropped
+     */
+    public static void drop(File database) throws IOException {
+        dropTable(database, TABLE);
+    }
+
+    private static Delivery readRow(ResultSet row) throws SQLException {
+        var code = row.getObject(1, UUID.class);
+        var sender = row.getObject(2, UUID.class);
+        var date = row.getObject(3, LocalDate.class);
+        var destination = row.getString(4);
+        var weight = row.getDouble(5);
+        int ordinal = row.getInt(6);
+        if (ordinal < 0 || ordinal >= STATES.length) throw new SQLException("Invalid state " + ordinal);
+        var state = STATES[ordinal];
+        var insuredValue = row.getBigDecimal(7);
+        if (insuredValue == null) {
+            return new Delivery(code, sender, date, destination, weight, state);
+        }
+        return new InsuredDelivery(code, sender, date, destination, weight,
+                Money.ofCents(insuredValue.toBigIntegerExact()), state);
+    }
+
+    @Override
+    public synchronized void loadAll(Consumer<? super Delivery> consumer) throws IOException {
+        try (var statement = connection.createStatement();
+             var rows = statement.executeQuery("SELECT " + COLUMNS + " FROM " + TABLE)) {
+            while (rows.next()) {
+                consumer.accept(readRow(rows));
+            }
+        } catch (SQLException | RuntimeException e) {
+            throw new IOException("Cannot read the deliveries", e);
+        }
+    }
+
+    @Override
+    public synchronized void upsert(Delivery delivery) throws IOException {
+        try {
+            upsertStmt.setObject(1, delivery.getCode());
+            upsertStmt.setObject(2, delivery.getSender());
+            upsertStmt.setObject(3, delivery.getDate());
+            upsertStmt.setString(4, delivery.getDestination());
+            upsertStmt.setDouble(5, delivery.getWeight());
+            upsertStmt.setInt(6, delivery.getState().ordinal());
+            if (delivery instanceof InsuredDelivery) {
+                var value = ((InsuredDelivery) delivery).getInsuredValue();
+                upsertStmt.setBigDecimal(7, value.isLong()
+                        ? BigDecimal.valueOf(value.getCents())
+                        : new BigDecimal(value.toBigInteger()));
+            } else {
+                upsertStmt.setNull(7, Types.NUMERIC);
+            }
+            upsertStmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException("Cannot store the delivery " + delivery.getCode(), e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(UUID code) throws IOException {
+        try {
+            deleteStmt.setObject(1, code);
+            deleteStmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException("Cannot delete the delivery " + code, e);
+        }
+    }
+
+    @Override
+    public synchronized void updateState(UUID code, DeliveryState state) throws IOException {
+        try {
+            updateStateStmt.setInt(1, state.ordinal());
+            updateStateStmt.setObject(2, code);
+            updateStateStmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException("Cannot update the delivery " + code, e);
+        }
+    }
+
+    @Override
+    protected void deleteAll() throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM " + TABLE);
+        }
+    }
+}
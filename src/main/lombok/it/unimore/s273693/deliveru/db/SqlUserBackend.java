@@ -0,0 +1,110 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Stores the users in the {@code users} table of the embedded database, one row per user.
+ */
+public class SqlUserBackend extends SqlBackend<UUID, User> {
+    private static final String TABLE = "users";
+
+    private final PreparedStatement upsertStmt;
+    private final PreparedStatement deleteStmt;
+
+    private SqlUserBackend(File database) throws IOException {
+        super(database,
+                "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                        + "id UUID PRIMARY KEY, "
+                        + "username VARCHAR NOT NULL UNIQUE, "
+                        + "password VARCHAR NOT NULL, "
+                        + "address VARCHAR NOT NULL)");
+        try {
+            upsertStmt = connection.prepareStatement(
+                    "MERGE INTO " + TABLE + " (id, username, password, address) KEY(id) VALUES (?, ?, ?, ?)");
+            deleteStmt = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE id = ?");
+        } catch (SQLException e) {
+            close();
+            throw new IOException("Cannot prepare the users statements", e);
+        }
+    }
+
+    /**
+     * Opens the users table, creating the database and the table if needed.
+     *
+     * @param database The database file (without the extension added by H2)
+     * @return The opened backend
+     * @throws IOException when the database cannot be opened
+     */
+    public static SqlUserBackend open(File database) throws IOException {
+        return new SqlUserBackend(database);
+    }
+
+    /**
+     * Checks if the database contains the users table.
+     *
+     * @param database The database file
+     * @return true only if the table exists
+     * @throws IOException when the database cannot be read
+     */
+    public static boolean exists(File database) throws IOException {
+        return tableExists(database, TABLE);
+    }
+
+    /**
+     * Drops the users table, the other tables of the database are kept.
+     *
+     * @param database The database file
+     * @throws IOException when the table cannot be dropped
+     */
+    public static void drop(File database) throws IOException {
+        dropTable(database, TABLE);
+    }
+
+    @Override
+    public synchronized void loadAll(Consumer<? super User> consumer) throws IOException {
+        try (var statement = connection.createStatement();
+             var rows = statement.executeQuery("SELECT id, username, password, address FROM " + TABLE)) {
+            while (rows.next()) {
+                consumer.accept(new User(rows.getObject(1, UUID.class), rows.getString(2), rows.getString(3),
+                        rows.getString(4)));
+            }
+        } catch (SQLException | RuntimeException e) {
+            throw new IOException("Cannot read the users", e);
+        }
+    }
+
+    @Override
+    public synchronized void upsert(User user) throws IOException {
+        try {
+            upsertStmt.setObject(1, user.getId());
+            upsertStmt.setString(2, user.getUsername());
+            upsertStmt.setString(3, user.getPassword());
+            upsertStmt.setString(4, user.getAddress());
+            upsertStmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException("Cannot store the user " + user.getId(), e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(UUID id) throws IOException {
+        try {
+            deleteStmt.setObject(1, id);
+            deleteStmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException("Cannot delete the user " + id, e);
+        }
+    }
+
+    @Override
+    protected void deleteAll() throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM " + TABLE);
+        }
+    }
+}
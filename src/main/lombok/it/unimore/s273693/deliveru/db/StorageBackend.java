@@ -0,0 +1,116 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Where a store persists its items, one item at a time.
+ *
+ * <p>
+ * The store keeps the items in memory (the GUI needs them as observable lists) and forwards every mutation to
+ * the backend, so a backend can be anything from a whole-file rewrite ({@link JsonUserBackend}) to an embedded
+ * SQL database where each change is a single row ({@link SqlDeliveryBackend}, {@link SqlUserBackend}).
+ * The deliveries have their own file layouts that plug in as {@link DeliveryStoreListener}s.
+ * </p>
+ *
+ * <p>
+ * The changes are queued by {@link BackendSync} and applied in the persistence thread together with
+ * {@link #flush()}, so the UI thread never waits for the backend, but the implementations must still be thread-safe
+ * (ex. the store is loaded and closed from other threads).
+ * </p>
+ *
+ * @param <K> The type of the item key
+ * @param <T> The type of the item
+ */
+public interface StorageBackend<K, T> extends Closeable {
+    /**
+     * Reads every stored item.
+     *
+     * @param consumer Called with every item
+     * @throws IOException when the items cannot be read
+     */
+    void loadAll(Consumer<? super T> consumer) throws IOException;
+
+    /**
+     * Inserts the item or replaces the one with the same key.
+     *
+     * @param item The item to store
+     * @throws IOException when the item cannot be stored
+     */
+    void upsert(T item) throws IOException;
+
+    /**
+     * Deletes the item with the provided key, nothing happens if it's not stored.
+     *
+     * @param key The key of the item to delete
+     * @throws IOException when the item cannot be deleted
+     */
+    void delete(K key) throws IOException;
+
+    /**
+     * Replaces every stored item with the provided ones, in a single transaction.
+     *
+     * @param items The new content of the backend
+     * @throws IOException when the items cannot be stored (the previous content is kept)
+     */
+    void replaceAll(Collection<? extends T> items) throws IOException;
+
+    /**
+     * Runs the batch in a single transaction, either all of its changes are applied or none.
+     * The other threads cannot access the backend while the batch is running.
+     *
+     * @param action The changes to apply
+     * @throws IOException when the changes cannot be applied (none of them is)
+     */
+    void batch(BatchAction<K, T> action) throws IOException;
+
+    /**
+     * Makes the changes applied so far durable.
+     *
+     * @throws IOException when an error occurs while writing
+     */
+    void flush() throws IOException;
+
+    /**
+     * The changes that can be made inside {@link #batch(BatchAction)}.
+     *
+     * @param <K> The type of the item key
+     * @param <T> The type of the item
+     */
+    interface Batch<K, T> {
+        /**
+         * Inserts the item or replaces the one with the same key.
+         *
+         * @param item The item to store
+         * @throws IOException when the item cannot be stored
+         */
+        void upsert(T item) throws IOException;
+
+        /**
+         * Deletes the item with the provided key.
+         *
+         * @param key The key of the item to delete
+         * @throws IOException when the item cannot be deleted
+         */
+        void delete(K key) throws IOException;
+    }
+
+    /**
+     * A group of changes applied with {@link #batch(BatchAction)}.
+     *
+     * @param <K> The type of the item key
+     * @param <T> The type of the item
+     */
+    @FunctionalInterface
+    interface BatchAction<K, T> {
+        /**
+         * Applies the changes.
+         *
+         * @param batch The transaction in which the changes are made
+         * @throws IOException when a change fails, the whole batch is rolled back
+         */
+        void run(Batch<K, T> batch) throws IOException;
+    }
+}
@@ -0,0 +1,165 @@
+package it.unimore.s273693.deliveru.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns a dense id to every distinct string and hands out a single canonical instance of it.
+ *
+ * <p>
+ * A {@link DeliveryStore} interns the destinations of its deliveries, so the ones with the same destination share
+ * a single {@link String} instead of keeping the copy made when they were decoded or typed, the compact storage
+ * keeps the ids instead of the strings and the binary files write every destination once (see
+ * {@link BinaryDeliveryFile}).
+ * A string is not removed when it stops being used, the owner drops the unused ones with {@link #retain(boolean[])}
+ * once in a while (the {@link DeliveryStore} does it when the dictionary doubled since the last time, see
+ * {@link DeliveryStore#snapshot()}).
+ * The number of lookups that found the string already there is counted, see {@link #getHitRatio()}.
+ * </p>
+ *
+ * <p>
+ * It's not synchronized, use it from the thread that changes it (or use a {@link #copy()}).
+ * </p>
+ */
+public final class StringDictionary {
+    private final List<String> strings;
+    private final Map<String, Integer> ids;
+    private long lookups;
+    private long hits;
+
+    StringDictionary() {
+        this.strings = new ArrayList<>();
+        this.ids = new HashMap<>();
+    }
+
+    private StringDictionary(StringDictionary other) {
+        this.strings = new ArrayList<>(other.strings);
+        this.ids = new HashMap<>(other.ids);
+        this.lookups = other.lookups;
+        this.hits = other.hits;
+    }
+
+    /**
+     * Finds the id of the string, adding it if it's new.
+     *
+     * @param value The string
+     * @return Its id
+     */
+    int id(String value) {
+        lookups++;
+        var id = ids.get(value);
+        if (id != null) {
+            hits++;
+            return id;
+        }
+        id = strings.size();
+        strings.add(value);
+        ids.put(value, id);
+        return id;
+    }
+
+    /**
+     * Finds the canonical instance of the string, the string itself becomes canonical if it's new.
+     *
+     * @param value The string
+     * @return The canonical instance equal to the string
+     */
+    String intern(String value) {
+        return strings.get(id(value));
+    }
+
+    /**
+     * Finds the id of the string without adding it (the lookup is not counted).
+     *
+     * @param value The string
+     * @return Its id, or -1 if it's not in the dictionary
+     */
+    int find(String value) {
+        var id = ids.get(value);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * The string with the id.
+     *
+     * @param id The id
+     * @return The canonical instance
+     * @throws IndexOutOfBoundsException if no string has the id
+     */
+    String get(int id) {
+        return strings.get(id);
+    }
+
+    /**
+     * Drops the strings that are not used anymore, the other ones keep their order but get new dense ids.
+     * The lookup counters are not changed.
+     *
+     * @param used Tells which ids are still used (one per string)
+     * @return The new id of every old id, -1 for the dropped strings
+     * @throws IllegalArgumentException if used doesn't have one element per string
+     */
+    int[] retain(boolean[] used) {
+        if (used.length != strings.size()) throw new IllegalArgumentException("Not one flag per string");
+        var remap = new int[used.length];
+        Arrays.fill(remap, -1);
+        var kept = new ArrayList<String>();
+        for (int id = 0; id < used.length; id++) {
+            if (!used[id]) continue;
+            remap[id] = kept.size();
+            kept.add(strings.get(id));
+        }
+        strings.clear();
+        strings.addAll(kept);
+        ids.clear();
+        for (int id = 0; id < strings.size(); id++) ids.put(strings.get(id), id);
+        return remap;
+    }
+
+    /**
+     * Copies the dictionary, the copy can be read from another thread.
+     *
+     * @return The copy
+     */
+    StringDictionary copy() {
+        return new StringDictionary(this);
+    }
+
+    /**
+     * The number of distinct strings.
+     *
+     * @return The number of strings
+     */
+    public int size() {
+        return strings.size();
+    }
+
+    /**
+     * The number of interned strings, the distinct ones and the repeated ones.
+     *
+     * @return The number of lookups
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * The number of interned strings that were already in the dictionary (a copy that has been dropped).
+     *
+     * @return The number of hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * The fraction of the interned strings that were already in the dictionary.
+     *
+     * @return The hit ratio, from 0 to 1 (0 if nothing was interned)
+     */
+    public double getHitRatio() {
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,122 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.Value;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * The deliveries of a {@link DeliveryStore} whose state can still change on its own (see {@link #accepts}),
+ * kept up to date by the store on every mutation.
+ *
+ * <p>
+ * The deliveries are kept in a dense array with their position in a map, so insertions, removals (the last
+ * delivery is moved in the place of the removed one) and uniform random samples take constant time.
+ * Only the code and the state are stored, so it works the same in a compact store.
+ * The store changes it from the JavaFX thread while other threads (like the automatic delivery worker) sample it,
+ * every method is synchronized.
+ * </p>
+ */
+public final class TransitionableDeliveries {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private UUID[] codes = new UUID[INITIAL_CAPACITY];
+    private DeliveryState[] states = new DeliveryState[INITIAL_CAPACITY];
+    private final Map<UUID, Integer> positions = new HashMap<>();
+    private int size;
+
+    /**
+     * Checks if a delivery in the provided state can still change on its own.
+     *
+     * @param state The state of the delivery
+     * @return true if the delivery is in preparation, in transit or waiting for a refund
+     */
+    public static boolean accepts(DeliveryState state) {
+        return state == DeliveryState.IN_PREPARATION
+                || state == DeliveryState.IN_TRANSIT
+                || state == DeliveryState.REFUND_REQUIRED;
+    }
+
+    /**
+     * The number of deliveries that can change state.
+     *
+     * @return The number of deliveries
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Picks one of the deliveries uniformly at random.
+     *
+     * @param random The source of randomness
+     * @return The code and the state of the chosen delivery, or an empty optional if there's none
+     */
+    public synchronized Optional<Sample> sample(Random random) {
+        if (size == 0) return Optional.empty();
+        int index = random.nextInt(size);
+        return Optional.of(new Sample(codes[index], states[index]));
+    }
+
+    /**
+     * Records the current state of a delivery, adding or removing it as needed.
+     *
+     * @param code The delivery code
+     * @param state The current state of the delivery
+     */
+    synchronized void update(UUID code, DeliveryState state) {
+        if (!accepts(state)) {
+            remove(code);
+            return;
+        }
+        var index = positions.get(code);
+        if (index != null) {
+            states[index] = state;
+            return;
+        }
+        if (size == codes.length) {
+            codes = Arrays.copyOf(codes, size * 2);
+            states = Arrays.copyOf(states, size * 2);
+        }
+        codes[size] = code;
+        states[size] = state;
+        positions.put(code, size++);
+    }
+
+    /**
+     * Removes a delivery, if present.
+     *
+     * @param code The delivery code
+     */
+    synchronized void remove(UUID code) {
+        var index = positions.remove(code);
+        if (index == null) return;
+        int last = --size;
+        if (index != last) {
+            codes[index] = codes[last];
+            states[index] = states[last];
+            positions.put(codes[index], index);
+        }
+        codes[last] = null;
+        states[last] = null;
+    }
+
+    /**
+     * A delivery picked by {@link #sample(Random)}.
+     */
+    @Value
+    public static class Sample {
+        /**
+         * The code of the delivery.
+         */
+        UUID code;
+        /**
+         * Its state when it was picked.
+         */
+        DeliveryState state;
+    }
+}
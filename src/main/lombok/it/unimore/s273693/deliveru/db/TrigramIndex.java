@@ -0,0 +1,256 @@
+package it.unimore.s273693.deliveru.db;
+
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An inverted index from the trigrams (sequences of three characters) of some texts to the keys that own them,
+ * used to search the texts by substring or approximately.
+ *
+ * <p>
+ * Many keys usually share the same text (ex. the deliveries to the same destination), so every distinct text is
+ * indexed once and keeps the set of its keys: adding a key with a known text costs a lookup, the trigrams are only
+ * computed for new texts. A search counts, for every text, the trigrams it shares with the query reading only the
+ * posting lists of the query trigrams, so it never scans the texts (except for queries shorter than a trigram).
+ * The texts are compared ignoring the case and the repeated whitespace.
+ * </p>
+ *
+ * <p>
+ * The results are ranked: first the texts that contain the query, then the ones that only look like it (they
+ * contain at least {@link #MIN_SIMILARITY} of the query trigrams, so a typo in a long address is still found),
+ * each group by decreasing similarity and then from the shortest text.
+ * The index is not synchronized, use it from the thread that changes it.
+ * </p>
+ *
+ * @param <K> The type of the keys
+ */
+public final class TrigramIndex<K> {
+    /**
+     * Minimum similarity (the fraction of the query trigrams found in the text) of an approximate match.
+     */
+    public static final double MIN_SIMILARITY = 0.5;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    // By id, null if the id is free
+    private final List<Text<K>> texts = new ArrayList<>();
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private final Map<Long, Postings> postings = new HashMap<>();
+
+    /**
+     * A key whose text matched the query.
+     *
+     * @param <K> The type of the key
+     */
+    @Value
+    public static class Match<K> {
+        /**
+         * The matching key.
+         */
+        K key;
+        /**
+         * The text of the key.
+         */
+        String text;
+        /**
+         * The fraction of the query trigrams found in the text, from 0 to 1.
+         */
+        double similarity;
+        /**
+         * True if the text contains the query.
+         */
+        boolean substring;
+
+        /**
+         * Orders the matches from the best one: the substring matches first, then by decreasing similarity and
+         * then from the shortest text.
+         *
+         * @return The ranking order
+         */
+        public static Comparator<Match<?>> ranking() {
+            return Comparator.<Match<?>, Boolean>comparing(Match::isSubstring).reversed()
+                    .thenComparing(Comparator.<Match<?>>comparingDouble(Match::getSimilarity).reversed())
+                    .thenComparingInt(match -> match.getText().length());
+        }
+    }
+
+    private static final class Text<K> {
+        private final String text;
+        private final String normalized;
+        // Distinct trigrams of the normalized text
+        private final long[] trigrams;
+        private final Set<K> keys = new HashSet<>(2);
+
+        private Text(String text) {
+            this.text = text;
+            this.normalized = normalize(text);
+            this.trigrams = trigrams(normalized);
+        }
+    }
+
+    // The ids of the texts with a trigram, unordered
+    private static final class Postings {
+        private int[] ids = new int[4];
+        private int size;
+
+        private void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        private void remove(int id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a key with its text, a key can be added with more texts.
+     *
+     * @param key The key
+     * @param text The text of the key
+     */
+    public void add(K key, String text) {
+        var id = ids.get(text);
+        if (id == null) id = insert(text);
+        texts.get(id).keys.add(key);
+    }
+
+    /**
+     * Removes a key from one of its texts.
+     *
+     * @param key The key
+     * @param text The text the key was added with
+     */
+    public void remove(K key, String text) {
+        var id = ids.get(text);
+        if (id == null) return;
+        var entry = texts.get(id);
+        if (!entry.keys.remove(key) || !entry.keys.isEmpty()) return;
+
+        // The last key of the text is gone, drop the text too
+        for (long trigram : entry.trigrams) {
+            var list = postings.get(trigram);
+            list.remove(id);
+            if (list.size == 0) postings.remove(trigram);
+        }
+        ids.remove(text);
+        texts.set(id, null);
+        if (freeCount == freeIds.length) freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        freeIds[freeCount++] = id;
+    }
+
+    private int insert(String text) {
+        var entry = new Text<K>(text);
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+            texts.set(id, entry);
+        } else {
+            id = texts.size();
+            texts.add(entry);
+        }
+        ids.put(text, id);
+        for (long trigram : entry.trigrams) postings.computeIfAbsent(trigram, x -> new Postings()).add(id);
+        return id;
+    }
+
+    /**
+     * The number of distinct indexed texts.
+     *
+     * @return The number of texts
+     */
+    public int getTextCount() {
+        return ids.size();
+    }
+
+    /**
+     * Searches the keys whose text contains or looks like the query.
+     *
+     * @param query The text to search
+     * @param limit The maximum number of keys to return
+     * @return The matching keys, from the best match (see {@link Match#ranking()})
+     */
+    public List<Match<K>> search(String query, int limit) {
+        var normalized = normalize(query);
+        if (normalized.isEmpty() || limit <= 0) return List.of();
+
+        var matches = new ArrayList<Match<Text<K>>>();
+        if (normalized.length() < 3) {
+            // No inner trigram to look up, only the substrings are returned (the whole query is found in them)
+            for (var text : texts) {
+                if (text == null || !text.normalized.contains(normalized)) continue;
+                matches.add(new Match<>(text, text.text, 1, true));
+            }
+        } else {
+            var trigrams = trigrams(normalized);
+            var shared = new int[texts.size()];
+            var touched = new ArrayList<Integer>();
+            for (long trigram : trigrams) {
+                var list = postings.get(trigram);
+                if (list == null) continue;
+                for (int i = 0; i < list.size; i++) {
+                    if (shared[list.ids[i]]++ == 0) touched.add(list.ids[i]);
+                }
+            }
+            for (int id : touched) {
+                var text = texts.get(id);
+                double similarity = (double) shared[id] / trigrams.length;
+                boolean substring = text.normalized.contains(normalized);
+                if (substring || similarity >= MIN_SIMILARITY) {
+                    matches.add(new Match<>(text, text.text, similarity, substring));
+                }
+            }
+        }
+        matches.sort(Match.ranking());
+
+        var res = new ArrayList<Match<K>>();
+        for (var match : matches) {
+            for (var key : match.getKey().keys) {
+                if (res.size() == limit) return res;
+                res.add(new Match<>(key, match.getText(), match.getSimilarity(), match.isSubstring()));
+            }
+        }
+        return res;
+    }
+
+    private static String normalize(String text) {
+        var res = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = res.length() > 0;
+                continue;
+            }
+            if (space) res.append(' ');
+            space = false;
+            res.append(c);
+        }
+        return res.toString().toLowerCase(Locale.ROOT);
+    }
+
+    // The distinct trigrams of the text, packed in a long. The text is padded with spaces like its words, so the
+    // words at its edges have the same trigrams as the inner ones
+    private static long[] trigrams(String normalized) {
+        var padded = ' ' + normalized + ' ';
+        var res = new long[Math.max(padded.length() - 2, 0)];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (long) padded.charAt(i) << 32 | (long) padded.charAt(i + 1) << 16 | padded.charAt(i + 2);
+        }
+        return Arrays.stream(res).sorted().distinct().toArray();
+    }
+}
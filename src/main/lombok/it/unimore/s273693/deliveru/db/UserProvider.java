@@ -3,6 +3,9 @@ package it.unimore.s273693.deliveru.db;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
+import it.unimore.s273693.deliveru.serialize.JsonDbStream;
+import lombok.Getter;
 import lombok.NonNull;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -12,13 +15,41 @@ import java.util.*;
 
 /**
  * Stores all of the registered users.
- * Supports queries by UUID and by name, is also in charge of loading and saving the data.
+ * Supports queries by UUID, by name and by address, is also in charge of loading and saving the data.
  */
 public class UserProvider {
     private static final Logger logger = LogManager.getLogger(UserProvider.class);
+    private static final long DB_VERSION = 1;
 
     private final Map<UUID, User> usersById = new HashMap<>();
     private final Map<String, User> usersByName = new HashMap<>();
+    private final TrigramIndex<UUID> usersByAddress = new TrigramIndex<>();
+    private final List<Runnable> changeListeners = new ArrayList<>();
+
+    /**
+     * Incremented on every mutation, used to know if the users changed since they were last saved.
+     *
+     * @return The current version
+     */
+    @Getter
+    private long version;
+
+    /**
+     * Forwards the changes to the storage backend (null if the users are not backed, ex. in an empty provider).
+     *
+     * @return The backend sync or null
+     */
+    @Getter
+    private BackendSync<UUID, User> backendSync;
+
+    /**
+     * True if the provider replaces users that could not be opened (see {@link #createUnsaved()}): saving it
+     * would overwrite them, so it must never be saved.
+     *
+     * @return true if the users must not be saved
+     */
+    @Getter
+    private boolean unsaved;
 
     private UserProvider() {}
 
@@ -42,6 +73,23 @@ public class UserProvider {
         return Optional.ofNullable(usersByName.get(normalizeName(name)));
     }
 
+    /**
+     * Searches the users whose address contains the query or looks like it (ignoring the case), from the best
+     * match (see {@link TrigramIndex}).
+     *
+     * @param query The text to search
+     * @param limit The maximum number of users to return
+     * @return The matching users
+     */
+    public List<TrigramIndex.Match<User>> searchByAddress(String query, int limit) {
+        var res = new ArrayList<TrigramIndex.Match<User>>();
+        for (var match : usersByAddress.search(query, limit)) {
+            var user = usersById.get(match.getKey());
+            res.add(new TrigramIndex.Match<>(user, match.getText(), match.getSimilarity(), match.isSubstring()));
+        }
+        return res;
+    }
+
     /**
      * Registers a new user.
      * If the name is already used then "false" is returned
@@ -52,7 +100,10 @@ public class UserProvider {
     public boolean registerUser(User user) {
         if (this.usersByName.putIfAbsent(user.getUsername(), user) != null) return false;
         if (this.usersById.putIfAbsent(user.getId(), user) != null) throw new RuntimeException("UUID conflict");
+        this.usersByAddress.add(user.getId(), user.getAddress());
 
+        if (this.backendSync != null) this.backendSync.upsert(user);
+        this.onChanged();
         return true;
     }
 
@@ -67,54 +118,68 @@ public class UserProvider {
         var user = usersById.remove(id);
         if (user == null) return false;
         usersByName.remove(user.getUsername());
+        usersByAddress.remove(id, user.getAddress());
+        if (this.backendSync != null) this.backendSync.delete(id);
+        this.onChanged();
         return true;
     }
 
     /**
-     * Serializes the database into a {@link SerializedDb}.
+     * Registers a listener called after every mutation.
      *
-     * @return the serialized version of this instance
+     * @param listener The listener to register
      */
-    private SerializedDb serialize() {
-        var db = new SerializedDb();
-        db.users = new ArrayList<>(this.usersById.values());
-        db.version = 1;
+    public void addChangeListener(Runnable listener) {
+        this.changeListeners.add(listener);
+    }
 
-        return db;
+    private void onChanged() {
+        this.version++;
+        for (var listener : this.changeListeners) listener.run();
     }
 
     /**
-     * Clears the data stored in this and loads the serialized version provided as argument.
+     * Adds an user read from the db.
      *
-     * @param db the serialized version to load
+     * @param user The loaded user
      */
-    private void deserialize(SerializedDb db) {
-        this.usersById.clear();
-        this.usersByName.clear();
-
-        if (db.version != 1) {
-            logger.error("Failed to load users, incompatible db version: {}", db.version);
-            return;
-        }
-
-        for (var user : db.users) {
-            this.usersById.put(user.getId(), user);
-            this.usersByName.put(user.getUsername(), user);
-        }
-
-        logger.info("Loaded {} users", db.users.size());
+    private void addLoaded(User user) {
+        this.usersById.put(user.getId(), user);
+        this.usersByName.put(user.getUsername(), user);
+        this.usersByAddress.add(user.getId(), user.getAddress());
     }
 
     /**
      * Saves the users data to the provided OutputStream.
+     * The users are streamed one at a time, without any intermediate copy.
      *
      * @param out he outputstream to use
      * @throws IOException when an error occurs while saving the data
      */
     public void save(OutputStream out) throws IOException {
-        var mapper = new ObjectMapper();
-        mapper.writeValue(out, this.serialize());
-        logger.info("Saved {} users", this.usersById.size());
+        save(out, this.usersById.values());
+    }
+
+    /**
+     * Copies the current users, the copy can then be saved from another thread with
+     * {@link #save(OutputStream, Collection)}.
+     *
+     * @return A copy of the registered users
+     */
+    public List<User> snapshot() {
+        return new ArrayList<>(this.usersById.values());
+    }
+
+    /**
+     * Saves the provided users (usually a {@link #snapshot()}) to the OutputStream.
+     *
+     * @param out The output stream to use
+     * @param users The users to save
+     * @throws IOException when an error occurs while saving the data
+     */
+    public static void save(OutputStream out, Collection<User> users) throws IOException {
+        JsonDbStream.write(new ObjectMapper(), out, User.class, DB_VERSION, "users", users);
+        logger.info("Saved {} users", users.size());
     }
 
     /**
@@ -126,6 +191,41 @@ public class UserProvider {
         return new UserProvider();
     }
 
+    /**
+     * Creates an empty {@link UserProvider} used in place of users that could not be opened, the changes made
+     * to it are never saved so that the stored users are not overwritten (see {@link #isUnsaved()}).
+     *
+     * @return an empty unsaved {@link UserProvider}
+     */
+    public static UserProvider createUnsaved() {
+        var res = new UserProvider();
+        res.unsaved = true;
+        return res;
+    }
+
+    /**
+     * Creates a new {@link UserProvider} instance with the data read from the {@link InputStream}.
+     *
+     * @param in The data to read
+     * @return the newly created instance
+     * @throws InvalidDbException When the data is corrupted or of an incompatible version
+     * @throws IOException When an error occurs while reading the file
+     */
+    public static UserProvider read(InputStream in) throws IOException {
+        var res = createEmpty();
+        long version;
+        try {
+            version = JsonDbStream.read(new ObjectMapper(), in, User.class, "users", v -> v == DB_VERSION,
+                    res::addLoaded);
+        } catch (JsonParseException | JsonMappingException e) {
+            throw new InvalidDbException("Failed to parse JSON", e);
+        }
+        if (version != DB_VERSION) throw new InvalidDbException("Incompatible db version: " + version);
+
+        logger.info("Loaded {} users", res.usersById.size());
+        return res;
+    }
+
     /**
      * Creates a new {@link UserProvider} instance with the data found in the {@link InputStream}.
      * If the format is not recognized an empty {@link UserProvider} is returned.
@@ -135,32 +235,27 @@ public class UserProvider {
      * @throws IOException When an error occurs while reading the file
      */
     public static UserProvider load(InputStream in) throws IOException {
-        var res = createEmpty();
-        if (in == null) return res;
+        if (in == null) return createEmpty();
 
-        var mapper = new ObjectMapper();
-        SerializedDb db;
         try {
-            db = mapper.readValue(in, SerializedDb.class);
-        } catch (JsonParseException | JsonMappingException e) {
-            logger.error("Failed to parse JSON", e);
-            return res;
+            return read(in);
+        } catch (InvalidDbException e) {
+            logger.error("Failed to load users", e);
+            return createEmpty();
         }
-
-        res.deserialize(db);
-        return res;
     }
 
     /**
      * Creates a new {@link UserProvider} instance with the data loaded from the provided file.
-     * If the file is not found or it's impossible tor ead it an empty {@link UserProvider} is returned
+     * The newest valid generation of the file is used (see {@link AtomicFile}), if none is valid or the file
+     * does not exist an empty {@link UserProvider} is returned
      *
      * @param file The file to read from
      * @return A new {@link UserProvider} with the loaded data
      */
     public static UserProvider load(File file) {
         try {
-            return load(new FileInputStream(file));
+            return AtomicFile.read(file, UserProvider::read);
         } catch (FileNotFoundException e) {
             logger.info("Users file not found");
         } catch (IOException e) {
@@ -169,6 +264,35 @@ public class UserProvider {
         return createEmpty();
     }
 
+    /**
+     * Creates a new {@link UserProvider} instance with the users stored in the backend, the following changes
+     * are written to the backend too.
+     *
+     * @param backend The backend to read from (it will be closed with the provider)
+     * @return A new {@link UserProvider} with the loaded data
+     * @throws IOException When the users cannot be read from the backend
+     */
+    public static UserProvider open(StorageBackend<UUID, User> backend) throws IOException {
+        var res = createEmpty();
+        backend.loadAll(res::addLoaded);
+        res.backendSync = new BackendSync<>(backend);
+        logger.info("Loaded {} users", res.usersById.size());
+        return res;
+    }
+
+    /**
+     * Closes the storage backend (if any), the following changes will not be saved.
+     */
+    public void close() {
+        if (this.backendSync == null) return;
+        try {
+            this.backendSync.getBackend().close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the users backend", e);
+        }
+        this.backendSync = null;
+    }
+
     /**
      * Normalizes the user name.
      *
@@ -178,12 +302,4 @@ public class UserProvider {
     private static String normalizeName(String name) {
         return name.toLowerCase(Locale.ENGLISH);
     }
-
-    /**
-     * Helper class that will be serialized into the OutputStream.
-     */
-    private static class SerializedDb {
-        public long version;
-        public List<User> users;
-    }
 }
@@ -10,6 +10,10 @@
  * The package is divided in two logical groups: The delivery and it's storage, and the User and it's storage,
  * those classes are similar to each other but they serve different purposes (as you can guess from their naming).
  * </p>
+ * <p>
+ * The stores keep their data in memory and can forward every change to a {@link
+ * it.unimore.s273693.deliveru.db.StorageBackend}, either a JSON file or the embedded SQL database.
+ * </p>
  * The user's password management has been deferred to the package {@link it.unimore.s273693.deliveru.password}.
  */
 package it.unimore.s273693.deliveru.db;
\ No newline at end of file
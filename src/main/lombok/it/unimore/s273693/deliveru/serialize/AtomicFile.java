@@ -0,0 +1,184 @@
+package it.unimore.s273693.deliveru.serialize;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Crash-safe replacement of whole files.
+ *
+ * <p>
+ * A file is never overwritten in place: the new content is written to a temporary file that is synced to disk
+ * and then atomically renamed over the old one, while the old one is kept as the previous generation
+ * ({@code <name>.prev}).
+ * A crash at any point leaves either the old or the new content, never a mix of the two.
+ * </p>
+ *
+ * <p>
+ * The reader tries the current generation first and falls back to the previous one if the current is missing or
+ * invalid (the reader decides what's valid by throwing an {@link IOException}), a corrupted file is copied aside
+ * ({@code <name>.corrupt}) so that it's not lost when the next generation is saved.
+ * </p>
+ */
+public final class AtomicFile {
+    private static final Logger logger = LogManager.getLogger(AtomicFile.class);
+
+    private AtomicFile() {}
+
+    /**
+     * The previous generation of the file.
+     *
+     * @param file The file
+     * @return The file that contains its previous generation
+     */
+    public static File previous(File file) {
+        return new File(file.getPath() + ".prev");
+    }
+
+    private static File temporary(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Checks if any generation of the file exists.
+     *
+     * @param file The file to check
+     * @return true if either the current or the previous generation exists
+     */
+    public static boolean exists(File file) {
+        return file.exists() || previous(file).exists();
+    }
+
+    /**
+     * Deletes every generation of the file.
+     *
+     * @param file The file to delete
+     * @return true only if no generation exists anymore
+     */
+    public static boolean delete(File file) {
+        var prev = previous(file);
+        return (!file.exists() || file.delete()) && (!prev.exists() || prev.delete());
+    }
+
+    /**
+     * Atomically replaces the file with the content produced by the writer, the old content becomes the
+     * previous generation.
+     * If the writer fails the file is not touched.
+     *
+     * @param file The file to write
+     * @param writer Writes the new content (closing the stream it receives is allowed)
+     * @throws IOException when an error occurs while writing
+     */
+    public static void write(File file, Writer writer) throws IOException {
+        file.getParentFile().mkdirs();
+        var tmp = temporary(file);
+
+        try (var out = new FileOutputStream(tmp)) {
+            // The writers usually close the stream, but it must stay open until it's synced
+            writer.write(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            out.getChannel().force(true);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        if (file.exists()) {
+            Files.move(file.toPath(), previous(file).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file.getParentFile());
+    }
+
+    /**
+     * Syncs the directory to the storage device, so that the renames done in it are durable.
+     * Directories cannot be synced on every platform, in that case nothing is done.
+     *
+     * @param dir The directory
+     */
+    public static void syncDirectory(File dir) {
+        try (var channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be synced on every platform (ex. Windows), the rename is still atomic
+            logger.debug("Cannot sync directory {}", dir, e);
+        }
+    }
+
+    /**
+     * Reads the newest valid generation of the file.
+     *
+     * @param file The file to read
+     * @param reader Parses the content, it should throw an {@link IOException} if the content is invalid
+     * @param <T> The parsed type
+     * @return The parsed content
+     * @throws FileNotFoundException if no generation exists
+     * @throws IOException if no generation can be read (the one thrown reading the newest is reported)
+     */
+    public static <T> T read(File file, Reader<T> reader) throws IOException {
+        IOException failure = null;
+
+        for (var generation : List.of(file, previous(file))) {
+            if (!generation.exists()) continue;
+            try (var in = new FileInputStream(generation)) {
+                var res = reader.read(in);
+                if (generation != file) logger.warn("Using the previous generation of {}", file);
+                return res;
+            } catch (IOException e) {
+                logger.error("Cannot read {}", generation, e);
+                if (failure == null) {
+                    failure = e;
+                    preserveCorrupted(generation);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        if (failure == null) throw new FileNotFoundException(file.getPath());
+        throw failure;
+    }
+
+    private static void preserveCorrupted(File file) {
+        try {
+            Files.copy(file.toPath(), new File(file.getPath() + ".corrupt").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Cannot preserve corrupted file {}", file, e);
+        }
+    }
+
+    /**
+     * Writes the content of a file.
+     */
+    @FunctionalInterface
+    public interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Parses the content of a file.
+     *
+     * @param <T> The parsed type
+     */
+    @FunctionalInterface
+    public interface Reader<T> {
+        T read(InputStream in) throws IOException;
+    }
+}
@@ -0,0 +1,101 @@
+package it.unimore.s273693.deliveru.serialize;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Token-streaming reader and writer of the JSON db files.
+ *
+ * <p>
+ * The db files are objects in the form {@code {"version": 1, "<records>": [...]}}, instead of mapping the whole
+ * document into a list this class walks the tokens and maps one record at a time, so the memory used while
+ * loading or saving doesn't depend on the file size.
+ * Note that the version is required to come before the records (as it's always been written).
+ * </p>
+ */
+public final class JsonDbStream {
+    private static final String VERSION_FIELD = "version";
+
+    private JsonDbStream() {}
+
+    /**
+     * Reads the records from the stream passing them to the consumer as soon as they're parsed.
+     *
+     * @param mapper The mapper used to parse each record
+     * @param in The stream to read
+     * @param type The record type
+     * @param recordsField The name of the field that contains the records array
+     * @param versionCheck Called with the db version, if it returns false the reading stops
+     * @param consumer Called for each parsed record
+     * @param <T> The record type
+     * @return The read db version (or -1 if not present)
+     * @throws IOException when an error occurs while reading or the JSON is malformed
+     */
+    public static <T> long read(ObjectMapper mapper, InputStream in, Class<T> type, String recordsField,
+                                LongPredicate versionCheck, Consumer<T> consumer) throws IOException {
+        var reader = mapper.readerFor(type);
+        long version = -1;
+
+        try (var parser = mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a JSON object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.getCurrentName();
+                var token = parser.nextToken();
+
+                if (VERSION_FIELD.equals(name)) {
+                    version = parser.getLongValue();
+                    if (!versionCheck.test(version)) return version;
+                } else if (recordsField.equals(name)) {
+                    if (version < 0) throw new JsonParseException(parser, "The version must precede the records");
+                    if (token != JsonToken.START_ARRAY) throw new JsonParseException(parser, "Expected an array");
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        consumer.accept(reader.readValue(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Writes the records in the stream one at a time.
+     *
+     * @param mapper The mapper used to write each record
+     * @param out The output stream
+     * @param type The record type (used for polymorphic type info)
+     * @param version The db version
+     * @param recordsField The name of the field that will contain the records array
+     * @param records The records to write
+     * @param <T> The record type
+     * @throws IOException when an error occurs while writing
+     */
+    public static <T> void write(ObjectMapper mapper, OutputStream out, Class<T> type, long version,
+                                 String recordsField, Iterable<? extends T> records) throws IOException {
+        // Don't flush after every record, that would be a syscall for each one of them
+        var writer = mapper.writerFor(type).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+        try (var gen = mapper.getFactory().createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeNumberField(VERSION_FIELD, version);
+            gen.writeArrayFieldStart(recordsField);
+            for (T record : records) {
+                writer.writeValue(gen, record);
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+    }
+}
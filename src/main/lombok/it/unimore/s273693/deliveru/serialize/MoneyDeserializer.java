@@ -0,0 +1,34 @@
+package it.unimore.s273693.deliveru.serialize;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import it.unimore.s273693.deliveru.db.Money;
+
+import java.io.IOException;
+
+/**
+ * Deserializer of {@link Money} (required by Jackson), reads the cents from an integer number.
+ */
+public class MoneyDeserializer extends StdDeserializer<Money> {
+    private static final long serialVersionUID = 1L;
+
+    protected MoneyDeserializer() {
+        super(Money.class);
+    }
+
+    @Override
+    public Money deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException {
+        if (jp.currentToken() != JsonToken.VALUE_NUMBER_INT) {
+            return (Money) ctxt.handleUnexpectedToken(Money.class, jp);
+        }
+        switch (jp.getNumberType()) {
+            case INT:
+            case LONG:
+                return Money.ofCents(jp.getLongValue());
+            default:
+                return Money.ofCents(jp.getBigIntegerValue());
+        }
+    }
+}
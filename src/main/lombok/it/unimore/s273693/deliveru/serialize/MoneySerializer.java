@@ -0,0 +1,28 @@
+package it.unimore.s273693.deliveru.serialize;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import it.unimore.s273693.deliveru.db.Money;
+
+import java.io.IOException;
+
+/**
+ * Serializer of {@link Money} (required by Jackson), the cents are written as an integer number.
+ */
+public class MoneySerializer extends StdSerializer<Money> {
+    private static final long serialVersionUID = 1L;
+
+    public MoneySerializer() {
+        super(Money.class);
+    }
+
+    @Override
+    public void serialize(Money value, JsonGenerator gen, SerializerProvider sp) throws IOException {
+        if (value.isLong()) {
+            gen.writeNumber(value.getCents());
+        } else {
+            gen.writeNumber(value.toBigInteger());
+        }
+    }
+}
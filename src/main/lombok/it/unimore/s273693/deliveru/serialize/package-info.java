@@ -1,4 +1,5 @@
 /**
- * Boilerplate classes needed for Jackson.
+ * Boilerplate classes needed for Jackson, the streaming helpers used to read and write the db files
+ * and the crash-safe file replacement.
  */
-package it.unimore.s273693.deliveru.serialize;
\ No newline at end of file
+package it.unimore.s273693.deliveru.serialize;
@@ -3,10 +3,13 @@ package it.unimore.s273693.deliveru.ui.controllers;
 import it.unimore.s273693.deliveru.AppContext;
 import it.unimore.s273693.deliveru.Constants;
 import it.unimore.s273693.deliveru.ui.mount.BaseController;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.PasswordField;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.TextField;
 import org.fxmisc.easybind.EasyBind;
 
@@ -17,6 +20,8 @@ import org.fxmisc.easybind.EasyBind;
  * <p>The "login" button is disabled when the username or the password are empty.</p>
  *
  * <p>After the login navigates to {@link AdminHomeController}</p>
+ *
+ * <p>While the app data is loading a progress indicator is shown and the login is disabled.</p>
  */
 public class AdminAuthController extends BaseController  {
     private final AppContext ctx;
@@ -30,6 +35,11 @@ public class AdminAuthController extends BaseController  {
     @FXML
     private Button loginBtn;
 
+    @FXML
+    private ProgressIndicator loading;
+
+    private final BooleanProperty ready = new SimpleBooleanProperty();
+
     public AdminAuthController(AppContext ctx) {
         super("gui/admin_auth.fxml");
         this.ctx = ctx;
@@ -37,8 +47,11 @@ public class AdminAuthController extends BaseController  {
 
     @FXML
     private void initialize() {
-        loginBtn.disableProperty().bind(EasyBind.combine(username.textProperty(), password.textProperty(),
-                (usr, psw) -> username.getText().isEmpty() || password.getText().isEmpty()));
+        loginBtn.disableProperty().bind(EasyBind.combine(username.textProperty(), password.textProperty(), ready,
+                (usr, psw, isReady) -> !isReady || username.getText().isEmpty() || password.getText().isEmpty()));
+
+        loading.visibleProperty().bind(ready.not());
+        ctx.getReady().thenRun(() -> ready.set(true));
     }
 
     @Override
@@ -1,20 +1,103 @@
 package it.unimore.s273693.deliveru.ui.controllers;
 
 import it.unimore.s273693.deliveru.AppContext;
+import it.unimore.s273693.deliveru.db.Delivery;
+import it.unimore.s273693.deliveru.db.DeliveryPage;
+import it.unimore.s273693.deliveru.db.DeliveryQuery;
+import it.unimore.s273693.deliveru.db.DeliveryState;
+import it.unimore.s273693.deliveru.db.DeliveryStoreListener;
+import it.unimore.s273693.deliveru.db.TrigramIndex;
 import it.unimore.s273693.deliveru.ui.mount.BaseController;
 import it.unimore.s273693.deliveru.ui.table.AdminDeliveryTableView;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
 import javafx.fxml.FXML;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TextField;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * Controller of the admin home GUI.
  * most of the logic is implemented in {@link AdminDeliveryTableView}.
+ *
+ * <p>
+ * The deliveries are shown a page at a time, sorted by date, and only the deliveries of the shown page are copied
+ * out of the store (see {@link it.unimore.s273693.deliveru.db.DeliveryStore#find(DeliveryQuery)}).
+ * If the store is lazy the deliveries still on disk are loaded a bit at a time first, without blocking the UI.
+ * </p>
+ *
+ * <p>
+ * The search field filters the table to the deliveries whose destination, or whose sender address, contains or
+ * looks like the searched text, from the best match.
+ * </p>
  */
 public class AdminHomeController extends BaseController {
+    // Deliveries loaded per frame when the store is lazy
+    private static final int LOAD_SIZE = 2000;
+    // Deliveries shown per page
+    private static final int PAGE_SIZE = 500;
+    private static final DeliveryQuery PAGE_QUERY = DeliveryQuery.builder()
+            .sort(DeliveryQuery.Sort.DATE)
+            .limit(PAGE_SIZE)
+            .build();
+    // Deliveries shown for a search
+    private static final int SEARCH_LIMIT = 1000;
+    // Users whose deliveries are shown for a search
+    private static final int SEARCH_USER_LIMIT = 20;
+
     private final AppContext ctx;
+    private final DeliveryStoreListener searchRefresher = new DeliveryStoreListener() {
+        @Override
+        public void onAdded(Delivery delivery) {
+            refresh();
+        }
+
+        @Override
+        public void onRemoved(Delivery delivery) {
+            refresh();
+        }
+
+        @Override
+        public void onAddedAll(List<Delivery> deliveries) {
+            refresh();
+        }
+
+        @Override
+        public void onRemovedAll(List<Delivery> deliveries) {
+            refresh();
+        }
+
+        @Override
+        public void onStateChanged(Delivery delivery, DeliveryState oldState, DeliveryState newState) {
+            // The rows follow the state on their own
+        }
+    };
+    private boolean refreshScheduled;
+    // True until the deliveries still on disk are loaded
+    private boolean loading;
+    // The cursor every shown page starts after (null for the first page), the last one is the current page
+    private final List<DeliveryQuery.Cursor> pageStarts = new ArrayList<>();
+    private DeliveryPage page;
+
+    @FXML
+    private TextField search;
 
     @FXML
     private AdminDeliveryTableView table;
 
+    @FXML
+    private Button previousPage;
+
+    @FXML
+    private Button nextPage;
+
+    @FXML
+    private Label pageLabel;
+
     public AdminHomeController(AppContext ctx) {
         super("gui/admin_home.fxml");
         this.ctx = ctx;
@@ -23,6 +106,111 @@ public class AdminHomeController extends BaseController {
     @FXML
     private void initialize() {
         table.setCtx(ctx);
-        table.setItems(ctx.getDeliveries().getDeliveries());
+        pageStarts.add(null);
+        search.textProperty().addListener((obs, oldText, newText) -> show());
+        ctx.getDeliveries().addListener(searchRefresher);
+        loading = true;
+        loadNextPage();
+    }
+
+    @Override
+    public void unmount() {
+        ctx.getDeliveries().removeListener(searchRefresher);
+    }
+
+    /**
+     * Loads the deliveries that are still on disk a page at a time, letting the UI update in between, then shows
+     * the first page.
+     */
+    private void loadNextPage() {
+        if (ctx.getDeliveries().loadPage(LOAD_SIZE)) {
+            pageLabel.setText("Loading deliveries...");
+            Platform.runLater(this::loadNextPage);
+            return;
+        }
+        loading = false;
+        show();
+    }
+
+    @FXML
+    private void onPreviousPage() {
+        if (pageStarts.size() <= 1) return;
+        pageStarts.remove(pageStarts.size() - 1);
+        show();
+    }
+
+    @FXML
+    private void onNextPage() {
+        if (page == null || !page.hasNext()) return;
+        pageStarts.add(page.getNext());
+        show();
+    }
+
+    /**
+     * Shows the page (or runs the search) again once the current batch of changes is done, the shown deliveries
+     * are a copy.
+     */
+    private void refresh() {
+        if (refreshScheduled) return;
+        refreshScheduled = true;
+        Platform.runLater(() -> {
+            refreshScheduled = false;
+            show();
+        });
+    }
+
+    private void show() {
+        if (loading) return;
+        if (search.getText().isBlank()) {
+            showPage();
+        } else {
+            runSearch();
+        }
+    }
+
+    private void showPage() {
+        var start = pageStarts.get(pageStarts.size() - 1);
+        page = ctx.getDeliveries().find(start != null ? PAGE_QUERY.continueAfter(start) : PAGE_QUERY);
+        if (page.getDeliveries().isEmpty() && pageStarts.size() > 1) {
+            // The rest of the deliveries has been removed, go back
+            pageStarts.remove(pageStarts.size() - 1);
+            showPage();
+            return;
+        }
+        table.setItems(FXCollections.observableArrayList(page.getDeliveries()));
+        pageLabel.setText("Page " + pageStarts.size());
+        previousPage.setDisable(pageStarts.size() <= 1);
+        nextPage.setDisable(!page.hasNext());
+    }
+
+    private void runSearch() {
+        var query = search.getText();
+        pageLabel.setText("");
+        previousPage.setDisable(true);
+        nextPage.setDisable(true);
+
+        // Merge the destination and the address matches keeping the best match of every delivery
+        var best = new HashMap<Delivery, TrigramIndex.Match<Delivery>>();
+        for (var match : ctx.getDeliveries().searchDestination(query, SEARCH_LIMIT)) {
+            best.merge(match.getKey(), match, AdminHomeController::better);
+        }
+        for (var userMatch : ctx.getUsers().searchByAddress(query, SEARCH_USER_LIMIT)) {
+            for (var delivery : ctx.getDeliveries().getByAuthor(userMatch.getKey().getId())) {
+                var match = new TrigramIndex.Match<>(delivery, userMatch.getText(), userMatch.getSimilarity(),
+                        userMatch.isSubstring());
+                best.merge(delivery, match, AdminHomeController::better);
+            }
+        }
+
+        var matches = new ArrayList<>(best.values());
+        matches.sort(TrigramIndex.Match.ranking());
+        var res = FXCollections.<Delivery>observableArrayList();
+        for (int i = 0; i < Math.min(matches.size(), SEARCH_LIMIT); i++) res.add(matches.get(i).getKey());
+        table.setItems(res);
+    }
+
+    private static TrigramIndex.Match<Delivery> better(TrigramIndex.Match<Delivery> a,
+                                                       TrigramIndex.Match<Delivery> b) {
+        return TrigramIndex.Match.ranking().compare(a, b) <= 0 ? a : b;
     }
 }
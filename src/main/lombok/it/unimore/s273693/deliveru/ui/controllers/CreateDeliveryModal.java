@@ -4,6 +4,7 @@ import it.unimore.s273693.deliveru.AppContext;
 import it.unimore.s273693.deliveru.db.Delivery;
 import it.unimore.s273693.deliveru.db.DeliveryType;
 import it.unimore.s273693.deliveru.db.InsuredDelivery;
+import it.unimore.s273693.deliveru.db.Money;
 import it.unimore.s273693.deliveru.db.User;
 import it.unimore.s273693.deliveru.ui.mount.FxmlModal;
 import it.unimore.s273693.deliveru.ui.util.DoubleStringConverter;
@@ -16,7 +17,6 @@ import javafx.scene.control.TextField;
 import lombok.NonNull;
 import org.fxmisc.easybind.EasyBind;
 
-import java.math.BigInteger;
 import java.time.LocalDate;
 import java.util.UUID;
 import java.util.function.Function;
@@ -56,7 +56,7 @@ public class CreateDeliveryModal extends FxmlModal {
     private void initialize() {
         typeCbx.getItems().setAll(DeliveryType.values());
         weight.setTextFormatter(DoubleStringConverter.textFormatter(0.0));
-        insuredValue.setTextFormatter(MoneyStringConverter.textFormatter(BigInteger.ZERO));
+        insuredValue.setTextFormatter(MoneyStringConverter.textFormatter(Money.ZERO));
 
         typeCbx.setValue(DeliveryType.STANDARD);
 
@@ -112,7 +112,7 @@ public class CreateDeliveryModal extends FxmlModal {
         DeliveryType type = typeCbx.getValue();
         String dest = destination.getText();
         double weight = (Double) this.weight.getTextFormatter().getValue();
-        BigInteger insuredValue = (BigInteger) this.insuredValue.getTextFormatter().getValue();
+        Money insuredValue = (Money) this.insuredValue.getTextFormatter().getValue();
 
         UUID uuid = UUID.randomUUID();
         LocalDate now = LocalDate.now();
@@ -2,13 +2,17 @@ package it.unimore.s273693.deliveru.ui.controllers;
 
 import it.unimore.s273693.deliveru.AppContext;
 import it.unimore.s273693.deliveru.AppSettings;
+import it.unimore.s273693.deliveru.StorageMode;
+import it.unimore.s273693.deliveru.UserStorageMode;
 import it.unimore.s273693.deliveru.password.PasswordStorageStrategy;
 import it.unimore.s273693.deliveru.ui.mount.FxmlModal;
 import it.unimore.s273693.deliveru.ui.util.PercentStringConverter;
 import javafx.fxml.FXML;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Spinner;
 import javafx.scene.control.SpinnerValueFactory.DoubleSpinnerValueFactory;
+import javafx.scene.control.SpinnerValueFactory.IntegerSpinnerValueFactory;
 import javafx.scene.control.ToggleButton;
 import javafx.util.StringConverter;
 import org.fxmisc.easybind.EasyBind;
@@ -20,6 +24,9 @@ import org.fxmisc.easybind.EasyBind;
  *  <li>Default password storage strategy</li>
  *  <li>Enable automatic/manual delivery</li>
  *  <li>Change automatic delivery intensity and fail rate</li>
+ *  <li>Delivery and user storage modes (applied on restart)</li>
+ *  <li>Autosave quiet period and maximum delay</li>
+ *  <li>Age of the deliveries to archive (applied on restart)</li>
  * </ul>
  */
 public class SettingsModal extends FxmlModal {
@@ -37,6 +44,24 @@ public class SettingsModal extends FxmlModal {
     @FXML
     private Spinner<Double> deliveryFailRate;
 
+    @FXML
+    private ComboBox<StorageMode> deliveryStorage;
+
+    @FXML
+    private ComboBox<UserStorageMode> userStorage;
+
+    @FXML
+    private Spinner<Double> autosaveQuietPeriod;
+
+    @FXML
+    private Spinner<Double> autosaveMaxDelay;
+
+    @FXML
+    private Spinner<Integer> archiveAfterDays;
+
+    @FXML
+    private CheckBox compactDeliveries;
+
 
     public SettingsModal(AppContext ctx) {
         super("gui/settings.fxml", ctx.getAppStage());
@@ -79,6 +104,14 @@ public class SettingsModal extends FxmlModal {
 
         deliveryFailRate.setValueFactory(deliveryFailRateFactory);
 
+        deliveryStorage.getItems().setAll(StorageMode.values());
+        userStorage.getItems().setAll(UserStorageMode.values());
+
+        autosaveQuietPeriod.setValueFactory(new DoubleSpinnerValueFactory(0., 600., settings.autosaveQuietPeriod,
+                .5));
+        autosaveMaxDelay.setValueFactory(new DoubleSpinnerValueFactory(0., 3600., settings.autosaveMaxDelay, 1.));
+        archiveAfterDays.setValueFactory(new IntegerSpinnerValueFactory(0, 3650, settings.archiveAfterDays, 1));
+
         loadSettings();
     }
 
@@ -88,6 +121,12 @@ public class SettingsModal extends FxmlModal {
         deliveryMode.setSelected(settings.deliveryEnabled);
         deliveryFailRate.getValueFactory().setValue(settings.deliveryFailRate * 100);
         deliveryIntensity.getValueFactory().setValue(settings.deliveryIntensity);
+        deliveryStorage.setValue(settings.deliveryStorage);
+        userStorage.setValue(settings.userStorage);
+        autosaveQuietPeriod.getValueFactory().setValue(settings.autosaveQuietPeriod);
+        autosaveMaxDelay.getValueFactory().setValue(settings.autosaveMaxDelay);
+        archiveAfterDays.getValueFactory().setValue(settings.archiveAfterDays);
+        compactDeliveries.setSelected(settings.compactDeliveries);
     }
 
     @FXML
@@ -101,7 +140,13 @@ public class SettingsModal extends FxmlModal {
                 passwordStorage.getValue().id(),
                 deliveryMode.isSelected(),
                 deliveryIntensity.getValue(),
-                deliveryFailRate.getValue() / 100.0
+                deliveryFailRate.getValue() / 100.0,
+                deliveryStorage.getValue(),
+                userStorage.getValue(),
+                autosaveQuietPeriod.getValue(),
+                autosaveMaxDelay.getValue(),
+                archiveAfterDays.getValue(),
+                compactDeliveries.isSelected()
         ));
         this.ctx.saveSettings();
     }
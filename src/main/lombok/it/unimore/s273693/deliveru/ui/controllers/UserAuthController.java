@@ -5,6 +5,8 @@ import it.unimore.s273693.deliveru.db.User;
 import it.unimore.s273693.deliveru.password.PasswordAuthenticator;
 import it.unimore.s273693.deliveru.ui.mount.BaseController;
 import javafx.beans.binding.Binding;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import org.fxmisc.easybind.EasyBind;
@@ -14,6 +16,7 @@ import org.fxmisc.easybind.EasyBind;
  * The login/register button is disabled when the username or the password
  * (or the address) are empty.
  * After the login navigates to {@link UserHomeController}.
+ * While the app data is loading a progress indicator is shown and the login is disabled.
  */
 public class UserAuthController extends BaseController {
     private final AppContext ctx;
@@ -33,6 +36,11 @@ public class UserAuthController extends BaseController {
     @FXML
     private CheckBox isUserNew;
 
+    @FXML
+    private ProgressIndicator loading;
+
+    private final BooleanProperty ready = new SimpleBooleanProperty();
+
 
     public UserAuthController(AppContext ctx) {
         super("gui/user_auth.fxml");
@@ -47,7 +55,8 @@ public class UserAuthController extends BaseController {
     @FXML
     private void initialize() {
         Binding<Boolean> isCreateDisabled = EasyBind.combine(username.textProperty(), password.textProperty(),
-                isUserNew.selectedProperty(), address.textProperty(), (usr, psw, isNew, addr) -> {
+                isUserNew.selectedProperty(), address.textProperty(), ready, (usr, psw, isNew, addr, isReady) -> {
+                    if (!isReady) return true;
                     if (usr == null || usr.isEmpty()) return true;
                     if (psw == null || psw.isEmpty()) return true;
                     if (isNew && addr.isEmpty()) return true;
@@ -57,6 +66,9 @@ public class UserAuthController extends BaseController {
         loginButton.disableProperty().bind(isCreateDisabled);
         address.disableProperty().bind(isUserNew.selectedProperty().not());
         loginButton.textProperty().bind(EasyBind.map(isUserNew.selectedProperty(), x -> x ? "Register" : "Login"));
+
+        loading.visibleProperty().bind(ready.not());
+        ctx.getReady().thenRun(() -> ready.set(true));
     }
 
     @FXML
@@ -4,6 +4,7 @@ import it.unimore.s273693.deliveru.AppContext;
 import it.unimore.s273693.deliveru.db.Delivery;
 import it.unimore.s273693.deliveru.db.DeliveryState;
 import it.unimore.s273693.deliveru.db.InsuredDelivery;
+import it.unimore.s273693.deliveru.db.Money;
 import it.unimore.s273693.deliveru.db.User;
 import it.unimore.s273693.deliveru.ui.util.MoneyStringConverter;
 import javafx.beans.property.ReadOnlyObjectWrapper;
@@ -21,7 +22,6 @@ import lombok.Getter;
 import lombok.Setter;
 import org.fxmisc.easybind.EasyBind;
 
-import java.math.BigInteger;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.EnumSet;
@@ -112,7 +112,7 @@ public class DeliveryTableView extends TableView<Delivery> {
                 String value = "";
                 var delivery = x.getValue();
                 if (delivery instanceof InsuredDelivery) {
-                    BigInteger v = ((InsuredDelivery) delivery).getInsuredValue();
+                    Money v = ((InsuredDelivery) delivery).getInsuredValue();
                     value = MoneyStringConverter.INSTANCE.toString(v);
                 }
                 return new ReadOnlyObjectWrapper<>(value);
@@ -1,5 +1,6 @@
 package it.unimore.s273693.deliveru.ui.util;
 
+import it.unimore.s273693.deliveru.db.Money;
 import javafx.scene.control.TextFormatter;
 import javafx.util.StringConverter;
 
@@ -8,10 +9,15 @@ import java.math.BigInteger;
 import java.util.regex.Pattern;
 
 /**
- * Converts a positive money value represented as {@link String} into a {@link BigInteger} that is the
+ * Converts a positive money value represented as {@link String} into a {@link Money} that is the
  * expected money value multiplied by 100 (to fit into an integer).
+ *
+ * <p>
+ * The amounts that fit in a long (all of them but the absurd ones) are formatted and parsed without
+ * allocating any {@link BigInteger} or {@link BigDecimal}.
+ * </p>
  */
-public class MoneyStringConverter extends StringConverter<BigInteger> {
+public class MoneyStringConverter extends StringConverter<Money> {
     /**
      * Immutable instance of this class.
      */
@@ -23,10 +29,23 @@ public class MoneyStringConverter extends StringConverter<BigInteger> {
 
     // Don't mind me, I'm immutable
     private static final BigInteger ONE_HUNDRED = BigInteger.valueOf(100);
+    // Integer digits that always fit in a long once multiplied by 100
+    private static final int MAX_LONG_DIGITS = 16;
 
     @Override
-    public String toString(BigInteger value) {
-        var res = value.abs()
+    public String toString(Money value) {
+        if (value.isLong() && value.getCents() != Long.MIN_VALUE) {
+            long cents = Math.abs(value.getCents());
+            long right = cents % 100;
+            return new StringBuilder(22)
+                    .append(cents / 100)
+                    .append('.')
+                    .append((char) ('0' + right / 10))
+                    .append((char) ('0' + right % 10))
+                    .toString();
+        }
+
+        var res = value.toBigInteger().abs()
                 .divideAndRemainder(ONE_HUNDRED);
 
         String right = res[1].toString();
@@ -38,10 +57,40 @@ public class MoneyStringConverter extends StringConverter<BigInteger> {
     }
 
     @Override
-    public BigInteger fromString(String string) {
-        return new BigDecimal(string.replaceAll("\\s+", ""))
+    public Money fromString(String string) {
+        var cents = parseCents(string);
+        if (cents >= 0) return Money.ofCents(cents);
+
+        return Money.ofCents(new BigDecimal(string.replaceAll("\\s+", ""))
                 .multiply(BigDecimal.valueOf(100))
-                .toBigInteger();
+                .toBigInteger());
+    }
+
+    // Parses the strings accepted by PATTERN with a short enough integer part, -1 for anything else
+    private static long parseCents(String string) {
+        long units = 0;
+        long decimals = 0;
+        int integerDigits = 0;
+        int decimalDigits = -1;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (Character.isWhitespace(c)) continue;
+            if (c == '.' && decimalDigits < 0) {
+                decimalDigits = 0;
+            } else if (c < '0' || c > '9') {
+                return -1;
+            } else if (decimalDigits < 0) {
+                if (++integerDigits > MAX_LONG_DIGITS) return -1;
+                units = units * 10 + (c - '0');
+            } else {
+                if (++decimalDigits > 2) return -1;
+                decimals = decimals * 10 + (c - '0');
+            }
+        }
+        // Let BigDecimal reject the strings without any digit
+        if (integerDigits == 0 && decimalDigits <= 0) return -1;
+        if (decimalDigits == 1) decimals *= 10;
+        return units * 100 + decimals;
     }
 
     /**
@@ -50,7 +99,7 @@ public class MoneyStringConverter extends StringConverter<BigInteger> {
      * @param defaultValue The default value of the formatter
      * @return A new {@link TextFormatter}
      */
-    public static TextFormatter<BigInteger> textFormatter(BigInteger defaultValue) {
+    public static TextFormatter<Money> textFormatter(Money defaultValue) {
         return new TextFormatter<>(INSTANCE, defaultValue, new RegexFilter(PATTERN));
     }
 }
@@ -2,18 +2,14 @@ package it.unimore.s273693.deliveru.workers;
 
 import it.unimore.s273693.deliveru.AppContext;
 import it.unimore.s273693.deliveru.AppSettings;
-import it.unimore.s273693.deliveru.db.Delivery;
 import it.unimore.s273693.deliveru.db.DeliveryState;
+import it.unimore.s273693.deliveru.db.TransitionableDeliveries;
 import javafx.application.Platform;
-import javafx.beans.value.ChangeListener;
-import javafx.beans.value.ObservableValue;
-import javafx.collections.ListChangeListener;
-import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.*;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -31,10 +27,8 @@ import java.util.concurrent.atomic.AtomicLong;
  * </p>
  *
  * <p>
- * To know what deliveries can be changed a list of delivery ids is maintained
- * every operation on it is synchronized to avoid async errors.
- * To keep a list of updatable deliveries a listener is attached to each delivery and
- * when the 'state' property changes it is added or removed to the list.
+ * The deliveries that can be changed are kept by the store itself (see {@link TransitionableDeliveries}),
+ * the worker only samples them, so starting it doesn't need to look at every delivery.
  * </p>
  *
  * <p>
@@ -55,11 +49,8 @@ public class DeliveryWorker {
     private final AtomicLong timesPerMinute = new AtomicLong(Double.doubleToLongBits(AppSettings.DEFAULT.deliveryIntensity));
     private final AtomicLong failRate = new AtomicLong(Double.doubleToLongBits(AppSettings.DEFAULT.deliveryFailRate));
 
-    // List of processable deliveries, always synchronize on this before using it!
-    private final List<Delivery> possibleDeliveries = new ArrayList<>();
-
-    private final Map<Delivery, DeliveryListener> registeredListeners = new HashMap<>();
-    private final DeliveryListListener listListener = new DeliveryListListener();
+    // The processable deliveries of the store, set before the thread starts
+    private TransitionableDeliveries possibleDeliveries;
 
     // The running thread, only null when the worker is stopped.
     private Thread runThread;
@@ -71,7 +62,7 @@ public class DeliveryWorker {
         if (runThread != null) {
             return; // Already started
         }
-        registerListeners();
+        possibleDeliveries = ctx.getDeliveries().getTransitionable();
         runThread = new Thread(this::startAsync);
         runThread.setName("Async delivery manager");
         runThread.start();
@@ -89,9 +80,6 @@ public class DeliveryWorker {
         } catch (InterruptedException e) {
             logger.error("Error while waiting for async thread end", e);
         }
-        unregisterListeners();
-        possibleDeliveries.clear();
-
         runThread = null;
         logger.info("Stopped");
     }
@@ -159,20 +147,14 @@ public class DeliveryWorker {
     }
 
     private void tick() {
-        Delivery target;
-        DeliveryState currentState;
-
-        synchronized (this.possibleDeliveries) {
-            int deliveryCount = this.possibleDeliveries.size();
-            if (deliveryCount == 0) return;
-            int chosen = this.random.nextInt(deliveryCount);
-            target = this.possibleDeliveries.get(chosen);
-            // Query inside of the synchronous code so we're sure it doesn't change
-            currentState = target.getState();
-        }
+        var chosen = this.possibleDeliveries.sample(this.random);
+        if (chosen.isEmpty()) return;
+        var target = chosen.get().getCode();
+        // The state when the delivery was sampled, the change is dropped if it's not current anymore
+        var currentState = chosen.get().getState();
 
         DeliveryState nextState;
-        switch (target.getState()) {
+        switch (currentState) {
             case IN_PREPARATION:
                 nextState = DeliveryState.IN_TRANSIT;
                 break;
@@ -188,14 +170,14 @@ public class DeliveryWorker {
                 return;
         }
 
-        logger.info("{} from {} to {}", target.getCode(), currentState, nextState);
+        logger.info("{} from {} to {}", target, currentState, nextState);
 
         // Now we need to update the state, this code updates the UI so the data
         // cannot be modified asynchronously, post a runnable in the main thread
         // and change the data from there.
         Platform.runLater(
                 () -> ctx.getDeliveries()
-                        .getById(target.getCode())
+                        .getById(target)
                         .filter(pkt -> pkt.getState() == currentState)
                         .ifPresent(pkt -> pkt.setState(nextState))
         );
@@ -223,121 +205,4 @@ public class DeliveryWorker {
         }
         logger.info("Async stopped");
     }
-
-    // Of all of the reactive methods that I know this is one of the leas efficient that I know,
-    // We need to have N + 1 listeners just to track the deliveries status, this is quite heavy on
-    // RAM, but it's the JavaFX way of doing things.
-
-    /**
-     * Registers the listener on the main delivery list and adds a listener to each one of the
-     * deliveries already present.
-     */
-    private void registerListeners() {
-        this.ctx.getDeliveries().getDeliveries().addListener(listListener);
-        for (Delivery p : ctx.getDeliveries().getDeliveries()) {
-            DeliveryListener l = new DeliveryListener(p);
-            registeredListeners.put(p, l);
-            l.register();
-            if (canChangeState(p.getState())) addDelivery(p);
-        }
-    }
-
-    /**
-     * Removes all of the listeners registered by this worker.
-     */
-    private void unregisterListeners() {
-        this.ctx.getDeliveries().getDeliveries().removeListener(listListener);
-        for (DeliveryListener listener : this.registeredListeners.values()) {
-            listener.unregister();
-        }
-        this.registeredListeners.clear();
-    }
-
-    /**
-     * Returns true only if the delivery parameter can be changed by this worker.
-     *
-     * @param state The state to process
-     * @return true only if the delivery can be changed
-     */
-    private static boolean canChangeState(DeliveryState state) {
-        return state == DeliveryState.IN_PREPARATION ||
-                state == DeliveryState.IN_TRANSIT ||
-                state == DeliveryState.REFUND_REQUIRED;
-    }
-
-    /**
-     * Adds the delivery to the processable list.
-     *
-     * @param delivery The delivery to add
-     */
-    private void addDelivery(Delivery delivery) {
-        synchronized (possibleDeliveries) {
-            possibleDeliveries.add(delivery);
-        }
-    }
-
-    /**
-     * Removes the delivery from the list.
-     *
-     * @param delivery The delivery to remove
-     */
-    private void removeDelivery(Delivery delivery) {
-        synchronized (possibleDeliveries) {
-            // O(N), not efficient!
-            // but we also need that sweet O(1) random access time in the async worker
-            possibleDeliveries.remove(delivery);
-        }
-    }
-
-    /**
-     * Listener of the main delivery list, this adds {@link DeliveryListener} to each new
-     * delivery of the list and removes it from the removed deliveries.
-     */
-    private class DeliveryListListener implements ListChangeListener<Delivery> {
-        @Override
-        public void onChanged(Change<? extends Delivery> c) {
-            while (c.next()) {
-                for (Delivery p : c.getAddedSubList()) {
-                    DeliveryListener l = new DeliveryListener(p);
-                    registeredListeners.put(p, l);
-                    l.register();
-                    if (canChangeState(p.getState())) addDelivery(p);
-                }
-                for (Delivery p : c.getRemoved()) {
-                    DeliveryListener l = registeredListeners.remove(p);
-                    l.unregister();
-                }
-            }
-        }
-    }
-
-    /**
-     * Adds or removes the delivery from the processable list according to its {@link DeliveryState}.
-     */
-    @RequiredArgsConstructor
-    private class DeliveryListener implements ChangeListener<DeliveryState> {
-        @Getter
-        private final Delivery delivery;
-
-        @Override
-        public void changed(ObservableValue<? extends DeliveryState> observable, DeliveryState oldValue,
-                            DeliveryState newValue) {
-            boolean useOld = canChangeState(oldValue);
-            boolean useNew = canChangeState(newValue);
-            if (useOld && !useNew) {
-                removeDelivery(delivery);
-            } else if (!useOld && useNew) {
-                addDelivery(delivery);
-            }
-        }
-
-        private void register() {
-            this.delivery.stateProperty().addListener(this);
-        }
-
-        private void unregister() {
-            this.delivery.stateProperty().removeListener(this);
-        }
-    }
-
 }
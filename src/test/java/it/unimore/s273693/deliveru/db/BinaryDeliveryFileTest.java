@@ -0,0 +1,127 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static it.unimore.s273693.deliveru.db.TestDeliveries.assertSameDeliveries;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryDeliveryFileTest {
+    @TempDir
+    Path dir;
+
+    private static byte[] write(List<Delivery> deliveries) throws IOException {
+        var out = new ByteArrayOutputStream();
+        BinaryDeliveryFile.write(Channels.newChannel(out), deliveries);
+        return out.toByteArray();
+    }
+
+    private static List<Delivery> read(byte[] data) throws IOException {
+        var res = new ArrayList<Delivery>();
+        BinaryDeliveryFile.read(Channels.newChannel(new ByteArrayInputStream(data)), ByteBuffer.allocate(0), res::add);
+        return res;
+    }
+
+    // The file groups the deliveries by sender, in order of first appearance
+    private static List<Delivery> groupedBySender(List<Delivery> deliveries) {
+        return deliveries.stream()
+                .collect(Collectors.groupingBy(Delivery::getSender, LinkedHashMap::new, Collectors.toList()))
+                .values().stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        var deliveries = TestDeliveries.random(new Random(1), 10, 1000);
+        var big = Money.ofCents(BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.TEN));
+        deliveries.add(new InsuredDelivery(UUID.randomUUID(), new UUID(0, 3), TestDeliveries.BASE_DATE, "Far", 1, big));
+        deliveries.add(new Delivery(UUID.randomUUID(), new UUID(0, 3), TestDeliveries.BASE_DATE, "x".repeat(70000), 2));
+
+        assertSameDeliveries(groupedBySender(deliveries), read(write(deliveries)));
+    }
+
+    @Test
+    void emptyRoundTrip() throws IOException {
+        assertTrue(read(write(List.of())).isEmpty());
+    }
+
+    @Test
+    void indexedRegionsDecodeTheirSender() throws IOException {
+        var deliveries = TestDeliveries.random(new Random(2), 7, 500);
+        var file = dir.resolve("deliveries.db");
+        Files.write(file, write(deliveries));
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var index = BinaryDeliveryFile.readIndex(channel);
+            var dictionary = BinaryDeliveryFile.readDictionary(channel);
+            assertEquals(7, index.size());
+            assertEquals(0, BinaryDeliveryFile.readGeneration(channel));
+            for (var entry : index.entrySet()) {
+                var expected = deliveries.stream()
+                        .filter(d -> d.getSender().equals(entry.getKey()))
+                        .collect(Collectors.toList());
+                assertEquals(expected.size(), entry.getValue().getCount());
+
+                var decoded = new ArrayList<Delivery>();
+                var records = BinaryDeliveryFile.readRegion(channel, entry.getValue());
+                BinaryDeliveryFile.decodeRegion(records.duplicate(), dictionary, decoded::add);
+                assertSameDeliveries(expected, decoded);
+
+                var code = expected.get(0).getCode();
+                assertTrue(BinaryDeliveryFile.containsCode(records.duplicate(), Set.of(code, UUID.randomUUID())));
+                assertFalse(BinaryDeliveryFile.containsCode(records.duplicate(), Set.of(UUID.randomUUID())));
+            }
+        }
+    }
+
+    @Test
+    void indexedStatisticsMatchTheDeliveries() throws IOException {
+        var deliveries = TestDeliveries.random(new Random(3), 5, 300);
+        var file = dir.resolve("deliveries.db");
+        Files.write(file, write(deliveries));
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (var entry : BinaryDeliveryFile.readIndex(channel).entrySet()) {
+                var expected = DeliveryStatistics.of(deliveries.stream()
+                        .filter(d -> d.getSender().equals(entry.getKey()))
+                        .collect(Collectors.toList()));
+                var actual = entry.getValue().getStatistics();
+                assertEquals(expected.getCount(), actual.getCount());
+                assertEquals(expected.getCountByState(), actual.getCountByState());
+                assertEquals(expected.getCountByType(), actual.getCountByType());
+                assertEquals(expected.getWeightInTransit(), actual.getWeightInTransit(), 1e-9);
+                assertEquals(expected.getInsuredExposure(), actual.getInsuredExposure());
+            }
+        }
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException {
+        var data = write(TestDeliveries.random(new Random(4), 3, 100));
+        assertThrows(InvalidDbException.class, () -> read(Arrays.copyOf(data, data.length / 2)));
+        assertThrows(InvalidDbException.class, () -> read(Arrays.copyOf(data, 10)));
+    }
+
+    @Test
+    void otherDataIsRejected() {
+        assertThrows(InvalidDbException.class, () -> read(new byte[64]));
+    }
+}
@@ -0,0 +1,114 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliveryArchiveTest {
+    @TempDir
+    Path dir;
+    private File file;
+    private File indexFile;
+
+    @BeforeEach
+    void setUp() {
+        file = dir.resolve("archive.db").toFile();
+        indexFile = dir.resolve("archive.idx").toFile();
+    }
+
+    private static List<Delivery> finalDeliveries(long seed, int count) {
+        return TestDeliveries.random(new Random(seed), 4, count * 3).stream()
+                .filter(Delivery::isInFinalState)
+                .limit(count)
+                .collect(Collectors.toList());
+    }
+
+    private static void truncate(File file, long bytes) throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - bytes);
+        }
+    }
+
+    @Test
+    void appendedDeliveriesCanBeRead() throws IOException {
+        var deliveries = finalDeliveries(1, 1000);
+        try (var archive = DeliveryArchive.open(file, indexFile)) {
+            assertEquals(1000, archive.append(deliveries));
+            assertEquals(0, archive.append(deliveries.subList(0, 10)));
+        }
+        try (var archive = DeliveryArchive.open(file, indexFile)) {
+            assertEquals(1000, archive.size());
+            for (var delivery : deliveries) {
+                TestDeliveries.assertSameDelivery(delivery, archive.get(delivery.getCode()).orElseThrow());
+            }
+            assertTrue(archive.get(UUID.randomUUID()).isEmpty());
+            var sender = deliveries.get(0).getSender();
+            var expected = deliveries.stream().filter(d -> d.getSender().equals(sender)).collect(Collectors.toList());
+            assertEquals(TestDeliveries.codes(expected), TestDeliveries.codes(archive.getBySender(sender)));
+        }
+    }
+
+    @Test
+    void incompleteBlockIsDropped() throws IOException {
+        var first = finalDeliveries(2, 50);
+        var second = finalDeliveries(3, 50);
+        try (var archive = DeliveryArchive.open(file, indexFile)) {
+            archive.append(first);
+            archive.append(second);
+        }
+        truncate(file, 5);
+
+        try (var archive = DeliveryArchive.open(file, indexFile)) {
+            assertEquals(50, archive.size());
+            for (var delivery : first) assertTrue(archive.contains(delivery.getCode()));
+            for (var delivery : second) assertFalse(archive.contains(delivery.getCode()));
+            // The dropped deliveries can be archived again
+            assertEquals(50, archive.append(second));
+        }
+        try (var archive = DeliveryArchive.open(file, indexFile)) {
+            assertEquals(100, archive.size());
+        }
+    }
+
+    @Test
+    void missingIndexEntriesAreRebuilt() throws IOException {
+        var first = finalDeliveries(4, 50);
+        var second = finalDeliveries(5, 50);
+        try (var archive = DeliveryArchive.open(file, indexFile)) {
+            archive.append(first);
+            archive.append(second);
+        }
+        // Crash while writing the entries of the last block
+        truncate(indexFile, 40 * 10 + 7);
+
+        try (var archive = DeliveryArchive.open(file, indexFile)) {
+            assertEquals(100, archive.size());
+            for (var delivery : second) {
+                TestDeliveries.assertSameDelivery(delivery, archive.get(delivery.getCode()).orElseThrow());
+            }
+        }
+        Files.delete(indexFile.toPath());
+        try (var archive = DeliveryArchive.open(file, indexFile)) {
+            assertEquals(100, archive.size());
+        }
+    }
+
+    @Test
+    void otherFilesAreRejected() throws IOException {
+        Files.write(file.toPath(), new byte[64]);
+        assertThrows(InvalidDbException.class, () -> DeliveryArchive.open(file, indexFile));
+    }
+}
@@ -0,0 +1,164 @@
+package it.unimore.s273693.deliveru.db;
+
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.UUID;
+
+import static it.unimore.s273693.deliveru.db.TestDeliveries.BASE_DATE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliveryJournalTest {
+    @TempDir
+    Path dir;
+    private File file;
+    private File journalFile;
+
+    @BeforeEach
+    void setUp() {
+        file = dir.resolve("deliveries.db").toFile();
+        journalFile = dir.resolve("deliveries.journal").toFile();
+    }
+
+    private DeliveryStore load() {
+        return DeliveryStore.load(file, journalFile, false);
+    }
+
+    private static Delivery newDelivery(String destination) {
+        return new Delivery(UUID.randomUUID(), UUID.randomUUID(), BASE_DATE, destination, 1);
+    }
+
+    @Test
+    void replaysTheChangesAfterTheSnapshot() throws IOException {
+        var store = load();
+        var deliveries = TestDeliveries.random(new Random(1), 5, 200);
+        deliveries.forEach(store::add);
+        TestDeliveries.save(store, file);
+
+        var added = newDelivery("Added");
+        store.add(added);
+        var moved = deliveries.stream().filter(d -> !d.isInFinalState()).findFirst().orElseThrow();
+        moved.setState(DeliveryState.FAILED);
+        var removed = deliveries.stream().filter(d -> d != moved && d.isInFinalState()).findFirst().orElseThrow();
+        store.remove(removed);
+        store.getJournal().sync();
+        store.close();
+
+        store = load();
+        assertEquals(200, store.size());
+        TestDeliveries.assertSameDelivery(added, store.getById(added.getCode()).orElseThrow());
+        assertEquals(DeliveryState.FAILED, store.getById(moved.getCode()).orElseThrow().getState());
+        assertTrue(store.getById(removed.getCode()).isEmpty());
+        store.close();
+    }
+
+    @Test
+    void replayIsIdempotent() throws IOException {
+        var store = load();
+        var delivery = newDelivery("Twice");
+        store.add(delivery);
+        delivery.setState(DeliveryState.IN_TRANSIT);
+        store.getJournal().sync();
+        // Crash after the snapshot is saved, before the journal is trimmed
+        var snapshot = store.snapshot();
+        AtomicFile.write(file, snapshot::write);
+        store.close();
+
+        store = load();
+        assertEquals(1, store.size());
+        assertEquals(DeliveryState.IN_TRANSIT, store.getById(delivery.getCode()).orElseThrow().getState());
+        store.close();
+    }
+
+    @Test
+    void tornTailIsDropped() throws IOException {
+        var store = load();
+        var kept = newDelivery("Kept");
+        store.add(kept);
+        store.getJournal().sync();
+        store.add(newDelivery("Torn"));
+        store.close();
+
+        try (var channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        store = load();
+        assertEquals(1, store.size());
+        assertTrue(store.getById(kept.getCode()).isPresent());
+        store.close();
+    }
+
+    @Test
+    void corruptedRecordStopsTheReplay() throws IOException {
+        var store = load();
+        var kept = newDelivery("Kept");
+        store.add(kept);
+        store.getJournal().sync();
+        long validSize = Files.size(journalFile.toPath());
+        store.add(newDelivery("Corrupted"));
+        store.add(newDelivery("After"));
+        store.close();
+
+        try (var channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            var b = ByteBuffer.allocate(1);
+            long position = validSize + 10;
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 0xff));
+            b.rewind();
+            channel.write(b, position);
+        }
+        store = load();
+        assertEquals(1, store.size());
+        assertTrue(store.getById(kept.getCode()).isPresent());
+        store.close();
+    }
+
+    @Test
+    void discardBeforeKeepsTheLaterRecords() throws IOException {
+        var store = load();
+        for (int i = 0; i < 10; i++) store.add(newDelivery("Before " + i));
+        var snapshot = store.snapshot();
+        var mark = store.getJournal().mark();
+        var late = newDelivery("Late");
+        store.add(late);
+        AtomicFile.write(file, snapshot::write);
+        snapshot.commit();
+        store.getJournal().discardBefore(mark, snapshot.getGeneration());
+        assertEquals(1, store.getJournal().getRecordCount());
+        store.close();
+
+        store = load();
+        assertEquals(11, store.size());
+        assertTrue(store.getById(late.getCode()).isPresent());
+        store.close();
+    }
+
+    @Test
+    void newerJournalIsNotReplayedOnAnOlderSnapshot() throws IOException {
+        var store = load();
+        store.add(newDelivery("First"));
+        TestDeliveries.save(store, file);
+        store.add(newDelivery("Second"));
+        TestDeliveries.save(store, file);
+        store.add(newDelivery("Third"));
+        store.close();
+
+        // The journal continues the snapshot that is going to be replaced by the old one
+        assertThrows(InvalidDbException.class, () -> {
+            var old = dir.resolve("old.db").toFile();
+            AtomicFile.write(old, out -> DeliveryStore.createEmpty().save(out));
+            DeliveryStore.read(old, journalFile);
+        });
+    }
+}
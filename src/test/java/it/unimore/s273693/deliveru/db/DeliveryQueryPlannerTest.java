@@ -0,0 +1,127 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static it.unimore.s273693.deliveru.db.TestDeliveries.BASE_DATE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliveryQueryPlannerTest {
+    @TempDir
+    Path dir;
+
+    private static List<DeliveryQuery> queries(UUID sender) {
+        return List.of(
+                DeliveryQuery.builder().sort(DeliveryQuery.Sort.DATE).limit(17).build(),
+                DeliveryQuery.builder().sort(DeliveryQuery.Sort.CODE).limit(50).build(),
+                DeliveryQuery.builder().sort(DeliveryQuery.Sort.WEIGHT).limit(33).build(),
+                DeliveryQuery.builder().states(DeliveryState.IN_TRANSIT).sort(DeliveryQuery.Sort.CODE).limit(9).build(),
+                DeliveryQuery.builder().sender(sender).sort(DeliveryQuery.Sort.DATE).limit(5).build(),
+                DeliveryQuery.builder().insured(true).dated(BASE_DATE.plusDays(10), BASE_DATE.plusDays(60))
+                        .sort(DeliveryQuery.Sort.WEIGHT).limit(7).build(),
+                DeliveryQuery.builder().states(DeliveryState.RECEIVED, DeliveryState.FAILED)
+                        .dated(BASE_DATE, BASE_DATE.plusDays(30)).sort(DeliveryQuery.Sort.DATE).limit(11).build(),
+                DeliveryQuery.builder().destinationPrefix("Street 1").sort(DeliveryQuery.Sort.CODE).limit(20).build());
+    }
+
+    // Every match of the query, in sort order, from a plain scan
+    private static List<UUID> expected(List<Delivery> deliveries, DeliveryQuery query) {
+        return deliveries.stream()
+                .filter(query::matches)
+                .sorted(query.getSort().comparator())
+                .map(Delivery::getCode)
+                .collect(Collectors.toList());
+    }
+
+    // Every page of the query, following the cursors
+    private static List<UUID> paged(DeliveryStore store, DeliveryQuery query) {
+        var res = new ArrayList<UUID>();
+        var page = store.find(query);
+        while (true) {
+            assertTrue(page.getDeliveries().size() <= query.getLimit());
+            page.getDeliveries().forEach(delivery -> res.add(delivery.getCode()));
+            if (!page.hasNext()) return res;
+            assertEquals(query.getLimit(), page.getDeliveries().size());
+            page = store.find(query.continueAfter(page.getNext()));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void pagesCoverEveryMatchOnce(boolean compact) {
+        var deliveries = TestDeliveries.random(new Random(1), 30, 1000);
+        var store = DeliveryStore.createEmpty(compact);
+        store.addAll(deliveries);
+        for (var query : queries(deliveries.get(0).getSender())) {
+            var expected = expected(deliveries, query);
+            assertEquals(expected, paged(store, query));
+            assertEquals(expected.subList(0, Math.min(query.getLimit(), expected.size())),
+                    store.stream(query).map(Delivery::getCode).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void pagesSkipTheRemovedDeliveries() {
+        var deliveries = TestDeliveries.random(new Random(2), 10, 300);
+        var store = DeliveryStore.createEmpty();
+        store.addAll(deliveries);
+        var query = DeliveryQuery.builder().sort(DeliveryQuery.Sort.CODE).limit(20).build();
+
+        var first = store.find(query);
+        var removed = store.getByState(DeliveryState.RECEIVED).stream()
+                .filter(d -> !first.getDeliveries().contains(d))
+                .collect(Collectors.toList());
+        store.removeAll(removed);
+        var rest = new ArrayList<UUID>();
+        first.getDeliveries().forEach(d -> rest.add(d.getCode()));
+        rest.addAll(paged(store, query.continueAfter(first.getNext())));
+        var remaining = new ArrayList<>(deliveries);
+        remaining.removeAll(removed);
+        assertEquals(expected(remaining, query), rest);
+    }
+
+    @Test
+    void pagesNeedASortKey() {
+        var store = DeliveryStore.createEmpty();
+        assertThrows(IllegalArgumentException.class, () -> store.find(DeliveryQuery.builder().limit(10).build()));
+    }
+
+    @Test
+    void lazyPagesMatchTheLoadedOnes() throws IOException {
+        var file = dir.resolve("deliveries.db").toFile();
+        var journalFile = dir.resolve("deliveries.journal").toFile();
+        var rnd = new Random(3);
+        var store = DeliveryStore.load(file, journalFile, false);
+        for (int i = 0; i < 300; i++) {
+            var delivery = new Delivery(UUID.randomUUID(), new UUID(0, rnd.nextInt(30)),
+                    BASE_DATE.plusDays(rnd.nextInt(100)), "Street", 1);
+            store.add(delivery);
+            if (rnd.nextInt(40) == 0) delivery.setState(DeliveryState.IN_TRANSIT);
+        }
+        var inTransit = DeliveryQuery.builder().states(DeliveryState.IN_TRANSIT)
+                .sort(DeliveryQuery.Sort.CODE).limit(3).build();
+        var all = DeliveryQuery.builder().sort(DeliveryQuery.Sort.DATE).limit(17).build();
+        var expectedInTransit = paged(store, inTransit);
+        var expectedAll = paged(store, all);
+        TestDeliveries.save(store, file);
+        store.close();
+
+        store = DeliveryStore.load(file, journalFile, true);
+        assertEquals(expectedInTransit, paged(store, inTransit));
+        // Only the senders with a delivery in transit are read
+        assertTrue(store.getDeliveries().size() < 300);
+        assertEquals(expectedAll, paged(store, all));
+        assertEquals(300, store.getDeliveries().size());
+        store.close();
+    }
+}
@@ -0,0 +1,89 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static it.unimore.s273693.deliveru.db.TestDeliveries.BASE_DATE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliverySegmentTest {
+    @TempDir
+    Path dir;
+    private File file;
+    private File heapFile;
+
+    @BeforeEach
+    void setUp() {
+        file = dir.resolve("deliveries.seg").toFile();
+        heapFile = dir.resolve("deliveries.heap").toFile();
+    }
+
+    private static List<Delivery> sorted(List<Delivery> deliveries) {
+        var res = new ArrayList<>(deliveries);
+        res.sort(Comparator.comparing(Delivery::getCode));
+        return res;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void reopenKeepsTheChanges(boolean compact) throws IOException {
+        var store = DeliveryStore.openSegment(file, heapFile, compact);
+        TestDeliveries.random(new Random(1), 10, 300).forEach(store::add);
+        var moved = store.getByState(DeliveryState.IN_PREPARATION).get(0);
+        moved.setState(DeliveryState.IN_TRANSIT);
+        var removed = store.getByState(DeliveryState.RECEIVED).get(0);
+        store.remove(removed);
+        // Grows the string heap past a single page
+        var long1 = new Delivery(UUID.randomUUID(), UUID.randomUUID(), BASE_DATE, "y".repeat(100000), 3);
+        store.add(long1);
+        var expected = store.copyDeliveries();
+        store.getSegment().sync();
+        store.close();
+
+        store = DeliveryStore.openSegment(file, heapFile, compact);
+        assertEquals(300, store.size());
+        TestDeliveries.assertSameDeliveries(sorted(expected), sorted(store.getDeliveries()));
+        assertEquals(DeliveryState.IN_TRANSIT, store.getById(moved.getCode()).orElseThrow().getState());
+        assertTrue(store.getById(removed.getCode()).isEmpty());
+        store.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void compactionKeepsTheChangesMadeMeanwhile(boolean compact) throws IOException {
+        var store = DeliveryStore.openSegment(file, heapFile, compact);
+        var deliveries = TestDeliveries.random(new Random(2), 5, 200);
+        deliveries.forEach(store::add);
+        for (var delivery : store.getByState(DeliveryState.RECEIVED)) store.remove(delivery);
+        store.getSegment().sync();
+
+        store.getSegment().beginCompaction();
+        var copy = store.copyDeliveries();
+        var late = new Delivery(UUID.randomUUID(), UUID.randomUUID(), BASE_DATE, "Late", 1);
+        store.add(late);
+        var moved = store.getByState(DeliveryState.IN_TRANSIT).get(0);
+        moved.setState(DeliveryState.RECEIVED);
+        store.getSegment().compact(copy);
+        var expected = store.copyDeliveries();
+        store.getSegment().sync();
+        store.close();
+
+        store = DeliveryStore.openSegment(file, heapFile, compact);
+        TestDeliveries.assertSameDeliveries(sorted(expected), sorted(store.getDeliveries()));
+        assertTrue(store.getById(late.getCode()).isPresent());
+        assertEquals(DeliveryState.RECEIVED, store.getById(moved.getCode()).orElseThrow().getState());
+        assertFalse(store.getSegment().shouldCompact());
+        store.close();
+    }
+}
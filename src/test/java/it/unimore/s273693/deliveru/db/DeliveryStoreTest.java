@@ -0,0 +1,245 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static it.unimore.s273693.deliveru.db.TestDeliveries.BASE_DATE;
+import static it.unimore.s273693.deliveru.db.TestDeliveries.codes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliveryStoreTest {
+    @TempDir
+    Path dir;
+
+    // Checks every index against a scan of the deliveries
+    private static void assertIndexesConsistent(DeliveryStore store) {
+        var all = new ArrayList<>(store.getDeliveries());
+        assertEquals(all.size(), store.size());
+        assertEquals(all.size(), codes(all).size());
+        for (var delivery : all) assertSame(delivery, store.getById(delivery.getCode()).orElseThrow());
+        for (var state : DeliveryState.values()) {
+            var expected = all.stream().filter(d -> d.getState() == state).collect(Collectors.toList());
+            assertEquals(expected.size(), store.countByState(state), state.name());
+            assertEquals(codes(expected), codes(store.getByState(state)), state.name());
+        }
+        for (var sender : all.stream().map(Delivery::getSender).distinct().collect(Collectors.toList())) {
+            var expected = all.stream().filter(d -> d.getSender().equals(sender)).collect(Collectors.toList());
+            assertEquals(codes(expected), codes(store.getByAuthor(sender)));
+        }
+        var from = BASE_DATE.plusDays(20);
+        var to = BASE_DATE.plusDays(45);
+        var expected = all.stream()
+                .filter(d -> !d.getDate().isBefore(from) && d.getDate().isBefore(to))
+                .collect(Collectors.toList());
+        var byDate = store.getByDate(from, to);
+        assertEquals(codes(expected), codes(byDate));
+        for (int i = 1; i < byDate.size(); i++) {
+            assertFalse(byDate.get(i).getDate().isBefore(byDate.get(i - 1).getDate()));
+        }
+        assertSameStatistics(DeliveryStatistics.of(all), store.getStatistics().snapshot());
+    }
+
+    // The weights are summed in another order when the deliveries are loaded lazily
+    private static void assertSameStatistics(DeliveryStatistics.Snapshot expected, DeliveryStatistics.Snapshot actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getCountByState(), actual.getCountByState());
+        assertEquals(expected.getCountByType(), actual.getCountByType());
+        assertEquals(expected.getWeightInTransit(), actual.getWeightInTransit(), 1e-6);
+        assertEquals(expected.getInsuredExposure(), actual.getInsuredExposure());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void indexesFollowTheMutations(boolean compact) {
+        var rnd = new Random(compact ? 1 : 2);
+        var store = DeliveryStore.createEmpty(compact);
+        assertEquals(compact, store.isCompact());
+        store.addAll(TestDeliveries.random(rnd, 20, 2000));
+        assertIndexesConsistent(store);
+
+        for (int step = 0; step < 5000; step++) {
+            var deliveries = store.getDeliveries();
+            switch (rnd.nextInt(4)) {
+                case 0:
+                    store.add(TestDeliveries.random(rnd, 20, 1).get(0));
+                    break;
+                case 1:
+                    var delivery = deliveries.get(rnd.nextInt(deliveries.size()));
+                    if (delivery.getState() == DeliveryState.IN_PREPARATION) {
+                        delivery.setState(DeliveryState.IN_TRANSIT);
+                    } else if (delivery.getState() == DeliveryState.IN_TRANSIT) {
+                        delivery.setState(rnd.nextBoolean() ? DeliveryState.RECEIVED : DeliveryState.FAILED);
+                    }
+                    break;
+                case 2:
+                    var received = store.getByState(DeliveryState.RECEIVED);
+                    if (!received.isEmpty()) store.remove(received.get(rnd.nextInt(received.size())));
+                    break;
+                default:
+                    if (step % 250 != 0) break;
+                    // The failed insured deliveries still have to be refunded
+                    var failed = store.getByState(DeliveryState.FAILED).stream()
+                            .filter(Delivery::isInFinalState)
+                            .collect(Collectors.toList());
+                    int count = Math.min(30, failed.size());
+                    assertEquals(count, store.removeAll(failed.subList(0, count)));
+                    assertIndexesConsistent(store);
+            }
+        }
+        assertIndexesConsistent(store);
+    }
+
+    @Test
+    void duplicatesAreRejected() {
+        var store = DeliveryStore.createEmpty();
+        var deliveries = TestDeliveries.random(new Random(3), 3, 10);
+        store.addAll(deliveries);
+        var copy = deliveries.get(4).copy();
+        assertThrows(IllegalArgumentException.class, () -> store.add(copy));
+
+        var fresh = new Delivery(UUID.randomUUID(), new UUID(0, 1), BASE_DATE, "New", 1);
+        assertThrows(IllegalArgumentException.class, () -> store.addAll(List.of(fresh, copy)));
+        assertThrows(IllegalArgumentException.class, () -> store.addAll(List.of(fresh, fresh.copy())));
+        assertEquals(10, store.size());
+        assertTrue(store.getById(fresh.getCode()).isEmpty());
+    }
+
+    @Test
+    void onlyFinalDeliveriesAreRemoved() {
+        var store = DeliveryStore.createEmpty();
+        var open = new Delivery(UUID.randomUUID(), UUID.randomUUID(), BASE_DATE, "Open", 1);
+        var done = new Delivery(UUID.randomUUID(), UUID.randomUUID(), BASE_DATE, "Done", 1, DeliveryState.RECEIVED);
+        store.addAll(List.of(open, done));
+        assertThrows(IllegalArgumentException.class, () -> store.removeAll(List.of(done, open)));
+        assertEquals(2, store.size());
+        store.remove(done);
+        assertEquals(1, store.size());
+        assertIndexesConsistent(store);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void snapshotRoundTrip(boolean compact) throws IOException {
+        var store = DeliveryStore.createEmpty(compact);
+        store.addAll(TestDeliveries.random(new Random(4), 10, 500));
+        var out = new ByteArrayOutputStream();
+        store.save(out);
+
+        var read = DeliveryStore.read(new ByteArrayInputStream(out.toByteArray()), !compact);
+        assertEquals(500, read.size());
+        for (var delivery : store.getDeliveries()) {
+            TestDeliveries.assertSameDelivery(delivery, read.getById(delivery.getCode()).orElseThrow());
+        }
+        assertIndexesConsistent(read);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void unusedDestinationsAreDropped(boolean compact) throws IOException {
+        var store = DeliveryStore.createEmpty(compact);
+        var deliveries = new ArrayList<Delivery>();
+        for (int i = 0; i < 3000; i++) {
+            deliveries.add(new Delivery(UUID.randomUUID(), UUID.randomUUID(), BASE_DATE, "Street " + i, 1,
+                    DeliveryState.RECEIVED));
+        }
+        store.addAll(deliveries);
+        store.removeAll(deliveries.subList(0, 2990));
+
+        var out = new ByteArrayOutputStream();
+        store.save(out);
+        assertEquals(10, store.getDestinations().size());
+        var read = DeliveryStore.read(new ByteArrayInputStream(out.toByteArray()), compact);
+        assertEquals(10, read.getDestinations().size());
+        for (var delivery : deliveries.subList(2990, 3000)) {
+            assertEquals(delivery.getDestination(), store.getById(delivery.getCode()).orElseThrow().getDestination());
+            assertEquals(delivery.getDestination(), read.getById(delivery.getCode()).orElseThrow().getDestination());
+        }
+    }
+
+    @Test
+    void lazyStoreLoadsOnlyWhatIsNeeded() throws IOException {
+        var file = dir.resolve("deliveries.db").toFile();
+        var journalFile = dir.resolve("deliveries.journal").toFile();
+        var store = DeliveryStore.load(file, journalFile, false);
+        var deliveries = TestDeliveries.random(new Random(5), 8, 400);
+        store.addAll(deliveries);
+        var statistics = store.getStatistics().snapshot();
+        TestDeliveries.save(store, file);
+        store.close();
+
+        store = DeliveryStore.load(file, journalFile, true);
+        assertTrue(store.isLazy());
+        assertEquals(400, store.size());
+        assertTrue(store.getDeliveries().isEmpty());
+        assertSameStatistics(statistics, store.getStatistics().snapshot());
+
+        var sender = deliveries.get(0).getSender();
+        var expected = deliveries.stream().filter(d -> d.getSender().equals(sender)).collect(Collectors.toList());
+        assertEquals(codes(expected), codes(store.getByAuthor(sender)));
+        assertEquals(expected.size(), store.getDeliveries().size());
+        assertSameStatistics(statistics, store.getStatistics().snapshot());
+
+        // A code still on disk is a duplicate too, and the batch is checked before anything is loaded
+        var other = deliveries.stream().filter(d -> !d.getSender().equals(sender)).findFirst().orElseThrow();
+        var fresh = new Delivery(UUID.randomUUID(), other.getSender(), BASE_DATE, "New", 1);
+        var finalStore = store;
+        assertThrows(IllegalArgumentException.class, () -> finalStore.addAll(List.of(fresh, other.copy())));
+        assertEquals(expected.size(), store.getDeliveries().size());
+        assertEquals(400, store.size());
+
+        store.addAll(List.of(fresh));
+        assertEquals(401, store.size());
+        while (store.loadPage(50)) {
+            assertEquals(401, store.size());
+        }
+        assertEquals(401, store.getDeliveries().size());
+        assertIndexesConsistent(store);
+        store.close();
+    }
+
+    @Test
+    void lazySaveKeepsTheDeliveriesOnDisk() throws IOException {
+        var file = dir.resolve("deliveries.db").toFile();
+        var journalFile = dir.resolve("deliveries.journal").toFile();
+        var store = DeliveryStore.load(file, journalFile, false);
+        var deliveries = TestDeliveries.random(new Random(6), 8, 400);
+        store.addAll(deliveries);
+        TestDeliveries.save(store, file);
+        store.close();
+
+        store = DeliveryStore.load(file, journalFile, true);
+        var sender = deliveries.get(0).getSender();
+        var moved = store.getByAuthor(sender).stream()
+                .filter(d -> d.getState() == DeliveryState.IN_PREPARATION)
+                .findFirst().orElseThrow();
+        moved.setState(DeliveryState.IN_TRANSIT);
+        TestDeliveries.save(store, file);
+        store.close();
+
+        store = DeliveryStore.load(file, journalFile, false);
+        assertEquals(400, store.size());
+        assertEquals(DeliveryState.IN_TRANSIT, store.getById(moved.getCode()).orElseThrow().getState());
+        assertIndexesConsistent(store);
+        store.close();
+    }
+
+    @Test
+    void lazyAndCompactAreExclusive() {
+        File file = dir.resolve("deliveries.db").toFile();
+        File journalFile = dir.resolve("deliveries.journal").toFile();
+        assertThrows(IllegalArgumentException.class, () -> DeliveryStore.load(file, journalFile, true, true));
+    }
+}
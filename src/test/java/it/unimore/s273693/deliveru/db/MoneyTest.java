@@ -0,0 +1,71 @@
+package it.unimore.s273693.deliveru.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MoneyTest {
+    private static final BigInteger MAX = BigInteger.valueOf(Long.MAX_VALUE);
+    private static final BigInteger MIN = BigInteger.valueOf(Long.MIN_VALUE);
+
+    @Test
+    void smallArithmetic() {
+        assertEquals(Money.ofCents(350), Money.ofCents(100).add(Money.ofCents(250)));
+        assertEquals(Money.ofCents(-150), Money.ofCents(100).subtract(Money.ofCents(250)));
+        assertSame(Money.ZERO, Money.ofCents(7).subtract(Money.ofCents(7)));
+        assertEquals(-1, Money.ofCents(-3).signum());
+        assertEquals("350", Money.ofCents(350).toString());
+    }
+
+    @Test
+    void overflowMovesToBigInteger() {
+        var sum = Money.ofCents(Long.MAX_VALUE).add(Money.ofCents(1));
+        assertFalse(sum.isLong());
+        assertEquals(MAX.add(BigInteger.ONE), sum.toBigInteger());
+        assertThrows(ArithmeticException.class, sum::getCents);
+
+        var difference = Money.ofCents(Long.MIN_VALUE).subtract(Money.ofCents(1));
+        assertFalse(difference.isLong());
+        assertEquals(MIN.subtract(BigInteger.ONE), difference.toBigInteger());
+        assertFalse(Money.ofCents(1).subtract(Money.ofCents(Long.MIN_VALUE)).isLong());
+    }
+
+    @Test
+    void representationIsNormalized() {
+        var big = Money.ofCents(Long.MAX_VALUE).add(Money.ofCents(10));
+        var back = big.subtract(Money.ofCents(20));
+        assertTrue(back.isLong());
+        assertEquals(Long.MAX_VALUE - 10, back.getCents());
+        assertEquals(Money.ofCents(Long.MAX_VALUE - 10), back);
+        assertEquals(Money.ofCents(Long.MAX_VALUE - 10).hashCode(), back.hashCode());
+        assertTrue(Money.ofCents(BigInteger.valueOf(42)).isLong());
+        assertEquals(Money.ofCents(MAX.add(BigInteger.TWO)), big.subtract(Money.ofCents(8)));
+    }
+
+    @Test
+    void comparison() {
+        var big = Money.ofCents(MAX.multiply(BigInteger.TWO));
+        var negativeBig = Money.ofCents(MIN.multiply(BigInteger.TWO));
+        assertTrue(Money.ofCents(1).compareTo(Money.ofCents(2)) < 0);
+        assertTrue(big.compareTo(Money.ofCents(Long.MAX_VALUE)) > 0);
+        assertTrue(negativeBig.compareTo(Money.ofCents(Long.MIN_VALUE)) < 0);
+        assertEquals(0, big.compareTo(Money.ofCents(MAX.multiply(BigInteger.TWO))));
+        assertNotEquals(big, negativeBig);
+    }
+
+    @Test
+    void accumulator() {
+        var sum = new Money.Accumulator();
+        assertEquals(Money.ZERO, sum.get());
+        for (int i = 0; i < 3; i++) sum.add(Money.ofCents(Long.MAX_VALUE));
+        assertEquals(Money.ofCents(MAX.multiply(BigInteger.valueOf(3))), sum.get());
+        for (int i = 0; i < 3; i++) sum.subtract(Money.ofCents(Long.MAX_VALUE));
+        assertSame(Money.ZERO, sum.get());
+        sum.add(Money.ofCents(MIN.subtract(BigInteger.TEN)));
+        sum.add(Money.ofCents(20));
+        assertTrue(sum.get().isLong());
+        assertEquals(Long.MIN_VALUE + 10, sum.get().getCents());
+    }
+}
@@ -0,0 +1,91 @@
+package it.unimore.s273693.deliveru.db;
+
+import it.unimore.s273693.deliveru.serialize.AtomicFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Helpers shared by the storage tests.
+ */
+final class TestDeliveries {
+    static final LocalDate BASE_DATE = LocalDate.of(2021, 1, 1);
+
+    private TestDeliveries() {}
+
+    /**
+     * Random deliveries of a few senders, about a fifth of them insured and some already moved to another state.
+     *
+     * @param rnd The random source (seeded, so a failure can be reproduced)
+     * @param senders The number of senders
+     * @param count The number of deliveries
+     * @return The deliveries
+     */
+    static List<Delivery> random(Random rnd, int senders, int count) {
+        var senderIds = new UUID[senders];
+        for (int i = 0; i < senders; i++) senderIds[i] = new UUID(0, i);
+        var res = new ArrayList<Delivery>(count);
+        for (int i = 0; i < count; i++) {
+            var code = new UUID(rnd.nextLong(), rnd.nextLong());
+            var sender = senderIds[rnd.nextInt(senders)];
+            var date = BASE_DATE.plusDays(rnd.nextInt(100));
+            var destination = "Street " + rnd.nextInt(20);
+            double weight = rnd.nextInt(1000) / 10.0 + 0.1;
+            Delivery delivery = rnd.nextInt(5) == 0
+                    ? new InsuredDelivery(code, sender, date, destination, weight, Money.ofCents(rnd.nextInt(100000)))
+                    : new Delivery(code, sender, date, destination, weight);
+            int state = rnd.nextInt(4);
+            if (state >= 1) delivery.setState(DeliveryState.IN_TRANSIT);
+            if (state >= 2) delivery.setState(state == 2 ? DeliveryState.RECEIVED : DeliveryState.FAILED);
+            res.add(delivery);
+        }
+        return res;
+    }
+
+    static void assertSameDelivery(Delivery expected, Delivery actual) {
+        assertEquals(expected.getCode(), actual.getCode());
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getDate(), actual.getDate());
+        assertEquals(expected.getDestination(), actual.getDestination());
+        assertEquals(expected.getWeight(), actual.getWeight());
+        assertEquals(expected.getState(), actual.getState());
+        if (expected instanceof InsuredDelivery) {
+            assertEquals(((InsuredDelivery) expected).getInsuredValue(), ((InsuredDelivery) actual).getInsuredValue());
+        }
+    }
+
+    static void assertSameDeliveries(List<? extends Delivery> expected, List<? extends Delivery> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) assertSameDelivery(expected.get(i), actual.get(i));
+    }
+
+    static Set<UUID> codes(Collection<? extends Delivery> deliveries) {
+        return deliveries.stream().map(Delivery::getCode).collect(Collectors.toSet());
+    }
+
+    /**
+     * Saves a snapshot of the store and trims its journal, like the app does.
+     *
+     * @param store The store, loaded with a journal
+     * @param file The snapshot file
+     * @throws IOException when an error occurs while writing
+     */
+    static void save(DeliveryStore store, File file) throws IOException {
+        var snapshot = store.snapshot();
+        var mark = store.getJournal().mark();
+        AtomicFile.write(file, snapshot::write);
+        snapshot.commit();
+        store.getJournal().discardBefore(mark, snapshot.getGeneration());
+    }
+}